@@ -0,0 +1,150 @@
+package com.ml.map;
+
+import android.content.Context;
+import android.location.Location;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.ml.map.track.TrackRecord;
+import com.ml.map.track.TrackWriter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares preparing a month of sessions one after another, as auto-send does, with {@link BatchExporter}
+ * spreading them over all cores. Timings are logged under the BatchExporterBenchmark tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BatchExporterBenchmarkTest {
+
+    private static final String TAG = "BatchExporterBenchmark";
+    private static final int SESSIONS = 30;
+    private static final int POINTS_PER_SESSION = 20000;
+    private static final List<String> FORMATS = Arrays.asList(
+            TrackExportFactory.GPX, TrackExportFactory.KML, TrackExportFactory.CSV, TrackExportFactory.GEOJSON);
+
+    private File folder;
+
+    @Before
+    public void createSessions() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        GoblobLocationManager.getInstance().init(context);
+
+        folder = new File(context.getCacheDir(), "batch-export");
+        deleteFolder();
+        assertTrue(folder.mkdirs());
+
+        TrackRecord record = new TrackRecord();
+        for (int session = 0; session < SESSIONS; session++) {
+            TrackWriter writer = TrackWriter.open(new File(folder, String.format("2026-09-%02d.gbt", session + 1)));
+            for (int i = 0; i < POINTS_PER_SESSION; i++) {
+                writer.append(record.setPoint(location(i), i % 1000 == 0));
+                if (i % 5000 == 0) {
+                    writer.append(record.setAnnotation("note " + i, location(i)));
+                }
+            }
+            writer.close();
+        }
+    }
+
+    @After
+    public void deleteFolder() {
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        folder.delete();
+    }
+
+    @Test
+    public void parallelMatchesSequential() throws Exception {
+        List<String> sessions = BatchExporter.findTrackSessions(folder);
+        assertEquals(SESSIONS, sessions.size());
+
+        long sequential = timeBatch(sessions, 1);
+        Map<String, Long> sequentialFiles = listExports();
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        long parallel = timeBatch(sessions, cores);
+        Map<String, Long> parallelFiles = listExports();
+
+        Log.i(TAG, SESSIONS + " sessions: sequential " + sequential + "ms, " + cores + " workers " + parallel + "ms");
+        assertEquals(sequentialFiles, parallelFiles);
+        assertEquals(SESSIONS * FORMATS.size(), parallelFiles.size());
+    }
+
+    @Test
+    public void cancelLeavesNoPartialFiles() throws Exception {
+        final BatchExporter exporter = new BatchExporter(folder, BatchExporter.findTrackSessions(folder), FORMATS, true);
+        exporter.setProgressListener(new BatchExporter.ProgressListener() {
+            @Override
+            public void onSessionDone(String session, List<File> files, int done, int total) {
+                exporter.cancel();
+            }
+        });
+
+        Map<String, List<File>> results = exporter.run();
+
+        assertTrue(results.size() < SESSIONS);
+        for (String name : folder.list()) {
+            assertFalse(name, name.endsWith(".part") || name.endsWith(".spool"));
+        }
+    }
+
+    private long timeBatch(List<String> sessions, int parallelism) throws Exception {
+        for (File file : folder.listFiles()) {
+            if (!file.getName().endsWith(".gbt")) {
+                file.delete();
+            }
+        }
+
+        long start = System.nanoTime();
+        Map<String, List<File>> results = new BatchExporter(folder, sessions, FORMATS, true)
+                .setParallelism(parallelism)
+                .run();
+        long elapsed = (System.nanoTime() - start) / 1000000;
+
+        assertEquals(SESSIONS, results.size());
+        return elapsed;
+    }
+
+    /**
+     * Exported files and their sizes. Zips are left out as they hold file times.
+     */
+    private Map<String, Long> listExports() {
+        Map<String, Long> files = new TreeMap<>();
+        for (File file : folder.listFiles()) {
+            if (!file.getName().endsWith(".gbt") && !file.getName().endsWith(".zip")) {
+                files.put(file.getName(), file.length());
+            }
+        }
+        return files;
+    }
+
+    private static Location location(int i) {
+        Location loc = new Location("gps");
+        loc.setTime(1788220800000L + i * 1000L);
+        loc.setLatitude(40.4168 + i * 0.00001);
+        loc.setLongitude(-3.7038 + i * 0.000013);
+        loc.setAltitude(650 + i % 30 * 0.37);
+        loc.setAccuracy(4.5f + i % 5);
+        loc.setSpeed(1.23f);
+        loc.setBearing(i % 360);
+        return loc;
+    }
+}
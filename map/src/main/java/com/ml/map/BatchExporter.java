@@ -0,0 +1,201 @@
+package com.ml.map;
+
+import com.ml.map.track.TrackFileLogger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Gets many sessions ready to send at once, e.g. a month of daily files: each session is exported from its track
+ * file and zipped as in {@link FileSenderFactory}, with several sessions in flight on separate threads.
+ *
+ * Sessions are independent, so they are simply spread over a fixed number of workers; that number also bounds
+ * memory use, since each export and zip streams through its own fixed size buffers.
+ */
+public class BatchExporter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchExporter.class);
+
+    public interface ProgressListener {
+        /**
+         * Called on the thread running {@link #run()} as each session finishes
+         *
+         * @param files the files to send for the session, empty if there was nothing to send
+         */
+        void onSessionDone(String session, List<File> files, int done, int total);
+    }
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private final File folder;
+    private final List<String> sessions;
+    private final Collection<String> exportFormats;
+    private final boolean zip;
+    private final AtomicBoolean cancelled = new AtomicBoolean();
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private ProgressListener listener;
+
+    /**
+     * @param sessions the file names of the sessions, without extension
+     * @param exportFormats formats to export from each track file, see {@link TrackExportFactory}
+     * @param zip whether to zip each session's files
+     */
+    public BatchExporter(File folder, List<String> sessions, Collection<String> exportFormats, boolean zip) {
+        this.folder = folder;
+        this.sessions = sessions;
+        this.exportFormats = exportFormats;
+        this.zip = zip;
+    }
+
+    /**
+     * Exports and zips with the formats and zip setting from the preferences
+     */
+    public static BatchExporter fromPreferences(List<String> sessions) {
+        PreferenceHelper preferenceHelper = PreferenceHelper.getInstance();
+        return new BatchExporter(new File(preferenceHelper.getGoblobFolder()), sessions,
+                preferenceHelper.getExportFormats(), preferenceHelper.shouldSendZipFile());
+    }
+
+    /**
+     * File names of the sessions in the folder that have a track file, oldest name first
+     */
+    public static List<String> findTrackSessions(File folder) {
+        List<String> sessions = new ArrayList<>();
+        File[] trackFiles = Files.fromFolder(folder, new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(TrackFileLogger.EXTENSION);
+            }
+        });
+        for (File trackFile : trackFiles) {
+            String name = trackFile.getName();
+            sessions.add(name.substring(0, name.length() - TrackFileLogger.EXTENSION.length()));
+        }
+        Collections.sort(sessions);
+        return sessions;
+    }
+
+    /**
+     * Most sessions processed at the same time, the number of cores by default. 1 processes them one after another.
+     */
+    public BatchExporter setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        return this;
+    }
+
+    public BatchExporter setProgressListener(ProgressListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * Stops the batch from any thread. Sessions not started are skipped and exports in progress are abandoned
+     * without leaving partial files.
+     */
+    public void cancel() {
+        cancelled.set(true);
+    }
+
+    public boolean isCancelled() {
+        return cancelled.get();
+    }
+
+    /**
+     * Processes the sessions, blocking until all are done or the batch is cancelled
+     *
+     * @return the files to send for each finished session, in session order
+     */
+    public Map<String, List<File>> run() throws InterruptedException {
+        Map<String, List<File>> results = new LinkedHashMap<>();
+        if (sessions.isEmpty()) {
+            return results;
+        }
+
+        int workers = Math.min(parallelism, sessions.size());
+        ExecutorService executor = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "goblob-export-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        long start = System.currentTimeMillis();
+        final AtomicReferenceArray<List<File>> done = new AtomicReferenceArray<>(sessions.size());
+        try {
+            ExecutorCompletionService<Integer> completion = new ExecutorCompletionService<>(executor);
+            for (int i = 0; i < sessions.size(); i++) {
+                final int index = i;
+                completion.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        if (!cancelled.get()) {
+                            List<File> files = FileSenderFactory.prepareFiles(folder, sessions.get(index),
+                                    exportFormats, zip, cancelled);
+                            //A cancelled export may have left the session incomplete
+                            if (!cancelled.get()) {
+                                done.set(index, files);
+                            }
+                        }
+                        return index;
+                    }
+                });
+            }
+
+            int finished = 0;
+            for (int i = 0; i < sessions.size(); i++) {
+                Future<Integer> future = completion.take();
+                int index = get(future);
+                if (index < 0 || done.get(index) == null) {
+                    continue;
+                }
+                finished++;
+                if (listener != null) {
+                    listener.onSessionDone(sessions.get(index), done.get(index), finished, sessions.size());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        for (int i = 0; i < done.length(); i++) {
+            if (done.get(i) != null) {
+                results.put(sessions.get(i), done.get(i));
+            }
+        }
+
+        LOG.info("Prepared " + results.size() + " of " + sessions.size() + " sessions in "
+                + (System.currentTimeMillis() - start) + "ms with " + workers + " workers"
+                + (cancelled.get() ? ", cancelled" : ""));
+        return results;
+    }
+
+    private static int get(Future<Integer> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            LOG.error("Could not prepare session", e.getCause());
+            return -1;
+        }
+    }
+}
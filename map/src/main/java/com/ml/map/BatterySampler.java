@@ -0,0 +1,85 @@
+package com.ml.map;
+
+import android.content.Context;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the battery level on its own schedule while logging, so that loggers can include it with each point
+ * without querying the sticky battery broadcast every time.
+ */
+public class BatterySampler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatterySampler.class);
+    private static final long SAMPLE_INTERVAL_SECONDS = 60;
+
+    private static BatterySampler instance = null;
+
+    private volatile int level = -1;
+    private ScheduledExecutorService executor;
+    private ScheduledFuture<?> sampling;
+
+    private BatterySampler() {
+    }
+
+    public static synchronized BatterySampler getInstance() {
+        if (instance == null) {
+            instance = new BatterySampler();
+        }
+        return instance;
+    }
+
+    /**
+     * Takes a reading now and then every minute until {@link #stop()}. Does nothing if already sampling.
+     */
+    public synchronized void start(final Context context) {
+        if (sampling != null) {
+            return;
+        }
+
+        level = Systems.getBatteryLevel(context);
+
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "goblob-battery");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        sampling = executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    level = Systems.getBatteryLevel(context);
+                } catch (Exception e) {
+                    LOG.error("Could not read battery level", e);
+                }
+            }
+        }, SAMPLE_INTERVAL_SECONDS, SAMPLE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stop() {
+        if (sampling != null) {
+            sampling.cancel(false);
+            sampling = null;
+        }
+    }
+
+    /**
+     * @return the latest battery level in percent, or -1 if it has not been read yet
+     */
+    public int getLevel() {
+        return level;
+    }
+}
@@ -0,0 +1,234 @@
+package com.ml.map;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Locale;
+
+/**
+ * Growable byte buffer for building log records without going through {@link StringBuilder} and
+ * {@link String#getBytes()}. Reuse one instance per writer and call {@link #reset()} before each record;
+ * once the buffer has grown to fit the largest record, encoding allocates nothing.
+ */
+public class ByteEncoder {
+
+    private static final long[] POWERS_OF_TEN = {
+            1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L
+    };
+
+    /**
+     * Above this, a value scaled to the maximum fraction digits might not fit in a long
+     */
+    private static final double MAX_FIXED_POINT = 1e9;
+
+    /**
+     * How close the scaled value's fraction must be to one half to be treated as a possible tie
+     */
+    private static final double TIE_TOLERANCE = 1e-6;
+
+    private byte[] buffer;
+    private int length;
+
+    public ByteEncoder(int capacity) {
+        buffer = new byte[Math.max(capacity, 16)];
+    }
+
+    public ByteEncoder reset() {
+        length = 0;
+        return this;
+    }
+
+    public byte[] array() {
+        return buffer;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > buffer.length) {
+            byte[] bigger = new byte[Math.max(buffer.length * 2, length + extra)];
+            System.arraycopy(buffer, 0, bigger, 0, length);
+            buffer = bigger;
+        }
+    }
+
+    public ByteEncoder bytes(byte[] data) {
+        ensureCapacity(data.length);
+        System.arraycopy(data, 0, buffer, length, data.length);
+        length += data.length;
+        return this;
+    }
+
+    public ByteEncoder ascii(char c) {
+        ensureCapacity(1);
+        buffer[length++] = (byte) c;
+        return this;
+    }
+
+    /**
+     * Appends text that is known to be plain ASCII, such as markup and numbers
+     */
+    public ByteEncoder ascii(String text) {
+        int n = text.length();
+        ensureCapacity(n);
+        for (int i = 0; i < n; i++) {
+            buffer[length++] = (byte) text.charAt(i);
+        }
+        return this;
+    }
+
+    /**
+     * Appends any text as UTF-8
+     */
+    public ByteEncoder utf8(String text) {
+        if (text == null) {
+            return ascii("null");
+        }
+        int n = text.length();
+        ensureCapacity(n * 3);
+        for (int i = 0; i < n; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                buffer[length++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[length++] = (byte) (0xC0 | (c >> 6));
+                buffer[length++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, text.charAt(++i));
+                buffer[length++] = (byte) (0xF0 | (cp >> 18));
+                buffer[length++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buffer[length++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buffer[length++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                //Unpaired surrogate, replaced like String.getBytes() does
+                buffer[length++] = '?';
+            } else {
+                buffer[length++] = (byte) (0xE0 | (c >> 12));
+                buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[length++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return this;
+    }
+
+    public ByteEncoder number(long value) {
+        ensureCapacity(20);
+        if (value < 0) {
+            buffer[length++] = '-';
+            if (value == Long.MIN_VALUE) {
+                return ascii("9223372036854775808");
+            }
+            value = -value;
+        }
+        digits(value, 0);
+        return this;
+    }
+
+    /**
+     * Writes the digits of a non negative value, left padded with zeros to at least minDigits
+     */
+    private void digits(long value, int minDigits) {
+        int start = length;
+        do {
+            buffer[length++] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value > 0);
+        while (length - start < minDigits) {
+            buffer[length++] = '0';
+        }
+        for (int i = start, j = length - 1; i < j; i++, j--) {
+            byte b = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = b;
+        }
+    }
+
+    /**
+     * Appends a decimal rounded to at most the given number of fraction digits (up to 9), without trailing
+     * zeros but with at least one fraction digit, e.g. 12.5 or 3.0
+     */
+    public ByteEncoder decimal(double value, int maxFractionDigits) {
+        return decimal(value, maxFractionDigits, true);
+    }
+
+    /**
+     * Appends a decimal with exactly the given number of fraction digits (up to 9), like {@code %.6f}
+     */
+    public ByteEncoder fixed(double value, int fractionDigits) {
+        return decimal(value, fractionDigits, false);
+    }
+
+    private ByteEncoder decimal(double value, int fractionDigits, boolean trimZeros) {
+        int digits = Math.max(1, Math.min(fractionDigits, POWERS_OF_TEN.length - 1));
+        if (Double.isNaN(value) || Double.isInfinite(value) || Math.abs(value) >= MAX_FIXED_POINT) {
+            return ascii(trimZeros ? String.valueOf(value) : String.format(Locale.US, "%." + digits + "f", value));
+        }
+
+        long scale = POWERS_OF_TEN[digits];
+        double product = Math.abs(value) * scale;
+        long scaled = Math.round(product);
+        if (Math.abs(product - Math.floor(product) - 0.5) < TIE_TOLERANCE) {
+            //Too close to a tie to decide in binary; round the shortest decimal form half up, like String.format
+            scaled = new BigDecimal(Double.toString(Math.abs(value))).setScale(digits, RoundingMode.HALF_UP).unscaledValue().longValue();
+        }
+
+        ensureCapacity(32);
+        //Signed like String.format, so a small negative value is written as -0.000
+        if (Double.compare(value, 0.0) < 0) {
+            buffer[length++] = '-';
+        }
+
+        digits(scaled / scale, 0);
+        buffer[length++] = '.';
+
+        long fraction = scaled % scale;
+        while (trimZeros && digits > 1 && fraction % 10 == 0) {
+            fraction /= 10;
+            digits--;
+        }
+        digits(fraction, digits);
+        return this;
+    }
+
+    /**
+     * Appends a UTC timestamp in the same format as {@link Strings#getIsoDateTime(java.util.Date)},
+     * e.g. 2016-05-01T13:45:10.123Z
+     */
+    public ByteEncoder isoDateTime(long millis) {
+        long days = millis / 86400000L;
+        long millisOfDay = millis % 86400000L;
+        if (millisOfDay < 0) {
+            days--;
+            millisOfDay += 86400000L;
+        }
+
+        //Civil date from days since the epoch, see http://howardhinnant.github.io/date_algorithms.html
+        long z = days + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        long day = doy - (153 * mp + 2) / 5 + 1;
+        long month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+
+        ensureCapacity(32);
+        digits(year, 4);
+        buffer[length++] = '-';
+        digits(month, 2);
+        buffer[length++] = '-';
+        digits(day, 2);
+        buffer[length++] = 'T';
+        digits(millisOfDay / 3600000L, 2);
+        buffer[length++] = ':';
+        digits((millisOfDay / 60000L) % 60, 2);
+        buffer[length++] = ':';
+        digits((millisOfDay / 1000L) % 60, 2);
+        buffer[length++] = '.';
+        digits(millisOfDay % 1000L, 3);
+        buffer[length++] = 'Z';
+        return this;
+    }
+}
@@ -21,12 +21,26 @@ package com.ml.map;
 
 import android.location.Location;
 
+/**
+ * A log format. Loggers are driven by the {@link LoggingPipeline} thread, so {@link #write(Location)}
+ * and {@link #annotate(String, Location)} may do their I/O synchronously.
+ */
 public interface FileLogger {
 
     void write(Location loc) throws Exception;
 
     void annotate(String description, Location loc) throws Exception;
 
+    /**
+     * Called once after each batch of writes and annotations handed to this logger.
+     */
+    void flush() throws Exception;
+
+    /**
+     * Called when the logging session ends. Releases any file kept open between batches.
+     */
+    void close() throws Exception;
+
     String getName();
 
 }
@@ -1,24 +1,92 @@
 package com.ml.map;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.location.Location;
+import android.preference.PreferenceManager;
 
 import com.ml.map.csv.CSVFileLogger;
+import com.ml.map.customurl.CustomUrlLogger;
+import com.ml.map.customurl.CustomUrlRequest;
 import com.ml.map.geojson.GeoJSONLogger;
 import com.ml.map.gpx.Gpx10FileLogger;
 import com.ml.map.gpx.Gpx11FileLogger;
 import com.ml.map.kml.Kml22FileLogger;
+import com.ml.map.opengts.OpenGTSLogger;
+import com.ml.map.track.TrackFileLogger;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class FileLoggerFactory {
 
     private static PreferenceHelper preferenceHelper = PreferenceHelper.getInstance();
     private static GoblobLocationManager goblobLocationManager = GoblobLocationManager.getInstance();
 
+    /**
+     * The loggers for the current file name and preferences, built once and reused for every point until
+     * {@link #invalidate()} or the file name changes. Whether a point starts a new track segment is passed
+     * with each write, see {@link SegmentedFileLogger}.
+     */
+    private static final Object registryLock = new Object();
+    private static List<FileLogger> activeLoggers;
+    private static String registryFileName;
+    private static boolean watchingPreferences;
+
+    private static final SharedPreferences.OnSharedPreferenceChangeListener preferenceListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                    //Session state is saved to the same preferences but doesn't affect the loggers
+                    if (key == null || !key.startsWith("SESSION_")) {
+                        invalidate();
+                    }
+                }
+            };
+
     public static List<FileLogger> getFileLoggers(Context context) {
+        return getActiveFileLoggers(context);
+    }
+
+    /**
+     * Returns the cached loggers, rebuilding them if the preferences or the current file name have changed
+     */
+    static List<FileLogger> getActiveFileLoggers(Context context) {
+        String fileName = goblobLocationManager.getCurrentFormattedFileName();
+
+        synchronized (registryLock) {
+            if (activeLoggers == null || !fileName.equals(registryFileName)) {
+                if (!watchingPreferences) {
+                    PreferenceManager.getDefaultSharedPreferences(context).registerOnSharedPreferenceChangeListener(preferenceListener);
+                    watchingPreferences = true;
+                }
+
+                activeLoggers = Collections.unmodifiableList(buildFileLoggers(context, Strings.getFormattedFileName(), false));
+                registryFileName = fileName;
+            }
+
+            return activeLoggers;
+        }
+    }
+
+    /**
+     * Makes the next point rebuild the loggers, e.g. after the preferences or the profile have changed
+     */
+    public static void invalidate() {
+        synchronized (registryLock) {
+            activeLoggers = null;
+            registryFileName = null;
+        }
+    }
+
+    /**
+     * @param fileName session file name, without extension
+     * @param sessionFilesOnly leave out the loggers that send points instead of writing them to session files
+     */
+    private static List<FileLogger> buildFileLoggers(Context context, String fileName, boolean sessionFilesOnly) {
 
         List<FileLogger> loggers = new ArrayList<>();
 
@@ -31,35 +99,59 @@ public class FileLoggerFactory {
             gpxFolder.mkdirs();
         }
 
-        int batteryLevel = Systems.getBatteryLevel(context);
-
         if (preferenceHelper.shouldLogToGpx()) {
-            File gpxFile = new File(gpxFolder.getPath(), Strings.getFormattedFileName() + ".gpx");
+            File gpxFile = new File(gpxFolder.getPath(), fileName + ".gpx");
             if(preferenceHelper.shouldLogAsGpx11()) {
-                loggers.add(new Gpx11FileLogger(gpxFile, goblobLocationManager.shouldAddNewTrackSegment()));
+                loggers.add(new Gpx11FileLogger(gpxFile));
             } else {
-                loggers.add(new Gpx10FileLogger(gpxFile, goblobLocationManager.shouldAddNewTrackSegment()));
+                loggers.add(new Gpx10FileLogger(gpxFile));
             }
         }
 
+        if (preferenceHelper.shouldLogToBinaryTrack()) {
+            File trackFile = new File(gpxFolder.getPath(), fileName + TrackFileLogger.EXTENSION);
+            loggers.add(new TrackFileLogger(trackFile));
+        }
+
         if (preferenceHelper.shouldLogToKml()) {
-            File kmlFile = new File(gpxFolder.getPath(), Strings.getFormattedFileName() + ".kml");
-            loggers.add(new Kml22FileLogger(kmlFile, goblobLocationManager.shouldAddNewTrackSegment()));
+            File kmlFile = new File(gpxFolder.getPath(), fileName + ".kml");
+            loggers.add(new Kml22FileLogger(kmlFile));
         }
 
         if (preferenceHelper.shouldLogToCSV()) {
-            File file = new File(gpxFolder.getPath(), Strings.getFormattedFileName() + ".csv");
-            loggers.add(new CSVFileLogger(file, batteryLevel));
+            File file = new File(gpxFolder.getPath(), fileName + ".csv");
+            BatterySampler.getInstance().start(context);
+            loggers.add(new CSVFileLogger(file, BatterySampler.getInstance()));
         }
 
-        if (preferenceHelper.shouldLogToOpenGTS()) {
-            //loggers.add(new OpenGTSLogger(context, batteryLevel));
+        QueuedLocationLogger.Connectivity connectivity = getUploadConnectivity(context.getApplicationContext());
+
+        if (preferenceHelper.shouldLogToOpenGTS() && !sessionFilesOnly) {
+            BatterySampler.getInstance().start(context);
+            loggers.add(new OpenGTSLogger(preferenceHelper.getOpenGTSServer(),
+                    Strings.toInt(preferenceHelper.getOpenGTSServerPort(), 80),
+                    preferenceHelper.getOpenGTSServerCommunicationMethod(),
+                    preferenceHelper.getOpenGTSServerPath(),
+                    preferenceHelper.getOpenGTSDeviceId(),
+                    preferenceHelper.getOpenGTSAccountName(),
+                    BatterySampler.getInstance(),
+                    new File(new File(gpxFolder, IncrementalSender.CHECKPOINT_FOLDER), "opengts.queue"),
+                    connectivity,
+                    preferenceHelper.getOpenGTSBatchSize(),
+                    preferenceHelper.shouldPostOpenGTSBatches(),
+                    preferenceHelper.getOpenGTSMaxWait() * 1000L));
         }
 
-        if (preferenceHelper.shouldLogToCustomUrl()) {
+        if (preferenceHelper.shouldLogToCustomUrl() && !sessionFilesOnly) {
             String androidId = Systems.getAndroidId(context);
-            /*loggers.add(new CustomUrlLogger(preferenceHelper.getCustomLoggingUrl(), batteryLevel,
-                    androidId, preferenceHelper.getCustomLoggingHTTPMethod(), preferenceHelper.getCustomLoggingHTTPBody(), preferenceHelper.getCustomLoggingHTTPHeaders()));*/
+            BatterySampler.getInstance().start(context);
+            CustomUrlRequest request = new CustomUrlRequest(preferenceHelper.getCustomLoggingUrl(),
+                    preferenceHelper.getCustomLoggingHTTPMethod(), preferenceHelper.getCustomLoggingHTTPBody(),
+                    preferenceHelper.getCustomLoggingHTTPHeaders(), androidId, BatterySampler.getInstance());
+            loggers.add(new CustomUrlLogger(request, new File(new File(gpxFolder, IncrementalSender.CHECKPOINT_FOLDER), "customurl.queue"),
+                    connectivity,
+                    preferenceHelper.getCustomLoggingBatchSize(),
+                    preferenceHelper.getCustomLoggingMaxWait() * 1000L));
         }
 
         if(/* Should log to Android Wear */  true){
@@ -67,23 +159,121 @@ public class FileLoggerFactory {
         }
 
         if(preferenceHelper.shouldLogToGeoJSON()){
-            File file = new File(gpxFolder.getPath(), Strings.getFormattedFileName() + ".geojson");
-            loggers.add(new GeoJSONLogger(file, goblobLocationManager.shouldAddNewTrackSegment()));
+            File file = new File(gpxFolder.getPath(), fileName + ".geojson");
+            loggers.add(new GeoJSONLogger(file, preferenceHelper.shouldLogGeoJSONAsLineString()));
         }
 
 
         return loggers;
     }
 
-    public static void write(Context context, Location loc) throws Exception {
+    /**
+     * Lets network loggers upload only on wifi when auto-sending is limited to wifi
+     */
+    private static QueuedLocationLogger.Connectivity getUploadConnectivity(final Context appContext) {
+        return new QueuedLocationLogger.Connectivity() {
+            @Override
+            public boolean canSend() {
+                if (preferenceHelper.shouldAutoSendOnWifiOnly()) {
+                    return Systems.isConnectedWifi(appContext);
+                }
+                return Systems.isNetworkAvailable(appContext);
+            }
+        };
+    }
+
+    /**
+     * Finds the logger with the given {@link FileLogger#getName()} in the current configuration
+     */
+    static FileLogger getFileLogger(Context context, String name) {
+        if (NmeaFileLogger.NAME.equals(name)) {
+            return new NmeaFileLogger();
+        }
+
         for (FileLogger logger : getFileLoggers(context)) {
-            logger.write(loc);
+            if (logger.getName().equals(name)) {
+                return logger;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Builds the logger with the given {@link FileLogger#getName()} for the files of an earlier session, e.g. to
+     * write back points spilled before the session rotated. The caller closes it when done.
+     *
+     * @param fileName that session's file name, without extension
+     * @return null if the logger doesn't write to session files, or isn't configured
+     */
+    static FileLogger getFileLogger(Context context, String name, String fileName) {
+        if (Strings.isNullOrEmpty(preferenceHelper.getGoblobFolder())) {
+            return null;
+        }
+
+        if (NmeaFileLogger.NAME.equals(name)) {
+            return new NmeaFileLogger(LoggingPipeline.getInstance(), new File(preferenceHelper.getGoblobFolder(), fileName + ".nmea"));
+        }
+
+        for (FileLogger logger : buildFileLoggers(context, fileName, true)) {
+            if (logger.getName().equals(name)) {
+                return logger;
+            }
+        }
+        return null;
+    }
+
+    public static void write(Context context, Location loc) throws Exception {
+        write(context, loc, goblobLocationManager.shouldAddNewTrackSegment());
+    }
+
+    /**
+     * Hands the point to each active logger
+     *
+     * @param addNewTrackSegment whether this point starts a new track segment, fixed here since the point is
+     *                           written later on the logging thread
+     */
+    public static void write(Context context, Location loc, boolean addNewTrackSegment) throws Exception {
+        LoggingPipeline pipeline = LoggingPipeline.getInstance();
+        for (FileLogger logger : getActiveFileLoggers(context)) {
+            pipeline.write(logger, loc, addNewTrackSegment);
+        }
+    }
+
+    /**
+     * Adds the point for each active logger to a batch, to be queued later with the rest of the batch
+     */
+    public static void write(Context context, Location loc, boolean addNewTrackSegment, LoggingPipeline.Batch batch) throws Exception {
+        for (FileLogger logger : getActiveFileLoggers(context)) {
+            batch.write(logger, loc, addNewTrackSegment);
+        }
+    }
+
+    public static void annotate(Context context, String description, Location loc, LoggingPipeline.Batch batch) throws Exception {
+        for (FileLogger logger : getActiveFileLoggers(context)) {
+            batch.annotate(logger, description, loc);
         }
     }
 
     public static void annotate(Context context, String description, Location loc) throws Exception {
-        for (FileLogger logger : getFileLoggers(context)) {
-            logger.annotate(description, loc);
+        LoggingPipeline pipeline = LoggingPipeline.getInstance();
+        for (FileLogger logger : getActiveFileLoggers(context)) {
+            pipeline.annotate(logger, description, loc);
         }
     }
+
+    /**
+     * Waits until everything handed to the loggers so far has been written
+     */
+    public static boolean flush(long timeout, TimeUnit unit) throws InterruptedException {
+        return LoggingPipeline.getInstance().flush(timeout, unit);
+    }
+
+    /**
+     * Waits until everything handed to the loggers so far has been written, then closes their files
+     */
+    public static boolean close(long timeout, TimeUnit unit) throws InterruptedException {
+        invalidate();
+        BatterySampler.getInstance().stop();
+        return LoggingPipeline.getInstance().close(timeout, unit);
+    }
 }
@@ -1,16 +1,29 @@
 package com.ml.map;
 
+import android.content.Context;
+
+import androidx.annotation.Nullable;
+
+import com.ml.map.senders.FileSender;
+import com.ml.map.senders.SendQueue;
+import com.ml.map.track.TrackFileLogger;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.FilenameFilter;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class FileSenderFactory {
     private static final Logger LOG = LoggerFactory.getLogger(FileSenderFactory.class);
+    private static boolean sendQueueSetUp;
 
     public static void autoSendFiles(String fileToSend) {
         PreferenceHelper preferenceHelper = PreferenceHelper.getInstance();
@@ -18,56 +31,145 @@ public class FileSenderFactory {
 
         File gpxFolder = new File(preferenceHelper.getGoblobFolder());
 
+        if (preferenceHelper.shouldAutoSendIncrementally()
+                && new File(gpxFolder, fileToSend + TrackFileLogger.EXTENSION).exists()) {
+            sendIncrementally(gpxFolder, fileToSend, preferenceHelper.getExportFormats());
+            return;
+        }
+
+        List<File> files = prepareFiles(gpxFolder, fileToSend, preferenceHelper.getExportFormats(),
+                preferenceHelper.shouldSendZipFile(), null);
+
+        SendQueue queue = getSendQueue();
+        for (File file : files) {
+            queue.enqueue(file);
+        }
+        //Also retries anything that failed earlier and is due again
+        queue.sendDueInBackground();
+    }
+
+    /**
+     * Adds a destination for auto-sent files. Files it has yet to upload are kept across restarts, so register
+     * senders at startup, before the first auto-send.
+     */
+    public static void registerSender(FileSender sender) {
+        getSendQueue().register(sender);
+    }
+
+    /**
+     * The send queue, set up to wake itself for retries and to clear delta packages out of the outbox once every
+     * sender has them
+     */
+    static synchronized SendQueue getSendQueue() {
+        SendQueue queue = SendQueue.getInstance();
+        if (!sendQueueSetUp) {
+            sendQueueSetUp = true;
+            queue.setScheduler(new SendQueue.Scheduler() {
+                @Override
+                public void schedule(long time) {
+                    Context context = GoblobLocationManager.getInstance().getApplicationContext();
+                    if (context != null) {
+                        SendQueueReceiver.schedule(context, time);
+                    }
+                }
+            });
+            queue.setFinishedListener(new SendQueue.FinishedListener() {
+                @Override
+                public void onFinished(File file, boolean sentByAll) {
+                    File outbox = getOutbox(new File(PreferenceHelper.getInstance().getGoblobFolder()));
+                    //Session files stay where they were logged, only the packages built for sending go
+                    if (!sentByAll || !outbox.getAbsoluteFile().equals(file.getAbsoluteFile().getParentFile())) {
+                        return;
+                    }
+                    if (file.delete()) {
+                        LOG.debug("Removed sent delta package " + file.getName());
+                    } else {
+                        LOG.warn("Could not remove sent delta package " + file.getName());
+                    }
+                }
+            });
+        }
+        return queue;
+    }
+
+    /**
+     * Ships the points logged since the last auto-send as a delta package. Packages are kept in the outbox folder
+     * and queued for the registered senders, until they have all sent them.
+     */
+    private static void sendIncrementally(File gpxFolder, String fileToSend, Collection<String> exportFormats) {
+        Collection<String> formats = exportFormats.isEmpty()
+                ? Collections.singletonList(TrackExportFactory.GPX)
+                : exportFormats;
+        IncrementalSender sender = new IncrementalSender(gpxFolder, formats,
+                new IncrementalSender.FolderSink(getOutbox(gpxFolder)));
+        SendQueue queue = getSendQueue();
+        try {
+            long sequence = sender.sendNew(fileToSend);
+            if (sequence < 0) {
+                LOG.info("No new points to send for " + fileToSend);
+            } else {
+                queue.enqueue(new File(getOutbox(gpxFolder), IncrementalSender.getPackageName(fileToSend, sequence)));
+            }
+        } catch (IOException e) {
+            LOG.error("Could not send new points of " + fileToSend + ", will retry", e);
+        }
+        queue.sendDueInBackground();
+    }
+
+    static File getOutbox(File gpxFolder) {
+        return new File(new File(gpxFolder, IncrementalSender.CHECKPOINT_FOLDER), "outbox");
+    }
+
+    /**
+     * Gets a session ready to send: exports the given formats it is missing from its track file, then zips
+     * its files if asked to.
+     *
+     * @param cancelled stops the export once set, may be null
+     * @return the zip file, or the session's files if not zipping; empty if there is nothing to send
+     */
+    static List<File> prepareFiles(File gpxFolder, final String fileToSend, Collection<String> exportFormats,
+                                   boolean zip, @Nullable AtomicBoolean cancelled) {
+        //Formats that were only logged to the track file are generated now, or again if the track has grown since
+        TrackExportFactory.exportMissingFormats(gpxFolder, fileToSend, exportFormats, cancelled);
+        if (cancelled != null && cancelled.get()) {
+            return new ArrayList<>();
+        }
+
         if (Files.fromFolder(gpxFolder).length < 1) {
             LOG.warn("No files found to send.");
-            return;
+            return new ArrayList<>();
         }
 
         List<File> files = new ArrayList<>(Arrays.asList(Files.fromFolder(gpxFolder, new FilenameFilter() {
             @Override
             public boolean accept(File file, String s) {
-                return s.contains(fileToSend) && !s.contains("zip");
+                //The binary track file is only the source of the exports, receivers can't read it
+                return s.contains(fileToSend) && !s.contains("zip") && !s.endsWith(TrackFileLogger.EXTENSION);
             }
         })));
 
-        List<File> zipFiles = new ArrayList<>();
-
         if (files.size() == 0) {
             LOG.warn("No files found to send after filtering.");
-            return;
+            return files;
         }
 
-        if (preferenceHelper.shouldSendZipFile()) {
-            File zipFile = new File(gpxFolder.getPath(), fileToSend + ".zip");
-            ArrayList<String> filePaths = new ArrayList<>();
-
-            for (File f : files) {
-                filePaths.add(f.getAbsolutePath());
-            }
-
-            LOG.info("Zipping file");
-            ZipHelper zh = new ZipHelper(filePaths.toArray(new String[filePaths.size()]), zipFile.getAbsolutePath());
-            zh.zipFiles();
-
-            zipFiles.clear();
-            zipFiles.add(zipFile);
+        if (!zip) {
+            return files;
         }
 
+        File zipFile = new File(gpxFolder.getPath(), fileToSend + ".zip");
+        ArrayList<String> filePaths = new ArrayList<>();
 
-        /*for (FileSender sender : senders) {
-            LOG.debug("Sender: " + sender.getClass().getName());
-            //Special case for OSM Uploader
-            if(!sender.accept(null, ".zip")){
-                sender.uploadFile(files);
-                continue;
-            }
+        for (File f : files) {
+            filePaths.add(f.getAbsolutePath());
+        }
 
-            if(preferenceHelper.shouldSendZipFile()){
-                sender.uploadFile(zipFiles);
-            } else {
-                sender.uploadFile(files);
-            }
+        LOG.info("Zipping file");
+        ZipHelper zh = new ZipHelper(filePaths.toArray(new String[filePaths.size()]), zipFile.getAbsolutePath());
+        zh.zipFiles();
 
-        }*/
+        List<File> zipFiles = new ArrayList<>();
+        zipFiles.add(zipFile);
+        return zipFiles;
     }
 }
@@ -12,11 +12,13 @@ import android.widget.TextView;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.Properties;
 
 public class Files {
     /**
@@ -54,12 +56,24 @@ public class Files {
 
     }
 
+    /**
+     * Asks for the file to be added to the media store. Requests for the same file are coalesced by
+     * {@link MediaIndexer} so that it is scanned at most once per interval.
+     */
     public static void addToMediaDatabase(File file, String mimeType){
+        MediaIndexer.getInstance().request(file, mimeType);
+    }
 
-        MediaScannerConnection.scanFile(GoblobLocationManager.getInstance().getApplicationContext(),
-                new String[]{file.getPath()},
-                new String[]{mimeType},
-                null);
+    static MediaIndexer.Scanner getMediaScanner() {
+        return new MediaIndexer.Scanner() {
+            @Override
+            public void scanFile(String path, String mimeType) {
+                MediaScannerConnection.scanFile(GoblobLocationManager.getInstance().getApplicationContext(),
+                        new String[]{path},
+                        new String[]{mimeType},
+                        null);
+            }
+        };
     }
 
     public static File[] fromFolder(File folder) {
@@ -175,4 +189,39 @@ public class Files {
         // This guesswork tries to determine whether file exists in a few different ways.
         return gpxFile.isFile() || gpxFile.getAbsoluteFile().exists() || gpxFile.getAbsoluteFile().isFile();
     }
+
+    public static Properties loadProperties(File file) throws IOException {
+        Properties properties = new Properties();
+        if (file.exists()) {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * Writes to a temporary file first, so a crash leaves either the old or the new properties
+     */
+    public static void saveProperties(Properties properties, File file) throws IOException {
+        File folder = file.getParentFile();
+        if (folder != null && !folder.exists() && !folder.mkdirs()) {
+            throw new IOException("Could not create " + folder.getPath());
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            properties.store(out, null);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not save " + file.getPath());
+        }
+    }
 }
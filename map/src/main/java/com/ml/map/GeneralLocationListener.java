@@ -14,7 +14,9 @@ import com.google.android.gms.location.LocationResult;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 
 class GeneralLocationListener extends LocationCallback implements LocationListener, GpsStatus.Listener, GpsStatus.NmeaListener {
 
@@ -35,10 +37,31 @@ class GeneralLocationListener extends LocationCallback implements LocationListen
         listenerName = name;
     }
 
+    /**
+     * Batched fixes come oldest first and are all logged, in order, as one batch
+     */
     @Override
     public void onLocationResult(LocationResult locationResult) {
         super.onLocationResult(locationResult);
-        onLocationChanged(locationResult.getLastLocation());
+
+        try {
+            List<Location> locations = new ArrayList<>();
+            for (Location loc : locationResult.getLocations()) {
+                if (loc != null) {
+                    setExtras(loc);
+                    locations.add(loc);
+                }
+            }
+
+            if (!locations.isEmpty()) {
+                LOG.debug(listenerName + " delivered " + locations.size() + " location(s)");
+                loggingService.onLocationsChanged(locations);
+                clearLatest();
+            }
+
+        } catch (Exception ex) {
+            LOG.error("GeneralLocationListener.onLocationResult", ex);
+        }
     }
 
     /**
@@ -48,26 +71,9 @@ class GeneralLocationListener extends LocationCallback implements LocationListen
 
         try {
             if (loc != null) {
-                Bundle b = new Bundle();
-                b.putString(BundleConstants.HDOP, this.latestHdop);
-                b.putString(BundleConstants.PDOP, this.latestPdop);
-                b.putString(BundleConstants.VDOP, this.latestVdop);
-                b.putString(BundleConstants.GEOIDHEIGHT, this.geoIdHeight);
-                b.putString(BundleConstants.AGEOFDGPSDATA, this.ageOfDgpsData);
-                b.putString(BundleConstants.DGPSID, this.dgpsId);
-
-                b.putBoolean(BundleConstants.PASSIVE, listenerName.equalsIgnoreCase(BundleConstants.PASSIVE));
-                b.putString(BundleConstants.LISTENER, listenerName);
-                b.putInt(BundleConstants.SATELLITES_FIX, satellitesUsedInFix);
-                b.putString(BundleConstants.DETECTED_ACTIVITY, goblobLocationManager.getLatestDetectedActivityName());
-
-                loc.setExtras(b);
+                setExtras(loc);
                 loggingService.onLocationChanged(loc);
-
-                this.latestHdop = "";
-                this.latestPdop = "";
-                this.latestVdop = "";
-                goblobLocationManager.setLatestDetectedActivity(null);
+                clearLatest();
             }
 
         } catch (Exception ex) {
@@ -76,6 +82,30 @@ class GeneralLocationListener extends LocationCallback implements LocationListen
 
     }
 
+    private void setExtras(Location loc) {
+        Bundle b = new Bundle();
+        b.putString(BundleConstants.HDOP, this.latestHdop);
+        b.putString(BundleConstants.PDOP, this.latestPdop);
+        b.putString(BundleConstants.VDOP, this.latestVdop);
+        b.putString(BundleConstants.GEOIDHEIGHT, this.geoIdHeight);
+        b.putString(BundleConstants.AGEOFDGPSDATA, this.ageOfDgpsData);
+        b.putString(BundleConstants.DGPSID, this.dgpsId);
+
+        b.putBoolean(BundleConstants.PASSIVE, listenerName.equalsIgnoreCase(BundleConstants.PASSIVE));
+        b.putString(BundleConstants.LISTENER, listenerName);
+        b.putInt(BundleConstants.SATELLITES_FIX, satellitesUsedInFix);
+        b.putString(BundleConstants.DETECTED_ACTIVITY, goblobLocationManager.getLatestDetectedActivityName());
+
+        loc.setExtras(b);
+    }
+
+    private void clearLatest() {
+        this.latestHdop = "";
+        this.latestPdop = "";
+        this.latestVdop = "";
+        goblobLocationManager.setLatestDetectedActivity(null);
+    }
+
     public void onProviderDisabled(String provider) {
         LOG.info("Provider disabled: " + provider);
         loggingService.restartGpsManagers();
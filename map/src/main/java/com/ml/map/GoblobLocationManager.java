@@ -41,6 +41,11 @@ import com.ml.map.route.RouteEvents;
 import com.ml.map.route.Segment;
 
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import de.greenrobot.event.EventBus;
 
@@ -59,12 +64,37 @@ public class GoblobLocationManager {
     private int recalculate;
     private LocationActive locationActive;
 
+    /**
+     * How long changes to the session are collected before they are written out together
+     */
+    private static final long SESSION_SAVE_DELAY_MILLIS = 2000;
+
+    private final SessionState session = new SessionState();
+    private final SessionState sessionSnapshot = new SessionState();
+    private final AtomicBoolean sessionSaveScheduled = new AtomicBoolean();
+    private final ScheduledExecutorService sessionExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "goblob-session-store");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final Runnable saveSessionTask = new Runnable() {
+        @Override
+        public void run() {
+            sessionSaveScheduled.set(false);
+            writeSessionSnapshot();
+        }
+    };
+
     private GoblobLocationManager() {
     }
 
     public void init(Context context){
         this.context = context;
         prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        session.load(prefs);
         DbHelper.init(context);
         PermissionsManager.init(context);
     }
@@ -97,48 +127,80 @@ public class GoblobLocationManager {
         prefs.edit().putString("SESSION_" + key, value).apply();
     }
 
+    /**
+     * Schedules the session to be written out, so that a burst of changes ends up in a single write
+     */
+    private void sessionChanged() {
+        if (prefs != null && sessionSaveScheduled.compareAndSet(false, true)) {
+            sessionExecutor.schedule(saveSessionTask, SESSION_SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes out the session state now, without waiting for more changes. It is still written off the calling thread.
+     */
+    public void saveSession() {
+        if (prefs != null) {
+            sessionExecutor.execute(saveSessionTask);
+        }
+    }
+
+    private void writeSessionSnapshot() {
+        synchronized (sessionSnapshot) {
+            sessionSnapshot.copyFrom(session);
+            SharedPreferences.Editor editor = prefs.edit();
+            sessionSnapshot.save(editor);
+            if (!editor.commit()) {
+                Log.e(TAG, "Could not save the session state");
+            }
+        }
+    }
+
 
     public boolean isSinglePointMode() {
-        return Boolean.valueOf(get("isSinglePointMode", "false"));
+        return session.singlePointMode;
     }
 
     public void setSinglePointMode(boolean singlePointMode) {
-        set("isSinglePointMode", String.valueOf(singlePointMode));
+        session.singlePointMode = singlePointMode;
+        sessionChanged();
     }
 
     /**
      * @return whether GPS (tower) is enabled
      */
     public boolean isTowerEnabled() {
-        return Boolean.valueOf(get("towerEnabled", "false"));
+        return session.towerEnabled;
     }
 
     /**
      * @param towerEnabled set whether GPS (tower) is enabled
      */
     public void setTowerEnabled(boolean towerEnabled) {
-        set("towerEnabled", String.valueOf(towerEnabled));
+        session.towerEnabled = towerEnabled;
+        sessionChanged();
     }
 
     /**
      * @return whether GPS (satellite) is enabled
      */
     public boolean isGpsEnabled() {
-        return Boolean.valueOf(get("gpsEnabled", "false"));
+        return session.gpsEnabled;
     }
 
     /**
      * @param gpsEnabled set whether GPS (satellite) is enabled
      */
     public void setGpsEnabled(boolean gpsEnabled) {
-        set("gpsEnabled", String.valueOf(gpsEnabled));
+        session.gpsEnabled = gpsEnabled;
+        sessionChanged();
     }
 
     /**
      * @return whether logging has started
      */
     public boolean isStarted() {
-        return Boolean.valueOf(get("LOGGING_STARTED", "false"));
+        return session.started;
     }
 
     /**
@@ -146,34 +208,36 @@ public class GoblobLocationManager {
      */
     public void setStarted(boolean isStarted) {
 
-        set("LOGGING_STARTED", String.valueOf(isStarted));
+        session.started = isStarted;
 
         this.routePoint = null;
 
         if (isStarted) {
-            set("startTimeStamp", String.valueOf(System.currentTimeMillis()));
+            session.startTimeStamp = System.currentTimeMillis();
         }
+        sessionChanged();
     }
 
     /**
      * @return the isUsingGps
      */
     public boolean isUsingGps() {
-        return Boolean.valueOf(get("isUsingGps", "false"));
+        return session.usingGps;
     }
 
     /**
      * @param isUsingGps the isUsingGps to set
      */
     public void setUsingGps(boolean isUsingGps) {
-        set("isUsingGps", String.valueOf(isUsingGps));
+        session.usingGps = isUsingGps;
+        sessionChanged();
     }
 
     /**
      * @return the currentFileName (without extension)
      */
     public String getCurrentFileName() {
-        return get("currentFileName", "");
+        return session.currentFileName;
     }
 
 
@@ -181,21 +245,23 @@ public class GoblobLocationManager {
      * @param currentFileName the currentFileName to set
      */
     public void setCurrentFileName(String currentFileName) {
-        set("currentFileName", currentFileName);
+        session.currentFileName = currentFileName;
+        sessionChanged();
     }
 
     /**
      * @return the number of satellites visible
      */
     public int getVisibleSatelliteCount() {
-        return Integer.valueOf(get("satellites", "0"));
+        return session.visibleSatelliteCount;
     }
 
     /**
      * @param satellites sets the number of visible satellites
      */
     public void setVisibleSatelliteCount(int satellites) {
-        set("satellites", String.valueOf(satellites));
+        session.visibleSatelliteCount = satellites;
+        sessionChanged();
     }
 
 
@@ -221,24 +287,26 @@ public class GoblobLocationManager {
     }
 
     public double getTotalTravelled() {
-        return Double.valueOf(get("totalTravelled", "0"));
+        return session.totalTravelled;
     }
 
     public int getNumLegs() {
-        return Integer.valueOf(get("numLegs", "0"));
+        return session.numLegs;
     }
 
     public void setNumLegs(int numLegs) {
-        set("numLegs", String.valueOf(numLegs));
+        session.numLegs = numLegs;
+        sessionChanged();
     }
 
     public void setTotalTravelled(double totalTravelled) {
         if (totalTravelled == 0) {
-            setNumLegs(1);
+            session.numLegs = 1;
         } else {
-            setNumLegs(getNumLegs() + 1);
+            session.numLegs++;
         }
-        set("totalTravelled", String.valueOf(totalTravelled));
+        session.totalTravelled = totalTravelled;
+        sessionChanged();
     }
 
     public Location getPreviousLocationInfo() {
@@ -272,49 +340,53 @@ public class GoblobLocationManager {
      * @return the latestTimeStamp (for location info)
      */
     public long getLatestTimeStamp() {
-        return Long.valueOf(get("latestTimeStamp", "0"));
+        return session.latestTimeStamp;
     }
 
     /**
      * @return the timestamp when measuring was started
      */
     public long getStartTimeStamp() {
-        return Long.valueOf(get("startTimeStamp", String.valueOf(System.currentTimeMillis())));
+        long startTimeStamp = session.startTimeStamp;
+        return startTimeStamp != 0 ? startTimeStamp : System.currentTimeMillis();
     }
 
     /**
      * @param latestTimeStamp the latestTimeStamp (for location info) to set
      */
     public void setLatestTimeStamp(long latestTimeStamp) {
-        set("latestTimeStamp", String.valueOf(latestTimeStamp));
+        session.latestTimeStamp = latestTimeStamp;
+        sessionChanged();
     }
 
     /**
      * @return whether to create a new track segment
      */
     public boolean shouldAddNewTrackSegment() {
-        return Boolean.valueOf(get("addNewTrackSegment", "false"));
+        return session.addNewTrackSegment;
     }
 
     /**
      * @param addNewTrackSegment set whether to create a new track segment
      */
     public void setAddNewTrackSegment(boolean addNewTrackSegment) {
-        set("addNewTrackSegment", String.valueOf(addNewTrackSegment));
+        session.addNewTrackSegment = addNewTrackSegment;
+        sessionChanged();
     }
 
     /**
      * @param autoSendDelay the autoSendDelay to set
      */
     public void setAutoSendDelay(float autoSendDelay) {
-        set("autoSendDelay", String.valueOf(autoSendDelay));
+        session.autoSendDelay = autoSendDelay;
+        sessionChanged();
     }
 
     /**
      * @return the autoSendDelay to use for the timer
      */
     public float getAutoSendDelay() {
-        return Float.valueOf(get("autoSendDelay", "0"));
+        return session.autoSendDelay;
     }
 
     /**
@@ -336,14 +408,15 @@ public class GoblobLocationManager {
      * @param isBound set whether the activity is bound to the GpsLoggingService
      */
     public void setBoundToService(boolean isBound) {
-        set("isBound", String.valueOf(isBound));
+        session.boundToService = isBound;
+        sessionChanged();
     }
 
     /**
      * @return whether the activity is bound to the GpsLoggingService
      */
     public boolean isBoundToService() {
-        return Boolean.valueOf(get("isBound", "false"));
+        return session.boundToService;
     }
 
     public boolean hasDescription() {
@@ -351,7 +424,7 @@ public class GoblobLocationManager {
     }
 
     public String getDescription() {
-        return get("description", "");
+        return session.description;
     }
 
     public void clearDescription() {
@@ -359,70 +432,77 @@ public class GoblobLocationManager {
     }
 
     public void setDescription(String newDescription) {
-        set("description", newDescription);
+        session.description = newDescription;
+        sessionChanged();
     }
 
     public void setWaitingForLocation(boolean waitingForLocation) {
-        set("waitingForLocation", String.valueOf(waitingForLocation));
+        session.waitingForLocation = waitingForLocation;
+        sessionChanged();
     }
 
     public boolean isWaitingForLocation() {
-        return Boolean.valueOf(get("waitingForLocation", "false"));
+        return session.waitingForLocation;
     }
 
     public boolean isAnnotationMarked() {
-        return Boolean.valueOf(get("annotationMarked", "false"));
+        return session.annotationMarked;
     }
 
     public void setAnnotationMarked(boolean annotationMarked) {
-        set("annotationMarked", String.valueOf(annotationMarked));
+        session.annotationMarked = annotationMarked;
+        sessionChanged();
     }
 
     public String getCurrentFormattedFileName() {
-        return get("currentFormattedFileName", "");
+        return session.currentFormattedFileName;
     }
 
     public void setCurrentFormattedFileName(String currentFormattedFileName) {
-        set("currentFormattedFileName", currentFormattedFileName);
+        session.currentFormattedFileName = currentFormattedFileName;
+        sessionChanged();
     }
 
     public long getUserStillSinceTimeStamp() {
-        return Long.valueOf(get("userStillSinceTimeStamp", "0"));
+        return session.userStillSinceTimeStamp;
     }
 
     public void setUserStillSinceTimeStamp(long lastUserStillTimeStamp) {
-        set("userStillSinceTimeStamp", String.valueOf(lastUserStillTimeStamp));
+        session.userStillSinceTimeStamp = lastUserStillTimeStamp;
+        sessionChanged();
     }
 
     public void setFirstRetryTimeStamp(long firstRetryTimeStamp) {
-        set("firstRetryTimeStamp", String.valueOf(firstRetryTimeStamp));
+        session.firstRetryTimeStamp = firstRetryTimeStamp;
+        sessionChanged();
     }
 
     public long getFirstRetryTimeStamp() {
-        return Long.valueOf(get("firstRetryTimeStamp", "0"));
+        return session.firstRetryTimeStamp;
     }
 
     public void setLatestDetectedActivity(DetectedActivity latestDetectedActivity) {
-        set("latestDetectedActivity", Strings.getDetectedActivityName(latestDetectedActivity));
+        session.latestDetectedActivity = Strings.getDetectedActivityName(latestDetectedActivity);
         if (latestDetectedActivity != null) {
-            set("latestActivityConfidence", Integer.toString(latestDetectedActivity.getConfidence()));
-            set("latestActivityType", Integer.toString(latestDetectedActivity.getType()));
+            session.latestActivityConfidence = latestDetectedActivity.getConfidence();
+            session.latestActivityType = latestDetectedActivity.getType();
         } else {
-            set("latestActivityConfidence", "-1");
-            set("latestActivityType", "-1");
+            session.latestActivityConfidence = -1;
+            session.latestActivityType = -1;
         }
+        sessionChanged();
     }
 
     public int getLatestActivityType() {
-        return Integer.parseInt(get("latestActivityType", "-1"));
+        return session.latestActivityType;
     }
 
     public int getLatestActivityConfidence() {
-        return Integer.parseInt(get("latestActivityConfidence", "-1"));
+        return session.latestActivityConfidence;
     }
 
     public String getLatestDetectedActivityName() {
-        return get("latestDetectedActivity", "");
+        return session.latestDetectedActivity;
     }
 
 
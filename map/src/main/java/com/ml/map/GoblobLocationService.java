@@ -36,24 +36,32 @@ import com.google.android.gms.location.LocationCallback;
 import com.google.android.gms.location.LocationRequest;
 import com.google.android.gms.location.LocationServices;
 import com.google.android.gms.maps.model.LatLng;
+import com.ml.map.filter.LocationFilterChain;
+import com.ml.map.filter.StillnessGate;
 import com.ml.map.provider.LocationEngineCallback;
 import com.ml.map.provider.LocationEngineProvider;
+import com.ml.map.provider.LocationEngineRequest;
 import com.ml.map.provider.LocationEngineResult;
+import com.ml.map.provider.SamplingScheduler;
+import com.ml.map.replay.ReplayEngine;
+import com.ml.map.replay.ReplaySource;
+import com.ml.map.replay.ReplaySources;
 import com.ml.map.route.AbstractRouting;
 import com.ml.map.route.Route;
 import com.ml.map.route.RouteEvents;
 import com.ml.map.route.RouteException;
 import com.ml.map.route.Routing;
 import com.ml.map.route.RoutingListener;
+import com.ml.map.track.TrackRecord;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import de.greenrobot.event.EventBus;
 
@@ -84,7 +92,11 @@ public class GoblobLocationService extends Service {
     private Handler handler = new Handler();
     private LocationCallback mLocationCallback;
     private FusedLocationProviderClient mFusedLocationClient;
-    private Location bestLocation;
+    private LocationFilterChain locationFilter;
+    private ReplayEngine replayEngine;
+    private SamplingScheduler samplingScheduler;
+    private LoggingPipeline.Batch pendingWrites;
+    private NmeaFileLogger nmeaLogger;
     private boolean isStarted = false;
     private int routeAttempt = 0;
     private LocationRequest mLocationRequest;
@@ -173,6 +185,7 @@ public class GoblobLocationService extends Service {
         LOG.warn(SessionLogcatAppender.MARKER_INTERNAL, "GpsLoggingService is being destroyed by Android OS.");
         unregisterEventBus();
         removeNotification();
+        goblobLocationManager.saveSession();
         super.onDestroy();
     }
 
@@ -301,6 +314,13 @@ public class GoblobLocationService extends Service {
                     needToStartGpsManager = true;
                 }
 
+                if (bundle.getString(IntentConstants.REPLAY_FILE) != null) {
+                    double speed = bundle.getDouble(IntentConstants.REPLAY_SPEED, 1);
+                    LOG.info("Intent received - Replay " + bundle.getString(IntentConstants.REPLAY_FILE) + " at speed " + speed);
+                    replay(new File(bundle.getString(IntentConstants.REPLAY_FILE)), speed);
+                    needToStartGpsManager = false;
+                }
+
                 if (bundle.get(IntentConstants.LOG_ONCE) != null) {
                     boolean logOnceIntent = bundle.getBoolean(IntentConstants.LOG_ONCE);
                     LOG.debug("Intent received - Log Once: " + String.valueOf(logOnceIntent));
@@ -423,6 +443,19 @@ public class GoblobLocationService extends Service {
             return;
 
         goblobLocationManager.setAddNewTrackSegment(true);
+        locationFilter = LocationFilterChain.fromPreferences(preferenceHelper, new StillnessGate.Source() {
+            @Override
+            public long getStillSince() {
+                return goblobLocationManager.getUserStillSinceTimeStamp();
+            }
+        });
+        samplingScheduler = new SamplingScheduler(new SamplingScheduler.Clock() {
+            @Override
+            public long elapsedRealtime() {
+                return SystemClock.elapsedRealtime();
+            }
+        }, preferenceHelper.getMinimumLoggingInterval() * 1000L, preferenceHelper.getMinimumDistanceInterval(),
+                preferenceHelper.getMinimumAccuracy()).setBatchSize(preferenceHelper.getLocationBatchSize());
 
         try {
             startForeground(NOTIFICATION_ID, new Notification());
@@ -433,17 +466,117 @@ public class GoblobLocationService extends Service {
         isStarted = true;
 
         goblobLocationManager.setStarted(true);
+        goblobLocationManager.saveSession();
 
         resetAutoSendTimersIfNecessary();
         showNotification();
         setupAutoSendTimers();
-        resetCurrentFileName(true);
+        resetCurrentFileName(true, currentTimeMillis());
         notifyClientsStarted(true);
         startPassiveManager();
         startGpsManager();
         requestActivityRecognitionUpdates();
     }
 
+    /**
+     * Plays a recorded .nmea, .csv, .gpx or binary track session through the same path as live fixes: filters,
+     * then the file loggers. The location managers stay off meanwhile, and logging stops at the end of the
+     * session so everything is flushed.
+     *
+     * @param speed how many times faster than recorded to play, or {@link ReplayEngine#AS_FAST_AS_POSSIBLE}
+     */
+    public void replay(File file, double speed) {
+        stopReplay();
+
+        ReplaySource source;
+        try {
+            source = ReplaySources.open(file);
+        } catch (IOException e) {
+            LOG.error("Could not open " + file.getPath() + " for replay", e);
+            return;
+        }
+
+        final ReplayEngine engine = new ReplayEngine(source, new ReplayEngine.Listener() {
+            @Override
+            public void onPoint(TrackRecord record) {
+                final Location loc = record.toLocation();
+                final CountDownLatch logged = new CountDownLatch(1);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            logLocation(loc);
+                        } finally {
+                            logged.countDown();
+                        }
+                    }
+                });
+                try {
+                    //One point at a time, so the replay can't run ahead of the pipeline
+                    logged.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }).setSpeed(speed);
+
+        //Read ahead to the first point, so the session is named after when it was recorded
+        long startTime = 0;
+        try {
+            startTime = engine.getStartTimeMillis();
+        } catch (IOException e) {
+            LOG.error("Could not read " + file.getPath() + " for replay", e);
+        }
+        if (startTime == 0) {
+            LOG.warn("Nothing to replay in " + file.getName());
+            try {
+                source.close();
+            } catch (IOException e) {
+                LOG.error("Could not close " + file.getPath(), e);
+            }
+            return;
+        }
+
+        stopGpsManager();
+        replayEngine = engine;
+        startLogging();
+
+        LOG.info("Replaying " + file.getName() + " at " + (speed > 0 ? speed + "x" : "full speed"));
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    engine.run();
+                } catch (IOException e) {
+                    LOG.error("Could not replay " + file.getName(), e);
+                }
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (replayEngine == engine) {
+                            stopLogging();
+                        }
+                    }
+                });
+            }
+        }, "goblob-replay").start();
+    }
+
+    private void stopReplay() {
+        if (replayEngine != null) {
+            replayEngine.stop();
+            replayEngine = null;
+        }
+    }
+
+    /**
+     * The recorded time of the point being replayed while replaying, so the replay sees the timeline it was
+     * recorded with; otherwise the system time
+     */
+    private long currentTimeMillis() {
+        return replayEngine != null ? replayEngine.getCurrentTimeMillis() : System.currentTimeMillis();
+    }
+
     private void notifyByBroadcast(boolean loggingStarted) {
         LOG.debug("Sending a custom broadcast");
         String event = (loggingStarted) ? "started" : "stopped";
@@ -483,21 +616,31 @@ public class GoblobLocationService extends Service {
         LOG.debug(".");
         GoblobLocationManager.getInstance().setFollowRoute(false);
         GoblobLocationManager.getInstance().simulateRoute(false);
+        stopReplay();
         GoblobLocationManager.getInstance().deleteCurrentRoute();
         goblobLocationManager.setAddNewTrackSegment(true);
         goblobLocationManager.setTotalTravelled(0);
-        bestLocation = null;
+        if (locationFilter != null) {
+            LOG.debug("Location filters passed/rejected: " + locationFilter);
+            locationFilter.reset();
+        }
+        if (samplingScheduler != null) {
+            LOG.info("Location sampling: " + samplingScheduler);
+            samplingScheduler = null;
+        }
         goblobLocationManager.setPreviousLocationInfo(null);
         isStarted = false;
         goblobLocationManager.setStarted(false);
         goblobLocationManager.setUserStillSinceTimeStamp(0);
         goblobLocationManager.setLatestTimeStamp(0);
         stopAbsoluteTimer();
+        closeFileLoggers();
         // Email log file before setting location info to null
         autoSendLogFileOnStop();
         cancelAlarm();
         goblobLocationManager.setCurrentLocationInfo(null);
         goblobLocationManager.setSinglePointMode(false);
+        goblobLocationManager.saveSession();
         stopForeground(true);
 
         removeNotification();
@@ -590,6 +733,16 @@ public class GoblobLocationService extends Service {
             mLocationCallback = new GeneralLocationListener(this, "FUSED");
         }
 
+        LocationEngineRequest request = getSamplingRequest();
+        mLocationRequest.setInterval(request.getInterval());
+        mLocationRequest.setFastestInterval(request.getFastestInterval());
+        mLocationRequest.setSmallestDisplacement(request.getDisplacement());
+        mLocationRequest.setMaxWaitTime(getMaxWaitTime(request));
+        mLocationRequest.setPriority(request.getPriority() == LocationEngineRequest.PRIORITY_HIGH_ACCURACY
+                ? LocationRequest.PRIORITY_HIGH_ACCURACY
+                : request.getPriority() == LocationEngineRequest.PRIORITY_BALANCED_POWER_ACCURACY
+                ? LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY
+                : LocationRequest.PRIORITY_LOW_POWER);
         mFusedLocationClient.requestLocationUpdates(mLocationRequest, mLocationCallback, Looper.myLooper());
     }
 
@@ -644,6 +797,11 @@ public class GoblobLocationService extends Service {
     @SuppressWarnings("ResourceType")
     private void startGpsManager() {
 
+        if (replayEngine != null) {
+            LOG.debug("Replaying a recorded session, not starting the location managers");
+            return;
+        }
+
         startFusedLocation();
 
         //If the user has been still for more than the minimum seconds
@@ -666,10 +824,15 @@ public class GoblobLocationService extends Service {
 
         checkTowerAndGpsStatus();
 
-        if (goblobLocationManager.isGpsEnabled()) {
-            LOG.info("Requesting GPS location updates");
+        // Only use the GPS when the sampling scheduler wants accurate fixes, or there is nothing else
+        LocationEngineRequest request = getSamplingRequest();
+        boolean useGps = goblobLocationManager.isGpsEnabled() &&
+                (request.getPriority() == LocationEngineRequest.PRIORITY_HIGH_ACCURACY || !goblobLocationManager.isTowerEnabled());
+
+        if (useGps) {
+            LOG.info("Requesting GPS location updates every " + request.getInterval() + " ms");
             // gps satellite based
-            gpsLocationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 1000, 0, gpsLocationListener);
+            gpsLocationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, request.getInterval(), request.getDisplacement(), gpsLocationListener);
             gpsLocationManager.addGpsStatusListener(gpsLocationListener);
             gpsLocationManager.addNmeaListener(gpsLocationListener);
 
@@ -677,11 +840,11 @@ public class GoblobLocationService extends Service {
             startAbsoluteTimer();
         }
 
-        if (goblobLocationManager.isTowerEnabled() && !goblobLocationManager.isGpsEnabled()) {
-            LOG.info("Requesting cell and wifi location updates");
+        if (goblobLocationManager.isTowerEnabled() && !useGps) {
+            LOG.info("Requesting cell and wifi location updates every " + request.getInterval() + " ms");
             goblobLocationManager.setUsingGps(false);
             // Cell tower and wifi based
-            towerLocationManager.requestLocationUpdates(LocationManager.NETWORK_PROVIDER, 1000, 0, towerLocationListener);
+            towerLocationManager.requestLocationUpdates(LocationManager.NETWORK_PROVIDER, request.getInterval(), request.getDisplacement(), towerLocationListener);
 
             startAbsoluteTimer();
         }
@@ -699,6 +862,36 @@ public class GoblobLocationService extends Service {
         goblobLocationManager.setWaitingForLocation(true);
     }
 
+    private LocationEngineRequest getSamplingRequest() {
+        if (samplingScheduler == null) {
+            return new LocationEngineRequest.Builder(UPDATE_INTERVAL_IN_MILLISECONDS)
+                    .setFastestInterval(FASTEST_UPDATE_INTERVAL_IN_MILLISECONDS)
+                    .build();
+        }
+        return samplingScheduler.getRequest();
+    }
+
+    /**
+     * Batching is left off while a single point or an annotated point is waited for, so it is logged right away
+     */
+    private long getMaxWaitTime(LocationEngineRequest request) {
+        if (goblobLocationManager.isSinglePointMode() || goblobLocationManager.hasDescription()) {
+            return 0;
+        }
+        return request.getMaxWaitTime();
+    }
+
+    /**
+     * Asks the location managers again with the sampling scheduler's new request
+     */
+    private void resample() {
+        LOG.debug("Location sampling changed: " + samplingScheduler);
+        if (goblobLocationManager.isStarted() && goblobLocationManager.isWaitingForLocation()) {
+            stopGpsManager();
+            startGpsManager();
+        }
+    }
+
     private boolean userHasBeenStillForTooLong() {
         return !goblobLocationManager.hasDescription() && !goblobLocationManager.isSinglePointMode() &&
                 (goblobLocationManager.getUserStillSinceTimeStamp() > 0 && (System.currentTimeMillis() - goblobLocationManager.getUserStillSinceTimeStamp()) > (preferenceHelper.getMinimumLoggingInterval() * 1000));
@@ -764,8 +957,10 @@ public class GoblobLocationService extends Service {
 
     /**
      * Sets the current file name based on user preference.
+     *
+     * @param time the time to name dated files after, the recorded time while replaying
      */
-    private void resetCurrentFileName(boolean newLogEachStart) {
+    private void resetCurrentFileName(boolean newLogEachStart, long time) {
 
         String oldFileName = goblobLocationManager.getCurrentFormattedFileName();
 
@@ -782,26 +977,24 @@ public class GoblobLocationService extends Service {
             }
 
         } else if (preferenceHelper.shouldCreateNewFileOnceADay()) {
-            // 20100114.gpx
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd");
-            goblobLocationManager.setCurrentFileName(sdf.format(new Date()));
+            goblobLocationManager.setCurrentFileName(Strings.getDatedFileName(true, time));
         } else if (newLogEachStart) {
-            // 20100114183329.gpx
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMddHHmmss");
-            goblobLocationManager.setCurrentFileName(sdf.format(new Date()));
+            goblobLocationManager.setCurrentFileName(Strings.getDatedFileName(false, time));
         }
 
+        String formattedFileName = Strings.getFormattedFileName();
+
         if (!Strings.isNullOrEmpty(oldFileName)
-                && !oldFileName.equalsIgnoreCase(Strings.getFormattedFileName())
+                && !oldFileName.equalsIgnoreCase(formattedFileName)
                 && goblobLocationManager.isStarted()) {
             LOG.debug("New file name, should auto upload the old one");
             EventBus.getDefault().post(new CommandEvents.AutoSend(oldFileName));
         }
 
-        goblobLocationManager.setCurrentFormattedFileName(Strings.getFormattedFileName());
+        goblobLocationManager.setCurrentFormattedFileName(formattedFileName);
 
-        LOG.info("Filename: " + Strings.getFormattedFileName());
-        EventBus.getDefault().post(new ServiceEvents.FileNamed(Strings.getFormattedFileName()));
+        LOG.info("Filename: " + formattedFileName);
+        EventBus.getDefault().post(new ServiceEvents.FileNamed(formattedFileName));
 
     }
 
@@ -827,6 +1020,45 @@ public class GoblobLocationService extends Service {
      * @param loc LocationParameters object
      */
     void onLocationChanged(Location loc) {
+        if (replayEngine != null) {
+            LOG.debug("Replaying a recorded session, ignoring live location");
+            return;
+        }
+        if (loc != null && samplingScheduler != null &&
+                samplingScheduler.onLocation(loc.hasSpeed() ? loc.getSpeed() : -1, loc.hasAccuracy() ? loc.getAccuracy() : 0)) {
+            resample();
+        }
+        logLocation(loc);
+    }
+
+    /**
+     * Logs fixes delivered together by the location provider, oldest first. Each goes through the filters on
+     * its own, and the ones that pass are handed to the file loggers as one batch at the end.
+     */
+    void onLocationsChanged(List<Location> locations) {
+        pendingWrites = new LoggingPipeline.Batch();
+        try {
+            for (Location loc : locations) {
+                onLocationChanged(loc);
+                if (!goblobLocationManager.isStarted()) {
+                    break;
+                }
+            }
+        } finally {
+            writePendingLocations();
+        }
+    }
+
+    private void writePendingLocations() {
+        LoggingPipeline.Batch batch = pendingWrites;
+        pendingWrites = null;
+        if (batch != null && !batch.isEmpty()) {
+            LOG.debug("Writing a batch of " + batch.size() + " entries");
+            LoggingPipeline.getInstance().write(batch);
+        }
+    }
+
+    private void logLocation(Location loc) {
         if (!goblobLocationManager.isStarted()) {
             LOG.debug("onLocationChanged called, but goblobLocationManager.isStarted is false");
             stopLogging();
@@ -839,147 +1071,43 @@ public class GoblobLocationService extends Service {
             return;
         }
 
-        if (bestLocation == null) {
-            bestLocation = loc;
-        } else if (loc.getAccuracy() <= bestLocation.getAccuracy()) {
-            bestLocation = loc;
-        }
+        LOG.debug("Has description? " + goblobLocationManager.hasDescription() + ", Single point? " + goblobLocationManager.isSinglePointMode() + ", Last timestamp: " + goblobLocationManager.getLatestTimeStamp());
 
-        loc = bestLocation;
+        // If user has set an annotation, just log the point, disregard any filters
+        if (locationFilter != null && locationFilter.filter(loc, goblobLocationManager.hasDescription() || goblobLocationManager.isSinglePointMode()) == null) {
+            if (locationFilter.isGivingUp()) {
+                //Give up for now
+                stopManagerAndResetAlarm();
+            }
+            return;
+        }
 
-        double speed = -1;
-        double distanceTravelled = -1;
         if (goblobLocationManager.getCurrentLocationInfo() != null) {
-            distanceTravelled = Maths.calculateDistance(loc.getLatitude(), loc.getLongitude(), goblobLocationManager.getCurrentLocationInfo().getLatitude(), goblobLocationManager.getCurrentLocationInfo().getLongitude());
+            double distanceTravelled = Maths.calculateDistance(loc.getLatitude(), loc.getLongitude(), goblobLocationManager.getCurrentLocationInfo().getLatitude(), goblobLocationManager.getCurrentLocationInfo().getLongitude());
             long timeDifference = Math.abs(loc.getTime() - goblobLocationManager.getCurrentLocationInfo().getTime()) / 1000;
-
             if (timeDifference != 0) {
-                speed = distanceTravelled / timeDifference;
+                loc.setSpeed((float) (distanceTravelled / timeDifference));
             }
-
-            if (speed > 357) { //357 m/s ~=  1285 km/h
-                bestLocation = null;
-                LOG.warn(String.format("Very large jump detected - %d meters in %d sec - discarding point", (long) distanceTravelled, timeDifference));
-                return;
-            }
-
-            if (distanceTravelled != -1 && distanceTravelled < 10) {
-                if (loc.getAccuracy() >= goblobLocationManager.getCurrentLocationInfo().getAccuracy()) {
-                    bestLocation = null;
-                    return;
-                }
-            }
-
-            if (timeDifference < 1) {
-                return;
-            }
-
-            loc.setSpeed((float) speed);
-        }
-
-        long currentTimeStamp = System.currentTimeMillis();
-
-        LOG.debug("Has description? " + goblobLocationManager.hasDescription() + ", Single point? " + goblobLocationManager.isSinglePointMode() + ", Last timestamp: " + goblobLocationManager.getLatestTimeStamp());
-
-        // Don't log a point until the user-defined time has elapsed
-        // However, if user has set an annotation, just log the point, disregard any filters
-        if (!goblobLocationManager.hasDescription() && !goblobLocationManager.isSinglePointMode() && (currentTimeStamp - goblobLocationManager.getLatestTimeStamp()) < (preferenceHelper.getMinimumLoggingInterval() * 1000)) {
-            //return;
-        }
-
-        //Don't log a point if user has been still
-        // However, if user has set an annotation, just log the point, disregard any filters
-        if (userHasBeenStillForTooLong()) {
-            LOG.info("Received location but the user hasn't moved, ignoring");
-            return;
-        }
-
-        if (!isFromValidListener(loc)) {
-            return;
         }
 
-
         boolean isPassiveLocation = loc.getExtras().getBoolean(BundleConstants.PASSIVE);
 
+        long now = currentTimeMillis();
         //check if we change of day and then write the last position of yesterday as the first position of today
         if (preferenceHelper.shouldCreateNewFileOnceADay()) {
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd");
-            String today = sdf.format(new Date());
+            String today = Strings.getDatedFileName(true, now);
             if (!today.equals(Strings.getFormattedFileName())) {
-                resetCurrentFileName(false);
+                resetCurrentFileName(false, now);
             }
         }
 
-        //Check if a ridiculous distance has been travelled since previous point - could be a bad GPS jump
-        /*if(goblobLocationManager.getCurrentLocationInfo() != null){
-            double distanceTravelled = Maths.calculateDistance(loc.getLatitude(), loc.getLongitude(), goblobLocationManager.getCurrentLocationInfo().getLatitude(), goblobLocationManager.getCurrentLocationInfo().getLongitude());
-            long timeDifference = (int)Math.abs(loc.getTime() - goblobLocationManager.getCurrentLocationInfo().getTime())/1000;
-
-            if( timeDifference > 0 && (distanceTravelled/timeDifference) > 357){ //357 m/s ~=  1285 km/h
-                LOG.warn(String.format("Very large jump detected - %d meters in %d sec - discarding point", (long)distanceTravelled, timeDifference));
-                return;
-            }
-        }*/
-
-        // Don't do anything until the user-defined accuracy is reached
-        // However, if user has set an annotation, just log the point, disregard any filters
-        /*if (!goblobLocationManager.hasDescription() &&  preferenceHelper.getMinimumAccuracy() > 0) {
-
-
-            if(!loc.hasAccuracy() || loc.getAccuracy() == 0){
-                return;
-            }
-
-            //Don't apply the retry interval to passive locations
-            if (!isPassiveLocation && preferenceHelper.getMinimumAccuracy() < Math.abs(loc.getAccuracy())) {
-
-                if(goblobLocationManager.getFirstRetryTimeStamp() == 0){
-                    goblobLocationManager.setFirstRetryTimeStamp(System.currentTimeMillis());
-                }
-
-                if (currentTimeStamp - goblobLocationManager.getFirstRetryTimeStamp() <= preferenceHelper.getLoggingRetryPeriod() * 1000) {
-                    LOG.warn("Only accuracy of " + String.valueOf(loc.getAccuracy()) + " m. Point discarded." + getString(R.string.inaccurate_point_discarded));
-                    //return and keep trying
-                    return;
-                }
-
-                if (currentTimeStamp - goblobLocationManager.getFirstRetryTimeStamp() > preferenceHelper.getLoggingRetryPeriod() * 1000) {
-                    LOG.warn("Only accuracy of " + String.valueOf(loc.getAccuracy()) + " m and timeout reached." + getString(R.string.inaccurate_point_discarded));
-                    //Give up for now
-                    stopManagerAndResetAlarm();
-
-                    //reset timestamp for next time.
-                    goblobLocationManager.setFirstRetryTimeStamp(0);
-                    return;
-                }
-
-                //Success, reset timestamp for next time.
-                goblobLocationManager.setFirstRetryTimeStamp(0);
-            }
-        }*/
-
-        //Don't do anything until the user-defined distance has been traversed
-        // However, if user has set an annotation, just log the point, disregard any filters
-        /*if (!goblobLocationManager.hasDescription() && !goblobLocationManager.isSinglePointMode() && preferenceHelper.getMinimumDistanceInterval() > 0 && goblobLocationManager.hasValidLocation()) {
-
-            double distanceTraveled = Maths.calculateDistance(loc.getLatitude(), loc.getLongitude(),
-                    goblobLocationManager.getCurrentLatitude(), goblobLocationManager.getCurrentLongitude());
-
-            if (preferenceHelper.getMinimumDistanceInterval() > distanceTraveled) {
-                LOG.warn(String.format(getString(R.string.not_enough_distance_traveled), String.valueOf(Math.floor(distanceTraveled))) + ", point discarded");
-                stopManagerAndResetAlarm();
-                return;
-            }
-        }*/
-
-
         LOG.info(SessionLogcatAppender.MARKER_LOCATION, String.valueOf(loc.getLatitude()) + "," + String.valueOf(loc.getLongitude()));
         loc = goblobLocationManager.getLocationOnRoute(Locations.getLocationWithAdjustedAltitude(loc, preferenceHelper));
         if (loc.getExtras().getBoolean("repeatedPoint", false)) {
             return;
         }
-        resetCurrentFileName(false);
-        goblobLocationManager.setLatestTimeStamp(System.currentTimeMillis());
+        resetCurrentFileName(false, now);
+        goblobLocationManager.setLatestTimeStamp(now);
         goblobLocationManager.setFirstRetryTimeStamp(0);
         goblobLocationManager.setCurrentLocationInfo(loc);
         setDistanceTraveled(loc);
@@ -1001,24 +1129,6 @@ public class GoblobLocationService extends Service {
             LOG.debug("Single point mode - stopping now");
             stopLogging();
         }
-        bestLocation = null;
-    }
-
-    private boolean isFromValidListener(Location loc) {
-
-        if (!preferenceHelper.getChosenListeners().contains(LocationManager.GPS_PROVIDER) && !preferenceHelper.getChosenListeners().contains(LocationManager.NETWORK_PROVIDER)) {
-            return true;
-        }
-
-        if (!preferenceHelper.getChosenListeners().contains(LocationManager.NETWORK_PROVIDER)) {
-            return loc.getProvider().equalsIgnoreCase(LocationManager.GPS_PROVIDER);
-        }
-
-        if (!preferenceHelper.getChosenListeners().contains(LocationManager.GPS_PROVIDER)) {
-            return !loc.getProvider().equalsIgnoreCase(LocationManager.GPS_PROVIDER);
-        }
-
-        return true;
     }
 
     private void setDistanceTraveled(Location loc) {
@@ -1083,7 +1193,10 @@ public class GoblobLocationService extends Service {
 
     @TargetApi(23)
     private void setAlarmForNextPoint() {
-        LOG.debug("Set alarm for " + preferenceHelper.getMinimumLoggingInterval() + " seconds");
+        //Asking again before the batch is due would cut it short
+        LocationEngineRequest request = getSamplingRequest();
+        long interval = Math.max(request.getInterval(), getMaxWaitTime(request));
+        LOG.debug("Set alarm for " + interval + " ms");
 
         Intent i = new Intent(this, GoblobLocationService.class);
         i.putExtra(IntentConstants.GET_NEXT_POINT, true);
@@ -1093,9 +1206,9 @@ public class GoblobLocationService extends Service {
         if (Systems.isDozing(this)) {
             //Only invoked once per 15 minutes in doze mode
             LOG.warn("Device is dozing, using infrequent alarm");
-            nextPointAlarmManager.setExactAndAllowWhileIdle(AlarmManager.ELAPSED_REALTIME_WAKEUP, SystemClock.elapsedRealtime() + 5 * 1000, pi);
+            nextPointAlarmManager.setExactAndAllowWhileIdle(AlarmManager.ELAPSED_REALTIME_WAKEUP, SystemClock.elapsedRealtime() + interval, pi);
         } else {
-            nextPointAlarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, SystemClock.elapsedRealtime() + 5 * 1000, pi);
+            nextPointAlarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, SystemClock.elapsedRealtime() + interval, pi);
         }
     }
 
@@ -1106,15 +1219,25 @@ public class GoblobLocationService extends Service {
      * @param loc LocationParameters object
      */
     private void writeToFile(Location loc) {
+        //Taken now, the point is written later on the logging thread
+        boolean addNewTrackSegment = goblobLocationManager.shouldAddNewTrackSegment();
         goblobLocationManager.setAddNewTrackSegment(false);
 
         try {
             LOG.debug("Calling file writers");
-            FileLoggerFactory.write(getApplicationContext(), loc);
+            if (pendingWrites != null) {
+                FileLoggerFactory.write(getApplicationContext(), loc, addNewTrackSegment, pendingWrites);
+            } else {
+                FileLoggerFactory.write(getApplicationContext(), loc, addNewTrackSegment);
+            }
 
             if (goblobLocationManager.hasDescription()) {
                 LOG.info("Writing annotation: " + goblobLocationManager.getDescription());
-                FileLoggerFactory.annotate(getApplicationContext(), goblobLocationManager.getDescription(), loc);
+                if (pendingWrites != null) {
+                    FileLoggerFactory.annotate(getApplicationContext(), goblobLocationManager.getDescription(), loc, pendingWrites);
+                } else {
+                    FileLoggerFactory.annotate(getApplicationContext(), goblobLocationManager.getDescription(), loc);
+                }
             }
         } catch (Exception e) {
             LOG.error(getString(R.string.could_not_write_to_file), e);
@@ -1124,6 +1247,27 @@ public class GoblobLocationService extends Service {
         EventBus.getDefault().post(new ServiceEvents.AnnotationStatus(true));
     }
 
+    /**
+     * Waits for the logging pipeline to write out everything queued so far and close the
+     * session's files, so that auto send picks up complete files.
+     */
+    private void closeFileLoggers() {
+        writePendingLocations();
+
+        if (nmeaLogger != null) {
+            nmeaLogger.requestFlush();
+        }
+
+        try {
+            if (!FileLoggerFactory.close(5, TimeUnit.SECONDS)) {
+                LOG.warn("Timed out waiting for file loggers to close");
+            }
+        } catch (InterruptedException e) {
+            LOG.warn("Interrupted while waiting for file loggers to close");
+            Thread.currentThread().interrupt();
+        }
+    }
+
     /**
      * Informs the main service client of the number of visible satellites.
      *
@@ -1137,7 +1281,9 @@ public class GoblobLocationService extends Service {
     public void onNmeaSentence(long timestamp, String nmeaSentence) {
 
         if (preferenceHelper.shouldLogToNmea()) {
-            NmeaFileLogger nmeaLogger = new NmeaFileLogger(Strings.getFormattedFileName());
+            if (nmeaLogger == null) {
+                nmeaLogger = new NmeaFileLogger();
+            }
             nmeaLogger.write(timestamp, nmeaSentence);
         }
     }
@@ -1304,6 +1450,10 @@ public class GoblobLocationService extends Service {
 
         goblobLocationManager.setLatestDetectedActivity(activityRecognitionEvent.result.getMostProbableActivity());
 
+        if (samplingScheduler != null && samplingScheduler.onActivity(activityRecognitionEvent.result.getMostProbableActivity().getType())) {
+            resample();
+        }
+
         if (!preferenceHelper.shouldNotLogIfUserIsStill()) {
             goblobLocationManager.setUserStillSinceTimeStamp(0);
             return;
@@ -1348,6 +1498,7 @@ public class GoblobLocationService extends Service {
 
             //Switch current profile name
             preferenceHelper.setCurrentProfileName(switchToProfileEvent.newProfileName);
+            FileLoggerFactory.invalidate();
 
         } catch (IOException e) {
             LOG.error("Could not save profile to file", e);
@@ -0,0 +1,244 @@
+package com.ml.map;
+
+import com.ml.map.track.MappedTrackReader;
+import com.ml.map.track.TrackEncoder;
+import com.ml.map.track.TrackExporter;
+import com.ml.map.track.TrackFileLogger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Sends only the points logged since the last upload of a session, instead of the whole day each time.
+ *
+ * Each delta package is a zip of the new records in the chosen formats plus a delta.properties manifest, named
+ * after the session and a sequence number. A checkpoint per session records how many records have been shipped.
+ * The range and sequence number of a package are saved before it is sent, so if sending fails the next attempt
+ * rebuilds exactly the same package under the same number, and the receiving end can drop repeats.
+ */
+public class IncrementalSender {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IncrementalSender.class);
+
+    /**
+     * Where delta packages go
+     */
+    public interface Sink {
+        /**
+         * Must be safe to call again with the same sequence number after a failure
+         *
+         * @throws IOException if the package was not accepted, to be sent again later
+         */
+        void send(File deltaPackage, String session, long sequence) throws IOException;
+    }
+
+    public static final String CHECKPOINT_FOLDER = ".autosend";
+    private static final String MANIFEST = "delta.properties";
+    private static final String SHIPPED = "shipped";
+    private static final String SEQUENCE = "sequence";
+    private static final String PENDING_END = "pendingEnd";
+
+    private final File folder;
+    private final Collection<String> formats;
+    private final Sink sink;
+
+    /**
+     * @param formats formats to put in each package, see {@link TrackExportFactory}
+     */
+    public IncrementalSender(File folder, Collection<String> formats, Sink sink) {
+        this.folder = folder;
+        this.formats = formats;
+        this.sink = sink;
+    }
+
+    /**
+     * Builds and sends a package of the session's records that haven't been shipped yet, if there are any
+     *
+     * @return the sequence number of the package sent, or -1 if there was nothing new
+     * @throws IOException if the package could not be built or sent; the same package is sent next time
+     */
+    public long sendNew(String session) throws IOException {
+        synchronized (IncrementalSender.class) {
+            File trackFile = new File(folder, session + TrackFileLogger.EXTENSION);
+            if (!trackFile.exists()) {
+                return -1;
+            }
+
+            File checkpointFile = getCheckpointFile(session);
+            Properties checkpoint = Files.loadProperties(checkpointFile);
+            long shipped = getLong(checkpoint, SHIPPED, 0);
+            long sequence = getLong(checkpoint, SEQUENCE, 1);
+            long end = getLong(checkpoint, PENDING_END, -1);
+
+            if (end < 0) {
+                MappedTrackReader reader = MappedTrackReader.open(trackFile);
+                try {
+                    end = reader.getRecordCount();
+                } finally {
+                    reader.close();
+                }
+                if (end <= shipped) {
+                    return -1;
+                }
+
+                //Pin the range to this sequence number before anything leaves the device
+                checkpoint.setProperty(PENDING_END, String.valueOf(end));
+                Files.saveProperties(checkpoint, checkpointFile);
+            }
+
+            File deltaPackage = buildPackage(trackFile, session, sequence, shipped, end);
+            try {
+                sink.send(deltaPackage, session, sequence);
+            } finally {
+                if (!deltaPackage.delete()) {
+                    LOG.warn("Could not delete " + deltaPackage.getPath());
+                }
+            }
+
+            checkpoint.setProperty(SHIPPED, String.valueOf(end));
+            checkpoint.setProperty(SEQUENCE, String.valueOf(sequence + 1));
+            checkpoint.remove(PENDING_END);
+            Files.saveProperties(checkpoint, checkpointFile);
+
+            LOG.info("Sent " + session + " delta " + sequence + ", records " + shipped + " to " + end);
+            return sequence;
+        }
+    }
+
+    /**
+     * Forgets what has been shipped for the session, so the next package starts from its first record again
+     */
+    public void reset(String session) {
+        synchronized (IncrementalSender.class) {
+            File checkpointFile = getCheckpointFile(session);
+            if (checkpointFile.exists() && !checkpointFile.delete()) {
+                LOG.warn("Could not delete " + checkpointFile.getPath());
+            }
+        }
+    }
+
+    public static String getPackageName(String session, long sequence) {
+        return String.format(Locale.US, "%s.delta-%06d.zip", session, sequence);
+    }
+
+    private File buildPackage(File trackFile, String session, long sequence, long first, long end) throws IOException {
+        File work = new File(getCheckpointFolder(), session + ".delta-" + sequence);
+        if (!work.exists() && !work.mkdirs()) {
+            throw new IOException("Could not create " + work.getPath());
+        }
+
+        List<File> contents = new ArrayList<>();
+        try {
+            TrackExporter exporter = new TrackExporter(trackFile).setRecordRange(first, end);
+            for (String format : formats) {
+                TrackEncoder encoder = TrackExportFactory.getEncoder(format, trackFile);
+                if (encoder != null && !TrackExportFactory.NMEA.equals(format)) {
+                    exporter.add(encoder, new File(work, session + encoder.getExtension()));
+                }
+            }
+            exporter.export();
+            contents.addAll(exporter.getOutputs());
+
+            Properties manifest = new Properties();
+            manifest.setProperty("session", session);
+            manifest.setProperty(SEQUENCE, String.valueOf(sequence));
+            manifest.setProperty("firstRecord", String.valueOf(first));
+            manifest.setProperty("endRecord", String.valueOf(end));
+            File manifestFile = new File(work, MANIFEST);
+            Files.saveProperties(manifest, manifestFile);
+            contents.add(manifestFile);
+
+            File deltaPackage = new File(getCheckpointFolder(), getPackageName(session, sequence));
+            FileOutputStream out = new FileOutputStream(deltaPackage);
+            try {
+                ZipArchiveWriter writer = new ZipArchiveWriter(out.getChannel());
+                for (File file : contents) {
+                    writer.addFile(file, file.getName());
+                }
+                writer.finish();
+            } finally {
+                out.close();
+            }
+            return deltaPackage;
+        } finally {
+            for (File file : contents) {
+                file.delete();
+            }
+            work.delete();
+        }
+    }
+
+    private File getCheckpointFolder() {
+        return new File(folder, CHECKPOINT_FOLDER);
+    }
+
+    private File getCheckpointFile(String session) {
+        return new File(getCheckpointFolder(), session + ".properties");
+    }
+
+    private static long getLong(Properties properties, String key, long defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Stand-in sink that copies packages into a local outbox folder. Sending the same sequence again replaces the
+     * earlier copy.
+     */
+    public static class FolderSink implements Sink {
+        private final File outbox;
+
+        public FolderSink(File outbox) {
+            this.outbox = outbox;
+        }
+
+        @Override
+        public void send(File deltaPackage, String session, long sequence) throws IOException {
+            if (!outbox.exists() && !outbox.mkdirs()) {
+                throw new IOException("Could not create " + outbox.getPath());
+            }
+
+            File target = new File(outbox, getPackageName(session, sequence));
+            File temp = new File(target.getPath() + ".part");
+            FileInputStream in = new FileInputStream(deltaPackage);
+            try {
+                FileOutputStream out = new FileOutputStream(temp);
+                try {
+                    FileChannel source = in.getChannel();
+                    long size = source.size();
+                    long position = 0;
+                    while (position < size) {
+                        position += source.transferTo(position, size - position, out.getChannel());
+                    }
+                    out.getFD().sync();
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+
+            if (!temp.renameTo(target)) {
+                throw new IOException("Could not move " + temp.getName() + " to " + target.getName());
+            }
+        }
+    }
+}
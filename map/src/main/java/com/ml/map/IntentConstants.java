@@ -24,4 +24,6 @@ public class IntentConstants {
     public static final String START_NEAR = "start_near";
     public static final String STOP_NEAR = "stop_near";
     public static final String START_DISCOVERY = "start_discovery";
+    public static final String REPLAY_FILE = "replayfile";
+    public static final String REPLAY_SPEED = "replayspeed";
 }
\ No newline at end of file
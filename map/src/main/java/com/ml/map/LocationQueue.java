@@ -0,0 +1,273 @@
+package com.ml.map;
+
+import android.location.Location;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Points waiting to be uploaded by a network logger, kept in a file so they survive the process being killed
+ * or the network being down for days.
+ *
+ * Points are appended through a buffer that {@link #flush()} writes out, so each batch from the
+ * {@link LoggingPipeline} costs one write. Uploaders read from the front with {@link #peek(int)} and call
+ * {@link #remove(Batch)} once the server has the points; how far the front has moved is saved next to the
+ * queue file. The file is deleted once everything in it has been removed, and a point cut short by a crash is
+ * dropped when the queue is opened.
+ */
+public class LocationQueue {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LocationQueue.class);
+
+    /**
+     * Points read from the front of the queue
+     */
+    public static class Batch {
+        public final List<Location> locations;
+        final long endOffset;
+
+        Batch(List<Location> locations, long endOffset) {
+            this.locations = Collections.unmodifiableList(locations);
+            this.endOffset = endOffset;
+        }
+    }
+
+    private static final Map<String, LocationQueue> queues = new HashMap<>();
+
+    private final File file;
+    private final File offsetFile;
+    private DataOutputStream output;
+    private long readOffset;
+    private int size;
+
+    //Upload state, shared by every logger built on this queue. The longs are guarded by the queue's lock.
+    final AtomicBoolean sending = new AtomicBoolean();
+    long waitingSince = -1;
+    long retryAt;
+    long retryDelay;
+
+    private LocationQueue(File file) {
+        this.file = file;
+        this.offsetFile = new File(file.getPath() + ".offset");
+        load();
+    }
+
+    /**
+     * Returns the one queue kept in the file, so that loggers rebuilt for new settings carry on where the old
+     * ones left off
+     */
+    public static LocationQueue forFile(File file) {
+        synchronized (queues) {
+            LocationQueue queue = queues.get(file.getAbsolutePath());
+            if (queue == null) {
+                queue = new LocationQueue(file);
+                queues.put(file.getAbsolutePath(), queue);
+            }
+            return queue;
+        }
+    }
+
+    public synchronized void add(Location loc) throws IOException {
+        if (output == null) {
+            File folder = file.getParentFile();
+            if (folder != null && !folder.exists() && !folder.mkdirs()) {
+                throw new IOException("Could not create " + folder.getPath());
+            }
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        }
+        Locations.writeTo(output, loc);
+        size++;
+    }
+
+    /**
+     * Writes out the points added since the last flush
+     */
+    public synchronized void flush() throws IOException {
+        if (output != null) {
+            output.flush();
+        }
+    }
+
+    /**
+     * Reads up to the given number of points from the front of the queue, leaving them in it
+     */
+    public synchronized Batch peek(int max) throws IOException {
+        List<Location> locations = new ArrayList<>();
+        if (size == 0) {
+            return new Batch(locations, readOffset);
+        }
+        flush();
+
+        FileInputStream fileInput = new FileInputStream(file);
+        try {
+            fileInput.getChannel().position(readOffset);
+            CountingInputStream counter = new CountingInputStream(new BufferedInputStream(fileInput));
+            DataInputStream in = new DataInputStream(counter);
+            while (locations.size() < max && locations.size() < size) {
+                locations.add(Locations.readFrom(in));
+            }
+            return new Batch(locations, readOffset + counter.count);
+        } finally {
+            fileInput.close();
+        }
+    }
+
+    /**
+     * Drops the batch's points from the front of the queue, once they have been sent
+     */
+    public synchronized void remove(Batch batch) throws IOException {
+        size -= batch.locations.size();
+        readOffset = batch.endOffset;
+        if (size <= 0) {
+            clear();
+            return;
+        }
+
+        Properties properties = new Properties();
+        properties.setProperty("offset", String.valueOf(readOffset));
+        File temp = new File(offsetFile.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            properties.store(out, null);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(offsetFile)) {
+            throw new IOException("Could not save " + offsetFile.getPath());
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Writes out any buffered points and releases the file until the next point is added
+     */
+    public synchronized void close() throws IOException {
+        if (output != null) {
+            output.close();
+            output = null;
+        }
+    }
+
+    private void clear() throws IOException {
+        close();
+        size = 0;
+        readOffset = 0;
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not delete " + file.getPath());
+        }
+        offsetFile.delete();
+    }
+
+    private void load() {
+        if (!file.exists()) {
+            offsetFile.delete();
+            return;
+        }
+
+        try {
+            if (offsetFile.exists()) {
+                Properties properties = new Properties();
+                FileInputStream in = new FileInputStream(offsetFile);
+                try {
+                    properties.load(in);
+                } finally {
+                    in.close();
+                }
+                readOffset = Long.parseLong(properties.getProperty("offset", "0"));
+            }
+
+            long end = readOffset;
+            FileInputStream fileInput = new FileInputStream(file);
+            try {
+                fileInput.getChannel().position(readOffset);
+                CountingInputStream counter = new CountingInputStream(new BufferedInputStream(fileInput));
+                DataInputStream in = new DataInputStream(counter);
+                while (true) {
+                    try {
+                        Locations.readFrom(in);
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    size++;
+                    end = readOffset + counter.count;
+                }
+            } finally {
+                fileInput.close();
+            }
+
+            if (end < file.length()) {
+                LOG.warn("Dropping a point cut short in " + file.getName());
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.setLength(end);
+                } finally {
+                    raf.close();
+                }
+            }
+            LOG.debug(size + " points waiting in " + file.getName());
+        } catch (Exception e) {
+            LOG.error("Could not read " + file.getPath() + ", starting a new queue", e);
+            size = 0;
+            readOffset = 0;
+            file.delete();
+            offsetFile.delete();
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
@@ -1,9 +1,24 @@
 package com.ml.map;
 
 import android.location.Location;
+import android.os.Bundle;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 
 public class Locations {
 
+    private static final String[] EXTRA_STRINGS = new String[]{
+            BundleConstants.HDOP, BundleConstants.PDOP, BundleConstants.VDOP, BundleConstants.GEOIDHEIGHT,
+            BundleConstants.AGEOFDGPSDATA, BundleConstants.DGPSID, BundleConstants.DETECTED_ACTIVITY, BundleConstants.LISTENER};
+
+    private static final int HAS_ALTITUDE = 1;
+    private static final int HAS_ACCURACY = 1 << 1;
+    private static final int HAS_BEARING = 1 << 2;
+    private static final int HAS_SPEED = 1 << 3;
+    private static final int HAS_EXTRAS = 1 << 4;
+
     public static Location getLocationWithAdjustedAltitude(Location loc, PreferenceHelper ph) {
         if(!loc.hasAltitude()){ return loc; }
 
@@ -24,4 +39,82 @@ public class Locations {
 
         return loc;
     }
+
+    /**
+     * Writes the location and the extras the loggers care about, readable by {@link #readFrom(DataInput)}
+     */
+    public static void writeTo(DataOutput out, Location loc) throws IOException {
+        out.writeUTF(loc.getProvider() == null ? "" : loc.getProvider());
+        out.writeLong(loc.getTime());
+        out.writeDouble(loc.getLatitude());
+        out.writeDouble(loc.getLongitude());
+
+        Bundle extras = loc.getExtras();
+        int flags = (loc.hasAltitude() ? HAS_ALTITUDE : 0)
+                | (loc.hasAccuracy() ? HAS_ACCURACY : 0)
+                | (loc.hasBearing() ? HAS_BEARING : 0)
+                | (loc.hasSpeed() ? HAS_SPEED : 0)
+                | (extras != null ? HAS_EXTRAS : 0);
+        out.writeByte(flags);
+
+        if (loc.hasAltitude()) {
+            out.writeDouble(loc.getAltitude());
+        }
+        if (loc.hasAccuracy()) {
+            out.writeFloat(loc.getAccuracy());
+        }
+        if (loc.hasBearing()) {
+            out.writeFloat(loc.getBearing());
+        }
+        if (loc.hasSpeed()) {
+            out.writeFloat(loc.getSpeed());
+        }
+
+        if (extras != null) {
+            for (String key : EXTRA_STRINGS) {
+                String value = extras.getString(key);
+                out.writeBoolean(value != null);
+                if (value != null) {
+                    out.writeUTF(value);
+                }
+            }
+            out.writeInt(extras.getInt(BundleConstants.SATELLITES_FIX, 0));
+            out.writeBoolean(extras.getBoolean(BundleConstants.PASSIVE));
+        }
+    }
+
+    public static Location readFrom(DataInput in) throws IOException {
+        Location loc = new Location(in.readUTF());
+        loc.setTime(in.readLong());
+        loc.setLatitude(in.readDouble());
+        loc.setLongitude(in.readDouble());
+
+        int flags = in.readByte();
+        if ((flags & HAS_ALTITUDE) != 0) {
+            loc.setAltitude(in.readDouble());
+        }
+        if ((flags & HAS_ACCURACY) != 0) {
+            loc.setAccuracy(in.readFloat());
+        }
+        if ((flags & HAS_BEARING) != 0) {
+            loc.setBearing(in.readFloat());
+        }
+        if ((flags & HAS_SPEED) != 0) {
+            loc.setSpeed(in.readFloat());
+        }
+
+        if ((flags & HAS_EXTRAS) != 0) {
+            Bundle b = new Bundle();
+            for (String key : EXTRA_STRINGS) {
+                if (in.readBoolean()) {
+                    b.putString(key, in.readUTF());
+                }
+            }
+            b.putInt(BundleConstants.SATELLITES_FIX, in.readInt());
+            b.putBoolean(BundleConstants.PASSIVE, in.readBoolean());
+            loc.setExtras(b);
+        }
+
+        return loc;
+    }
 }
@@ -0,0 +1,751 @@
+package com.ml.map;
+
+import android.location.Location;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Single write pipeline shared by all {@link FileLogger}s.
+ *
+ * Points and annotations are queued in a bounded ring buffer and drained by one background thread,
+ * which hands them to each logger in batches grouped by format and then calls {@link FileLogger#flush()}
+ * once per logger. What happens when the ring buffer is full is decided by {@link Backpressure}.
+ */
+public class LoggingPipeline {
+
+    /**
+     * What to do with a new entry once the ring buffer is full
+     */
+    public enum Backpressure {
+        /** Wait for the logging thread to make room, dropping the entry only after a timeout */
+        BLOCK,
+        /** Replace the newest queued point of the same logger with the incoming point */
+        COALESCE,
+        /** Append the entry to a spill file on disk, replayed in order once the buffer drains */
+        SPILL
+    }
+
+    /**
+     * Which session's files an entry is logged to, so that entries spilled before the session rotated are
+     * written back to that session's files rather than the current ones
+     */
+    interface Sessions {
+        String getCurrentSession();
+
+        /**
+         * @return the named logger writing to the given session's files, or null if it doesn't write to
+         * session files and the current logger should take the entry
+         */
+        FileLogger getFileLogger(String name, String session);
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(LoggingPipeline.class);
+
+    private static final int OP_WRITE = 0;
+    private static final int OP_ANNOTATE = 1;
+    private static final int OP_FLUSH = 2;
+    private static final int OP_BARRIER = 3;
+    private static final int OP_CLOSE = 4;
+    private static final int OP_WRITE_NEW_SEGMENT = 5;
+
+    private static final int MAX_BATCH = 64;
+    private static final long BLOCK_TIMEOUT_MILLIS = 2000;
+    static final String SPILL_FILE_NAME = "logging_pipeline.spill";
+
+    private static LoggingPipeline instance = null;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    private final Entry[] ring;
+    private final Backpressure backpressure;
+    private int head;
+    private int count;
+
+    private final Sessions sessions;
+    private final File spillFile;
+    private final File spillDrainFile;
+    private DataOutputStream spillOutput;
+    private boolean spilling;
+    private final List<CountDownLatch> spillBarriers = new ArrayList<>();
+    private boolean spillCloseRequested;
+    private boolean closeRequested;
+
+    private final Map<String, FileLogger> targets = new HashMap<>();
+
+    private final Entry[] batch = new Entry[MAX_BATCH];
+    private final List<FileLogger> touched = new ArrayList<>();
+    private final List<FileLogger> flushRequests = new ArrayList<>();
+
+    private long dropped;
+    private long coalesced;
+    private long spilled;
+
+    LoggingPipeline(int capacity, Backpressure backpressure, File spillFolder) {
+        this(capacity, backpressure, spillFolder, new Sessions() {
+            @Override
+            public String getCurrentSession() {
+                return GoblobLocationManager.getInstance().getCurrentFormattedFileName();
+            }
+
+            @Override
+            public FileLogger getFileLogger(String name, String session) {
+                return FileLoggerFactory.getFileLogger(GoblobLocationManager.getInstance().getApplicationContext(), name, session);
+            }
+        });
+    }
+
+    LoggingPipeline(int capacity, Backpressure backpressure, File spillFolder, Sessions sessions) {
+        this.ring = new Entry[Math.max(capacity, 1)];
+        for (int i = 0; i < ring.length; i++) {
+            ring[i] = new Entry();
+        }
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = new Entry();
+        }
+        this.backpressure = backpressure;
+        this.sessions = sessions;
+        this.spillFile = new File(spillFolder, SPILL_FILE_NAME);
+        this.spillDrainFile = new File(spillFolder, SPILL_FILE_NAME + ".draining");
+
+        //Left over by a previous process; replay it before anything new
+        this.spilling = spillFile.exists() || spillDrainFile.exists();
+
+        Thread drainThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainLoop();
+            }
+        }, "goblob-logging");
+        drainThread.setDaemon(true);
+        drainThread.start();
+    }
+
+    public static synchronized LoggingPipeline getInstance() {
+        if (instance == null) {
+            PreferenceHelper preferenceHelper = PreferenceHelper.getInstance();
+            instance = new LoggingPipeline(preferenceHelper.getLoggingQueueSize(),
+                    preferenceHelper.getLoggingBackpressure(),
+                    Files.storageFolder(GoblobLocationManager.getInstance().getApplicationContext()));
+        }
+        return instance;
+    }
+
+    /**
+     * Queues a point to be written by the given logger
+     */
+    public void write(FileLogger logger, Location loc) {
+        write(logger, loc, false);
+    }
+
+    /**
+     * Queues a point to be written by the given logger
+     *
+     * @param addNewTrackSegment whether the point starts a new track segment, for {@link SegmentedFileLogger}s.
+     *                           Such a point is never coalesced.
+     */
+    public void write(FileLogger logger, Location loc, boolean addNewTrackSegment) {
+        submit(addNewTrackSegment ? OP_WRITE_NEW_SEGMENT : OP_WRITE, logger, loc, null, 0, null);
+    }
+
+    /**
+     * Queues an annotation to be written by the given logger. Annotations are never coalesced.
+     */
+    public void annotate(FileLogger logger, String description, Location loc) {
+        submit(OP_ANNOTATE, logger, loc, description, 0, null);
+    }
+
+    /**
+     * Queues everything in the batch in one go, so the pipeline thread wakes up once and hands it to each
+     * logger as a single batch followed by one flush
+     */
+    public void write(Batch batch) {
+        lock.lock();
+        try {
+            for (Entry e : batch.entries) {
+                submit(e.op, e.logger, e.location, e.text, 0, null);
+            }
+        } finally {
+            lock.unlock();
+        }
+        batch.entries.clear();
+    }
+
+    /**
+     * Asks the pipeline thread to call {@link FileLogger#flush()} on a logger that buffers its own data.
+     * The request is kept outside the ring buffer, so it never waits for room and is never dropped or spilled,
+     * and repeated requests before the flush runs are merged.
+     */
+    void requestFlush(FileLogger logger) {
+        lock.lock();
+        try {
+            targets.put(logger.getName(), logger);
+            if (!containsInstance(flushRequests, logger)) {
+                flushRequests.add(logger);
+            }
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Flush barrier. Blocks until every entry queued before this call has been written and flushed.
+     *
+     * @return false if the timeout elapsed first
+     */
+    public boolean flush(long timeout, TimeUnit unit) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        submit(OP_BARRIER, null, null, null, 0, latch);
+        return latch.await(timeout, unit);
+    }
+
+    /**
+     * Like {@link #flush(long, TimeUnit)}, but also closes every logger once the queue has drained, ending
+     * the session's open files.
+     */
+    public boolean close(long timeout, TimeUnit unit) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        submit(OP_CLOSE, null, null, null, 0, latch);
+        return latch.await(timeout, unit);
+    }
+
+    public int getPendingCount() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDroppedCount() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getCoalescedCount() {
+        lock.lock();
+        try {
+            return coalesced;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getSpilledCount() {
+        lock.lock();
+        try {
+            return spilled;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void submit(int op, FileLogger logger, Location loc, String text, long timestamp, CountDownLatch barrier) {
+        lock.lock();
+        try {
+            if (logger != null) {
+                targets.put(logger.getName(), logger);
+            }
+
+            if (spilling) {
+                if (isBarrier(op)) {
+                    spillBarriers.add(barrier);
+                    spillCloseRequested |= op == OP_CLOSE;
+                } else {
+                    spill(op, logger, loc, text, timestamp);
+                }
+                notEmpty.signal();
+                return;
+            }
+
+            if (count == ring.length) {
+                if (op == OP_WRITE && backpressure == Backpressure.COALESCE && coalesce(logger, loc)) {
+                    return;
+                }
+
+                if (!isBarrier(op) && backpressure == Backpressure.SPILL) {
+                    spill(op, logger, loc, text, timestamp);
+                    notEmpty.signal();
+                    return;
+                }
+
+                if (isBarrier(op)) {
+                    while (count == ring.length) {
+                        notFull.await();
+                    }
+                } else {
+                    long remaining = TimeUnit.MILLISECONDS.toNanos(BLOCK_TIMEOUT_MILLIS);
+                    while (count == ring.length && remaining > 0) {
+                        remaining = notFull.awaitNanos(remaining);
+                    }
+
+                    if (count == ring.length) {
+                        dropped++;
+                        LOG.warn(SessionLogcatAppender.MARKER_INTERNAL, "Logging queue is full, point for " + logger.getName() + " not logged. Dropped so far: " + dropped);
+                        return;
+                    }
+                }
+            }
+
+            ring[(head + count) % ring.length].set(op, logger, loc, text, timestamp, barrier);
+            count++;
+            notEmpty.signal();
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            dropped++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the newest queued point of the same format with this one. Must hold the lock.
+     */
+    private boolean coalesce(FileLogger logger, Location loc) {
+        for (int i = count - 1; i >= 0; i--) {
+            Entry e = ring[(head + i) % ring.length];
+            if (isBarrier(e.op) || e.op == OP_ANNOTATE || e.op == OP_WRITE_NEW_SEGMENT) {
+                //Never move a point across an annotation, a segment start or a barrier
+                if (e.logger == null || e.logger.getName().equals(logger.getName())) {
+                    return false;
+                }
+                continue;
+            }
+            if (e.op == OP_WRITE && e.logger.getName().equals(logger.getName())) {
+                e.logger = logger;
+                e.location = loc;
+                coalesced++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Appends an entry to the spill file. Must hold the lock.
+     */
+    private void spill(int op, FileLogger logger, Location loc, String text, long timestamp) {
+        try {
+            if (spillOutput == null) {
+                spillOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile, true)));
+            }
+            spillOutput.writeByte(op);
+            spillOutput.writeUTF(logger.getName());
+            //The session the entry was logged in, as it may have rotated by the time the entry is replayed
+            spillOutput.writeUTF(getCurrentSession());
+            spillOutput.writeLong(timestamp);
+            spillOutput.writeBoolean(text != null);
+            if (text != null) {
+                spillOutput.writeUTF(text);
+            }
+            spillOutput.writeBoolean(loc != null);
+            if (loc != null) {
+                Locations.writeTo(spillOutput, loc);
+            }
+            spillOutput.flush();
+            spilling = true;
+            spilled++;
+        } catch (IOException e) {
+            dropped++;
+            LOG.error("Could not spill logging queue to disk, point not logged", e);
+        }
+    }
+
+    private void closeSpillOutput() {
+        if (spillOutput != null) {
+            try {
+                spillOutput.close();
+            } catch (IOException e) {
+                LOG.error("Could not close spill file", e);
+            }
+            spillOutput = null;
+        }
+    }
+
+    private void drainLoop() {
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            try {
+                List<CountDownLatch> barriers = new ArrayList<>();
+                List<FileLogger> flushes = new ArrayList<>();
+                int size = takeBatch(barriers, flushes);
+
+                if (size < 0) {
+                    drainSpillFile(barriers);
+                } else {
+                    dispatch(size);
+                }
+
+                for (FileLogger logger : flushes) {
+                    try {
+                        logger.flush();
+                    } catch (Exception ex) {
+                        LOG.error(logger.getName() + " could not flush", ex);
+                    }
+                }
+
+                if (closeRequested) {
+                    closeRequested = false;
+                    closeTargets();
+                }
+
+                for (CountDownLatch latch : barriers) {
+                    latch.countDown();
+                }
+            } catch (InterruptedException e) {
+                LOG.warn(SessionLogcatAppender.MARKER_INTERNAL, "Logging thread interrupted");
+            } catch (Throwable t) {
+                LOG.error("Logging thread failure", t);
+            }
+        }
+    }
+
+    /**
+     * Moves up to {@link #MAX_BATCH} entries out of the ring buffer, stopping after a barrier, along with the
+     * pending flush requests.
+     *
+     * @return the number of entries moved into {@link #batch}, or -1 if the spill file should be drained next
+     */
+    private int takeBatch(List<CountDownLatch> barriers, List<FileLogger> flushes) throws InterruptedException {
+        lock.lock();
+        try {
+            while (count == 0 && !spilling && flushRequests.isEmpty()) {
+                notEmpty.await();
+            }
+
+            flushes.addAll(flushRequests);
+            flushRequests.clear();
+
+            if (count == 0 && !spilling) {
+                return 0;
+            }
+
+            if (count == 0) {
+                //Everything in memory is older than the spill file, so it's now safe to replay it.
+                //A file left over from a crash while replaying goes first.
+                if (!spillDrainFile.exists()) {
+                    closeSpillOutput();
+                    if (spillFile.exists() && !spillFile.renameTo(spillDrainFile)) {
+                        LOG.error("Could not rotate spill file " + spillFile.getPath());
+                    }
+                    spilling = false;
+                    barriers.addAll(spillBarriers);
+                    spillBarriers.clear();
+                    closeRequested |= spillCloseRequested;
+                    spillCloseRequested = false;
+                }
+                return -1;
+            }
+
+            int size = 0;
+            while (count > 0 && size < MAX_BATCH) {
+                int idx = head;
+                Entry e = ring[idx];
+                ring[idx] = batch[size];
+                batch[size] = e;
+                head = (head + 1) % ring.length;
+                count--;
+                size++;
+
+                if (isBarrier(e.op)) {
+                    barriers.add(e.barrier);
+                    closeRequested |= e.op == OP_CLOSE;
+                    break;
+                }
+            }
+            notFull.signalAll();
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hands the current batch to the loggers, one format at a time, then flushes each logger once.
+     */
+    private void dispatch(int size) {
+        for (int i = 0; i < size; i++) {
+            Entry first = batch[i];
+            if (first.done || isBarrier(first.op)) {
+                continue;
+            }
+
+            String name = first.logger.getName();
+            for (int j = i; j < size; j++) {
+                Entry e = batch[j];
+                if (e.done || isBarrier(e.op) || !e.logger.getName().equals(name)) {
+                    continue;
+                }
+                run(e);
+                e.done = true;
+                if (!containsInstance(touched, e.logger)) {
+                    touched.add(e.logger);
+                }
+            }
+
+            for (FileLogger logger : touched) {
+                try {
+                    logger.flush();
+                } catch (Exception ex) {
+                    LOG.error(logger.getName() + " could not flush", ex);
+                }
+            }
+            touched.clear();
+        }
+
+        for (int i = 0; i < size; i++) {
+            batch[i].clear();
+        }
+    }
+
+    private void run(Entry e) {
+        try {
+            switch (e.op) {
+                case OP_WRITE:
+                    e.logger.write(e.location);
+                    break;
+                case OP_WRITE_NEW_SEGMENT:
+                    if (e.logger instanceof SegmentedFileLogger) {
+                        ((SegmentedFileLogger) e.logger).write(e.location, true);
+                    } else {
+                        e.logger.write(e.location);
+                    }
+                    break;
+                case OP_ANNOTATE:
+                    e.logger.annotate(e.text, e.location);
+                    break;
+                case OP_FLUSH:
+                    //No longer queued, but may be replayed from an older spill file; flushed along with the batch
+                    break;
+            }
+        } catch (Exception ex) {
+            LOG.error(e.logger.getName() + " could not write", ex);
+        }
+    }
+
+    private void drainSpillFile(List<CountDownLatch> barriers) {
+        if (!spillDrainFile.exists()) {
+            return;
+        }
+
+        LOG.debug("Replaying spilled logging queue");
+        String currentSession = getCurrentSession();
+        Map<String, FileLogger> rotatedTargets = new HashMap<>();
+        DataInputStream in = null;
+        int size = 0;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(spillDrainFile)));
+            while (true) {
+                int op;
+                String name;
+                String session;
+                long timestamp;
+                String text;
+                Location loc;
+                try {
+                    op = in.readByte();
+                } catch (EOFException eof) {
+                    break;
+                }
+                try {
+                    name = in.readUTF();
+                    session = in.readUTF();
+                    timestamp = in.readLong();
+                    text = in.readBoolean() ? in.readUTF() : null;
+                    loc = in.readBoolean() ? Locations.readFrom(in) : null;
+                } catch (EOFException eof) {
+                    //The process was killed while this entry was being spilled
+                    LOG.warn(SessionLogcatAppender.MARKER_INTERNAL, "Spilled logging queue ends with a partial entry, discarding it");
+                    break;
+                }
+
+                FileLogger logger = null;
+                if (!session.equals(currentSession)) {
+                    //Logged before the session rotated, so it belongs in that session's files
+                    String key = session + "/" + name;
+                    if (!rotatedTargets.containsKey(key)) {
+                        rotatedTargets.put(key, sessions.getFileLogger(name, session));
+                    }
+                    logger = rotatedTargets.get(key);
+                }
+
+                if (logger == null) {
+                    lock.lock();
+                    try {
+                        logger = targets.get(name);
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+
+                if (logger == null) {
+                    //Spilled by a previous process, look up the logger from the current configuration
+                    logger = FileLoggerFactory.getFileLogger(GoblobLocationManager.getInstance().getApplicationContext(), name);
+                    if (logger != null) {
+                        lock.lock();
+                        try {
+                            targets.put(name, logger);
+                        } finally {
+                            lock.unlock();
+                        }
+                    }
+                }
+
+                if (logger == null) {
+                    LOG.warn(SessionLogcatAppender.MARKER_INTERNAL, "No " + name + " logger for spilled entry, discarding");
+                    continue;
+                }
+
+                batch[size++].set(op, logger, loc, text, timestamp, null);
+                if (size == MAX_BATCH) {
+                    dispatch(size);
+                    size = 0;
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("Could not replay spilled logging queue", e);
+        } finally {
+            //Whatever was read before the end or an error is still written
+            dispatch(size);
+            for (FileLogger logger : rotatedTargets.values()) {
+                if (logger != null) {
+                    try {
+                        logger.close();
+                    } catch (Exception ex) {
+                        LOG.error(logger.getName() + " could not close", ex);
+                    }
+                }
+            }
+
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    LOG.error("Could not close spill file", e);
+                }
+            }
+            if (!spillDrainFile.delete()) {
+                LOG.warn(SessionLogcatAppender.MARKER_INTERNAL, "Could not delete " + spillDrainFile.getPath());
+            }
+        }
+    }
+
+    private String getCurrentSession() {
+        String session = sessions.getCurrentSession();
+        return session == null ? "" : session;
+    }
+
+    private void closeTargets() {
+        List<FileLogger> loggers;
+        lock.lock();
+        try {
+            loggers = new ArrayList<>(targets.values());
+        } finally {
+            lock.unlock();
+        }
+
+        for (FileLogger logger : loggers) {
+            try {
+                logger.close();
+            } catch (Exception ex) {
+                LOG.error(logger.getName() + " could not close", ex);
+            }
+        }
+    }
+
+    private static boolean isBarrier(int op) {
+        return op == OP_BARRIER || op == OP_CLOSE;
+    }
+
+    private static boolean containsInstance(List<FileLogger> loggers, FileLogger logger) {
+        for (FileLogger l : loggers) {
+            if (l == logger) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Points and annotations collected in order, to be queued together with {@link #write(Batch)}
+     */
+    public static class Batch {
+        private final List<Entry> entries = new ArrayList<>();
+
+        public void write(FileLogger logger, Location loc, boolean addNewTrackSegment) {
+            add(addNewTrackSegment ? OP_WRITE_NEW_SEGMENT : OP_WRITE, logger, loc, null);
+        }
+
+        public void annotate(FileLogger logger, String description, Location loc) {
+            add(OP_ANNOTATE, logger, loc, description);
+        }
+
+        public int size() {
+            return entries.size();
+        }
+
+        public boolean isEmpty() {
+            return entries.isEmpty();
+        }
+
+        private void add(int op, FileLogger logger, Location loc, String text) {
+            Entry e = new Entry();
+            e.set(op, logger, loc, text, 0, null);
+            entries.add(e);
+        }
+    }
+
+    /**
+     * Ring buffer slot. Slots are preallocated and swapped with the drain batch, never reallocated.
+     */
+    private static class Entry {
+        int op;
+        FileLogger logger;
+        Location location;
+        String text;
+        long timestamp;
+        CountDownLatch barrier;
+        boolean done;
+
+        void set(int op, FileLogger logger, Location location, String text, long timestamp, CountDownLatch barrier) {
+            this.op = op;
+            this.logger = logger;
+            this.location = location;
+            this.text = text;
+            this.timestamp = timestamp;
+            this.barrier = barrier;
+            this.done = false;
+        }
+
+        void clear() {
+            set(0, null, null, null, 0, null);
+        }
+    }
+}
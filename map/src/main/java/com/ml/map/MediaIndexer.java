@@ -0,0 +1,196 @@
+package com.ml.map;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces media store scan requests for log files.
+ *
+ * {@link #request(File, String)} scans a file straight away if it has not been scanned for at least the
+ * configured interval, otherwise it remembers the request and scans once when the interval is up, however
+ * many more requests arrive in between. {@link #indexNow(File, String)} is for when a file is finished, on
+ * rotation or when logging stops.
+ *
+ * The media scanner, clock and scheduler are passed in, so this class has no Android dependencies and can be
+ * tested on the JVM.
+ */
+public class MediaIndexer {
+
+    /**
+     * Adds a file to the media store
+     */
+    public interface Scanner {
+        void scanFile(String path, String mimeType);
+    }
+
+    public interface Clock {
+        long elapsedMillis();
+    }
+
+    /**
+     * Runs {@link MediaIndexer#runDue()} after a delay
+     */
+    public interface Scheduler {
+        void schedule(Runnable task, long delayMillis);
+    }
+
+    private static MediaIndexer instance = null;
+
+    private final Scanner scanner;
+    private final Clock clock;
+    private final Scheduler scheduler;
+    private final long intervalMillis;
+
+    private final Map<String, String> pending = new LinkedHashMap<>();
+    private final Map<String, Long> lastScanned = new LinkedHashMap<>();
+    private boolean scheduled;
+    private long scanCount;
+
+    MediaIndexer(Scanner scanner, Clock clock, Scheduler scheduler, long intervalMillis) {
+        this.scanner = scanner;
+        this.clock = clock;
+        this.scheduler = scheduler;
+        this.intervalMillis = intervalMillis;
+    }
+
+    public static synchronized MediaIndexer getInstance() {
+        if (instance == null) {
+            final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "goblob-media-indexer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+            instance = new MediaIndexer(Files.getMediaScanner(),
+                    new Clock() {
+                        @Override
+                        public long elapsedMillis() {
+                            return System.nanoTime() / 1000000L;
+                        }
+                    },
+                    new Scheduler() {
+                        @Override
+                        public void schedule(Runnable task, long delayMillis) {
+                            executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+                        }
+                    },
+                    PreferenceHelper.getInstance().getMediaScanInterval() * 1000L);
+        }
+        return instance;
+    }
+
+    /**
+     * Asks for the file to be scanned, at most once per interval
+     */
+    public void request(File file, String mimeType) {
+        String path = file.getPath();
+        boolean scanNow = false;
+        long delay = 0;
+
+        synchronized (this) {
+            Long last = lastScanned.get(path);
+            long now = clock.elapsedMillis();
+            if (last == null || now - last >= intervalMillis) {
+                pending.remove(path);
+                lastScanned.put(path, now);
+                scanNow = true;
+            } else {
+                pending.put(path, mimeType);
+                if (!scheduled) {
+                    scheduled = true;
+                    delay = last + intervalMillis - now;
+                }
+            }
+        }
+
+        if (scanNow) {
+            scan(path, mimeType);
+        } else if (delay > 0) {
+            scheduleRunDue(delay);
+        }
+    }
+
+    /**
+     * Scans the file now, replacing any request that is waiting for its interval
+     */
+    public void indexNow(File file, String mimeType) {
+        String path = file.getPath();
+        synchronized (this) {
+            pending.remove(path);
+            //Finished with, so no reason to keep its timestamp around
+            lastScanned.remove(path);
+        }
+        scan(path, mimeType);
+    }
+
+    /**
+     * Scans every file whose interval is up
+     *
+     * @return how long until the next waiting request is due, or -1 if nothing is waiting
+     */
+    long runDue() {
+        List<String[]> due = new ArrayList<>();
+        long next = -1;
+
+        synchronized (this) {
+            long now = clock.elapsedMillis();
+            Iterator<Map.Entry<String, String>> it = pending.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, String> entry = it.next();
+                Long last = lastScanned.get(entry.getKey());
+                long dueAt = last == null ? now : last + intervalMillis;
+                if (dueAt <= now) {
+                    due.add(new String[]{entry.getKey(), entry.getValue()});
+                    lastScanned.put(entry.getKey(), now);
+                    it.remove();
+                } else if (next < 0 || dueAt - now < next) {
+                    next = dueAt - now;
+                }
+            }
+            scheduled = next >= 0;
+        }
+
+        for (String[] file : due) {
+            scan(file[0], file[1]);
+        }
+        return next;
+    }
+
+    private void scheduleRunDue(long delayMillis) {
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                long next = runDue();
+                if (next >= 0) {
+                    scheduleRunDue(next);
+                }
+            }
+        }, delayMillis);
+    }
+
+    private void scan(String path, String mimeType) {
+        synchronized (this) {
+            scanCount++;
+        }
+        scanner.scanFile(path, mimeType);
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    public synchronized long getScanCount() {
+        return scanCount;
+    }
+}
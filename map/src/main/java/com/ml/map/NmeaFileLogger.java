@@ -1,75 +1,205 @@
 package com.ml.map;
 
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
-
-public class NmeaFileLogger {
+import android.location.Location;
 
-    protected final static Object lock = new Object();
-    String fileName;
-    private final static ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
-            new LinkedBlockingQueue<Runnable>(10), new RejectionHandler());
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-    private PreferenceHelper preferenceHelper = PreferenceHelper.getInstance();
-    private GoblobLocationManager goblobLocationManager = GoblobLocationManager.getInstance();
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Long-lived sink for raw NMEA sentences; the service keeps a single instance.
+ *
+ * Sentences are copied into a direct buffer on the listener thread. Once enough have built up, the
+ * {@link LoggingPipeline} thread is asked to flush, which swaps in a second buffer and appends the full one to
+ * the current .nmea file in a single write. If the buffer fills up because the file can't keep up, sentences are
+ * dropped and counted rather than blocking the GPS callbacks.
+ */
+public class NmeaFileLogger implements FileLogger {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NmeaFileLogger.class);
+
+    static final String NAME = "NMEA";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int FLUSH_THRESHOLD = 8 * 1024;
+    private static final long FLUSH_INTERVAL_MILLIS = 5000;
+
+    private final Object bufferLock = new Object();
+    private ByteBuffer filling = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private ByteBuffer draining = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private int fillingCount;
+    private long firstPendingMillis;
+    private boolean flushRequested;
+    private long dropped;
+
+    private final LoggingPipeline pipeline;
+    private final File fixedFile;
+    private File currentFile;
+    private FileChannel channel;
+
+    public NmeaFileLogger() {
+        this(LoggingPipeline.getInstance(), null);
+    }
 
-    public NmeaFileLogger(String fileName) {
-        this.fileName = fileName;
+    /**
+     * @param fixedFile file to append to instead of the session's .nmea file, or null for the session's file
+     */
+    NmeaFileLogger(LoggingPipeline pipeline, File fixedFile) {
+        this.pipeline = pipeline;
+        this.fixedFile = fixedFile;
     }
 
-    public void write(long timestamp, String nmeaSentence)  {
+    public void write(long timestamp, String nmeaSentence) {
+        int length = nmeaSentence.length();
+        boolean flush = false;
+
+        synchronized (bufferLock) {
+            if (filling.remaining() < length + 1) {
+                dropped++;
+                if (dropped == 1 || dropped % 100 == 0) {
+                    LOG.warn(SessionLogcatAppender.MARKER_INTERNAL, "NMEA buffer full, sentences dropped so far: " + dropped);
+                }
+            } else {
+                if (fillingCount == 0) {
+                    firstPendingMillis = timestamp;
+                }
+                for (int i = 0; i < length; i++) {
+                    filling.put((byte) nmeaSentence.charAt(i));
+                }
+                filling.put((byte) '\n');
+                fillingCount++;
+            }
 
-        File gpxFolder = new File(preferenceHelper.getGoblobFolder());
-        if (!gpxFolder.exists()) {
-            gpxFolder.mkdirs();
+            if (!flushRequested && (filling.position() >= FLUSH_THRESHOLD
+                    || timestamp - firstPendingMillis >= FLUSH_INTERVAL_MILLIS)) {
+                flushRequested = true;
+                flush = true;
+            }
         }
 
-        File nmeaFile = new File(gpxFolder.getPath(), Strings.getFormattedFileName() + ".nmea");
+        if (flush) {
+            requestFlush();
+        }
+    }
 
-        if (!nmeaFile.exists()) {
-            try {
-                nmeaFile.createNewFile();
-            } catch (IOException e) {
+    /**
+     * Has the pipeline thread write out whatever is buffered. Doesn't block.
+     */
+    public void requestFlush() {
+        pipeline.requestFlush(this);
+    }
 
-            }
+    /**
+     * Number of sentences that were not logged because the buffer was full or the file could not be written
+     */
+    public long getDroppedCount() {
+        synchronized (bufferLock) {
+            return dropped;
         }
+    }
 
-        NmeaWriteHandler writeHandler = new NmeaWriteHandler(nmeaFile, nmeaSentence);
-        EXECUTOR.execute(writeHandler);
+    @Override
+    public void write(Location loc) {
+        //NMEA files only contain the raw sentences, see write(long, String)
     }
-}
 
-class NmeaWriteHandler implements Runnable {
+    @Override
+    public void annotate(String description, Location loc) {
+        //NMEA files only contain the raw sentences
+    }
 
-    File gpxFile;
-    String nmeaSentence;
+    /**
+     * Appends the buffered sentences to the current file. Only called from the pipeline thread.
+     */
+    @Override
+    public void flush() {
+        int count;
+        synchronized (bufferLock) {
+            ByteBuffer full = filling;
+            filling = draining;
+            draining = full;
+            count = fillingCount;
+            fillingCount = 0;
+            flushRequested = false;
+        }
 
-    NmeaWriteHandler(File gpxFile, String nmeaSentence) {
-        this.gpxFile = gpxFile;
-        this.nmeaSentence = nmeaSentence;
+        draining.flip();
+        try {
+            if (!draining.hasRemaining()) {
+                return;
+            }
+
+            FileChannel out = getChannel();
+            while (draining.hasRemaining()) {
+                out.write(draining);
+            }
+            if (fixedFile == null) {
+                Files.addToMediaDatabase(currentFile, "text/plain");
+            }
+        } catch (IOException e) {
+            synchronized (bufferLock) {
+                dropped += count;
+            }
+            LOG.error("Could not write " + count + " NMEA sentences", e);
+            closeChannel();
+        } finally {
+            draining.clear();
+        }
     }
 
-    @Override
-    public void run() {
+    private FileChannel getChannel() throws IOException {
+        File nmeaFile = fixedFile != null ? fixedFile
+                : new File(PreferenceHelper.getInstance().getGoblobFolder(), Strings.getFormattedFileName() + ".nmea");
+        File folder = nmeaFile.getParentFile();
 
-        synchronized (NmeaFileLogger.lock) {
+        if (channel != null && nmeaFile.equals(currentFile) && nmeaFile.exists()) {
+            return channel;
+        }
 
-            try {
-                BufferedWriter writer = new BufferedWriter(new FileWriter(gpxFile, true));
-                writer.write(nmeaSentence);
-                writer.newLine();
-                writer.close();
-                Files.addToMediaDatabase(gpxFile, "text/plain");
+        closeChannel();
 
-            } catch (IOException e) {
+        if (folder != null && !folder.exists()) {
+            folder.mkdirs();
+        }
+        boolean created = !nmeaFile.exists();
+        channel = new FileOutputStream(nmeaFile, true).getChannel();
+        currentFile = nmeaFile;
+        if (created && fixedFile == null) {
+            Files.addToMediaDatabase(nmeaFile, "text/plain");
+        }
+        return channel;
+    }
 
-            }
+    private void closeChannel() {
+        if (channel == null) {
+            return;
+        }
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.error("Could not close " + currentFile.getName(), e);
         }
+        if (fixedFile == null) {
+            MediaIndexer.getInstance().indexNow(currentFile, "text/plain");
+        }
+        channel = null;
+        currentFile = null;
+    }
 
+    @Override
+    public void close() {
+        flush();
+        closeChannel();
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
     }
 }
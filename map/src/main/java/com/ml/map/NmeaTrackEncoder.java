@@ -0,0 +1,74 @@
+package com.ml.map;
+
+import android.location.Location;
+
+import com.ml.map.track.TrackEncoder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Passes the raw sentences logged by {@link NmeaFileLogger} through to an export. The stored track holds no
+ * NMEA, so the session's .nmea file is copied as is, whatever the time range.
+ */
+public class NmeaTrackEncoder implements TrackEncoder {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NmeaTrackEncoder.class);
+
+    private final File source;
+    private File file;
+
+    public NmeaTrackEncoder(File source) {
+        this.source = source;
+    }
+
+    @Override
+    public String getExtension() {
+        return ".nmea";
+    }
+
+    @Override
+    public void open(File file, long startTime) {
+        this.file = file;
+    }
+
+    @Override
+    public void write(Location loc, boolean newSegment) {
+    }
+
+    @Override
+    public void annotate(String description, Location loc) {
+    }
+
+    @Override
+    public void finish() throws IOException {
+        FileInputStream in = new FileInputStream(source);
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                FileChannel sourceChannel = in.getChannel();
+                long size = sourceChannel.size();
+                long position = 0;
+                while (position < size) {
+                    position += sourceChannel.transferTo(position, size - position, out.getChannel());
+                }
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        LOG.debug("Copied " + source.getName() + " to export");
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -5,6 +5,8 @@ import android.content.SharedPreferences;
 import android.location.LocationManager;
 import android.preference.PreferenceManager;
 
+import com.ml.map.filter.LocationFilterChain;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -435,6 +437,43 @@ public class PreferenceHelper {
         prefs.edit().putString(PreferenceNames.ABSOLUTE_TIMEOUT, String.valueOf(absoluteTimeout)).apply();
     }
 
+    /**
+     * Whether fixes are smoothed with a Kalman filter before they are logged
+     */
+    @ProfilePreference(name= PreferenceNames.SMOOTH_LOCATIONS)
+    public boolean shouldSmoothLocations() {
+        return prefs.getBoolean(PreferenceNames.SMOOTH_LOCATIONS, false);
+    }
+
+    /**
+     * How sharply the device is expected to accelerate, in m/s², when smoothing fixes. Lower smooths more.
+     */
+    @ProfilePreference(name= PreferenceNames.SMOOTHING_ACCELERATION)
+    public double getSmoothingAcceleration() {
+        try {
+            return Double.parseDouble(prefs.getString(PreferenceNames.SMOOTHING_ACCELERATION, "2"));
+        } catch (NumberFormatException e) {
+            return 2;
+        }
+    }
+
+    /**
+     * The filters fixes go through before they are logged, as a comma separated list of names in order.
+     * Filters left out of the list are skipped.
+     */
+    @ProfilePreference(name= PreferenceNames.LOCATION_FILTER_ORDER)
+    public String getLocationFilterOrder() {
+        return prefs.getString(PreferenceNames.LOCATION_FILTER_ORDER, LocationFilterChain.DEFAULT_ORDER);
+    }
+
+    /**
+     * How many fixes the location provider may collect before delivering them together, 1 for each fix as it comes
+     */
+    @ProfilePreference(name= PreferenceNames.LOCATION_BATCH_SIZE)
+    public int getLocationBatchSize() {
+        return Strings.toInt(prefs.getString(PreferenceNames.LOCATION_BATCH_SIZE, "5"), 5);
+    }
+
     /**
      * Whether to start logging on application launch
      */
@@ -547,6 +586,31 @@ public class PreferenceHelper {
         return prefs.getBoolean(PreferenceNames.LOG_TO_GEOJSON, false);
     }
 
+    /**
+     * Whether to log to a compact binary track file, from which the other formats can be exported
+     */
+    @ProfilePreference(name= PreferenceNames.LOG_TO_TRACK)
+    public boolean shouldLogToBinaryTrack() {
+        return prefs.getBoolean(PreferenceNames.LOG_TO_TRACK, true);
+    }
+
+    /**
+     * Formats to export from the binary track file before sending a session, if they weren't logged,
+     * see {@link TrackExportFactory}
+     */
+    @ProfilePreference(name= PreferenceNames.EXPORT_FORMATS)
+    public Set<String> getExportFormats() {
+        return prefs.getStringSet(PreferenceNames.EXPORT_FORMATS, new HashSet<String>());
+    }
+
+    /**
+     * Whether GeoJSON files hold one LineString feature per track segment instead of one Point feature per fix
+     */
+    @ProfilePreference(name= PreferenceNames.GEOJSON_LINESTRING)
+    public boolean shouldLogGeoJSONAsLineString() {
+        return prefs.getBoolean(PreferenceNames.GEOJSON_LINESTRING, false);
+    }
+
 
     /**
      * Whether to log to NMEA file
@@ -584,6 +648,22 @@ public class PreferenceHelper {
         return prefs.getString(PreferenceNames.LOG_TO_URL_HEADERS,"");
     }
 
+    /**
+     * How many points to send to the custom URL per request
+     */
+    @ProfilePreference(name=PreferenceNames.LOG_TO_URL_BATCH_SIZE)
+    public int getCustomLoggingBatchSize() {
+        return Strings.toInt(prefs.getString(PreferenceNames.LOG_TO_URL_BATCH_SIZE, "50"), 50);
+    }
+
+    /**
+     * Most seconds a point waits for a full batch before it is sent to the custom URL anyway
+     */
+    @ProfilePreference(name=PreferenceNames.LOG_TO_URL_MAX_WAIT)
+    public int getCustomLoggingMaxWait() {
+        return Strings.toInt(prefs.getString(PreferenceNames.LOG_TO_URL_MAX_WAIT, "120"), 120);
+    }
+
     /**
      * The custom URL to log to.  Relevant only if {@link #shouldLogToCustomUrl()} returns true.
      */
@@ -608,6 +688,53 @@ public class PreferenceHelper {
     }
 
 
+    /**
+     * How many pending points and annotations the logging pipeline holds before applying backpressure
+     */
+    @ProfilePreference(name= PreferenceNames.LOGGING_QUEUE_SIZE)
+    public int getLoggingQueueSize() {
+        return Strings.toInt(prefs.getString(PreferenceNames.LOGGING_QUEUE_SIZE, "256"), 256);
+    }
+
+    /**
+     * What the logging pipeline does once its queue is full - BLOCK, COALESCE or SPILL to disk
+     */
+    @ProfilePreference(name= PreferenceNames.LOGGING_BACKPRESSURE)
+    public LoggingPipeline.Backpressure getLoggingBackpressure() {
+        String chosenValue = prefs.getString(PreferenceNames.LOGGING_BACKPRESSURE, "SPILL");
+        try {
+            return LoggingPipeline.Backpressure.valueOf(chosenValue);
+        } catch (IllegalArgumentException e) {
+            return LoggingPipeline.Backpressure.SPILL;
+        }
+    }
+
+    /**
+     * How many points session log files may write before they are forced to storage, 0 to not sync by count
+     */
+    @ProfilePreference(name= PreferenceNames.FILE_SYNC_POINTS)
+    public int getFileSyncPoints() {
+        return Strings.toInt(prefs.getString(PreferenceNames.FILE_SYNC_POINTS, "0"), 0);
+    }
+
+    /**
+     * How many seconds session log files may go before they are forced to storage, 0 to not sync by time.
+     * Files are always synced when logging stops.
+     */
+    @ProfilePreference(name= PreferenceNames.FILE_SYNC_SECONDS)
+    public int getFileSyncSeconds() {
+        return Strings.toInt(prefs.getString(PreferenceNames.FILE_SYNC_SECONDS, "60"), 60);
+    }
+
+    /**
+     * Minimum number of seconds between media store scans of the same log file while it is being written
+     */
+    @ProfilePreference(name= PreferenceNames.MEDIA_SCAN_INTERVAL)
+    public int getMediaScanInterval() {
+        return Strings.toInt(prefs.getString(PreferenceNames.MEDIA_SCAN_INTERVAL, "60"), 60);
+    }
+
+
     /**
      * Gets a list of location providers that the app will listen to
      */
@@ -770,6 +897,14 @@ public class PreferenceHelper {
         return prefs.getBoolean(PreferenceNames.AUTOSEND_ZIP, true);
     }
 
+    /**
+     * Whether auto-send only ships the points logged since the last upload, see {@link IncrementalSender}
+     */
+    @ProfilePreference(name= PreferenceNames.AUTOSEND_INCREMENTAL)
+    public boolean shouldAutoSendIncrementally() {
+        return prefs.getBoolean(PreferenceNames.AUTOSEND_INCREMENTAL, false);
+    }
+
 
     /**
      * Whether to auto send to OpenGTS Server
@@ -833,6 +968,32 @@ public class PreferenceHelper {
         return prefs.getString(PreferenceNames.OPENGTS_ACCOUNT_NAME, "");
     }
 
+    /**
+     * How many points to send to OpenGTS per batch of datagrams over UDP, or per request over HTTP when
+     * {@link #shouldPostOpenGTSBatches()} is on
+     */
+    @ProfilePreference(name= PreferenceNames.OPENGTS_BATCH_SIZE)
+    public int getOpenGTSBatchSize() {
+        return Strings.toInt(prefs.getString(PreferenceNames.OPENGTS_BATCH_SIZE, "20"), 20);
+    }
+
+    /**
+     * Whether to POST several points per HTTP request to OpenGTS. Off by default, as the stock gprmc servlet only
+     * takes one point per GET.
+     */
+    @ProfilePreference(name= PreferenceNames.OPENGTS_POST_BATCHES)
+    public boolean shouldPostOpenGTSBatches() {
+        return prefs.getBoolean(PreferenceNames.OPENGTS_POST_BATCHES, false);
+    }
+
+    /**
+     * Most seconds a point waits for a full batch before it is sent to OpenGTS anyway
+     */
+    @ProfilePreference(name= PreferenceNames.OPENGTS_MAX_WAIT)
+    public int getOpenGTSMaxWait() {
+        return Strings.toInt(prefs.getString(PreferenceNames.OPENGTS_MAX_WAIT, "120"), 120);
+    }
+
 
 
 
@@ -7,6 +7,10 @@ public  class PreferenceNames {
     public static final String KEEP_GPS_ON_BETWEEN_FIXES = "keep_fix";
     public static final String LOGGING_RETRY_TIME = "retry_time";
     public static final String ABSOLUTE_TIMEOUT = "absolute_timeout";
+    public static final String SMOOTH_LOCATIONS = "smooth_locations";
+    public static final String SMOOTHING_ACCELERATION = "smoothing_acceleration";
+    public static final String LOCATION_FILTER_ORDER = "location_filter_order";
+    public static final String LOCATION_BATCH_SIZE = "location_batch_size";
     public static final String START_LOGGING_ON_APP_LAUNCH = "startonapplaunch";
     public static final String START_LOGGING_ON_BOOTUP = "startonbootup";
     public static final String LOG_TO_KML = "log_kml";
@@ -14,13 +18,23 @@ public  class PreferenceNames {
     public static final String LOG_AS_GPX_11 = "log_gpx_11";
     public static final String LOG_TO_CSV = "log_plain_text";
     public static final String LOG_TO_GEOJSON = "log_geojson";
+    public static final String GEOJSON_LINESTRING = "log_geojson_linestring";
     public static final String LOG_TO_NMEA = "log_nmea";
+    public static final String LOG_TO_TRACK = "log_track";
+    public static final String EXPORT_FORMATS = "export_formats";
     public static final String LOG_TO_URL = "log_customurl_enabled";
     public static final String LOG_TO_URL_PATH = "log_customurl_url";
     public static final String LOG_TO_URL_BODY = "log_customurl_body";
     public static final String LOG_TO_URL_HEADERS = "log_customurl_headers";
     public static final String LOG_TO_URL_METHOD = "log_customurl_method";
+    public static final String LOG_TO_URL_BATCH_SIZE = "log_customurl_batch_size";
+    public static final String LOG_TO_URL_MAX_WAIT = "log_customurl_max_wait";
     public static final String LOG_TO_OPENGTS = "log_opengts";
+    public static final String LOGGING_QUEUE_SIZE = "logging_queue_size";
+    public static final String LOGGING_BACKPRESSURE = "logging_backpressure";
+    public static final String FILE_SYNC_POINTS = "file_sync_points";
+    public static final String FILE_SYNC_SECONDS = "file_sync_seconds";
+    public static final String MEDIA_SCAN_INTERVAL = "media_scan_interval";
     public static final String LOCATION_LISTENERS = "listeners";
     public static final String NEW_FILE_CREATION_MODE = "new_file_creation";
     public static final String CUSTOM_FILE_NAME = "new_file_custom_name";
@@ -31,6 +45,7 @@ public  class PreferenceNames {
     public static final String AUTOSEND_ON_STOP = "autosend_frequency_whenstoppressed";
     public static final String AUTOSEND_EMAIL_ENABLED = "autoemail_enabled";
     public static final String AUTOSEND_ZIP = "autosend_sendzip";
+    public static final String AUTOSEND_INCREMENTAL = "autosend_incremental";
     public static final String AUTOSEND_OPENGTS_ENABLED = "autoopengts_enabled";
     public static final String EMAIL_SMTP_SERVER = "smtp_server";
     public static final String EMAIL_SMTP_PORT = "smtp_port";
@@ -47,6 +62,9 @@ public  class PreferenceNames {
     public static final String OPENGTS_SERVER_PATH = "autoopengts_server_path";
     public static final String OPENGTS_DEVICE_ID = "opengts_device_id";
     public static final String OPENGTS_ACCOUNT_NAME = "opengts_accountname";
+    public static final String OPENGTS_BATCH_SIZE = "opengts_batch_size";
+    public static final String OPENGTS_POST_BATCHES = "opengts_post_batches";
+    public static final String OPENGTS_MAX_WAIT = "opengts_max_wait";
     public static final String HIDE_NOTIFICATION_BUTTONS = "hide_notification_buttons";
     public static final String HIDE_NOTIFICATION_FROM_STATUS_BAR = "hide_notification_from_status_bar";
     public static final String DISPLAY_IMPERIAL = "useImperial";
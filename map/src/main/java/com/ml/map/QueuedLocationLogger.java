@@ -0,0 +1,194 @@
+package com.ml.map;
+
+import android.location.Location;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Base for loggers that upload points to a server in batches rather than one request per fix.
+ *
+ * Points go into a {@link LocationQueue} on disk as they are logged. Once a batch's worth is waiting, or the
+ * oldest waiting point has waited long enough, a background thread sends everything queued, a batch at a time,
+ * while {@link Connectivity} allows it. Points are only removed from the queue once {@link #send(List)} returns,
+ * so nothing is lost to a failed request or to the process being killed. After a failure the queue is left
+ * alone for a while, twice as long after each failure in a row.
+ */
+public abstract class QueuedLocationLogger implements FileLogger {
+
+    private static final Logger LOG = LoggerFactory.getLogger(QueuedLocationLogger.class);
+
+    public interface Connectivity {
+        /**
+         * Whether uploading is allowed right now, e.g. only on wifi if the user asked for that
+         */
+        boolean canSend();
+    }
+
+    private static final long MIN_RETRY_DELAY_MILLIS = 15 * 1000L;
+    private static final long MAX_RETRY_DELAY_MILLIS = 15 * 60 * 1000L;
+
+    private static final ExecutorService uploader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "goblob-location-upload");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final LocationQueue queue;
+    private final Connectivity connectivity;
+    private final int batchSize;
+    private final long maxWaitMillis;
+
+    /**
+     * @param queueFile where points wait to be sent
+     * @param batchSize most points per {@link #send(List)}, and how many to wait for before sending
+     * @param maxWaitMillis longest a point waits for a full batch
+     */
+    protected QueuedLocationLogger(File queueFile, Connectivity connectivity, int batchSize, long maxWaitMillis) {
+        this.queue = LocationQueue.forFile(queueFile);
+        this.connectivity = connectivity;
+        this.batchSize = Math.max(1, batchSize);
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    /**
+     * Sends a batch of points, in the order they were logged. Called on the upload thread.
+     *
+     * @throws IOException if the server did not take the points, which are then sent again later
+     */
+    protected abstract void send(List<Location> locations) throws IOException;
+
+    @Override
+    public void write(Location loc) throws Exception {
+        queue.add(loc);
+        synchronized (queue) {
+            if (queue.waitingSince < 0) {
+                queue.waitingSince = now();
+            }
+        }
+    }
+
+    @Override
+    public void annotate(String description, Location loc) throws Exception {
+        //Annotations aren't uploaded
+    }
+
+    @Override
+    public void flush() throws Exception {
+        queue.flush();
+        boolean due;
+        synchronized (queue) {
+            int waiting = queue.size();
+            if (waiting == 0) {
+                queue.waitingSince = -1;
+                return;
+            }
+            if (queue.waitingSince < 0) {
+                //Points left over from an earlier session
+                queue.waitingSince = now();
+            }
+            due = waiting >= batchSize || now() - queue.waitingSince >= maxWaitMillis;
+        }
+        if (due) {
+            sendQueued();
+        }
+    }
+
+    @Override
+    public void close() throws Exception {
+        queue.close();
+        //Best effort, anything left is sent during the next session
+        if (queue.size() > 0) {
+            sendQueued();
+        }
+    }
+
+    /**
+     * Sends everything queued on the upload thread, unless a send is already running or backing off
+     */
+    public void sendQueued() {
+        synchronized (queue) {
+            if (now() < queue.retryAt) {
+                return;
+            }
+        }
+        if (!queue.sending.compareAndSet(false, true)) {
+            return;
+        }
+
+        uploader.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    drain();
+                } finally {
+                    queue.sending.set(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Lets the next {@link #sendQueued()} go ahead even if the last send failed, e.g. when the network is back
+     */
+    public void clearRetryDelay() {
+        synchronized (queue) {
+            queue.retryDelay = 0;
+            queue.retryAt = 0;
+        }
+    }
+
+    public int getQueuedCount() {
+        return queue.size();
+    }
+
+    private void drain() {
+        int sent = 0;
+        try {
+            while (connectivity.canSend()) {
+                LocationQueue.Batch batch = queue.peek(batchSize);
+                if (batch.locations.isEmpty()) {
+                    break;
+                }
+                send(batch.locations);
+                queue.remove(batch);
+                sent += batch.locations.size();
+            }
+            synchronized (queue) {
+                queue.retryDelay = 0;
+                queue.retryAt = 0;
+                //Whatever arrived while sending starts its wait now
+                queue.waitingSince = queue.size() > 0 ? now() : -1;
+            }
+        } catch (IOException e) {
+            synchronized (queue) {
+                queue.retryDelay = queue.retryDelay == 0
+                        ? MIN_RETRY_DELAY_MILLIS
+                        : Math.min(queue.retryDelay * 2, MAX_RETRY_DELAY_MILLIS);
+                queue.retryAt = now() + queue.retryDelay;
+                LOG.warn(getName() + " could not send points, " + queue.size() + " waiting, retrying in "
+                        + queue.retryDelay / 1000 + "s", e);
+            }
+        } catch (Exception e) {
+            LOG.error(getName() + " could not send points", e);
+        }
+
+        if (sent > 0) {
+            LOG.debug(getName() + " sent " + sent + " points");
+        }
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000L;
+    }
+}
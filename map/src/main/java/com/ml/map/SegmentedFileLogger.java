@@ -0,0 +1,16 @@
+package com.ml.map;
+
+import android.location.Location;
+
+/**
+ * A {@link FileLogger} for a format with track segments. The same instance writes every point of the session,
+ * so whether a point starts a new segment is passed along with it rather than fixed when the logger is built.
+ */
+public interface SegmentedFileLogger extends FileLogger {
+
+    /**
+     * @param addNewTrackSegment whether this point starts a new track segment
+     */
+    void write(Location loc, boolean addNewTrackSegment) throws Exception;
+
+}
@@ -0,0 +1,50 @@
+package com.ml.map;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Date;
+
+/**
+ * Wakes the send queue when its next retry is due
+ */
+public class SendQueueReceiver extends BroadcastReceiver {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SendQueueReceiver.class);
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        try {
+            LOG.debug("Send queue alarm received");
+
+            //Senders are registered when the app starts, so there is nothing to send for until it has
+            if (GoblobLocationManager.getInstance().getApplicationContext() == null) {
+                LOG.debug("App not started, leaving the send queue for now");
+                return;
+            }
+            FileSenderFactory.getSendQueue().sendDueInBackground();
+        } catch (Exception ex) {
+            LOG.error("SendQueueReceiver", ex);
+        }
+    }
+
+    /**
+     * Sets the one alarm for the queue, replacing any earlier one
+     *
+     * @param time wall clock time, as kept by the queue
+     */
+    static void schedule(Context context, long time) {
+        Intent intent = new Intent(context, SendQueueReceiver.class);
+        PendingIntent sender = PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        //Not a wakeup alarm: a retry can wait until the device is awake anyway
+        am.set(AlarmManager.RTC, time, sender);
+        LOG.debug("Send queue alarm set for " + Strings.getIsoDateTime(new Date(time)));
+    }
+}
@@ -0,0 +1,149 @@
+package com.ml.map;
+
+import android.content.SharedPreferences;
+
+/**
+ * Typed, in-memory state of the current logging session, held by {@link GoblobLocationManager}.
+ *
+ * Reading and writing the fields is just a field access. The whole state is written to the shared preferences
+ * as one snapshot, under the same SESSION_ keys as before so that an existing session is restored after an
+ * upgrade.
+ */
+class SessionState {
+
+    private static final String PREFIX = "SESSION_";
+
+    volatile boolean singlePointMode;
+    volatile boolean towerEnabled;
+    volatile boolean gpsEnabled;
+    volatile boolean started;
+    volatile long startTimeStamp;
+    volatile boolean usingGps;
+    volatile String currentFileName = "";
+    volatile int visibleSatelliteCount;
+    volatile double totalTravelled;
+    volatile int numLegs;
+    volatile long latestTimeStamp;
+    volatile boolean addNewTrackSegment;
+    volatile float autoSendDelay;
+    volatile boolean boundToService;
+    volatile String description = "";
+    volatile boolean waitingForLocation;
+    volatile boolean annotationMarked;
+    volatile String currentFormattedFileName = "";
+    volatile long userStillSinceTimeStamp;
+    volatile long firstRetryTimeStamp;
+    volatile String latestDetectedActivity = "";
+    volatile int latestActivityConfidence = -1;
+    volatile int latestActivityType = -1;
+
+    void copyFrom(SessionState other) {
+        singlePointMode = other.singlePointMode;
+        towerEnabled = other.towerEnabled;
+        gpsEnabled = other.gpsEnabled;
+        started = other.started;
+        startTimeStamp = other.startTimeStamp;
+        usingGps = other.usingGps;
+        currentFileName = other.currentFileName;
+        visibleSatelliteCount = other.visibleSatelliteCount;
+        totalTravelled = other.totalTravelled;
+        numLegs = other.numLegs;
+        latestTimeStamp = other.latestTimeStamp;
+        addNewTrackSegment = other.addNewTrackSegment;
+        autoSendDelay = other.autoSendDelay;
+        boundToService = other.boundToService;
+        description = other.description;
+        waitingForLocation = other.waitingForLocation;
+        annotationMarked = other.annotationMarked;
+        currentFormattedFileName = other.currentFormattedFileName;
+        userStillSinceTimeStamp = other.userStillSinceTimeStamp;
+        firstRetryTimeStamp = other.firstRetryTimeStamp;
+        latestDetectedActivity = other.latestDetectedActivity;
+        latestActivityConfidence = other.latestActivityConfidence;
+        latestActivityType = other.latestActivityType;
+    }
+
+    /**
+     * Restores the state saved by {@link #save(SharedPreferences.Editor)}
+     */
+    void load(SharedPreferences prefs) {
+        singlePointMode = Boolean.valueOf(get(prefs, "isSinglePointMode", "false"));
+        towerEnabled = Boolean.valueOf(get(prefs, "towerEnabled", "false"));
+        gpsEnabled = Boolean.valueOf(get(prefs, "gpsEnabled", "false"));
+        started = Boolean.valueOf(get(prefs, "LOGGING_STARTED", "false"));
+        startTimeStamp = toLong(get(prefs, "startTimeStamp", "0"), 0);
+        usingGps = Boolean.valueOf(get(prefs, "isUsingGps", "false"));
+        currentFileName = get(prefs, "currentFileName", "");
+        visibleSatelliteCount = Strings.toInt(get(prefs, "satellites", "0"), 0);
+        totalTravelled = toDouble(get(prefs, "totalTravelled", "0"));
+        numLegs = Strings.toInt(get(prefs, "numLegs", "0"), 0);
+        latestTimeStamp = toLong(get(prefs, "latestTimeStamp", "0"), 0);
+        addNewTrackSegment = Boolean.valueOf(get(prefs, "addNewTrackSegment", "false"));
+        autoSendDelay = (float) toDouble(get(prefs, "autoSendDelay", "0"));
+        boundToService = Boolean.valueOf(get(prefs, "isBound", "false"));
+        description = get(prefs, "description", "");
+        waitingForLocation = Boolean.valueOf(get(prefs, "waitingForLocation", "false"));
+        annotationMarked = Boolean.valueOf(get(prefs, "annotationMarked", "false"));
+        currentFormattedFileName = get(prefs, "currentFormattedFileName", "");
+        userStillSinceTimeStamp = toLong(get(prefs, "userStillSinceTimeStamp", "0"), 0);
+        firstRetryTimeStamp = toLong(get(prefs, "firstRetryTimeStamp", "0"), 0);
+        latestDetectedActivity = get(prefs, "latestDetectedActivity", "");
+        latestActivityConfidence = Strings.toInt(get(prefs, "latestActivityConfidence", "-1"), -1);
+        latestActivityType = Strings.toInt(get(prefs, "latestActivityType", "-1"), -1);
+    }
+
+    /**
+     * Puts every field into the editor, to be committed as one batch
+     */
+    void save(SharedPreferences.Editor editor) {
+        put(editor, "isSinglePointMode", String.valueOf(singlePointMode));
+        put(editor, "towerEnabled", String.valueOf(towerEnabled));
+        put(editor, "gpsEnabled", String.valueOf(gpsEnabled));
+        put(editor, "LOGGING_STARTED", String.valueOf(started));
+        if (startTimeStamp != 0) {
+            put(editor, "startTimeStamp", String.valueOf(startTimeStamp));
+        }
+        put(editor, "isUsingGps", String.valueOf(usingGps));
+        put(editor, "currentFileName", currentFileName);
+        put(editor, "satellites", String.valueOf(visibleSatelliteCount));
+        put(editor, "totalTravelled", String.valueOf(totalTravelled));
+        put(editor, "numLegs", String.valueOf(numLegs));
+        put(editor, "latestTimeStamp", String.valueOf(latestTimeStamp));
+        put(editor, "addNewTrackSegment", String.valueOf(addNewTrackSegment));
+        put(editor, "autoSendDelay", String.valueOf(autoSendDelay));
+        put(editor, "isBound", String.valueOf(boundToService));
+        put(editor, "description", description);
+        put(editor, "waitingForLocation", String.valueOf(waitingForLocation));
+        put(editor, "annotationMarked", String.valueOf(annotationMarked));
+        put(editor, "currentFormattedFileName", currentFormattedFileName);
+        put(editor, "userStillSinceTimeStamp", String.valueOf(userStillSinceTimeStamp));
+        put(editor, "firstRetryTimeStamp", String.valueOf(firstRetryTimeStamp));
+        put(editor, "latestDetectedActivity", latestDetectedActivity);
+        put(editor, "latestActivityConfidence", String.valueOf(latestActivityConfidence));
+        put(editor, "latestActivityType", String.valueOf(latestActivityType));
+    }
+
+    private static String get(SharedPreferences prefs, String key, String defaultValue) {
+        return prefs.getString(PREFIX + key, defaultValue);
+    }
+
+    private static void put(SharedPreferences.Editor editor, String key, String value) {
+        editor.putString(PREFIX + key, value);
+    }
+
+    private static long toLong(String value, long defaultValue) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static double toDouble(String value) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -245,6 +245,16 @@ public class Strings {
         return currentFileName;
     }
 
+    /**
+     * The name of a session logged to one file a day, or to a new file each time logging starts
+     *
+     * @param time when the session starts, the recorded time while replaying
+     */
+    public static String getDatedFileName(boolean oncePerDay, long time) {
+        // 20100114.gpx or 20100114183329.gpx
+        return new SimpleDateFormat(oncePerDay ? "yyyyMMdd" : "yyyyMMddHHmmss").format(new Date(time));
+    }
+
     public static String getFormattedCustomFileName(String baseName, Calendar calendar, PreferenceHelper ph){
 
         String finalFileName = baseName;
@@ -0,0 +1,186 @@
+package com.ml.map;
+
+import androidx.annotation.Nullable;
+
+import com.ml.map.csv.CSVTrackEncoder;
+import com.ml.map.geojson.GeoJSONTrackEncoder;
+import com.ml.map.gpx.GpxTrackEncoder;
+import com.ml.map.kml.KmlTrackEncoder;
+import com.ml.map.track.TrackEncoder;
+import com.ml.map.track.TrackExporter;
+import com.ml.map.track.TrackFileLogger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Generates the other formats of a session from its binary track file, so a session can be logged to the track
+ * alone and exported to GPX, KML, CSV or GeoJSON when it is sent.
+ */
+public class TrackExportFactory {
+    private static final Logger LOG = LoggerFactory.getLogger(TrackExportFactory.class);
+
+    public static final String GPX = "gpx";
+    public static final String KML = "kml";
+    public static final String CSV = "csv";
+    public static final String GEOJSON = "geojson";
+    public static final String NMEA = "nmea";
+
+    /**
+     * @param format one of the format names above
+     * @param trackFile the track being exported, used to find the matching .nmea file
+     * @return null if the format is unknown
+     */
+    public static TrackEncoder getEncoder(String format, File trackFile) {
+        PreferenceHelper preferenceHelper = PreferenceHelper.getInstance();
+
+        if (GPX.equals(format)) {
+            return new GpxTrackEncoder(preferenceHelper.shouldLogAsGpx11());
+        }
+        if (KML.equals(format)) {
+            return new KmlTrackEncoder();
+        }
+        if (CSV.equals(format)) {
+            return new CSVTrackEncoder();
+        }
+        if (GEOJSON.equals(format)) {
+            return new GeoJSONTrackEncoder(preferenceHelper.shouldLogGeoJSONAsLineString());
+        }
+        if (NMEA.equals(format)) {
+            return new NmeaTrackEncoder(new File(getBaseName(trackFile) + ".nmea"));
+        }
+        return null;
+    }
+
+    /**
+     * Exports the given track to the given formats in one pass, into the given folder
+     *
+     * @return the files written
+     */
+    public static List<File> export(File trackFile, File folder, Collection<String> formats) throws IOException {
+        return export(trackFile, folder, formats, null);
+    }
+
+    /**
+     * @param cancelled stops the export once set, may be null
+     */
+    public static List<File> export(File trackFile, File folder, Collection<String> formats,
+                                    @Nullable AtomicBoolean cancelled) throws IOException {
+        String name = new File(getBaseName(trackFile)).getName();
+        TrackExporter exporter = new TrackExporter(trackFile).setCancelSignal(cancelled);
+        for (String format : formats) {
+            TrackEncoder encoder = getEncoder(format, trackFile);
+            if (encoder == null) {
+                LOG.warn("Unknown export format " + format);
+                continue;
+            }
+            exporter.add(encoder, new File(folder, name + encoder.getExtension()));
+        }
+        exporter.export();
+        return exporter.getOutputs();
+    }
+
+    /**
+     * Exports the formats chosen in {@link PreferenceHelper#getExportFormats()} that the session in the given folder
+     * doesn't have an up to date file for. Does nothing if the session has no track file.
+     *
+     * @return the files written
+     */
+    public static List<File> exportMissingFormats(File folder, String fileName) {
+        return exportMissingFormats(folder, fileName, PreferenceHelper.getInstance().getExportFormats(), null);
+    }
+
+    /**
+     * Exports those of the given formats that the session in the given folder doesn't have a file for yet, or
+     * whose earlier export the track file has grown past. Files that were logged rather than exported are left
+     * alone, since a logger may still be writing to them.
+     *
+     * @param cancelled stops the export once set, may be null
+     * @return the files written
+     */
+    public static List<File> exportMissingFormats(File folder, String fileName, Collection<String> formats,
+                                                  @Nullable AtomicBoolean cancelled) {
+        File trackFile = new File(folder, fileName + TrackFileLogger.EXTENSION);
+        if (!trackFile.exists()) {
+            return new ArrayList<>();
+        }
+
+        //Taken before reading, so points logged during the export make it stale
+        String trackVersion = trackFile.length() + "," + trackFile.lastModified();
+        File recordFile = getExportRecordFile(folder, fileName);
+        Properties record = loadExportRecord(recordFile);
+
+        List<String> missing = new ArrayList<>();
+        for (String format : formats) {
+            TrackEncoder encoder = getEncoder(format, trackFile);
+            //NMEA can only be passed through, so there is nothing to export next to the original
+            if (encoder == null || NMEA.equals(format)) {
+                continue;
+            }
+            String exportedFrom = record.getProperty(format);
+            boolean exists = new File(folder, fileName + encoder.getExtension()).exists();
+            if (!exists || (exportedFrom != null && !exportedFrom.equals(trackVersion))) {
+                missing.add(format);
+            }
+        }
+
+        if (missing.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        try {
+            List<File> exported = export(trackFile, folder, missing, cancelled);
+            for (String format : missing) {
+                record.setProperty(format, trackVersion);
+            }
+            saveExportRecord(record, recordFile);
+            return exported;
+        } catch (InterruptedIOException e) {
+            LOG.info(e.getMessage());
+            return new ArrayList<>();
+        } catch (IOException e) {
+            LOG.error("Could not export " + trackFile.getName() + " to " + missing, e);
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * Which formats of a session were exported, and from which length and time of its track file
+     */
+    static File getExportRecordFile(File folder, String fileName) {
+        return new File(new File(folder, IncrementalSender.CHECKPOINT_FOLDER), fileName + ".exports");
+    }
+
+    private static Properties loadExportRecord(File recordFile) {
+        try {
+            return Files.loadProperties(recordFile);
+        } catch (IOException e) {
+            LOG.warn("Could not read " + recordFile.getPath(), e);
+            return new Properties();
+        }
+    }
+
+    private static void saveExportRecord(Properties record, File recordFile) {
+        try {
+            Files.saveProperties(record, recordFile);
+        } catch (IOException e) {
+            LOG.warn("Could not save " + recordFile.getPath(), e);
+        }
+    }
+
+    private static String getBaseName(File trackFile) {
+        String path = trackFile.getPath();
+        return path.endsWith(TrackFileLogger.EXTENSION)
+                ? path.substring(0, path.length() - TrackFileLogger.EXTENSION.length())
+                : path;
+    }
+}
@@ -0,0 +1,306 @@
+package com.ml.map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Keeps a document that ends with a closing trailer (such as {@code </trk></gpx>}) open for a whole logging session.
+ *
+ * Appended bytes are buffered in memory and written in one go on {@link #flush()}, directly followed by the
+ * current trailer, so each flush costs one positional write no matter how large the file is. Because the trailer
+ * lives after the body, a file that was being written when the process died is repaired the next time it is
+ * opened: the body is cut back to the last complete record and the trailer is written again.
+ *
+ * Flushing only hands the bytes to the OS. How often they are forced to the storage device is set with
+ * {@link #setSyncPolicy(int, long)}; closing always syncs. With {@link #setGroupCommit(int, long)} flushes
+ * are also deferred until enough bytes have been appended or the oldest of them has waited long enough.
+ */
+public class TrailerFileWriter implements Closeable, Flushable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TrailerFileWriter.class);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int RECOVERY_WINDOW = 64 * 1024;
+
+    private final File file;
+    private final FileChannel channel;
+    private ByteBuffer pending = ByteBuffer.allocate(8 * 1024);
+    private byte[] trailer = new byte[0];
+    private boolean trailerDirty;
+    private long bodyEnd;
+    private long fileLength;
+    private int recoveredMarker = -1;
+
+    private int syncEveryRecords;
+    private long syncEveryNanos;
+    private int unsyncedRecords;
+    private long lastSyncNanos = System.nanoTime();
+
+    private int groupCommitBytes;
+    private long groupCommitNanos;
+    private long pendingSinceNanos;
+
+    private TrailerFileWriter(File file, FileChannel channel) {
+        this.file = file;
+        this.channel = channel;
+    }
+
+    /**
+     * Opens the file for appending, creating it with the given header if it is new or empty.
+     *
+     * For an existing file the body is assumed to end right after the last occurrence of any of the
+     * given markers near the end of the file; anything after it, including a partial record, is replaced by
+     * the trailer on the next flush. Call {@link #getRecoveredMarker()} to find out which marker matched.
+     *
+     * @throws IOException if the file exists but none of the markers can be found
+     */
+    public static TrailerFileWriter open(File file, String header, String... bodyEndMarkers) throws IOException {
+        File folder = file.getParentFile();
+        if (folder != null && !folder.exists()) {
+            folder.mkdirs();
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        TrailerFileWriter writer = new TrailerFileWriter(file, raf.getChannel());
+
+        try {
+            long length = writer.channel.size();
+            if (length == 0) {
+                writer.append(header);
+                writer.trailerDirty = true;
+                return writer;
+            }
+
+            writer.fileLength = length;
+            writer.recover(length, bodyEndMarkers);
+            return writer;
+        } catch (IOException e) {
+            writer.channel.close();
+            throw e;
+        }
+    }
+
+    private void recover(long length, String[] bodyEndMarkers) throws IOException {
+        int windowSize = (int) Math.min(length, RECOVERY_WINDOW);
+        long windowStart = length - windowSize;
+        ByteBuffer window = ByteBuffer.allocate(windowSize);
+        while (window.hasRemaining()) {
+            if (channel.read(window, windowStart + window.position()) < 0) {
+                break;
+            }
+        }
+        byte[] tail = window.array();
+
+        long end = -1;
+        for (int i = 0; i < bodyEndMarkers.length; i++) {
+            byte[] marker = bodyEndMarkers[i].getBytes(UTF_8);
+            int idx = lastIndexOf(tail, window.position(), marker);
+            if (idx >= 0 && windowStart + idx + marker.length > end) {
+                end = windowStart + idx + marker.length;
+                recoveredMarker = i;
+            }
+        }
+
+        if (end < 0) {
+            throw new IOException("Could not find the end of the body in " + file.getPath());
+        }
+
+        bodyEnd = end;
+        trailerDirty = true;
+        LOG.debug("Reopened " + file.getName() + ", body ends at " + bodyEnd + " of " + length);
+    }
+
+    private static int lastIndexOf(byte[] data, int length, byte[] marker) {
+        outer:
+        for (int i = length - marker.length; i >= 0; i--) {
+            for (int j = 0; j < marker.length; j++) {
+                if (data[i + j] != marker[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Index of the marker the body was recovered up to, or -1 if the file was new.
+     */
+    public int getRecoveredMarker() {
+        return recoveredMarker;
+    }
+
+    /**
+     * Sets what is written after the body on the next flush
+     */
+    public void setTrailer(byte[] trailer) {
+        if (!Arrays.equals(this.trailer, trailer)) {
+            this.trailer = trailer;
+            trailerDirty = true;
+        }
+    }
+
+    public boolean hasTrailer(byte[] trailer) {
+        return Arrays.equals(this.trailer, trailer);
+    }
+
+    /**
+     * Forces the file to the storage device on flush once this many records have been written since the
+     * last sync, or this much time has passed. Zero disables either condition.
+     */
+    public void setSyncPolicy(int everyRecords, long everyMillis) {
+        this.syncEveryRecords = everyRecords;
+        this.syncEveryNanos = everyMillis * 1000000L;
+    }
+
+    /**
+     * Makes {@link #flush()} hold appended bytes back until there are at least maxPendingBytes of them or the
+     * oldest has been pending for maxDelayMillis. {@link #sync()} and {@link #close()} always write.
+     */
+    public void setGroupCommit(int maxPendingBytes, long maxDelayMillis) {
+        this.groupCommitBytes = maxPendingBytes;
+        this.groupCommitNanos = maxDelayMillis * 1000000L;
+    }
+
+    /**
+     * Counts a complete record towards the sync policy
+     */
+    public void recordWritten() {
+        unsyncedRecords++;
+    }
+
+    public void append(ByteEncoder encoder) {
+        append(encoder.array(), 0, encoder.length());
+    }
+
+    public void append(String text) {
+        append(text.getBytes(UTF_8));
+    }
+
+    public void append(byte[] data) {
+        append(data, 0, data.length);
+    }
+
+    public void append(byte[] data, int offset, int length) {
+        if (pending.position() == 0) {
+            pendingSinceNanos = System.nanoTime();
+        }
+        ensureCapacity(length);
+        pending.put(data, offset, length);
+    }
+
+    private void ensureCapacity(int extra) {
+        if (pending.remaining() < extra) {
+            int capacity = pending.capacity();
+            while (capacity - pending.position() < extra) {
+                capacity *= 2;
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(capacity);
+            pending.flip();
+            bigger.put(pending);
+            pending = bigger;
+        }
+    }
+
+    /**
+     * Size of the body as it will be once pending bytes are flushed
+     */
+    public long getBodyLength() {
+        return bodyEnd + pending.position();
+    }
+
+    /**
+     * Writes the pending body bytes followed by the trailer at the end of the body, unless group commit
+     * holds them back for now
+     */
+    @Override
+    public void flush() throws IOException {
+        if (isCommitDeferred()) {
+            return;
+        }
+
+        write();
+
+        if (isSyncDue()) {
+            force();
+        }
+    }
+
+    private boolean isCommitDeferred() {
+        int bodyBytes = pending.position();
+        if (groupCommitBytes <= 0 || trailerDirty || bodyBytes == 0) {
+            return false;
+        }
+        return bodyBytes < groupCommitBytes && System.nanoTime() - pendingSinceNanos < groupCommitNanos;
+    }
+
+    private void write() throws IOException {
+        int bodyBytes = pending.position();
+        if (bodyBytes == 0 && !trailerDirty) {
+            return;
+        }
+
+        ensureCapacity(trailer.length);
+        pending.put(trailer);
+        pending.flip();
+
+        long position = bodyEnd;
+        while (pending.hasRemaining()) {
+            position += channel.write(pending, position);
+        }
+        pending.clear();
+
+        bodyEnd += bodyBytes;
+        if (position < fileLength) {
+            channel.truncate(position);
+        }
+        fileLength = position;
+        trailerDirty = false;
+    }
+
+    private boolean isSyncDue() {
+        if (unsyncedRecords == 0) {
+            return false;
+        }
+        if (syncEveryRecords > 0 && unsyncedRecords >= syncEveryRecords) {
+            return true;
+        }
+        return syncEveryNanos > 0 && System.nanoTime() - lastSyncNanos >= syncEveryNanos;
+    }
+
+    private void force() throws IOException {
+        channel.force(false);
+        unsyncedRecords = 0;
+        lastSyncNanos = System.nanoTime();
+    }
+
+    /**
+     * Flushes and forces the content to the storage device
+     */
+    public void sync() throws IOException {
+        write();
+        force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            sync();
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,482 @@
+package com.ml.map;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a zip archive to any channel, so it can go straight to a socket or upload stream without a .zip on disk.
+ *
+ * Files that are compressed already are stored and copied with {@link FileChannel#transferTo}. Others are
+ * deflated in chunks on a shared pool, the way pigz does it: each chunk is flushed to a byte boundary and primed
+ * with the end of the one before, so the chunks join up into one ordinary deflate stream. Only a few chunks are
+ * in flight at a time, whatever the size of the file.
+ *
+ * No ZIP64: entries and the archive must stay under 4 GB.
+ */
+public class ZipArchiveWriter implements Closeable {
+
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int DATA_DESCRIPTOR = 0x08074b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final short VERSION = 20;
+    private static final short FLAG_DATA_DESCRIPTOR = 0x0008;
+    private static final short FLAG_UTF8 = 0x0800;
+    private static final short STORED = 0;
+    private static final short DEFLATED = 8;
+    private static final long MAX_SIZE = 0xFFFFFFFFL;
+
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Extensions of files that deflate would not make smaller
+     */
+    private static final String[] COMPRESSED_EXTENSIONS = {
+            ".zip", ".gz", ".jpg", ".jpeg", ".png", ".webp", ".mp3", ".mp4", ".3gp"
+    };
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static ExecutorService sharedCompressor;
+
+    private final WritableByteChannel out;
+    private ByteBuffer header = ByteBuffer.allocate(512).order(ByteOrder.LITTLE_ENDIAN);
+    private final List<Entry> entries = new ArrayList<>();
+    private final CRC32 crc = new CRC32();
+    private ExecutorService compressor;
+    private int maxChunksInFlight = 1;
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    private byte[] readBuffer;
+    private long written;
+    private boolean closed;
+
+    public ZipArchiveWriter(WritableByteChannel out) {
+        this.out = out;
+    }
+
+    public ZipArchiveWriter(OutputStream out) {
+        this(Channels.newChannel(out));
+    }
+
+    /**
+     * Pool shared by all archives for deflating chunks, one thread per core
+     */
+    public static synchronized ExecutorService getSharedCompressor() {
+        if (sharedCompressor == null) {
+            sharedCompressor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "goblob-deflate-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sharedCompressor;
+    }
+
+    /**
+     * Deflates chunks of large files on the given pool. Without one, everything is deflated on the calling thread.
+     */
+    public ZipArchiveWriter setCompressor(ExecutorService compressor, int parallelism) {
+        this.compressor = compressor;
+        this.maxChunksInFlight = Math.max(1, parallelism * 2);
+        return this;
+    }
+
+    public ZipArchiveWriter setLevel(int level) {
+        this.level = level;
+        return this;
+    }
+
+    /**
+     * Adds the file under the given name, stored if its extension says it is compressed already
+     */
+    public void addFile(File file, String name) throws IOException {
+        addFile(file, name, !isCompressed(name));
+    }
+
+    public void addFile(File file, String name, boolean deflate) throws IOException {
+        if (closed) {
+            throw new IOException("Archive already closed");
+        }
+
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel source = in.getChannel();
+            long size = source.size();
+            if (size > MAX_SIZE) {
+                throw new IOException(file.getName() + " is too large for a zip archive");
+            }
+
+            Entry entry = new Entry(name, dosTime(file.lastModified()), written);
+            if (entry.name.length > 0xFFFF || entries.size() >= 0xFFFF) {
+                throw new IOException("Too many entries or name too long for a zip archive");
+            }
+            entry.size = size;
+            if (deflate) {
+                writeDeflated(entry, source);
+            } else {
+                writeStored(entry, source);
+            }
+            entries.add(entry);
+        } finally {
+            in.close();
+        }
+
+        if (written > MAX_SIZE) {
+            throw new IOException("Archive is too large without ZIP64");
+        }
+    }
+
+    /**
+     * Stored entries need their CRC in the local header, so the file is read once for it, then handed to the
+     * channel to copy without going through the heap
+     */
+    private void writeStored(Entry entry, FileChannel source) throws IOException {
+        entry.method = STORED;
+        entry.flags = FLAG_UTF8;
+        entry.crc = checksum(source, entry.size);
+        entry.compressedSize = entry.size;
+        writeLocalHeader(entry);
+
+        long position = 0;
+        while (position < entry.size) {
+            long copied = source.transferTo(position, entry.size - position, out);
+            if (copied <= 0) {
+                throw new IOException("Could not copy " + new String(entry.name, UTF8));
+            }
+            position += copied;
+        }
+        written += entry.size;
+    }
+
+    private long checksum(FileChannel source, long size) throws IOException {
+        byte[] buffer = getReadBuffer();
+        crc.reset();
+        source.position(0);
+        ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+        long remaining = size;
+        while (remaining > 0) {
+            wrapped.clear();
+            wrapped.limit((int) Math.min(buffer.length, remaining));
+            int read = source.read(wrapped);
+            if (read < 0) {
+                throw new IOException("File shrank while zipping");
+            }
+            crc.update(buffer, 0, read);
+            remaining -= read;
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Deflated entries are written as they are compressed, with sizes and CRC in a data descriptor after the data
+     */
+    private void writeDeflated(Entry entry, FileChannel source) throws IOException {
+        entry.method = DEFLATED;
+        entry.flags = (short) (FLAG_UTF8 | FLAG_DATA_DESCRIPTOR);
+        writeLocalHeader(entry);
+
+        crc.reset();
+        source.position(0);
+        ArrayDeque<Future<Chunk>> inFlight = new ArrayDeque<>();
+        byte[] previous = null;
+        int previousLength = 0;
+        long remaining = entry.size;
+        long compressedSize = 0;
+
+        do {
+            int length = (int) Math.min(CHUNK_SIZE, remaining);
+            byte[] chunk = new byte[length];
+            readFully(source, chunk);
+            crc.update(chunk, 0, length);
+            remaining -= length;
+
+            Callable<Chunk> task = new DeflateTask(chunk, length, previous, previousLength, remaining == 0, level);
+            if (compressor == null || (previous == null && remaining == 0)) {
+                FutureTask<Chunk> inline = new FutureTask<>(task);
+                inline.run();
+                inFlight.add(inline);
+            } else {
+                inFlight.add(compressor.submit(task));
+            }
+            previous = chunk;
+            previousLength = length;
+
+            while (inFlight.size() >= maxChunksInFlight || (remaining == 0 && !inFlight.isEmpty())) {
+                compressedSize += writeChunk(inFlight.poll());
+            }
+        } while (remaining > 0);
+
+        entry.crc = crc.getValue();
+        entry.compressedSize = compressedSize;
+
+        prepareHeader(16);
+        header.putInt(DATA_DESCRIPTOR);
+        header.putInt((int) entry.crc);
+        header.putInt((int) entry.compressedSize);
+        header.putInt((int) entry.size);
+        writeHeader();
+    }
+
+    private long writeChunk(Future<Chunk> future) throws IOException {
+        Chunk chunk;
+        try {
+            chunk = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while zipping");
+        } catch (ExecutionException e) {
+            throw new IOException("Could not deflate", e.getCause());
+        }
+
+        ByteBuffer data = ByteBuffer.wrap(chunk.data, 0, chunk.length);
+        while (data.hasRemaining()) {
+            out.write(data);
+        }
+        written += chunk.length;
+        return chunk.length;
+    }
+
+    private void writeLocalHeader(Entry entry) throws IOException {
+        boolean descriptor = (entry.flags & FLAG_DATA_DESCRIPTOR) != 0;
+        prepareHeader(30 + entry.name.length);
+        header.putInt(LOCAL_HEADER);
+        header.putShort(VERSION);
+        header.putShort(entry.flags);
+        header.putShort(entry.method);
+        header.putInt(entry.dosTime);
+        header.putInt(descriptor ? 0 : (int) entry.crc);
+        header.putInt(descriptor ? 0 : (int) entry.compressedSize);
+        header.putInt(descriptor ? 0 : (int) entry.size);
+        header.putShort((short) entry.name.length);
+        header.putShort((short) 0);
+        header.put(entry.name);
+        writeHeader();
+    }
+
+    /**
+     * Writes the central directory. The underlying channel is left open.
+     */
+    public void finish() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        long directoryStart = written;
+        for (Entry entry : entries) {
+            prepareHeader(46 + entry.name.length);
+            header.putInt(CENTRAL_HEADER);
+            header.putShort(VERSION);
+            header.putShort(VERSION);
+            header.putShort(entry.flags);
+            header.putShort(entry.method);
+            header.putInt(entry.dosTime);
+            header.putInt((int) entry.crc);
+            header.putInt((int) entry.compressedSize);
+            header.putInt((int) entry.size);
+            header.putShort((short) entry.name.length);
+            header.putShort((short) 0);
+            header.putShort((short) 0);
+            header.putShort((short) 0);
+            header.putShort((short) 0);
+            header.putInt(0);
+            header.putInt((int) entry.offset);
+            header.put(entry.name);
+            writeHeader();
+        }
+
+        prepareHeader(22);
+        header.putInt(END_OF_CENTRAL_DIRECTORY);
+        header.putShort((short) 0);
+        header.putShort((short) 0);
+        header.putShort((short) entries.size());
+        header.putShort((short) entries.size());
+        header.putInt((int) (written - directoryStart));
+        header.putInt((int) directoryStart);
+        header.putShort((short) 0);
+        writeHeader();
+    }
+
+    /**
+     * Writes the central directory and closes the underlying channel
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void prepareHeader(int size) {
+        if (header.capacity() < size) {
+            header = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        header.clear();
+    }
+
+    private void writeHeader() throws IOException {
+        header.flip();
+        written += header.remaining();
+        while (header.hasRemaining()) {
+            out.write(header);
+        }
+    }
+
+    private byte[] getReadBuffer() {
+        if (readBuffer == null) {
+            readBuffer = new byte[READ_BUFFER_SIZE];
+        }
+        return readBuffer;
+    }
+
+    private static void readFully(FileChannel source, byte[] chunk) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        while (buffer.hasRemaining()) {
+            if (source.read(buffer) < 0) {
+                throw new IOException("File shrank while zipping");
+            }
+        }
+    }
+
+    static boolean isCompressed(String name) {
+        String lower = name.toLowerCase(Locale.US);
+        for (String extension : COMPRESSED_EXTENSIONS) {
+            if (lower.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int dosTime(long millis) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(millis);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25
+                | (calendar.get(Calendar.MONTH) + 1) << 21
+                | calendar.get(Calendar.DAY_OF_MONTH) << 16
+                | calendar.get(Calendar.HOUR_OF_DAY) << 11
+                | calendar.get(Calendar.MINUTE) << 5
+                | calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    private static class Entry {
+        final byte[] name;
+        final int dosTime;
+        final long offset;
+        short flags;
+        short method;
+        long crc;
+        long size;
+        long compressedSize;
+
+        Entry(String name, int dosTime, long offset) {
+            this.name = name.getBytes(UTF8);
+            this.dosTime = dosTime;
+            this.offset = offset;
+        }
+    }
+
+    private static class Chunk {
+        final byte[] data;
+        final int length;
+
+        Chunk(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Deflates one chunk as part of a raw deflate stream. All but the last end on a sync flush so the next chunk
+     * can start on a byte boundary, and each is primed with the last 32 KB of the previous chunk so matches can
+     * reach back across the boundary as they would in a single stream.
+     */
+    private static class DeflateTask implements Callable<Chunk> {
+        private final byte[] input;
+        private final int length;
+        private final byte[] dictionary;
+        private final int dictionaryEnd;
+        private final boolean last;
+        private final int level;
+
+        DeflateTask(byte[] input, int length, byte[] dictionary, int dictionaryEnd, boolean last, int level) {
+            this.input = input;
+            this.length = length;
+            this.dictionary = dictionary;
+            this.dictionaryEnd = dictionaryEnd;
+            this.last = last;
+            this.level = level;
+        }
+
+        @Override
+        public Chunk call() {
+            Deflater deflater = new Deflater(level, true);
+            try {
+                if (dictionary != null) {
+                    int dictionaryLength = Math.min(DICTIONARY_SIZE, dictionaryEnd);
+                    deflater.setDictionary(dictionary, dictionaryEnd - dictionaryLength, dictionaryLength);
+                }
+                deflater.setInput(input, 0, length);
+                if (last) {
+                    deflater.finish();
+                }
+
+                byte[] output = new byte[Math.max(1024, length / 2)];
+                int outputLength = 0;
+                while (true) {
+                    if (outputLength == output.length) {
+                        byte[] bigger = new byte[output.length * 2];
+                        System.arraycopy(output, 0, bigger, 0, outputLength);
+                        output = bigger;
+                    }
+                    int space = output.length - outputLength;
+                    int deflated = deflater.deflate(output, outputLength, space,
+                            last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                    outputLength += deflated;
+                    if (last ? deflater.finished() : deflated < space) {
+                        break;
+                    }
+                }
+                return new Chunk(output, outputLength);
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+}
@@ -3,15 +3,16 @@ package com.ml.map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.FileOutputStream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
 
+/**
+ * Zips log files, to a .zip file or straight to a stream, through a {@link ZipArchiveWriter}
+ */
 public class ZipHelper {
-    private static final int BUFFER = 2048;
     private static final Logger LOG = LoggerFactory.getLogger(ZipHelper.class);
     private final String[] files;
     private final String zipFile;
@@ -23,31 +24,44 @@ public class ZipHelper {
 
     public void zipFiles() {
         try {
-            BufferedInputStream origin;
             FileOutputStream dest = new FileOutputStream(zipFile);
-
-            ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(dest));
-
-            byte data[] = new byte[BUFFER];
-
-            for (String f : files) {
-                FileInputStream fi = new FileInputStream(f);
-                origin = new BufferedInputStream(fi, BUFFER);
-                ZipEntry entry = new ZipEntry(f.substring(f.lastIndexOf("/") + 1));
-                out.putNextEntry(entry);
-                int count;
-                while ((count = origin.read(data, 0, BUFFER)) != -1) {
-                    out.write(data, 0, count);
-                }
-                out.closeEntry();
-                origin.close();
+            try {
+                zipTo(dest.getChannel());
+            } finally {
+                dest.close();
             }
-
-            out.close();
         } catch (Exception e) {
             LOG.error("Could not create zip file", e);
         }
+    }
+
+    /**
+     * Writes the archive to the given stream without creating the .zip file. The stream is left open.
+     */
+    public void zipTo(OutputStream out) throws IOException {
+        ZipArchiveWriter writer = newWriter(new ZipArchiveWriter(out));
+        addFiles(writer);
+        writer.finish();
+        out.flush();
+    }
 
+    /**
+     * Writes the archive to the given channel without creating the .zip file. The channel is left open.
+     */
+    public void zipTo(WritableByteChannel out) throws IOException {
+        ZipArchiveWriter writer = newWriter(new ZipArchiveWriter(out));
+        addFiles(writer);
+        writer.finish();
+    }
+
+    private static ZipArchiveWriter newWriter(ZipArchiveWriter writer) {
+        return writer.setCompressor(ZipArchiveWriter.getSharedCompressor(), Runtime.getRuntime().availableProcessors());
+    }
+
+    private void addFiles(ZipArchiveWriter writer) throws IOException {
+        for (String f : files) {
+            writer.addFile(new File(f), f.substring(f.lastIndexOf("/") + 1));
+        }
     }
 
 }
@@ -20,30 +20,57 @@
 package com.ml.map.csv;
 
 import android.location.Location;
+import android.os.Bundle;
 import androidx.annotation.Nullable;
 
+import com.ml.map.BatterySampler;
 import com.ml.map.BundleConstants;
+import com.ml.map.ByteEncoder;
 import com.ml.map.FileLogger;
 import com.ml.map.Files;
 import com.ml.map.GoblobLocationManager;
 import com.ml.map.Maths;
+import com.ml.map.MediaIndexer;
+import com.ml.map.PreferenceHelper;
 import com.ml.map.Strings;
+import com.ml.map.TrailerFileWriter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.util.Date;
-import java.util.Locale;
+import java.io.IOException;
 
+/**
+ * Writes one CSV line per point. The file stays open for the whole session and lines are encoded straight
+ * into a reused byte buffer, then written in groups rather than one write per point.
+ */
 public class CSVFileLogger implements FileLogger {
 
-    private final Integer batteryLevel;
+    private static final Logger LOG = LoggerFactory.getLogger(CSVFileLogger.class);
+    protected final static Object lock = new Object();
+
+    static final String HEADER = "time,lat,lon,elevation,accuracy,bearing,speed,satellites,provider,hdop,vdop,pdop,geoidheight,ageofdgpsdata,dgpsid,activity,battery,annotation\n";
+
+    /**
+     * Lines are held back until this many bytes are pending or the oldest has waited this long
+     */
+    private static final int GROUP_COMMIT_BYTES = 4096;
+    private static final long GROUP_COMMIT_MILLIS = 10000;
+
+    private static final String[] BODY_END_MARKERS = {"\n"};
+    private static final byte[] NO_TRAILER = new byte[0];
+
+    private static TrailerFileWriter writer;
+    private static final ByteEncoder encoder = new ByteEncoder(256);
+
+    private final BatterySampler battery;
     private File file;
     protected final String name = "TXT";
 
-    public CSVFileLogger(File file, @Nullable Integer batteryLevel) {
+    public CSVFileLogger(File file, @Nullable BatterySampler battery) {
         this.file = file;
-        this.batteryLevel = batteryLevel;
+        this.battery = battery;
     }
 
     @Override
@@ -53,63 +80,133 @@ public class CSVFileLogger implements FileLogger {
         }
     }
 
-    String getCsvLine(Location loc, String dateTimeString) {
-        return getCsvLine("", loc, dateTimeString);
-    }
+    /**
+     * @param batteryLevel battery percentage, or -1 to leave it out
+     */
+    static void encodeCsvLine(ByteEncoder encoder, String description, Location loc, int batteryLevel) {
+        Bundle extras = loc.getExtras();
+
+        encoder.isoDateTime(loc.getTime()).ascii(',')
+                .fixed(loc.getLatitude(), 6).ascii(',')
+                .fixed(loc.getLongitude(), 6).ascii(',');
 
-    String getCsvLine(String description, Location loc, String dateTimeString) {
+        if (loc.hasAltitude()) {
+            encoder.decimal(loc.getAltitude(), 3);
+        }
+        encoder.ascii(',');
+        if (loc.hasAccuracy()) {
+            encoder.decimal(loc.getAccuracy(), 3);
+        }
+        encoder.ascii(',');
+        if (loc.hasBearing()) {
+            encoder.decimal(loc.getBearing(), 3);
+        }
+        encoder.ascii(',');
+        if (loc.hasSpeed()) {
+            encoder.decimal(loc.getSpeed(), 3);
+        }
+        encoder.ascii(',');
+
+        encoder.number(Maths.getBundledSatelliteCount(loc)).ascii(',');
+        encoder.utf8(loc.getProvider()).ascii(',');
+
+        appendExtra(encoder, extras, BundleConstants.HDOP);
+        appendExtra(encoder, extras, BundleConstants.VDOP);
+        appendExtra(encoder, extras, BundleConstants.PDOP);
+        appendExtra(encoder, extras, BundleConstants.GEOIDHEIGHT);
+        appendExtra(encoder, extras, BundleConstants.AGEOFDGPSDATA);
+        appendExtra(encoder, extras, BundleConstants.DGPSID);
+        appendExtra(encoder, extras, BundleConstants.DETECTED_ACTIVITY);
+
+        if (batteryLevel >= 0) {
+            encoder.number(batteryLevel);
+        }
+        encoder.ascii(',');
 
         if (description.length() > 0) {
-            description = "\"" + description.replaceAll("\"", "\"\"") + "\"";
+            encoder.ascii('"').utf8(description.replace("\"", "\"\"")).ascii('"');
         }
+        encoder.ascii('\n');
+    }
 
-        String outputString = String.format(Locale.US, "%s,%f,%f,%s,%s,%s,%s,%d,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s\n", dateTimeString,
-                loc.getLatitude(),
-                loc.getLongitude(),
-                loc.hasAltitude() ? loc.getAltitude() : "",
-                loc.hasAccuracy() ? loc.getAccuracy() : "",
-                loc.hasBearing() ? loc.getBearing() : "",
-                loc.hasSpeed() ? loc.getSpeed() : "",
-                Maths.getBundledSatelliteCount(loc),
-                loc.getProvider(),
-                (loc.getExtras() != null && !Strings.isNullOrEmpty(loc.getExtras().getString(BundleConstants.HDOP))) ? loc.getExtras().getString(BundleConstants.HDOP) : "",
-                (loc.getExtras() != null && !Strings.isNullOrEmpty(loc.getExtras().getString(BundleConstants.VDOP))) ? loc.getExtras().getString(BundleConstants.VDOP) : "",
-                (loc.getExtras() != null && !Strings.isNullOrEmpty(loc.getExtras().getString(BundleConstants.PDOP))) ? loc.getExtras().getString(BundleConstants.PDOP) : "",
-                (loc.getExtras() != null && !Strings.isNullOrEmpty(loc.getExtras().getString(BundleConstants.GEOIDHEIGHT))) ? loc.getExtras().getString(BundleConstants.GEOIDHEIGHT) : "",
-                (loc.getExtras() != null && !Strings.isNullOrEmpty(loc.getExtras().getString(BundleConstants.AGEOFDGPSDATA))) ? loc.getExtras().getString(BundleConstants.AGEOFDGPSDATA) : "",
-                (loc.getExtras() != null && !Strings.isNullOrEmpty(loc.getExtras().getString(BundleConstants.DGPSID))) ? loc.getExtras().getString(BundleConstants.DGPSID) : "",
-                (loc.getExtras() != null && !Strings.isNullOrEmpty(loc.getExtras().getString(BundleConstants.DETECTED_ACTIVITY))) ? loc.getExtras().getString(BundleConstants.DETECTED_ACTIVITY) : "",
-                (batteryLevel != null) ? batteryLevel : "",
-                description
-        );
-        return outputString;
+    private static void appendExtra(ByteEncoder encoder, @Nullable Bundle extras, String key) {
+        if (extras != null) {
+            String value = extras.getString(key);
+            if (!Strings.isNullOrEmpty(value)) {
+                encoder.utf8(value);
+            }
+        }
+        encoder.ascii(',');
     }
 
     @Override
     public void annotate(String description, Location loc) throws Exception {
-        if (!Files.reallyExists(file)) {
-            file.createNewFile();
+        synchronized (lock) {
+            TrailerFileWriter csvWriter = getWriter(file);
 
-            FileOutputStream writer = new FileOutputStream(file, true);
-            BufferedOutputStream output = new BufferedOutputStream(writer);
-            String header = "time,lat,lon,elevation,accuracy,bearing,speed,satellites,provider,hdop,vdop,pdop,geoidheight,ageofdgpsdata,dgpsid,activity,battery,annotation\n";
-            output.write(header.getBytes());
-            output.flush();
-            output.close();
+            encoder.reset();
+            encodeCsvLine(encoder, description, loc, battery != null ? battery.getLevel() : -1);
+            csvWriter.append(encoder);
+            csvWriter.recordWritten();
+        }
+    }
 
+    @Override
+    public void flush() throws IOException {
+        synchronized (lock) {
+            if (writer != null && writer.getFile().equals(file)) {
+                writer.flush();
+                Files.addToMediaDatabase(file, "text/csv");
+            }
         }
+    }
 
-        FileOutputStream writer = new FileOutputStream(file, true);
-        BufferedOutputStream output = new BufferedOutputStream(writer);
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            closeWriter();
+        }
+    }
 
-        String dateTimeString = Strings.getIsoDateTime(new Date(loc.getTime()));
-        String csvLine = getCsvLine(description, loc, dateTimeString);
+    /**
+     * Writes out and closes the session writer, if any. Must be called while holding {@link #lock}.
+     */
+    private static void closeWriter() throws IOException {
+        if (writer == null) {
+            return;
+        }
 
+        TrailerFileWriter closing = writer;
+        writer = null;
+        closing.close();
+        MediaIndexer.getInstance().indexNow(closing.getFile(), "text/csv");
+    }
+
+    /**
+     * Returns the session writer for the given file, closing the previous one if the file has rotated.
+     * A partial last line left in an existing file is cut off. Must be called while holding {@link #lock}.
+     */
+    private static TrailerFileWriter getWriter(File file) throws IOException {
+        if (writer != null && writer.getFile().equals(file) && file.exists()) {
+            return writer;
+        }
+
+        closeWriter();
+
+        writer = TrailerFileWriter.open(file, HEADER, BODY_END_MARKERS);
+
+        PreferenceHelper preferenceHelper = PreferenceHelper.getInstance();
+        writer.setSyncPolicy(preferenceHelper.getFileSyncPoints(), preferenceHelper.getFileSyncSeconds() * 1000L);
+        writer.setGroupCommit(GROUP_COMMIT_BYTES, GROUP_COMMIT_MILLIS);
+        writer.setTrailer(NO_TRAILER);
+        writer.flush();
+
+        if (writer.getRecoveredMarker() < 0) {
+            Files.addToMediaDatabase(file, "text/csv");
+            LOG.debug("Created CSV file " + file.getName());
+        }
 
-        output.write(csvLine.getBytes());
-        output.flush();
-        output.close();
-        Files.addToMediaDatabase(file, "text/csv");
+        return writer;
     }
 
     @Override
@@ -0,0 +1,40 @@
+package com.ml.map.csv;
+
+import android.location.Location;
+
+import com.ml.map.track.FileTrackEncoder;
+
+import java.io.IOException;
+
+/**
+ * Exports a stored track as CSV, with the same columns as {@link CSVFileLogger}. The stored track has no battery
+ * levels, so that column is left empty.
+ */
+public class CSVTrackEncoder extends FileTrackEncoder {
+
+    @Override
+    public String getExtension() {
+        return ".csv";
+    }
+
+    @Override
+    protected void begin(long startTime) throws IOException {
+        output(encoder.reset().ascii(CSVFileLogger.HEADER));
+    }
+
+    @Override
+    public void write(Location loc, boolean newSegment) throws IOException {
+        annotate("", loc);
+    }
+
+    @Override
+    public void annotate(String description, Location loc) throws IOException {
+        encoder.reset();
+        CSVFileLogger.encodeCsvLine(encoder, description == null ? "" : description, loc, -1);
+        output(encoder);
+    }
+
+    @Override
+    protected void end() {
+    }
+}
@@ -0,0 +1,40 @@
+package com.ml.map.customurl;
+
+import android.location.Location;
+
+import com.ml.map.QueuedLocationLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Uploads points to a custom URL, a batch per request as built by {@link CustomUrlRequest}
+ */
+public class CustomUrlLogger extends QueuedLocationLogger {
+
+    public static final String NAME = "URL";
+
+    private final CustomUrlRequest request;
+
+    /**
+     * @param queueFile where points wait to be sent
+     * @param batchSize points per request, and how many to wait for before sending
+     * @param maxWaitMillis longest a point waits for a full batch
+     */
+    public CustomUrlLogger(CustomUrlRequest request, File queueFile, Connectivity connectivity, int batchSize,
+                           long maxWaitMillis) {
+        super(queueFile, connectivity, batchSize, maxWaitMillis);
+        this.request = request;
+    }
+
+    @Override
+    protected void send(List<Location> locations) throws IOException {
+        request.send(locations);
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+}
@@ -0,0 +1,201 @@
+package com.ml.map.customurl;
+
+import android.location.Location;
+
+import androidx.annotation.Nullable;
+
+import com.ml.map.BatterySampler;
+import com.ml.map.BundleConstants;
+import com.ml.map.Strings;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Builds and sends the request for a batch of points from the custom URL settings.
+ *
+ * The body has one line per point: the body template with the point's values filled in, or the URL's query
+ * string if there is no body template. The URL itself is filled in from the newest point, for servers that
+ * only look at the latest position. The body is gzipped, and a GET is sent as a POST since it needs a body.
+ * Connections are left open for the next batch.
+ *
+ * Placeholders: %LAT %LON %ALT %ACC %DIR %SPD %PROV %SAT %TIME (ISO 8601) %TIMESTAMP (seconds) %DATE %BATT %AID
+ */
+public class CustomUrlRequest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final String url;
+    private final String method;
+    private final String body;
+    private final Map<String, String> headers;
+    private final String androidId;
+    private final BatterySampler battery;
+    private int timeoutMillis = 30000;
+
+    /**
+     * @param headers one "Name: value" per line
+     */
+    public CustomUrlRequest(String url, String method, String body, String headers, String androidId,
+                            @Nullable BatterySampler battery) {
+        this.url = url;
+        this.method = Strings.isNullOrEmpty(method) || method.equalsIgnoreCase("GET") ? "POST" : method.toUpperCase(Locale.US);
+        this.body = body;
+        this.headers = parseHeaders(headers);
+        this.androidId = androidId;
+        this.battery = battery;
+    }
+
+    public CustomUrlRequest setTimeout(int timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        return this;
+    }
+
+    /**
+     * Sends the points in one request
+     *
+     * @throws IOException if the server could not be reached or did not answer with a 2xx status
+     */
+    public void send(List<Location> locations) throws IOException {
+        if (locations.isEmpty()) {
+            return;
+        }
+        byte[] payload = gzip(buildBody(locations));
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(
+                expand(url, locations.get(locations.size() - 1), true)).openConnection();
+        connection.setRequestMethod(method);
+        connection.setDoOutput(true);
+        connection.setConnectTimeout(timeoutMillis);
+        connection.setReadTimeout(timeoutMillis);
+        connection.setFixedLengthStreamingMode(payload.length);
+        connection.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
+        connection.setRequestProperty("Content-Encoding", "gzip");
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+
+        OutputStream out = connection.getOutputStream();
+        try {
+            out.write(payload);
+        } finally {
+            out.close();
+        }
+
+        int code = connection.getResponseCode();
+        InputStream response = code < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (response != null) {
+            //Reading the response to the end lets the connection be reused for the next batch
+            byte[] discard = new byte[4096];
+            while (response.read(discard) != -1) {
+            }
+            response.close();
+        }
+        if (code / 100 != 2) {
+            throw new IOException("HTTP " + code + " from " + connection.getURL().getHost());
+        }
+    }
+
+    String buildBody(List<Location> locations) {
+        String template = body;
+        if (Strings.isNullOrEmpty(template)) {
+            int query = url.indexOf('?');
+            template = query >= 0 ? url.substring(query + 1) : "%TIME,%LAT,%LON";
+        }
+
+        StringBuilder lines = new StringBuilder();
+        for (Location loc : locations) {
+            lines.append(expand(template, loc, false)).append('\n');
+        }
+        return lines.toString();
+    }
+
+    String expand(String template, Location loc, boolean urlEncode) {
+        if (template.indexOf('%') < 0) {
+            return template;
+        }
+
+        int satellites = loc.getExtras() != null ? loc.getExtras().getInt(BundleConstants.SATELLITES_FIX, 0) : 0;
+        int batteryLevel = battery != null ? battery.getLevel() : -1;
+        String time = getIsoTime(loc.getTime());
+
+        //Longer names first, so %TIMESTAMP isn't taken for %TIME
+        String[][] values = new String[][]{
+                {"%TIMESTAMP", String.valueOf(loc.getTime() / 1000)},
+                {"%TIME", time},
+                {"%DATE", time.substring(0, 10)},
+                {"%LAT", String.valueOf(loc.getLatitude())},
+                {"%LON", String.valueOf(loc.getLongitude())},
+                {"%ALT", loc.hasAltitude() ? String.valueOf(loc.getAltitude()) : ""},
+                {"%ACC", loc.hasAccuracy() ? String.valueOf(loc.getAccuracy()) : ""},
+                {"%DIR", loc.hasBearing() ? String.valueOf(loc.getBearing()) : ""},
+                {"%SPD", loc.hasSpeed() ? String.valueOf(loc.getSpeed()) : ""},
+                {"%PROV", loc.getProvider() == null ? "" : loc.getProvider()},
+                {"%SAT", String.valueOf(satellites)},
+                {"%BATT", batteryLevel >= 0 ? String.valueOf(batteryLevel) : ""},
+                {"%AID", androidId == null ? "" : androidId},
+        };
+
+        String result = template;
+        for (String[] value : values) {
+            if (result.contains(value[0])) {
+                result = result.replace(value[0], urlEncode ? encode(value[1]) : value[1]);
+            }
+        }
+        return result;
+    }
+
+    private static String getIsoTime(long time) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(time));
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return value;
+        }
+    }
+
+    private static byte[] gzip(String text) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        try {
+            out.write(text.getBytes(UTF8));
+        } finally {
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Map<String, String> parseHeaders(String headers) {
+        Map<String, String> parsed = new LinkedHashMap<>();
+        if (Strings.isNullOrEmpty(headers)) {
+            return parsed;
+        }
+        for (String line : headers.split("\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                parsed.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+            }
+        }
+        return parsed;
+    }
+}
@@ -0,0 +1,51 @@
+package com.ml.map.filter;
+
+/**
+ * Stops fixes less accurate than a limit, or with no accuracy at all. If nothing good enough turns up within the
+ * retry period, counted from the first fix stopped, the gate gives up until the next point is due.
+ * Passive fixes are not held to the retry period.
+ */
+public class AccuracyGate extends FilterStage {
+
+    private final float maxAccuracy;
+    private final long retryPeriodMillis;
+    private long firstRejectedTime;
+
+    /**
+     * @param maxAccuracy the worst accuracy to log, in metres, or 0 to let everything through
+     */
+    public AccuracyGate(float maxAccuracy, long retryPeriodMillis) {
+        super("accuracy");
+        this.maxAccuracy = maxAccuracy;
+        this.retryPeriodMillis = retryPeriodMillis;
+    }
+
+    @Override
+    protected boolean accept(Fix fix, Fix last) {
+        if (fix.forced || maxAccuracy <= 0) {
+            return true;
+        }
+
+        if (fix.accuracy <= 0) {
+            return false;
+        }
+
+        if (fix.passive || fix.accuracy <= maxAccuracy) {
+            firstRejectedTime = 0;
+            return true;
+        }
+
+        if (firstRejectedTime == 0) {
+            firstRejectedTime = fix.time;
+        } else if (fix.time - firstRejectedTime > retryPeriodMillis) {
+            firstRejectedTime = 0;
+            giveUp();
+        }
+        return false;
+    }
+
+    @Override
+    public void reset() {
+        firstRejectedTime = 0;
+    }
+}
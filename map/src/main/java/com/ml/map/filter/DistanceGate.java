@@ -0,0 +1,38 @@
+package com.ml.map.filter;
+
+import com.ml.map.Maths;
+
+/**
+ * Stops fixes too close to the last one logged. Within the jitter distance a fix only gets through if it is more
+ * accurate than the last one; within the minimum distance it never does, and the gate gives up until the next
+ * point is due.
+ */
+public class DistanceGate extends FilterStage {
+
+    private final double minDistance;
+    private final double jitterDistance;
+
+    /**
+     * @param minDistance metres to travel before logging again, or 0 for no minimum
+     * @param jitterDistance metres within which a fix has to improve on the last one's accuracy
+     */
+    public DistanceGate(double minDistance, double jitterDistance) {
+        super("distance");
+        this.minDistance = minDistance;
+        this.jitterDistance = jitterDistance;
+    }
+
+    @Override
+    protected boolean accept(Fix fix, Fix last) {
+        if (last == null || fix.forced) {
+            return true;
+        }
+
+        double distance = Maths.calculateDistance(fix.latitude, fix.longitude, last.latitude, last.longitude);
+        if (distance < minDistance) {
+            giveUp();
+            return false;
+        }
+        return distance >= jitterDistance || (fix.accuracy > 0 && fix.accuracy < last.accuracy);
+    }
+}
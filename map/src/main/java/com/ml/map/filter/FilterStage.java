@@ -0,0 +1,68 @@
+package com.ml.map.filter;
+
+/**
+ * One step of a {@link LocationFilterChain}. Stages are handed each fix along with the last fix that made it
+ * through the whole chain, and count how many fixes they let through and how many they stopped.
+ */
+public abstract class FilterStage {
+
+    private final String name;
+    private long passed;
+    private long rejected;
+    private boolean givingUp;
+
+    protected FilterStage(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @param last the last fix that passed the whole chain, or null if there hasn't been one yet
+     * @return whether the fix goes on to the next stage
+     */
+    protected abstract boolean accept(Fix fix, Fix last);
+
+    /**
+     * Forgets earlier fixes. Counters are kept.
+     */
+    public void reset() {
+    }
+
+    /**
+     * Called from {@link #accept} when it is no use waiting for a better fix this time round, so the location
+     * managers can rest until the next point is due
+     */
+    protected void giveUp() {
+        givingUp = true;
+    }
+
+    final boolean test(Fix fix, Fix last) {
+        givingUp = false;
+        if (accept(fix, last)) {
+            passed++;
+            return true;
+        }
+        rejected++;
+        return false;
+    }
+
+    boolean isGivingUp() {
+        return givingUp;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getPassed() {
+        return passed;
+    }
+
+    public long getRejected() {
+        return rejected;
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + passed + "/" + rejected;
+    }
+}
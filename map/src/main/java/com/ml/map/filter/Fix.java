@@ -0,0 +1,122 @@
+package com.ml.map.filter;
+
+import android.location.Location;
+
+import com.ml.map.BundleConstants;
+
+/**
+ * The parts of a fix the filter chain looks at. The chain fills one instance per fix and writes any changes back
+ * into the {@link Location} afterwards, so stages never touch Android classes and can be fed synthetic fixes.
+ */
+public class Fix {
+
+    long time;
+    double latitude;
+    double longitude;
+    boolean hasAltitude;
+    double altitude;
+    float accuracy;
+    String provider;
+    boolean passive;
+    boolean forced;
+
+    /**
+     * Fills this fix from a location
+     *
+     * @param forced whether the point has to be logged whatever the gates say, e.g. because it carries an annotation
+     */
+    public Fix set(Location loc, boolean forced) {
+        time = loc.getTime();
+        latitude = loc.getLatitude();
+        longitude = loc.getLongitude();
+        hasAltitude = loc.hasAltitude();
+        altitude = loc.getAltitude();
+        accuracy = loc.hasAccuracy() ? loc.getAccuracy() : 0;
+        provider = loc.getProvider();
+        passive = loc.getExtras() != null && loc.getExtras().getBoolean(BundleConstants.PASSIVE);
+        this.forced = forced;
+        return this;
+    }
+
+    /**
+     * @param accuracy horizontal accuracy in metres, 0 if unknown
+     */
+    public Fix set(String provider, long time, double latitude, double longitude, float accuracy) {
+        this.provider = provider;
+        this.time = time;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.accuracy = accuracy;
+        hasAltitude = false;
+        altitude = 0;
+        passive = false;
+        forced = false;
+        return this;
+    }
+
+    public Fix setAltitude(double altitude) {
+        this.altitude = altitude;
+        hasAltitude = true;
+        return this;
+    }
+
+    public Fix setPassive(boolean passive) {
+        this.passive = passive;
+        return this;
+    }
+
+    public Fix setForced(boolean forced) {
+        this.forced = forced;
+        return this;
+    }
+
+    /**
+     * Copies the position, which a stage may have changed, back into the location it was read from
+     */
+    public void applyTo(Location loc) {
+        loc.setLatitude(latitude);
+        loc.setLongitude(longitude);
+        if (hasAltitude && loc.hasAltitude()) {
+            loc.setAltitude(altitude);
+        }
+        if (accuracy > 0) {
+            loc.setAccuracy(accuracy);
+        }
+    }
+
+    void copyFrom(Fix other) {
+        time = other.time;
+        latitude = other.latitude;
+        longitude = other.longitude;
+        hasAltitude = other.hasAltitude;
+        altitude = other.altitude;
+        accuracy = other.accuracy;
+        provider = other.provider;
+        passive = other.passive;
+        forced = other.forced;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+
+    public double getAltitude() {
+        return altitude;
+    }
+
+    public float getAccuracy() {
+        return accuracy;
+    }
+
+    public String getProvider() {
+        return provider;
+    }
+}
@@ -0,0 +1,205 @@
+package com.ml.map.filter;
+
+import android.location.Location;
+
+/**
+ * Smooths fixes with a constant velocity Kalman filter.
+ *
+ * Each axis (east, north and altitude, in metres) has its own position and velocity state. Between fixes the
+ * state moves on at its velocity, and its uncertainty grows as if an unknown acceleration of
+ * {@code accelerationNoise} m/s² had been acting. Each fix then pulls the state towards it, the more so the
+ * smaller its reported accuracy, so a precise fix counts for much more than a rough one.
+ *
+ * East and north are measured from a local origin, moved to the current position once it is far away so the
+ * flat projection stays accurate. The filter starts over after a long gap or a fix with an earlier time.
+ *
+ * Updates only touch fields, so there is no allocation per fix. {@link #filter(Location)} writes the smoothed
+ * position and its accuracy back into the fix it was given.
+ */
+public class KalmanLocationFilter implements LocationFilter {
+
+    private static final double METERS_PER_DEGREE = 111320.0;
+    private static final double MAX_ORIGIN_DISTANCE = 50000.0;
+    private static final float DEFAULT_ACCURACY = 30f;
+    private static final double ALTITUDE_ACCURACY_FACTOR = 1.5;
+
+    private final double accelerationVariance;
+    private final long maxGapMillis;
+
+    private final Axis east = new Axis();
+    private final Axis north = new Axis();
+    private final Axis altitude = new Axis();
+
+    private boolean initialized;
+    private boolean hasAltitude;
+    private long lastTime;
+    private double originLatitude;
+    private double originLongitude;
+    private double metersPerDegreeLongitude;
+
+    /**
+     * @param accelerationNoise how hard the device may accelerate, in m/s²: lower smooths more, higher follows
+     *                          turns more closely
+     * @param maxGapMillis fixes further apart than this start the filter over
+     */
+    public KalmanLocationFilter(double accelerationNoise, long maxGapMillis) {
+        this.accelerationVariance = accelerationNoise * accelerationNoise;
+        this.maxGapMillis = maxGapMillis;
+    }
+
+    @Override
+    public Location filter(Location loc) {
+        update(loc.getTime(), loc.getLatitude(), loc.getLongitude(),
+                loc.hasAltitude(), loc.getAltitude(), loc.hasAccuracy() ? loc.getAccuracy() : 0);
+
+        loc.setLatitude(getLatitude());
+        loc.setLongitude(getLongitude());
+        if (loc.hasAltitude() && hasAltitude) {
+            loc.setAltitude(getAltitude());
+        }
+        loc.setAccuracy(getAccuracy());
+        return loc;
+    }
+
+    @Override
+    public void reset() {
+        initialized = false;
+    }
+
+    /**
+     * Takes a fix into the filter
+     *
+     * @param accuracy horizontal accuracy in metres, 0 if unknown
+     */
+    public void update(long time, double latitude, double longitude, boolean withAltitude, double alt, float accuracy) {
+        double variance = accuracy > 0 ? (double) accuracy * accuracy : DEFAULT_ACCURACY * DEFAULT_ACCURACY;
+
+        long gap = time - lastTime;
+        if (!initialized || gap < 0 || gap > maxGapMillis) {
+            setOrigin(latitude, longitude);
+            east.start(0, variance);
+            north.start(0, variance);
+            hasAltitude = withAltitude;
+            if (withAltitude) {
+                altitude.start(alt, variance * ALTITUDE_ACCURACY_FACTOR * ALTITUDE_ACCURACY_FACTOR);
+            }
+            lastTime = time;
+            initialized = true;
+            return;
+        }
+
+        double dt = gap / 1000.0;
+        if (dt > 0) {
+            east.predict(dt, accelerationVariance);
+            north.predict(dt, accelerationVariance);
+            if (hasAltitude) {
+                altitude.predict(dt, accelerationVariance);
+            }
+            lastTime = time;
+        }
+
+        east.correct((longitude - originLongitude) * metersPerDegreeLongitude, variance);
+        north.correct((latitude - originLatitude) * METERS_PER_DEGREE, variance);
+        if (withAltitude) {
+            double altitudeVariance = variance * ALTITUDE_ACCURACY_FACTOR * ALTITUDE_ACCURACY_FACTOR;
+            if (hasAltitude) {
+                altitude.correct(alt, altitudeVariance);
+            } else {
+                altitude.start(alt, altitudeVariance);
+                hasAltitude = true;
+            }
+        }
+
+        if (Math.abs(east.position) > MAX_ORIGIN_DISTANCE || Math.abs(north.position) > MAX_ORIGIN_DISTANCE) {
+            double currentLatitude = getLatitude();
+            double currentLongitude = getLongitude();
+            setOrigin(currentLatitude, currentLongitude);
+            east.position = 0;
+            north.position = 0;
+        }
+    }
+
+    public double getLatitude() {
+        return originLatitude + north.position / METERS_PER_DEGREE;
+    }
+
+    public double getLongitude() {
+        return originLongitude + east.position / metersPerDegreeLongitude;
+    }
+
+    public double getAltitude() {
+        return altitude.position;
+    }
+
+    /**
+     * Estimated horizontal accuracy of the smoothed position, in metres
+     */
+    public float getAccuracy() {
+        return (float) Math.sqrt(Math.max(east.positionVariance, north.positionVariance));
+    }
+
+    /**
+     * Estimated speed over ground, in m/s
+     */
+    public double getSpeed() {
+        return Math.sqrt(east.velocity * east.velocity + north.velocity * north.velocity);
+    }
+
+    public boolean isInitialized() {
+        return initialized;
+    }
+
+    private void setOrigin(double latitude, double longitude) {
+        originLatitude = latitude;
+        originLongitude = longitude;
+        //Never quite zero, even at the poles
+        metersPerDegreeLongitude = Math.max(1.0, METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude)));
+    }
+
+    /**
+     * Position and velocity along one axis, with their 2x2 covariance
+     */
+    private static class Axis {
+        double position;
+        double velocity;
+        double positionVariance;
+        double covariance;
+        double velocityVariance;
+
+        void start(double measured, double variance) {
+            position = measured;
+            velocity = 0;
+            positionVariance = variance;
+            covariance = 0;
+            //Nothing is known about the velocity yet; this allows anything up to motorway speeds
+            velocityVariance = 30 * 30;
+        }
+
+        void predict(double dt, double accelerationVariance) {
+            position += velocity * dt;
+
+            //P = F P F' + Q, with F = [1 dt; 0 1] and Q from white noise acceleration
+            double dt2 = dt * dt;
+            positionVariance += 2 * dt * covariance + dt2 * velocityVariance + accelerationVariance * dt2 * dt2 / 4;
+            covariance += dt * velocityVariance + accelerationVariance * dt2 * dt / 2;
+            velocityVariance += accelerationVariance * dt2;
+        }
+
+        void correct(double measured, double variance) {
+            double innovation = measured - position;
+            double innovationVariance = positionVariance + variance;
+            double positionGain = positionVariance / innovationVariance;
+            double velocityGain = covariance / innovationVariance;
+
+            position += positionGain * innovation;
+            velocity += velocityGain * innovation;
+
+            //P = (I - K H) P
+            double newPositionVariance = (1 - positionGain) * positionVariance;
+            double newCovariance = (1 - positionGain) * covariance;
+            velocityVariance -= velocityGain * covariance;
+            positionVariance = newPositionVariance;
+            covariance = newCovariance;
+        }
+    }
+}
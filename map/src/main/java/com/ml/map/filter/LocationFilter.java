@@ -0,0 +1,20 @@
+package com.ml.map.filter;
+
+import android.location.Location;
+
+/**
+ * A stage fixes go through before they are logged. Filters work from each fix's own time, never the clock, so a
+ * replayed track comes out the same as it did live.
+ */
+public interface LocationFilter {
+
+    /**
+     * @return the fix to log, which may be the one passed in with its values changed, or null to drop it
+     */
+    Location filter(Location loc);
+
+    /**
+     * Forgets earlier fixes, e.g. when logging starts again
+     */
+    void reset();
+}
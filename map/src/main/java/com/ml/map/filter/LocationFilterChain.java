@@ -0,0 +1,160 @@
+package com.ml.map.filter;
+
+import android.location.Location;
+
+import com.ml.map.PreferenceHelper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Runs each fix through an ordered list of {@link FilterStage}s and drops it at the first one that stops it.
+ * The stages see the fix as a {@link Fix}, and compare it with the last fix that made it all the way through.
+ */
+public class LocationFilterChain implements LocationFilter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LocationFilterChain.class);
+
+    public static final String PROVIDER = "provider";
+    public static final String ACCURACY = "accuracy";
+    public static final String SPEED = "speed";
+    public static final String SMOOTHING = "smoothing";
+    public static final String STILLNESS = "stillness";
+    public static final String DISTANCE = "distance";
+    public static final String TIME = "time";
+    public static final String DEFAULT_ORDER = PROVIDER + "," + ACCURACY + "," + SPEED + "," + SMOOTHING + ","
+            + STILLNESS + "," + DISTANCE + "," + TIME;
+
+    private static final double MAX_SPEED = 357; //357 m/s ~=  1285 km/h
+    private static final double JITTER_DISTANCE = 10;
+    private static final long SMOOTHING_MAX_GAP_MILLIS = 60 * 1000;
+
+    private final List<FilterStage> stages = new ArrayList<>();
+    private final Fix fix = new Fix();
+    private final Fix last = new Fix();
+    private boolean hasLast;
+    private FilterStage rejectedBy;
+
+    public LocationFilterChain add(FilterStage stage) {
+        stages.add(stage);
+        return this;
+    }
+
+    /**
+     * Builds the stages named in the user's filter order, set up from their preferences
+     */
+    public static LocationFilterChain fromPreferences(PreferenceHelper preferenceHelper, StillnessGate.Source stillness) {
+        LocationFilterChain chain = new LocationFilterChain();
+        for (String name : preferenceHelper.getLocationFilterOrder().split(",")) {
+            switch (name.trim().toLowerCase(Locale.US)) {
+                case "":
+                    break;
+                case PROVIDER:
+                    chain.add(new ProviderGate(preferenceHelper.getChosenListeners().contains("gps"),
+                            preferenceHelper.getChosenListeners().contains("network")));
+                    break;
+                case ACCURACY:
+                    chain.add(new AccuracyGate(preferenceHelper.getMinimumAccuracy(),
+                            preferenceHelper.getLoggingRetryPeriod() * 1000L));
+                    break;
+                case SPEED:
+                    chain.add(new SpeedJumpGate(MAX_SPEED));
+                    break;
+                case SMOOTHING:
+                    if (preferenceHelper.shouldSmoothLocations()) {
+                        chain.add(new SmoothingStage(new KalmanLocationFilter(preferenceHelper.getSmoothingAcceleration(),
+                                SMOOTHING_MAX_GAP_MILLIS)));
+                    }
+                    break;
+                case STILLNESS:
+                    chain.add(new StillnessGate(stillness, preferenceHelper.getMinimumLoggingInterval() * 1000L));
+                    break;
+                case DISTANCE:
+                    chain.add(new DistanceGate(preferenceHelper.getMinimumDistanceInterval(), JITTER_DISTANCE));
+                    break;
+                case TIME:
+                    chain.add(new TimeGate(preferenceHelper.getMinimumLoggingInterval() * 1000L));
+                    break;
+                default:
+                    LOG.warn("Unknown location filter " + name + ", ignoring");
+            }
+        }
+        return chain;
+    }
+
+    @Override
+    public Location filter(Location loc) {
+        return filter(loc, false);
+    }
+
+    /**
+     * @param forced whether the point has to be logged whatever the gates say, e.g. because it carries an annotation
+     */
+    public Location filter(Location loc, boolean forced) {
+        if (!filter(fix.set(loc, forced))) {
+            return null;
+        }
+        fix.applyTo(loc);
+        return loc;
+    }
+
+    /**
+     * Runs a fix through the stages, which may change its position
+     *
+     * @return whether the fix made it through every stage, in which case it becomes the one later fixes are
+     * compared with
+     */
+    public boolean filter(Fix fix) {
+        rejectedBy = null;
+        for (FilterStage stage : stages) {
+            if (!stage.test(fix, hasLast ? last : null)) {
+                rejectedBy = stage;
+                LOG.debug("Location stopped by the " + stage.getName() + " filter");
+                return false;
+            }
+        }
+        last.copyFrom(fix);
+        hasLast = true;
+        return true;
+    }
+
+    @Override
+    public void reset() {
+        hasLast = false;
+        rejectedBy = null;
+        for (FilterStage stage : stages) {
+            stage.reset();
+        }
+    }
+
+    /**
+     * @return the stage that stopped the last fix, or null if it got through
+     */
+    public FilterStage getRejectedBy() {
+        return rejectedBy;
+    }
+
+    /**
+     * Whether the stage that stopped the last fix has given up waiting for a better one this time round
+     */
+    public boolean isGivingUp() {
+        return rejectedBy != null && rejectedBy.isGivingUp();
+    }
+
+    public List<FilterStage> getStages() {
+        return Collections.unmodifiableList(stages);
+    }
+
+    /**
+     * Pass/reject counts for each stage, e.g. for the debug log
+     */
+    @Override
+    public String toString() {
+        return stages.toString();
+    }
+}
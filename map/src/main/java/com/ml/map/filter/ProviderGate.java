@@ -0,0 +1,27 @@
+package com.ml.map.filter;
+
+/**
+ * Stops fixes from a provider the user hasn't chosen. With neither GPS nor network chosen, everything gets
+ * through.
+ */
+public class ProviderGate extends FilterStage {
+
+    private static final String GPS = "gps";
+
+    private final boolean gps;
+    private final boolean network;
+
+    public ProviderGate(boolean gps, boolean network) {
+        super("provider");
+        this.gps = gps;
+        this.network = network;
+    }
+
+    @Override
+    protected boolean accept(Fix fix, Fix last) {
+        if (gps == network) {
+            return true;
+        }
+        return GPS.equalsIgnoreCase(fix.provider) == gps;
+    }
+}
@@ -0,0 +1,32 @@
+package com.ml.map.filter;
+
+/**
+ * Runs fixes through a {@link KalmanLocationFilter} and carries on with the smoothed position. Lets every fix
+ * through.
+ */
+public class SmoothingStage extends FilterStage {
+
+    private final KalmanLocationFilter kalman;
+
+    public SmoothingStage(KalmanLocationFilter kalman) {
+        super("smoothing");
+        this.kalman = kalman;
+    }
+
+    @Override
+    protected boolean accept(Fix fix, Fix last) {
+        kalman.update(fix.time, fix.latitude, fix.longitude, fix.hasAltitude, fix.altitude, fix.accuracy);
+        fix.latitude = kalman.getLatitude();
+        fix.longitude = kalman.getLongitude();
+        if (fix.hasAltitude) {
+            fix.altitude = kalman.getAltitude();
+        }
+        fix.accuracy = kalman.getAccuracy();
+        return true;
+    }
+
+    @Override
+    public void reset() {
+        kalman.reset();
+    }
+}
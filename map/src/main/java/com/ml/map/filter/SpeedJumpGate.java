@@ -0,0 +1,33 @@
+package com.ml.map.filter;
+
+import com.ml.map.Maths;
+
+/**
+ * Stops fixes that would mean travelling faster than a limit since the last one logged, which is almost always
+ * a bad jump rather than real movement.
+ */
+public class SpeedJumpGate extends FilterStage {
+
+    private final double maxSpeed;
+
+    /**
+     * @param maxSpeed in m/s
+     */
+    public SpeedJumpGate(double maxSpeed) {
+        super("speed");
+        this.maxSpeed = maxSpeed;
+    }
+
+    @Override
+    protected boolean accept(Fix fix, Fix last) {
+        if (last == null) {
+            return true;
+        }
+        long seconds = Math.abs(fix.time - last.time) / 1000;
+        if (seconds == 0) {
+            return true;
+        }
+        double distance = Maths.calculateDistance(fix.latitude, fix.longitude, last.latitude, last.longitude);
+        return distance / seconds <= maxSpeed;
+    }
+}
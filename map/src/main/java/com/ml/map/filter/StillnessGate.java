@@ -0,0 +1,29 @@
+package com.ml.map.filter;
+
+/**
+ * Stops fixes once activity recognition has had the user still for longer than a limit
+ */
+public class StillnessGate extends FilterStage {
+
+    public interface Source {
+        /**
+         * @return when the user was first seen still, in milliseconds since the epoch, or 0 if they are moving
+         */
+        long getStillSince();
+    }
+
+    private final Source source;
+    private final long maxStillMillis;
+
+    public StillnessGate(Source source, long maxStillMillis) {
+        super("stillness");
+        this.source = source;
+        this.maxStillMillis = maxStillMillis;
+    }
+
+    @Override
+    protected boolean accept(Fix fix, Fix last) {
+        long stillSince = source.getStillSince();
+        return fix.forced || stillSince <= 0 || fix.time - stillSince <= maxStillMillis;
+    }
+}
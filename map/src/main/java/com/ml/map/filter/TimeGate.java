@@ -0,0 +1,29 @@
+package com.ml.map.filter;
+
+/**
+ * Stops fixes that come sooner than the minimum interval after the last one logged. Never logs two fixes less
+ * than a second apart.
+ */
+public class TimeGate extends FilterStage {
+
+    private static final long MIN_INTERVAL_MILLIS = 1000;
+
+    private final long minIntervalMillis;
+
+    public TimeGate(long minIntervalMillis) {
+        super("time");
+        this.minIntervalMillis = Math.max(minIntervalMillis, MIN_INTERVAL_MILLIS);
+    }
+
+    @Override
+    protected boolean accept(Fix fix, Fix last) {
+        if (last == null) {
+            return true;
+        }
+        long elapsed = Math.abs(fix.time - last.time);
+        if (fix.forced) {
+            return elapsed >= MIN_INTERVAL_MILLIS;
+        }
+        return elapsed >= minIntervalMillis;
+    }
+}
@@ -17,15 +17,54 @@ import com.google.android.gms.maps.SupportMapFragment;
 import com.google.android.gms.maps.model.LatLng;
 import com.google.android.gms.maps.model.Marker;
 import com.google.android.gms.maps.model.MarkerOptions;
+import com.google.android.gms.maps.model.Polyline;
+import com.google.android.gms.maps.model.PolylineOptions;
 import com.ml.map.EventBusHook;
 import com.ml.map.GoblobLocationManager;
+import com.ml.map.PreferenceHelper;
 import com.ml.map.R;
 import com.ml.map.ServiceEvents;
+import com.ml.map.Strings;
+import com.ml.map.track.MappedTrackReader;
+import com.ml.map.track.TrackFileLogger;
+import com.ml.map.track.TrackPoints;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 public abstract class MLMapsFragment extends MLFragment {
 
+    private static final Logger LOG = LoggerFactory.getLogger(MLMapsFragment.class);
+
+    /**
+     * Most points of the current session drawn when the map opens
+     */
+    private static final int SESSION_TRACK_POINTS = 5000;
+
+    private static final ExecutorService trackLoader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "goblob-track-loader");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
     private GoblobLocationManager session = GoblobLocationManager.getInstance();
     private GoogleMap googleMap;
+    private Polyline trackLine;
+    private long trackEndTime;
+    /**
+     * Times of the live points appended to the track line since it was drawn from the file, which are its last points
+     */
+    private final List<Long> liveTimes = new ArrayList<>();
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -73,20 +112,141 @@ public abstract class MLMapsFragment extends MLFragment {
                 marker = googleMap.addMarker(new MarkerOptions().position(sydney).title("Me"));
                 googleMap.moveCamera(CameraUpdateFactory.newLatLngZoom(sydney, 16));
             }
+            showSessionTrack();
         }
     };
 
+    /**
+     * Draws the last points of the current session's track file
+     */
+    private void showSessionTrack() {
+        String fileName = session.getCurrentFormattedFileName();
+        if (Strings.isNullOrEmpty(fileName) || Strings.isNullOrEmpty(PreferenceHelper.getInstance().getGoblobFolder())) {
+            return;
+        }
+        loadTrack(new File(PreferenceHelper.getInstance().getGoblobFolder(), fileName + TrackFileLogger.EXTENSION), 0, 0, true);
+    }
+
+    /**
+     * Replaces the drawn track with the points of the given track file between from and to, e.g. to show a past day.
+     * Live location updates are not added to it.
+     */
+    public void showTrack(File trackFile, long from, long to) {
+        loadTrack(trackFile, from, to, false);
+    }
+
+    /**
+     * Reads the track on a background thread, then draws it on the UI thread
+     *
+     * @param last true for the last {@link #SESSION_TRACK_POINTS} points, false for the range from - to
+     */
+    private void loadTrack(final File trackFile, final long from, final long to, final boolean last) {
+        trackLoader.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!trackFile.exists()) {
+                    return;
+                }
+
+                final TrackPoints points = new TrackPoints();
+                MappedTrackReader reader = null;
+                try {
+                    reader = MappedTrackReader.open(trackFile);
+                    if (last) {
+                        reader.last(SESSION_TRACK_POINTS, points);
+                    } else {
+                        reader.query(from, to, points);
+                    }
+                } catch (Exception e) {
+                    LOG.error("Could not read track " + trackFile.getName(), e);
+                    return;
+                } finally {
+                    if (reader != null) {
+                        try {
+                            reader.close();
+                        } catch (Exception e) {
+                            LOG.warn("Could not close track " + trackFile.getName(), e);
+                        }
+                    }
+                }
+
+                if (getActivity() == null) {
+                    return;
+                }
+                getActivity().runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        drawTrack(points, last);
+                    }
+                });
+            }
+        });
+    }
+
+    private void drawTrack(TrackPoints points, boolean live) {
+        if (googleMap == null) {
+            return;
+        }
+
+        List<LatLng> latLngs = new ArrayList<>(points.size());
+        for (int i = 0; i < points.size(); i++) {
+            latLngs.add(new LatLng(points.getLatitude(i), points.getLongitude(i)));
+        }
+        long endTime = points.size() > 0 ? points.getTime(points.size() - 1) : 0;
+
+        List<Long> keptTimes = new ArrayList<>();
+        if (live && trackLine != null) {
+            //Keep the points that came in while the file was being read, unless the file already has them
+            List<LatLng> drawn = trackLine.getPoints();
+            int firstLive = drawn.size() - liveTimes.size();
+            for (int i = 0; i < liveTimes.size(); i++) {
+                if (liveTimes.get(i) > endTime) {
+                    latLngs.add(drawn.get(firstLive + i));
+                    keptTimes.add(liveTimes.get(i));
+                }
+            }
+            endTime = Math.max(endTime, trackEndTime);
+        }
+        liveTimes.clear();
+        liveTimes.addAll(keptTimes);
+
+        if (trackLine != null) {
+            trackLine.remove();
+        }
+        trackLine = googleMap.addPolyline(new PolylineOptions().addAll(latLngs).width(8).color(0xFF2196F3));
+        trackEndTime = live ? endTime : Long.MAX_VALUE;
+    }
+
     @EventBusHook
     public void onEventMainThread(ServiceEvents.LocationUpdate locationUpdate){
+        if(googleMap == null || session.getCurrentLocationInfo() == null) {
+            return;
+        }
         LatLng sydney = new LatLng(session.getCurrentLocationInfo().getLatitude(), session.getCurrentLocationInfo().getLongitude());
         if(marker == null) {
             marker = googleMap.addMarker(new MarkerOptions().position(sydney).title("Me"));
         } else {
             marker.setPosition(sydney);
         }
+        appendToTrack(sydney, session.getCurrentLocationInfo().getTime());
         googleMap.animateCamera(CameraUpdateFactory.newLatLngZoom(sydney, 16));
     }
 
+    private void appendToTrack(LatLng point, long time) {
+        if (time <= trackEndTime) {
+            return;
+        }
+        if (trackLine == null) {
+            trackLine = googleMap.addPolyline(new PolylineOptions().add(point).width(8).color(0xFF2196F3));
+        } else {
+            List<LatLng> points = trackLine.getPoints();
+            points.add(point);
+            trackLine.setPoints(points);
+        }
+        liveTimes.add(time);
+        trackEndTime = time;
+    }
+
     @Override
     protected void displayLocationInfo(Location location) {
 
@@ -2,40 +2,208 @@ package com.ml.map.geojson;
 
 import android.location.Location;
 
-import com.ml.map.FileLogger;
-import com.ml.map.RejectionHandler;
+import com.ml.map.ByteEncoder;
+import com.ml.map.Files;
+import com.ml.map.MediaIndexer;
+import com.ml.map.PreferenceHelper;
+import com.ml.map.SegmentedFileLogger;
+import com.ml.map.Strings;
+import com.ml.map.TrailerFileWriter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 
 /**
  * Created by clemens on 10.05.17.
+ *
+ * Streams a GeoJSON FeatureCollection. The file stays open for the whole session, features are encoded
+ * straight to bytes and the closing {@code ]}} is only rewritten on flush.
+ *
+ * By default every fix is a Point feature. In LineString mode each track segment is a single LineString
+ * feature whose coordinates grow with every fix; annotations then become Point features that are collected
+ * in a journal next to the file and appended when the file is closed.
  */
 
-public class GeoJSONLogger implements FileLogger {
+public class GeoJSONLogger implements SegmentedFileLogger {
+    private static final Logger LOG = LoggerFactory.getLogger(GeoJSONLogger.class);
     final static Object lock = new Object();
-    private final static ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(10), new RejectionHandler());
+
+    static final String HEADER = "{\"type\": \"FeatureCollection\",\"features\": [\n";
+    static final byte[] POINT_START = "{\"type\": \"Feature\",\"properties\":{".getBytes();
+    private static final byte[] POINT_GEOMETRY = "},\"geometry\":{\"type\":\"Point\",\"coordinates\":".getBytes();
+    static final byte[] LINE_GEOMETRY = "},\"geometry\":{\"type\":\"LineString\",\"coordinates\":[".getBytes();
+    private static final byte[] FEATURE_END = "}}\n".getBytes();
+    static final byte[] LINE_END = "]}}\n".getBytes();
+    static final byte[] END = "]}".getBytes();
+    private static final byte[] END_WITH_LINE = "]}}\n]}".getBytes();
+
+    /**
+     * Where a GeoJSON log body can end: after a complete feature, after the header, or after a coordinate of
+     * an open LineString. The indexes are used by {@link #getWriter(File)}.
+     */
+    private static final String[] BODY_END_MARKERS = {"]}}\n", "[\n", "]\n"};
+    private static final int MARKER_LINE_COORDINATE = 2;
+
+    private static TrailerFileWriter writer;
+    private static final ByteEncoder encoder = new ByteEncoder(512);
+    private static boolean hasFeatures;
+    private static boolean lineOpen;
+
     private final File file;
     protected final String name;
-    private final boolean addNewTrackSegment;
+    private final boolean lineStrings;
+
+    public GeoJSONLogger(File file) {
+        this(file, false);
+    }
 
-    public GeoJSONLogger(File file, boolean addNewTrackSegment) {
+    public GeoJSONLogger(File file, boolean lineStrings) {
         this.file = file;
         name = "GeoJSON";
-        this.addNewTrackSegment = addNewTrackSegment;
+        this.lineStrings = lineStrings;
     }
 
     @Override
     public void write(Location loc) throws Exception {
-        annotate(null, loc);
+        write(loc, false);
+    }
+
+    @Override
+    public void write(Location loc, boolean addNewTrackSegment) throws Exception {
+        if (!lineStrings) {
+            annotate(null, loc);
+            return;
+        }
+
+        synchronized (lock) {
+            TrailerFileWriter lineWriter = getWriter(file);
+
+            encoder.reset();
+            if (lineOpen && addNewTrackSegment) {
+                encoder.bytes(LINE_END);
+                lineOpen = false;
+            }
+
+            if (lineOpen) {
+                encoder.ascii(',');
+            } else {
+                if (hasFeatures) {
+                    encoder.ascii(',');
+                }
+                encoder.bytes(POINT_START);
+                encodeProperties(encoder, loc, null);
+                encoder.bytes(LINE_GEOMETRY);
+                lineOpen = true;
+                hasFeatures = true;
+            }
+            encodeCoordinates(encoder, loc);
+            encoder.ascii('\n');
+
+            lineWriter.append(encoder);
+            lineWriter.setTrailer(END_WITH_LINE);
+            lineWriter.recordWritten();
+        }
     }
 
     @Override
     public void annotate(String description, Location loc) throws Exception {
-        Runnable gw = new GeoJSONWriterPoints(file, loc, description, addNewTrackSegment);
-        EXECUTOR.execute(gw);
+        synchronized (lock) {
+            if (lineStrings) {
+                if (Strings.isNullOrEmpty(description)) {
+                    return;
+                }
+
+                //Kept out of the way of the open LineString until the file is closed
+                boolean writing = writer != null && writer.getFile().equals(file);
+                encoder.reset().ascii(',');
+                encodePointFeature(encoder, loc, description);
+                FileOutputStream journal = new FileOutputStream(getFeatureJournal(file), true);
+                try {
+                    journal.write(encoder.array(), 0, encoder.length());
+                } finally {
+                    journal.close();
+                }
+
+                if (!writing && Files.reallyExists(file)) {
+                    //Nothing will close this file later, so splice the feature in now
+                    getWriter(file);
+                    closeWriter();
+                }
+                return;
+            }
+
+            TrailerFileWriter pointWriter = getWriter(file);
+
+            encoder.reset();
+            if (lineOpen) {
+                encoder.bytes(LINE_END);
+                lineOpen = false;
+            }
+            if (hasFeatures) {
+                encoder.ascii(',');
+            }
+            encodePointFeature(encoder, loc, description);
+            hasFeatures = true;
+
+            pointWriter.append(encoder);
+            pointWriter.setTrailer(END);
+            pointWriter.recordWritten();
+        }
+    }
+
+    static void encodePointFeature(ByteEncoder encoder, Location loc, String description) {
+        encoder.bytes(POINT_START);
+        encodeProperties(encoder, loc, description);
+        encoder.bytes(POINT_GEOMETRY);
+        encodeCoordinates(encoder, loc);
+        encoder.bytes(FEATURE_END);
+    }
+
+    static void encodeProperties(ByteEncoder encoder, Location loc, String description) {
+        encoder.ascii("\"time\":\"").isoDateTime(loc.getTime()).ascii('"');
+        encoder.ascii(",\"provider\":\"").utf8(loc.getProvider()).ascii('"');
+        encoder.ascii(",\"time_long\":\"").number(loc.getTime()).ascii('"');
+        if (!Strings.isNullOrEmpty(description)) {
+            encoder.ascii(",\"description\":\"").utf8(Strings.cleanDescriptionForJson(description)).ascii('"');
+        }
+        if (loc.hasAccuracy()) {
+            encoder.ascii(",\"accuracy\":\"").decimal(loc.getAccuracy(), 3).ascii('"');
+        }
+        if (loc.hasAltitude()) {
+            encoder.ascii(",\"altitude\":\"").decimal(loc.getAltitude(), 3).ascii('"');
+        }
+        if (loc.hasBearing()) {
+            encoder.ascii(",\"bearing\":\"").decimal(loc.getBearing(), 3).ascii('"');
+        }
+        if (loc.hasSpeed()) {
+            encoder.ascii(",\"speed\":\"").decimal(loc.getSpeed(), 3).ascii('"');
+        }
+    }
+
+    static void encodeCoordinates(ByteEncoder encoder, Location loc) {
+        encoder.ascii('[').decimal(loc.getLongitude(), 8).ascii(',').decimal(loc.getLatitude(), 8).ascii(']');
+    }
+
+    @Override
+    public void flush() throws IOException {
+        synchronized (lock) {
+            if (writer != null && writer.getFile().equals(file)) {
+                writer.flush();
+                Files.addToMediaDatabase(file, "application/json");
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            closeWriter();
+        }
     }
 
     @Override
@@ -43,8 +211,97 @@ public class GeoJSONLogger implements FileLogger {
         return name;
     }
 
-    public static int getCount(){
-        return EXECUTOR.getActiveCount();
+    static File getFeatureJournal(File file) {
+        return new File(file.getPath() + ".features");
     }
-}
 
+    /**
+     * Returns the session writer for the given file, closing the previous one if the file has rotated.
+     * An existing file is repaired on open: anything after the last complete feature or coordinate is
+     * replaced by the closing brackets. Must be called while holding {@link #lock}.
+     */
+    private static TrailerFileWriter getWriter(File file) throws IOException {
+        if (writer != null && writer.getFile().equals(file) && file.exists()) {
+            return writer;
+        }
+
+        closeWriter();
+
+        try {
+            writer = TrailerFileWriter.open(file, HEADER, BODY_END_MARKERS);
+        } catch (IOException e) {
+            File broken = new File(file.getPath() + ".broken");
+            LOG.error("Could not recover " + file.getName() + ", moving it to " + broken.getName(), e);
+            if (!file.renameTo(broken)) {
+                throw e;
+            }
+            writer = TrailerFileWriter.open(file, HEADER, BODY_END_MARKERS);
+        }
+
+        int marker = writer.getRecoveredMarker();
+        hasFeatures = marker == 0 || marker == MARKER_LINE_COORDINATE;
+        lineOpen = marker == MARKER_LINE_COORDINATE;
+
+        PreferenceHelper preferenceHelper = PreferenceHelper.getInstance();
+        writer.setSyncPolicy(preferenceHelper.getFileSyncPoints(), preferenceHelper.getFileSyncSeconds() * 1000L);
+        writer.setTrailer(lineOpen ? END_WITH_LINE : END);
+        writer.flush();
+
+        if (marker < 0) {
+            Files.addToMediaDatabase(file, "application/json");
+        }
+
+        return writer;
+    }
+
+    /**
+     * Closes the open LineString, appends journaled annotation features and closes the session writer, if any.
+     * Must be called while holding {@link #lock}.
+     */
+    private static void closeWriter() throws IOException {
+        if (writer == null) {
+            return;
+        }
+
+        TrailerFileWriter closing = writer;
+        writer = null;
+        File journal = getFeatureJournal(closing.getFile());
+        try {
+            if (journal.exists()) {
+                if (lineOpen) {
+                    closing.append(LINE_END);
+                    lineOpen = false;
+                }
+                appendJournal(closing, journal, hasFeatures);
+                closing.setTrailer(END);
+            }
+        } finally {
+            closing.close();
+        }
+
+        if (journal.exists() && !journal.delete()) {
+            LOG.warn("Could not delete " + journal.getPath());
+        }
+        MediaIndexer.getInstance().indexNow(closing.getFile(), "application/json");
+        LOG.debug("Closed GeoJSON file " + closing.getFile().getName());
+    }
+
+    /**
+     * Journaled features each start with a divider, which the first one must drop if the collection is still empty
+     */
+    private static void appendJournal(TrailerFileWriter writer, File journal, boolean hasFeatures) throws IOException {
+        FileInputStream in = new FileInputStream(journal);
+        try {
+            byte[] buffer = new byte[8192];
+            int skip = hasFeatures ? 0 : 1;
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                int offset = Math.min(skip, read);
+                skip -= offset;
+                writer.append(buffer, offset, read - offset);
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.ml.map.geojson;
+
+import android.location.Location;
+
+import com.ml.map.Strings;
+import com.ml.map.track.FileTrackEncoder;
+
+import java.io.IOException;
+
+/**
+ * Exports a stored track as a GeoJSON FeatureCollection, with the same features as {@link GeoJSONLogger}:
+ * either one Point per fix, or one LineString per segment followed by the annotation Points.
+ */
+public class GeoJSONTrackEncoder extends FileTrackEncoder {
+
+    private final boolean lineStrings;
+    private boolean hasFeatures;
+    private boolean lineOpen;
+    private boolean hasSpooledFeatures;
+
+    public GeoJSONTrackEncoder(boolean lineStrings) {
+        this.lineStrings = lineStrings;
+    }
+
+    @Override
+    public String getExtension() {
+        return ".geojson";
+    }
+
+    @Override
+    protected void begin(long startTime) throws IOException {
+        output(encoder.reset().ascii(GeoJSONLogger.HEADER));
+    }
+
+    @Override
+    public void write(Location loc, boolean newSegment) throws IOException {
+        if (!lineStrings) {
+            annotate(null, loc);
+            return;
+        }
+
+        encoder.reset();
+        if (lineOpen && newSegment) {
+            encoder.bytes(GeoJSONLogger.LINE_END);
+            lineOpen = false;
+        }
+
+        if (lineOpen) {
+            encoder.ascii(',');
+        } else {
+            if (hasFeatures) {
+                encoder.ascii(',');
+            }
+            encoder.bytes(GeoJSONLogger.POINT_START);
+            GeoJSONLogger.encodeProperties(encoder, loc, null);
+            encoder.bytes(GeoJSONLogger.LINE_GEOMETRY);
+            lineOpen = true;
+            hasFeatures = true;
+        }
+        GeoJSONLogger.encodeCoordinates(encoder, loc);
+        encoder.ascii('\n');
+        output(encoder);
+    }
+
+    @Override
+    public void annotate(String description, Location loc) throws IOException {
+        encoder.reset();
+        if (lineStrings) {
+            if (Strings.isNullOrEmpty(description)) {
+                return;
+            }
+
+            //Kept out of the way of the open LineString until the end
+            if (hasSpooledFeatures) {
+                encoder.ascii(',');
+            }
+            GeoJSONLogger.encodePointFeature(encoder, loc, description);
+            spool(encoder);
+            hasSpooledFeatures = true;
+            return;
+        }
+
+        if (hasFeatures) {
+            encoder.ascii(',');
+        }
+        GeoJSONLogger.encodePointFeature(encoder, loc, description);
+        output(encoder);
+        hasFeatures = true;
+    }
+
+    @Override
+    protected void end() throws IOException {
+        if (lineOpen) {
+            output(GeoJSONLogger.LINE_END);
+            lineOpen = false;
+        }
+        if (hasSpooledFeatures && hasFeatures) {
+            output(encoder.reset().ascii(','));
+        }
+        appendSpool();
+        output(GeoJSONLogger.END);
+    }
+}
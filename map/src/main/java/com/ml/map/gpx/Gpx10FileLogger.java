@@ -23,40 +23,52 @@ import android.location.Location;
 
 import com.ml.map.BuildConfig;
 import com.ml.map.BundleConstants;
-import com.ml.map.FileLogger;
 import com.ml.map.Files;
 import com.ml.map.Maths;
-import com.ml.map.RejectionHandler;
+import com.ml.map.MediaIndexer;
+import com.ml.map.PreferenceHelper;
+import com.ml.map.SegmentedFileLogger;
 import com.ml.map.Strings;
+import com.ml.map.TrailerFileWriter;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.RandomAccessFile;
+import java.io.IOException;
 import java.util.Date;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
-public class Gpx10FileLogger implements FileLogger {
+/**
+ * Writes GPX 1.0 track logs. The current file stays open for the whole session through a
+ * {@link TrailerFileWriter}; points are appended and the closing tags are only rewritten on flush.
+ */
+public class Gpx10FileLogger implements SegmentedFileLogger {
+    private static final Logger LOG = LoggerFactory.getLogger(Gpx10FileLogger.class);
     protected final static Object lock = new Object();
 
-    private final static ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
-            new LinkedBlockingQueue<Runnable>(10), new RejectionHandler());
+    static final String TRACK_START = "<trk>";
+    static final byte[] END_XML = "</trk></gpx>".getBytes();
+    static final byte[] END_XML_WITH_SEGMENT = "</trkseg></trk></gpx>".getBytes();
+
+    /**
+     * Where a track log body can end: after a complete track point, or right after the opening track tag
+     */
+    private static final String[] BODY_END_MARKERS = {"</trkpt>\n", TRACK_START};
+
+    private static TrailerFileWriter writer;
+
     private File gpxFile = null;
-    private final boolean addNewTrackSegment;
     protected final String name = "GPX";
 
-    public Gpx10FileLogger(File gpxFile, boolean addNewTrackSegment) {
+    public Gpx10FileLogger(File gpxFile) {
         this.gpxFile = gpxFile;
-        this.addNewTrackSegment = addNewTrackSegment;
     }
 
     public void write(Location loc) throws Exception {
+        write(loc, false);
+    }
+
+    @Override
+    public void write(Location loc, boolean addNewTrackSegment) throws Exception {
         long time = loc.getTime();
         if (time <= 0) {
             time = System.currentTimeMillis();
@@ -64,7 +76,7 @@ public class Gpx10FileLogger implements FileLogger {
         String dateTimeString = Strings.getIsoDateTime(new Date(time));
 
         Runnable writeHandler = getWriteHandler(dateTimeString, gpxFile, loc, addNewTrackSegment);
-        EXECUTOR.execute(writeHandler);
+        writeHandler.run();
     }
 
     public Runnable getWriteHandler(String dateTimeString, File gpxFile, Location loc, boolean addNewTrackSegment)
@@ -83,13 +95,85 @@ public class Gpx10FileLogger implements FileLogger {
         String dateTimeString = Strings.getIsoDateTime(new Date(time));
 
         Runnable annotateHandler = getAnnotateHandler(description, gpxFile, loc, dateTimeString);
-        EXECUTOR.execute(annotateHandler);
+        annotateHandler.run();
     }
 
     public Runnable getAnnotateHandler(String description, File gpxFile, Location loc, String dateTimeString){
-        //Use the writer to calculate initial XML length, use that as offset for annotations
-        Gpx10WriteHandler writer = (Gpx10WriteHandler)getWriteHandler(dateTimeString, gpxFile, loc, true);
-        return new Gpx10AnnotateHandler(description, gpxFile, loc, dateTimeString, writer.getBeginningXml(dateTimeString).length());
+        return new Gpx10AnnotateHandler(description, gpxFile, loc, dateTimeString);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        synchronized (lock) {
+            if (writer != null && writer.getFile().equals(gpxFile)) {
+                writer.flush();
+                Files.addToMediaDatabase(gpxFile, "text/plain");
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            closeWriter();
+        }
+    }
+
+    /**
+     * Returns the session writer for the given file, closing the previous one if the file has rotated.
+     * An existing file is repaired on open: anything after the last complete track point is replaced by the closing tags.
+     * Must be called while holding {@link #lock}.
+     */
+    static TrailerFileWriter getWriter(File gpxFile, String initialXml) throws IOException {
+        if (writer != null && writer.getFile().equals(gpxFile) && gpxFile.exists()) {
+            return writer;
+        }
+
+        closeWriter();
+
+        try {
+            writer = TrailerFileWriter.open(gpxFile, initialXml, BODY_END_MARKERS);
+        } catch (IOException e) {
+            File broken = new File(gpxFile.getPath() + ".broken");
+            LOG.error("Could not recover " + gpxFile.getName() + ", moving it to " + broken.getName(), e);
+            if (!gpxFile.renameTo(broken)) {
+                throw e;
+            }
+            writer = TrailerFileWriter.open(gpxFile, initialXml, BODY_END_MARKERS);
+        }
+
+        PreferenceHelper preferenceHelper = PreferenceHelper.getInstance();
+        writer.setSyncPolicy(preferenceHelper.getFileSyncPoints(), preferenceHelper.getFileSyncSeconds() * 1000L);
+
+        //Only a recovered track point leaves a segment open
+        writer.setTrailer(writer.getRecoveredMarker() == 0 ? END_XML_WITH_SEGMENT : END_XML);
+        writer.flush();
+
+        if (writer.getRecoveredMarker() < 0) {
+            Files.addToMediaDatabase(gpxFile, "text/plain");
+        }
+
+        return writer;
+    }
+
+    static boolean isWriting(File gpxFile) {
+        return writer != null && writer.getFile().equals(gpxFile);
+    }
+
+    /**
+     * Flushes and closes the session writer, if any, and merges waypoints that did not fit into the file. Must be called while holding {@link #lock}.
+     */
+    static void closeWriter() throws IOException {
+        if (writer == null) {
+            return;
+        }
+
+        TrailerFileWriter closing = writer;
+        writer = null;
+        closing.close();
+        GpxWaypoints.mergeJournal(closing.getFile());
+        MediaIndexer.getInstance().indexNow(closing.getFile(), "text/plain");
+        LOG.debug("Closed GPX file " + closing.getFile().getName());
     }
 
     @Override
@@ -106,14 +190,12 @@ class Gpx10AnnotateHandler implements Runnable {
     File gpxFile;
     Location loc;
     String dateTimeString;
-    int annotateOffset;
 
-    public Gpx10AnnotateHandler(String description, File gpxFile, Location loc, String dateTimeString, int annotateOffset) {
+    public Gpx10AnnotateHandler(String description, File gpxFile, Location loc, String dateTimeString) {
         this.description = description;
         this.gpxFile = gpxFile;
         this.loc = loc;
         this.dateTimeString = dateTimeString;
-        this.annotateOffset = annotateOffset;
     }
 
     @Override
@@ -127,35 +209,11 @@ class Gpx10AnnotateHandler implements Runnable {
             String wpt = getWaypointXml(loc, dateTimeString, description);
 
             try {
-
-                //write to a temp file, delete original file, move temp to original
-                File gpxTempFile = new File(gpxFile.getAbsolutePath() + ".tmp");
-
-                BufferedInputStream bis = new BufferedInputStream(new FileInputStream(gpxFile));
-                BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(gpxTempFile));
-
-                int written = 0;
-                int readSize;
-                byte[] buffer = new byte[annotateOffset];
-                while ((readSize = bis.read(buffer)) > 0) {
-                    bos.write(buffer, 0, readSize);
-                    written += readSize;
-
-                    System.out.println(written);
-
-                    if (written == annotateOffset) {
-                        bos.write(wpt.getBytes());
-                        buffer = new byte[20480];
-                    }
-
+                if (!GpxWaypoints.add(gpxFile, wpt.getBytes()) && !Gpx10FileLogger.isWriting(gpxFile)) {
+                    //Nothing will close this file later, so merge now
+                    GpxWaypoints.mergeJournal(gpxFile);
                 }
 
-                bis.close();
-                bos.close();
-
-                gpxFile.delete();
-                gpxTempFile.renameTo(gpxFile);
-
                 LOG.debug("Finished annotation to GPX10 File");
             } catch (Exception e) {
                 LOG.error("Gpx10FileLogger.annotate", e);
@@ -208,31 +266,19 @@ class Gpx10WriteHandler implements Runnable {
         synchronized (Gpx10FileLogger.lock) {
 
             try {
-                if (!Files.reallyExists(gpxFile)) {
-                    gpxFile.createNewFile();
-
-                    FileOutputStream initialWriter = new FileOutputStream(gpxFile, true);
-                    BufferedOutputStream initialOutput = new BufferedOutputStream(initialWriter);
-
-                    initialOutput.write(getBeginningXml(dateTimeString).getBytes());
-                    initialOutput.write("<trk>".getBytes());
-                    initialOutput.write(getEndXml().getBytes());
-                    initialOutput.flush();
-                    initialOutput.close();
+                TrailerFileWriter writer = Gpx10FileLogger.getWriter(gpxFile,
+                        getBeginningXml(dateTimeString) + GpxWaypoints.getRegion() + Gpx10FileLogger.TRACK_START);
 
+                if (!writer.hasTrailer(Gpx10FileLogger.END_XML_WITH_SEGMENT)) {
                     //New file, so new segment.
-                    addNewTrackSegment = true;
+                    writer.append("<trkseg>");
+                } else if (addNewTrackSegment) {
+                    writer.append("</trkseg><trkseg>");
                 }
 
-                int offsetFromEnd = (addNewTrackSegment) ? getEndXml().length() : getEndXmlWithSegment().length();
-                long startPosition = gpxFile.length() - offsetFromEnd;
-                String trackPoint = getTrackPointXml(loc, dateTimeString);
-
-                RandomAccessFile raf = new RandomAccessFile(gpxFile, "rw");
-                raf.seek(startPosition);
-                raf.write(trackPoint.getBytes());
-                raf.close();
-                Files.addToMediaDatabase(gpxFile, "text/plain");
+                writer.append(getTrackPointXml(loc, dateTimeString));
+                writer.setTrailer(Gpx10FileLogger.END_XML_WITH_SEGMENT);
+                writer.recordWritten();
                 LOG.debug("Finished writing to GPX10 file");
 
             } catch (Exception e) {
@@ -255,22 +301,10 @@ class Gpx10WriteHandler implements Runnable {
         return initialXml.toString();
     }
 
-    String getEndXml(){
-        return "</trk></gpx>";
-    }
-
-    String getEndXmlWithSegment(){
-        return "</trkseg></trk></gpx>";
-    }
-
     String getTrackPointXml(Location loc, String dateTimeString) {
 
         StringBuilder track = new StringBuilder();
 
-        if (addNewTrackSegment) {
-            track.append("<trkseg>");
-        }
-
         track.append("<trkpt lat=\"")
                 .append(String.valueOf(loc.getLatitude()))
                 .append("\" lon=\"")
@@ -334,8 +368,6 @@ class Gpx10WriteHandler implements Runnable {
 
         track.append("</trkpt>\n");
 
-        track.append("</trkseg></trk></gpx>");
-
         return track.toString();
     }
 
@@ -10,8 +10,8 @@ import java.io.File;
  * Extension of the Gpx10FileLogger that produces overrides key methods to produce a GPX 1.1 compliant output file
  */
 public class Gpx11FileLogger extends Gpx10FileLogger {
-    public Gpx11FileLogger(File gpxFile, boolean addNewTrackSegment) {
-        super(gpxFile, addNewTrackSegment);
+    public Gpx11FileLogger(File gpxFile) {
+        super(gpxFile);
     }
 
     public Runnable getWriteHandler(String dateTimeString, File gpxFile, Location loc, boolean addNewTrackSegment)
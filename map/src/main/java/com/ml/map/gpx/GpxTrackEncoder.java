@@ -0,0 +1,66 @@
+package com.ml.map.gpx;
+
+import android.location.Location;
+
+import com.ml.map.Strings;
+import com.ml.map.track.FileTrackEncoder;
+
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * Exports a stored track as GPX 1.0 or 1.1, with the same markup as {@link Gpx10FileLogger} and
+ * {@link Gpx11FileLogger}. Waypoints have to come before the track, so they are written as they come and the
+ * track is spooled until the end.
+ */
+public class GpxTrackEncoder extends FileTrackEncoder {
+
+    private static final byte[] SEGMENT_START = "<trkseg>".getBytes();
+    private static final byte[] SEGMENT_CLOSE_AND_START = "</trkseg><trkseg>".getBytes();
+
+    private final Gpx10WriteHandler format;
+    private final Gpx10AnnotateHandler waypointFormat = new Gpx10AnnotateHandler(null, null, null, null);
+    private boolean segmentOpen;
+
+    public GpxTrackEncoder(boolean gpx11) {
+        format = gpx11 ? new Gpx11WriteHandler(null, null, null, false) : new Gpx10WriteHandler(null, null, null, false);
+    }
+
+    @Override
+    public String getExtension() {
+        return ".gpx";
+    }
+
+    @Override
+    protected void begin(long startTime) throws IOException {
+        encoder.reset().utf8(format.getBeginningXml(Strings.getIsoDateTime(new Date(startTime))));
+        output(encoder);
+    }
+
+    @Override
+    public void write(Location loc, boolean newSegment) throws IOException {
+        encoder.reset();
+        if (!segmentOpen) {
+            encoder.bytes(SEGMENT_START);
+            segmentOpen = true;
+        } else if (newSegment) {
+            encoder.bytes(SEGMENT_CLOSE_AND_START);
+        }
+        encoder.utf8(format.getTrackPointXml(loc, Strings.getIsoDateTime(new Date(loc.getTime()))));
+        spool(encoder);
+    }
+
+    @Override
+    public void annotate(String description, Location loc) throws IOException {
+        String wpt = waypointFormat.getWaypointXml(loc, Strings.getIsoDateTime(new Date(loc.getTime())),
+                Strings.cleanDescriptionForXml(description));
+        output(encoder.reset().utf8(wpt));
+    }
+
+    @Override
+    protected void end() throws IOException {
+        output(encoder.reset().ascii(Gpx10FileLogger.TRACK_START));
+        appendSpool();
+        output(segmentOpen ? Gpx10FileLogger.END_XML_WITH_SEGMENT : Gpx10FileLogger.END_XML);
+    }
+}
@@ -0,0 +1,176 @@
+package com.ml.map.gpx;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Stores GPX waypoints without copying the track.
+ *
+ * GPX wants waypoints before the track, so new files get a run of blank space between the header and
+ * {@code <trk>}. Annotations are written into that space in place. Once it is used up they go to a
+ * {@code .wpt} journal next to the file, which is spliced in front of the track once, when the file is closed.
+ */
+class GpxWaypoints {
+    private static final Logger LOG = LoggerFactory.getLogger(GpxWaypoints.class);
+
+    static final int REGION_SIZE = 4096;
+    private static final int HEAD_WINDOW = REGION_SIZE + 4096;
+    private static final byte[] TRACK_START = Gpx10FileLogger.TRACK_START.getBytes();
+
+    private static String region;
+
+    /**
+     * Blank space reserved for waypoints in a new file
+     */
+    static synchronized String getRegion() {
+        if (region == null) {
+            char[] spaces = new char[REGION_SIZE];
+            Arrays.fill(spaces, ' ');
+            region = new String(spaces);
+        }
+        return region;
+    }
+
+    static File getJournal(File gpxFile) {
+        return new File(gpxFile.getPath() + ".wpt");
+    }
+
+    /**
+     * Writes the waypoint into the reserved space, or appends it to the journal if there is no room left
+     *
+     * @return true if it went into the file, false if it was journaled
+     */
+    static boolean add(File gpxFile, byte[] wpt) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(gpxFile, "rw");
+        try {
+            byte[] head = new byte[(int) Math.min(raf.length(), HEAD_WINDOW)];
+            raf.readFully(head);
+
+            int trackStart = indexOf(head, head.length, TRACK_START);
+            if (trackStart >= 0) {
+                int free = trackStart;
+                while (free > 0 && head[free - 1] == ' ') {
+                    free--;
+                }
+
+                if (trackStart - free >= wpt.length) {
+                    raf.seek(free);
+                    raf.write(wpt);
+                    return true;
+                }
+            }
+        } finally {
+            raf.close();
+        }
+
+        FileOutputStream journal = new FileOutputStream(getJournal(gpxFile), true);
+        try {
+            journal.write(wpt);
+        } finally {
+            journal.close();
+        }
+        return false;
+    }
+
+    /**
+     * Splices journaled waypoints in front of the track. This copies the file, so it is only done when the
+     * file is no longer being written to.
+     */
+    static void mergeJournal(File gpxFile) throws IOException {
+        File journal = getJournal(gpxFile);
+        if (!journal.exists()) {
+            return;
+        }
+
+        File gpxTempFile = new File(gpxFile.getPath() + ".tmp");
+        FileChannel in = new RandomAccessFile(gpxFile, "r").getChannel();
+        try {
+            long trackStart = indexOf(in, TRACK_START);
+            if (trackStart < 0) {
+                LOG.error("No track in " + gpxFile.getName() + ", leaving waypoint journal in place");
+                return;
+            }
+
+            boolean written = false;
+            FileChannel waypoints = new RandomAccessFile(journal, "r").getChannel();
+            FileChannel out = new FileOutputStream(gpxTempFile).getChannel();
+            try {
+                transfer(in, 0, trackStart, out);
+                transfer(waypoints, 0, waypoints.size(), out);
+                transfer(in, trackStart, in.size() - trackStart, out);
+                out.force(false);
+                written = true;
+            } finally {
+                waypoints.close();
+                out.close();
+                //A partial copy would otherwise be picked up along with the session's files
+                if (!written && !gpxTempFile.delete()) {
+                    LOG.warn("Could not delete " + gpxTempFile.getPath());
+                }
+            }
+        } finally {
+            in.close();
+        }
+
+        if (!gpxTempFile.renameTo(gpxFile)) {
+            throw new IOException("Could not replace " + gpxFile.getPath());
+        }
+        if (!journal.delete()) {
+            LOG.warn("Could not delete " + journal.getPath());
+        }
+        LOG.debug("Merged waypoint journal into " + gpxFile.getName());
+    }
+
+    private static void transfer(FileChannel from, long position, long count, FileChannel to) throws IOException {
+        while (count > 0) {
+            long n = from.transferTo(position, count, to);
+            position += n;
+            count -= n;
+        }
+    }
+
+    private static long indexOf(FileChannel channel, byte[] marker) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(16 * 1024);
+        long offset = 0;
+        int kept = 0;
+        while (true) {
+            int read = channel.read(buffer, offset + kept);
+            if (read <= 0) {
+                return -1;
+            }
+            int length = kept + read;
+            int idx = indexOf(buffer.array(), length, marker);
+            if (idx >= 0) {
+                return offset + idx;
+            }
+
+            //Keep the tail in case the marker straddles two reads
+            kept = Math.min(marker.length - 1, length);
+            System.arraycopy(buffer.array(), length - kept, buffer.array(), 0, kept);
+            offset += length - kept;
+            buffer.clear();
+            buffer.position(kept);
+        }
+    }
+
+    private static int indexOf(byte[] data, int length, byte[] marker) {
+        outer:
+        for (int i = 0; i <= length - marker.length; i++) {
+            for (int j = 0; j < marker.length; j++) {
+                if (data[i + j] != marker[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
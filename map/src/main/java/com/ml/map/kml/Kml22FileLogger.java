@@ -21,42 +21,79 @@ package com.ml.map.kml;
 
 import android.location.Location;
 
-import com.ml.map.FileLogger;
+import com.ml.map.ByteEncoder;
 import com.ml.map.Files;
-import com.ml.map.RejectionHandler;
+import com.ml.map.MediaIndexer;
+import com.ml.map.PreferenceHelper;
+import com.ml.map.SegmentedFileLogger;
 import com.ml.map.Strings;
+import com.ml.map.TrailerFileWriter;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.RandomAccessFile;
-import java.nio.channels.FileChannel;
+import java.io.IOException;
 import java.util.Date;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
-public class Kml22FileLogger implements FileLogger {
+/**
+ * Writes KML 2.2 gx:Track logs. The current file stays open for the whole session through a
+ * {@link TrailerFileWriter}. Points are encoded straight to bytes into a reused buffer and the
+ * pre-encoded closing tags are only rewritten on flush. Annotation placemarks are collected in a journal
+ * next to the file and appended to the document once, when the file is closed or rotated.
+ */
+public class Kml22FileLogger implements SegmentedFileLogger {
+    private static final Logger LOG = LoggerFactory.getLogger(Kml22FileLogger.class);
     protected final static Object lock = new Object();
-    private final static ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
-            new LinkedBlockingQueue<Runnable>(10), new RejectionHandler());
-    private final boolean addNewTrackSegment;
+
+    static final byte[] TRACK_START = "<Placemark>\n<gx:Track>\n".getBytes();
+    static final byte[] TRACK_CLOSE = "</gx:Track>\n</Placemark>".getBytes();
+    static final byte[] TRACK_CLOSE_AND_START = "</gx:Track>\n</Placemark><Placemark>\n<gx:Track>\n".getBytes();
+    static final byte[] END_XML = "</Document></kml>\n".getBytes();
+    private static final byte[] END_XML_WITH_TRACK = "</gx:Track>\n</Placemark></Document></kml>\n".getBytes();
+
+    /**
+     * Where a KML log body can end: after a complete coordinate, after a closed placemark, or after the document name
+     */
+    private static final String[] BODY_END_MARKERS = {"</gx:coord>\n", "</Placemark>", "</name>\n"};
+
+    private static TrailerFileWriter writer;
+    private static final ByteEncoder encoder = new ByteEncoder(256);
+
     private final File kmlFile;
     protected final String name = "KML";
 
 
-    public Kml22FileLogger(File kmlFile, boolean addNewTrackSegment) {
+    public Kml22FileLogger(File kmlFile) {
         this.kmlFile = kmlFile;
-        this.addNewTrackSegment = addNewTrackSegment;
     }
 
 
     public void write(Location loc) throws Exception {
-        Kml22WriteHandler writeHandler = new Kml22WriteHandler(loc, kmlFile, addNewTrackSegment);
-        EXECUTOR.execute(writeHandler);
+        write(loc, false);
+    }
+
+    @Override
+    public void write(Location loc, boolean addNewTrackSegment) throws Exception {
+        synchronized (lock) {
+            TrailerFileWriter trackWriter = getWriter(kmlFile, loc.getTime());
+
+            encoder.reset();
+            if (!trackWriter.hasTrailer(END_XML_WITH_TRACK)) {
+                //New file or closed track, so new track segment
+                encoder.bytes(TRACK_START);
+            } else if (addNewTrackSegment) {
+                encoder.bytes(TRACK_CLOSE_AND_START);
+            }
+
+            encodeCoord(encoder, loc);
+
+            trackWriter.append(encoder);
+            trackWriter.setTrailer(END_XML_WITH_TRACK);
+            trackWriter.recordWritten();
+        }
     }
 
     public void annotate(String description, Location loc) throws Exception {
@@ -64,13 +101,139 @@ public class Kml22FileLogger implements FileLogger {
         description = Strings.cleanDescriptionForXml(description);
         
         Kml22AnnotateHandler annotateHandler = new Kml22AnnotateHandler(kmlFile, description, loc);
-        EXECUTOR.execute(annotateHandler);
+        annotateHandler.run();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        synchronized (lock) {
+            if (writer != null && writer.getFile().equals(kmlFile)) {
+                writer.flush();
+                Files.addToMediaDatabase(kmlFile, "text/xml");
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            closeWriter();
+        }
+    }
+
+    static void encodeCoord(ByteEncoder encoder, Location loc) {
+        encoder.ascii("\n<when>").isoDateTime(loc.getTime()).ascii("</when>\n<gx:coord>")
+                .decimal(loc.getLongitude(), 8).ascii(' ')
+                .decimal(loc.getLatitude(), 8).ascii(' ')
+                .decimal(loc.getAltitude(), 3).ascii("</gx:coord>\n");
     }
 
     @Override
     public String getName() {
         return name;
     }
+
+    static File getPlacemarkJournal(File kmlFile) {
+        return new File(kmlFile.getPath() + ".placemarks");
+    }
+
+    static boolean isWriting(File kmlFile) {
+        return writer != null && writer.getFile().equals(kmlFile);
+    }
+
+    /**
+     * Returns the session writer for the given file, closing the previous one if the file has rotated.
+     * An existing file is repaired on open: anything after the last complete coordinate or placemark is
+     * replaced by the closing tags. Must be called while holding {@link #lock}.
+     */
+    static TrailerFileWriter getWriter(File kmlFile, long time) throws IOException {
+        if (writer != null && writer.getFile().equals(kmlFile) && kmlFile.exists()) {
+            return writer;
+        }
+
+        closeWriter();
+
+        String initialXml = getInitialXml(Strings.getIsoDateTime(new Date(time)));
+        try {
+            writer = TrailerFileWriter.open(kmlFile, initialXml, BODY_END_MARKERS);
+        } catch (IOException e) {
+            File broken = new File(kmlFile.getPath() + ".broken");
+            LOG.error("Could not recover " + kmlFile.getName() + ", moving it to " + broken.getName(), e);
+            if (!kmlFile.renameTo(broken)) {
+                throw e;
+            }
+            writer = TrailerFileWriter.open(kmlFile, initialXml, BODY_END_MARKERS);
+        }
+
+        PreferenceHelper preferenceHelper = PreferenceHelper.getInstance();
+        writer.setSyncPolicy(preferenceHelper.getFileSyncPoints(), preferenceHelper.getFileSyncSeconds() * 1000L);
+
+        //Only a recovered coordinate leaves a track open
+        writer.setTrailer(writer.getRecoveredMarker() == 0 ? END_XML_WITH_TRACK : END_XML);
+        writer.flush();
+
+        if (writer.getRecoveredMarker() < 0) {
+            Files.addToMediaDatabase(kmlFile, "text/xml");
+        }
+
+        return writer;
+    }
+
+    /**
+     * Closes the open track, appends the journaled annotation placemarks and closes the session writer, if any.
+     * Must be called while holding {@link #lock}.
+     */
+    static void closeWriter() throws IOException {
+        if (writer == null) {
+            return;
+        }
+
+        TrailerFileWriter closing = writer;
+        writer = null;
+        try {
+            File journal = getPlacemarkJournal(closing.getFile());
+            if (journal.exists()) {
+                if (closing.hasTrailer(END_XML_WITH_TRACK)) {
+                    closing.append(TRACK_CLOSE);
+                    closing.setTrailer(END_XML);
+                }
+                appendJournal(closing, journal);
+            }
+        } finally {
+            closing.close();
+        }
+
+        if (!getPlacemarkJournal(closing.getFile()).delete()) {
+            LOG.debug("No placemark journal for " + closing.getFile().getName());
+        }
+        MediaIndexer.getInstance().indexNow(closing.getFile(), "text/xml");
+        LOG.debug("Closed KML file " + closing.getFile().getName());
+    }
+
+    private static void appendJournal(TrailerFileWriter writer, File journal) throws IOException {
+        FileInputStream in = new FileInputStream(journal);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                writer.append(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    static String getInitialXml(String dateTimeString) {
+        StringBuilder initialXml = new StringBuilder();
+        initialXml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        initialXml.append("<kml xmlns=\"http://www.opengis.net/kml/2.2\" ");
+        initialXml.append("xmlns:gx=\"http://www.google.com/kml/ext/2.2\" ");
+        initialXml.append("xmlns:kml=\"http://www.opengis.net/kml/2.2\" ");
+        initialXml.append("xmlns:atom=\"http://www.w3.org/2005/Atom\">");
+        initialXml.append("<Document>");
+        initialXml.append("<name>").append(dateTimeString).append("</name>\n");
+        return initialXml.toString();
+    }
 }
 
 class Kml22AnnotateHandler implements Runnable {
@@ -78,7 +241,6 @@ class Kml22AnnotateHandler implements Runnable {
     File kmlFile;
     String description;
     Location loc;
-    int kmlAnnotationOffset = 258;
 
     public Kml22AnnotateHandler(File kmlFile, String description, Location loc) {
         this.kmlFile = kmlFile;
@@ -98,26 +260,18 @@ class Kml22AnnotateHandler implements Runnable {
 
                 String descriptionNode = getPlacemarkXml(description, loc);
 
+                FileOutputStream journal = new FileOutputStream(Kml22FileLogger.getPlacemarkJournal(kmlFile), true);
+                try {
+                    journal.write(descriptionNode.getBytes());
+                } finally {
+                    journal.close();
+                }
 
-                RandomAccessFile r = new RandomAccessFile(kmlFile, "rw");
-                File tmpFile = new File(kmlFile.getAbsolutePath() + "~");
-                tmpFile.createNewFile();
-                RandomAccessFile rtemp = new RandomAccessFile(tmpFile, "rw");
-                long fileSize = r.length();
-                FileChannel sourceChannel = r.getChannel();
-                FileChannel targetChannel = rtemp.getChannel();
-                sourceChannel.transferTo(kmlAnnotationOffset, (fileSize - kmlAnnotationOffset), targetChannel);
-                sourceChannel.truncate(kmlAnnotationOffset);
-                r.seek(kmlAnnotationOffset);
-                r.write(descriptionNode.getBytes());
-                long newOffset = r.getFilePointer();
-                targetChannel.position(0L);
-                sourceChannel.transferFrom(targetChannel, newOffset, (fileSize - kmlAnnotationOffset));
-                sourceChannel.close();
-                targetChannel.close();
-                tmpFile.delete();
-
-
+                if (!Kml22FileLogger.isWriting(kmlFile)) {
+                    //Nothing will close this file later, so splice the placemark in now
+                    Kml22FileLogger.getWriter(kmlFile, loc.getTime());
+                    Kml22FileLogger.closeWriter();
+                }
             }
         } catch (Exception e) {
             LOG.error("Kml22FileLogger.annotate", e);
@@ -139,90 +293,3 @@ class Kml22AnnotateHandler implements Runnable {
         return descriptionNode.toString();
     }
 }
-
-class Kml22WriteHandler implements Runnable {
-
-    private static final Logger LOG = LoggerFactory.getLogger(Kml22WriteHandler.class);
-    boolean addNewTrackSegment;
-    File kmlFile;
-    Location loc;
-
-
-    public Kml22WriteHandler(Location loc, File kmlFile, boolean addNewTrackSegment) {
-
-        this.loc = loc;
-        this.kmlFile = kmlFile;
-        this.addNewTrackSegment = addNewTrackSegment;
-    }
-
-
-    @Override
-    public void run() {
-        try {
-
-            RandomAccessFile raf;
-
-            String dateTimeString = Strings.getIsoDateTime(new Date(loc.getTime()));
-            String placemarkHead = "<Placemark>\n<gx:Track>\n";
-            String placemarkTail = "</gx:Track>\n</Placemark></Document></kml>\n";
-
-            synchronized (Kml22FileLogger.lock) {
-
-                if(!Files.reallyExists(kmlFile)){
-                    kmlFile.createNewFile();
-
-                    FileOutputStream initialWriter = new FileOutputStream(kmlFile, true);
-                    BufferedOutputStream initialOutput = new BufferedOutputStream(initialWriter);
-
-                    StringBuilder initialXml = new StringBuilder();
-                    initialXml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
-                    initialXml.append("<kml xmlns=\"http://www.opengis.net/kml/2.2\" ");
-                    initialXml.append("xmlns:gx=\"http://www.google.com/kml/ext/2.2\" ");
-                    initialXml.append("xmlns:kml=\"http://www.opengis.net/kml/2.2\" ");
-                    initialXml.append("xmlns:atom=\"http://www.w3.org/2005/Atom\">");
-                    initialXml.append("<Document>");
-                    initialXml.append("<name>").append(dateTimeString).append("</name>\n");
-
-                    initialXml.append("</Document></kml>\n");
-                    initialOutput.write(initialXml.toString().getBytes());
-                    initialOutput.flush();
-                    initialOutput.close();
-
-                    //New file, so new track segment
-                    addNewTrackSegment = true;
-                }
-
-
-                if (addNewTrackSegment) {
-                    raf = new RandomAccessFile(kmlFile, "rw");
-                    raf.seek(kmlFile.length() - 18);
-                    raf.write((placemarkHead + placemarkTail).getBytes());
-                    raf.close();
-
-                }
-
-                StringBuilder coords = new StringBuilder();
-                coords.append("\n<when>");
-                coords.append(dateTimeString);
-                coords.append("</when>\n<gx:coord>");
-                coords.append(String.valueOf(loc.getLongitude()));
-                coords.append(" ");
-                coords.append(String.valueOf(loc.getLatitude()));
-                coords.append(" ");
-                coords.append(String.valueOf(loc.getAltitude()));
-                coords.append("</gx:coord>\n");
-                coords.append(placemarkTail);
-
-                raf = new RandomAccessFile(kmlFile, "rw");
-                raf.seek(kmlFile.length() - 42);
-                raf.write(coords.toString().getBytes());
-                raf.close();
-                Files.addToMediaDatabase(kmlFile, "text/xml");
-                LOG.debug("Finished writing to KML22 File");
-            }
-
-        } catch (Exception e) {
-            LOG.error("Kml22FileLogger.write", e);
-        }
-    }
-}
@@ -0,0 +1,56 @@
+package com.ml.map.kml;
+
+import android.location.Location;
+
+import com.ml.map.Strings;
+import com.ml.map.track.FileTrackEncoder;
+
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * Exports a stored track as KML 2.2, with the same markup as {@link Kml22FileLogger}: one gx:Track placemark
+ * per segment, followed by the annotation placemarks, which are spooled until the end.
+ */
+public class KmlTrackEncoder extends FileTrackEncoder {
+
+    private final Kml22AnnotateHandler placemarkFormat = new Kml22AnnotateHandler(null, null, null);
+    private boolean trackOpen;
+
+    @Override
+    public String getExtension() {
+        return ".kml";
+    }
+
+    @Override
+    protected void begin(long startTime) throws IOException {
+        output(encoder.reset().utf8(Kml22FileLogger.getInitialXml(Strings.getIsoDateTime(new Date(startTime)))));
+    }
+
+    @Override
+    public void write(Location loc, boolean newSegment) throws IOException {
+        encoder.reset();
+        if (!trackOpen) {
+            encoder.bytes(Kml22FileLogger.TRACK_START);
+            trackOpen = true;
+        } else if (newSegment) {
+            encoder.bytes(Kml22FileLogger.TRACK_CLOSE_AND_START);
+        }
+        Kml22FileLogger.encodeCoord(encoder, loc);
+        output(encoder);
+    }
+
+    @Override
+    public void annotate(String description, Location loc) throws IOException {
+        spool(encoder.reset().utf8(placemarkFormat.getPlacemarkXml(Strings.cleanDescriptionForXml(description), loc)));
+    }
+
+    @Override
+    protected void end() throws IOException {
+        if (trackOpen) {
+            output(Kml22FileLogger.TRACK_CLOSE);
+        }
+        appendSpool();
+        output(Kml22FileLogger.END_XML);
+    }
+}
@@ -0,0 +1,224 @@
+package com.ml.map.opengts;
+
+import android.location.Location;
+
+import androidx.annotation.Nullable;
+
+import com.ml.map.BatterySampler;
+import com.ml.map.QueuedLocationLogger;
+import com.ml.map.Strings;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Sends points to an OpenGTS server as $GPRMC records, in batches.
+ *
+ * Over UDP each datagram carries as many "account/device/$GPRMC" lines as fit in {@link #MAX_DATAGRAM} bytes.
+ * UDP has no acknowledgement, so points count as sent once their datagrams are out.
+ *
+ * Over HTTP each point is the stock gprmc servlet GET, unless batch POSTs are turned on for a server that takes
+ * them. A batch is then a POST to the same URL, with the device and account in the query string and one line per
+ * point in the body, each line holding the code, alt and gprmc parameters a GET would have had.
+ */
+public class OpenGTSLogger extends QueuedLocationLogger {
+
+    public static final String NAME = "OpenGTS";
+
+    /**
+     * Keeps datagrams inside a typical MTU, so they aren't fragmented
+     */
+    static final int MAX_DATAGRAM = 1400;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String DEFAULT_PATH = "/gprmc/Data";
+    private static final String STATUS_LOCATION = "0xF020";
+
+    private final String server;
+    private final int port;
+    private final boolean udp;
+    private final String path;
+    private final String deviceId;
+    private final String accountName;
+    private final BatterySampler battery;
+    private int timeoutMillis = 30000;
+
+    /**
+     * @param protocol "UDP" or "HTTP"
+     * @param queueFile where points wait to be sent
+     * @param batchSize points per batch of datagrams or POST, and how many to wait for before sending
+     * @param postBatches whether the HTTP server takes batch POSTs; if not, points are sent one GET at a time
+     * @param maxWaitMillis longest a point waits for a full batch
+     */
+    public OpenGTSLogger(String server, int port, String protocol, String path, String deviceId,
+                         String accountName, @Nullable BatterySampler battery, File queueFile,
+                         Connectivity connectivity, int batchSize, boolean postBatches, long maxWaitMillis) {
+        super(queueFile, connectivity, isUdp(protocol) || postBatches ? batchSize : 1, maxWaitMillis);
+        this.server = server;
+        this.port = port;
+        this.udp = isUdp(protocol);
+        this.path = Strings.isNullOrEmpty(path) ? DEFAULT_PATH : (path.startsWith("/") ? path : "/" + path);
+        this.deviceId = deviceId;
+        this.accountName = accountName;
+        this.battery = battery;
+    }
+
+    public OpenGTSLogger setTimeout(int timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        return this;
+    }
+
+    @Override
+    protected void send(List<Location> locations) throws IOException {
+        if (udp) {
+            sendDatagrams(locations);
+        } else if (locations.size() == 1) {
+            sendHttp(getUrl() + "&" + getPointParameters(locations.get(0)), null);
+        } else {
+            StringBuilder body = new StringBuilder();
+            for (Location loc : locations) {
+                body.append(getPointParameters(loc)).append('\n');
+            }
+            sendHttp(getUrl(), body.toString().getBytes(UTF8));
+        }
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    private static boolean isUdp(String protocol) {
+        return "UDP".equalsIgnoreCase(protocol);
+    }
+
+    private void sendDatagrams(List<Location> locations) throws IOException {
+        List<byte[]> datagrams = new ArrayList<>();
+        StringBuilder datagram = new StringBuilder();
+        for (Location loc : locations) {
+            String line = accountName + "/" + deviceId + "/" + getGprmc(loc) + "\n";
+            if (datagram.length() > 0 && datagram.length() + line.length() > MAX_DATAGRAM) {
+                datagrams.add(datagram.toString().getBytes(UTF8));
+                datagram.setLength(0);
+            }
+            datagram.append(line);
+        }
+        datagrams.add(datagram.toString().getBytes(UTF8));
+
+        InetAddress address = InetAddress.getByName(server);
+        DatagramSocket socket = new DatagramSocket();
+        try {
+            for (byte[] data : datagrams) {
+                socket.send(new DatagramPacket(data, data.length, address, port));
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    private void sendHttp(String url, @Nullable byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(timeoutMillis);
+        connection.setReadTimeout(timeoutMillis);
+        if (body != null) {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(body.length);
+            connection.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
+            OutputStream out = connection.getOutputStream();
+            try {
+                out.write(body);
+            } finally {
+                out.close();
+            }
+        }
+
+        int code = connection.getResponseCode();
+        InputStream response = code < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (response != null) {
+            //Reading the response to the end lets the connection be reused for the next batch
+            byte[] discard = new byte[4096];
+            while (response.read(discard) != -1) {
+            }
+            response.close();
+        }
+        if (code / 100 != 2) {
+            throw new IOException("HTTP " + code + " from " + server);
+        }
+    }
+
+    private String getUrl() {
+        int batteryLevel = battery != null ? battery.getLevel() : -1;
+        return "http://" + server + ":" + port + path
+                + "?id=" + encode(deviceId)
+                + "&dev=" + encode(deviceId)
+                + "&acct=" + encode(accountName)
+                + (batteryLevel >= 0 ? "&batt=" + batteryLevel : "");
+    }
+
+    private static String getPointParameters(Location loc) {
+        return "code=" + STATUS_LOCATION
+                + (loc.hasAltitude() ? "&alt=" + String.format(Locale.US, "%.1f", loc.getAltitude()) : "")
+                + "&gprmc=" + encode(getGprmc(loc));
+    }
+
+    /**
+     * The point as a $GPRMC sentence, with its checksum
+     */
+    static String getGprmc(Location loc) {
+        Calendar time = Calendar.getInstance(TimeZone.getTimeZone("UTC"), Locale.US);
+        time.setTimeInMillis(loc.getTime());
+
+        String sentence = String.format(Locale.US, "$GPRMC,%02d%02d%02d.%03d,A,%s,%s,%s,%s,%.2f,%.2f,%02d%02d%02d,,",
+                time.get(Calendar.HOUR_OF_DAY), time.get(Calendar.MINUTE), time.get(Calendar.SECOND),
+                time.get(Calendar.MILLISECOND),
+                getCoordinate(Math.abs(loc.getLatitude()), 2), loc.getLatitude() >= 0 ? "N" : "S",
+                getCoordinate(Math.abs(loc.getLongitude()), 3), loc.getLongitude() >= 0 ? "E" : "W",
+                loc.hasSpeed() ? loc.getSpeed() * 1.943844 : 0,
+                loc.hasBearing() ? loc.getBearing() : 0,
+                time.get(Calendar.DAY_OF_MONTH), time.get(Calendar.MONTH) + 1, time.get(Calendar.YEAR) % 100);
+
+        int checksum = 0;
+        for (int i = 1; i < sentence.length(); i++) {
+            checksum ^= sentence.charAt(i);
+        }
+        return sentence + String.format(Locale.US, "*%02X", checksum);
+    }
+
+    /**
+     * Degrees as NMEA's degrees and decimal minutes, e.g. 4024.9800 for 40.416333
+     */
+    private static String getCoordinate(double degrees, int degreeDigits) {
+        int whole = (int) degrees;
+        double minutes = (degrees - whole) * 60;
+        //Rounding can carry the minutes up to 60
+        if (minutes >= 59.99995) {
+            whole++;
+            minutes = 0;
+        }
+        return String.format(Locale.US, "%0" + degreeDigits + "d%07.4f", whole, minutes);
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value == null ? "" : value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.ml.map.provider;
+
+import com.google.android.gms.location.DetectedActivity;
+
+/**
+ * Picks how often, how accurately and after how much movement to ask for fixes, from the latest detected
+ * activity, speed and accuracy, instead of asking for a GPS fix every second all the time.
+ *
+ * <ul>
+ * <li>Moving: high accuracy at half the logging interval, so a fresh fix is always there when the next point
+ * is due.</li>
+ * <li>Moving fast, in a vehicle or above {@link #FAST_SPEED}: at most every {@link #FAST_INTERVAL}, so the
+ * filters keep up with the track.</li>
+ * <li>Still: low power, and the interval doubles with each fix or activity report while still, up to
+ * {@link #MAX_STILL_INTERVAL}. Fixes only come once the device has moved {@link #STILL_DISPLACEMENT}.</li>
+ * <li>Poor accuracy: if high accuracy keeps giving rough fixes, e.g. indoors, the GPS isn't helping, so balanced
+ * power is used at twice the interval until {@link #POOR_ACCURACY_RETRY} has passed.</li>
+ * </ul>
+ *
+ * With a batch size above 1 the provider may hold fixes back and deliver them together, waiting up to that many
+ * intervals but never more than {@link #MAX_BATCH_WAIT}, so the device wakes up once per batch instead of once
+ * per fix.
+ *
+ * It also estimates how long the GPS radio has been on. With intervals up to {@link #GPS_TRACKING_INTERVAL} the
+ * receiver keeps tracking between fixes, so it is on the whole time; beyond that it is on for about
+ * {@link #GPS_FIX_TIME} per fix. Other priorities are counted as not using the GPS.
+ */
+public class SamplingScheduler {
+
+    public interface Clock {
+        long elapsedRealtime();
+    }
+
+    static final long MIN_INTERVAL = 1000;
+    static final long FAST_INTERVAL = 5000;
+    static final long MAX_STILL_INTERVAL = 15 * 60 * 1000;
+    static final float FAST_SPEED = 8;
+    static final float STILL_SPEED = 0.5f;
+    static final float STILL_DISPLACEMENT = 50;
+    static final int POOR_FIX_COUNT = 3;
+    static final float MIN_POOR_ACCURACY = 50;
+    static final long POOR_ACCURACY_RETRY = 5 * 60 * 1000;
+    static final long GPS_TRACKING_INTERVAL = 30 * 1000;
+    static final long GPS_FIX_TIME = 10 * 1000;
+    static final long MAX_BATCH_WAIT = 15 * 60 * 1000;
+
+    private final Clock clock;
+    private final long loggingInterval;
+    private final float minDistance;
+    private final float poorAccuracy;
+    private int batchSize = 1;
+
+    private int activity = DetectedActivity.UNKNOWN;
+    private float speed = -1;
+    private int stillReports;
+    private int poorFixes;
+    private long poorSince;
+
+    private LocationEngineRequest request;
+    private long requestSince;
+    private long startedAt;
+    private long gpsOnMillis;
+
+    /**
+     * @param loggingIntervalMillis the user's minimum logging interval
+     * @param minDistance the user's minimum distance between points, in metres
+     * @param minAccuracy the user's minimum accuracy, in metres, or 0 if there isn't one
+     */
+    public SamplingScheduler(Clock clock, long loggingIntervalMillis, float minDistance, float minAccuracy) {
+        this.clock = clock;
+        this.loggingInterval = Math.max(MIN_INTERVAL, loggingIntervalMillis);
+        this.minDistance = Math.max(0, minDistance);
+        this.poorAccuracy = Math.max(MIN_POOR_ACCURACY, minAccuracy * 2);
+        startedAt = clock.elapsedRealtime();
+        requestSince = startedAt;
+        request = buildRequest();
+    }
+
+    /**
+     * @param fixes how many fixes may be delivered together, 1 to have each delivered as it comes
+     */
+    public SamplingScheduler setBatchSize(int fixes) {
+        batchSize = Math.max(1, fixes);
+        request = buildRequest();
+        return this;
+    }
+
+    /**
+     * @param activityType one of the {@link DetectedActivity} types
+     * @return whether the request has changed and should be made again
+     */
+    public boolean onActivity(int activityType) {
+        activity = activityType;
+        if (isStill()) {
+            stillReports++;
+        } else {
+            stillReports = 0;
+        }
+        return update();
+    }
+
+    /**
+     * @param speed in m/s, or a negative number if unknown
+     * @param accuracy in metres, or 0 if unknown
+     * @return whether the request has changed and should be made again
+     */
+    public boolean onLocation(float speed, float accuracy) {
+        this.speed = speed;
+
+        if (isStill()) {
+            stillReports++;
+        } else {
+            stillReports = 0;
+        }
+
+        if (accuracy > 0 && accuracy <= poorAccuracy) {
+            poorFixes = 0;
+        } else if (request.getPriority() == LocationEngineRequest.PRIORITY_HIGH_ACCURACY && ++poorFixes == POOR_FIX_COUNT) {
+            poorSince = clock.elapsedRealtime();
+        }
+        return update();
+    }
+
+    public LocationEngineRequest getRequest() {
+        if (poorFixes >= POOR_FIX_COUNT && clock.elapsedRealtime() - poorSince >= POOR_ACCURACY_RETRY) {
+            //Give the GPS another go
+            poorFixes = 0;
+            update();
+        }
+        return request;
+    }
+
+    /**
+     * How long the GPS radio has been on, roughly, since the scheduler was created
+     */
+    public long getEstimatedGpsOnMillis() {
+        return gpsOnMillis + (long) ((clock.elapsedRealtime() - requestSince) * getGpsDutyCycle(request));
+    }
+
+    public long getElapsedMillis() {
+        return clock.elapsedRealtime() - startedAt;
+    }
+
+    @Override
+    public String toString() {
+        return "interval " + request.getInterval() + " ms, priority " + request.getPriority() + ", displacement "
+                + request.getDisplacement() + " m, max wait " + request.getMaxWaitTime() + " ms, GPS on about " + getEstimatedGpsOnMillis() / 1000 + " of "
+                + getElapsedMillis() / 1000 + " s";
+    }
+
+    private boolean update() {
+        LocationEngineRequest next = buildRequest();
+        if (next.getInterval() == request.getInterval() && next.getPriority() == request.getPriority()
+                && next.getDisplacement() == request.getDisplacement()) {
+            return false;
+        }
+
+        long now = clock.elapsedRealtime();
+        gpsOnMillis += (long) ((now - requestSince) * getGpsDutyCycle(request));
+        requestSince = now;
+        request = next;
+        return true;
+    }
+
+    private LocationEngineRequest buildRequest() {
+        long interval;
+        int priority = LocationEngineRequest.PRIORITY_HIGH_ACCURACY;
+        float displacement = minDistance;
+
+        if (isStill()) {
+            interval = loggingInterval;
+            for (int i = 0; i < stillReports && interval < MAX_STILL_INTERVAL; i++) {
+                interval *= 2;
+            }
+            interval = Math.max(loggingInterval, Math.min(interval, MAX_STILL_INTERVAL));
+            priority = LocationEngineRequest.PRIORITY_LOW_POWER;
+            displacement = Math.max(minDistance, STILL_DISPLACEMENT);
+        } else if (isFast()) {
+            interval = Math.max(MIN_INTERVAL, Math.min(loggingInterval / 2, FAST_INTERVAL));
+        } else {
+            interval = Math.max(MIN_INTERVAL, loggingInterval / 2);
+        }
+
+        if (priority == LocationEngineRequest.PRIORITY_HIGH_ACCURACY && poorFixes >= POOR_FIX_COUNT) {
+            priority = LocationEngineRequest.PRIORITY_BALANCED_POWER_ACCURACY;
+            interval *= 2;
+        }
+
+        return new LocationEngineRequest.Builder(interval)
+                .setPriority(priority)
+                .setDisplacement(displacement)
+                .setFastestInterval(interval / 2)
+                .setMaxWaitTime(batchSize > 1 ? Math.min(interval * batchSize, Math.max(interval, MAX_BATCH_WAIT)) : 0)
+                .build();
+    }
+
+    private boolean isStill() {
+        if (activity == DetectedActivity.STILL) {
+            return true;
+        }
+        return !isMovingActivity() && speed >= 0 && speed < STILL_SPEED;
+    }
+
+    private boolean isFast() {
+        return activity == DetectedActivity.IN_VEHICLE || speed > FAST_SPEED;
+    }
+
+    private boolean isMovingActivity() {
+        return activity == DetectedActivity.IN_VEHICLE || activity == DetectedActivity.ON_BICYCLE
+                || activity == DetectedActivity.ON_FOOT || activity == DetectedActivity.WALKING
+                || activity == DetectedActivity.RUNNING;
+    }
+
+    static double getGpsDutyCycle(LocationEngineRequest request) {
+        if (request.getPriority() != LocationEngineRequest.PRIORITY_HIGH_ACCURACY) {
+            return 0;
+        }
+        if (request.getInterval() <= GPS_TRACKING_INTERVAL) {
+            return 1;
+        }
+        return Math.min(1, (double) GPS_FIX_TIME / request.getInterval());
+    }
+}
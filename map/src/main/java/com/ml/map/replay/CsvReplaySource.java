@@ -0,0 +1,170 @@
+package com.ml.map.replay;
+
+import com.ml.map.Strings;
+import com.ml.map.track.TrackRecord;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reads points back from a CSV file written by {@link com.ml.map.csv.CSVFileLogger}. Columns are found by
+ * their header name, so files from older versions with fewer columns still replay. Lines without a time or
+ * position are skipped.
+ */
+public class CsvReplaySource implements ReplaySource {
+
+    private final BufferedReader reader;
+    private final List<String> fields = new ArrayList<>();
+    private final StringBuilder field = new StringBuilder();
+
+    private int time = -1;
+    private int latitude = -1;
+    private int longitude = -1;
+    private int elevation = -1;
+    private int accuracy = -1;
+    private int bearing = -1;
+    private int speed = -1;
+    private int satellites = -1;
+    private int provider = -1;
+    private int hdop = -1;
+    private boolean headerRead;
+
+    public CsvReplaySource(Reader reader) {
+        this.reader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+    }
+
+    @Override
+    public boolean next(TrackRecord record) throws IOException {
+        if (!headerRead) {
+            readHeader();
+        }
+
+        String line;
+        while ((line = reader.readLine()) != null) {
+            split(line);
+            long fixTime = ReplaySources.parseTime(get(time));
+            double lat = ReplaySources.parseDouble(get(latitude), Double.NaN);
+            double lon = ReplaySources.parseDouble(get(longitude), Double.NaN);
+            if (fixTime < 0 || Double.isNaN(lat) || Double.isNaN(lon)) {
+                continue;
+            }
+
+            String source = get(provider);
+            record.setPoint(Strings.isNullOrEmpty(source) ? "gps" : source, fixTime, lat, lon, false);
+            double value = ReplaySources.parseDouble(get(elevation), Double.NaN);
+            if (!Double.isNaN(value)) {
+                record.setAltitude(value);
+            }
+            value = ReplaySources.parseDouble(get(bearing), Double.NaN);
+            if (!Double.isNaN(value)) {
+                record.setBearing((float) value);
+            }
+            value = ReplaySources.parseDouble(get(speed), Double.NaN);
+            if (!Double.isNaN(value)) {
+                record.setSpeed((float) value);
+            }
+            value = ReplaySources.parseDouble(get(satellites), 0);
+            if (value > 0) {
+                record.setSatellites((int) value);
+            }
+            float dop = (float) ReplaySources.parseDouble(get(hdop), -1);
+            if (dop > 0) {
+                record.setHdop(dop);
+            }
+            value = ReplaySources.parseDouble(get(accuracy), 0);
+            if (value > 0) {
+                record.setAccuracy((float) value);
+            } else if (dop > 0) {
+                record.setAccuracy(dop * ReplaySources.METERS_PER_HDOP);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private void readHeader() throws IOException {
+        headerRead = true;
+        String line = reader.readLine();
+        if (line == null) {
+            return;
+        }
+        split(line);
+        for (int i = 0; i < fields.size(); i++) {
+            switch (fields.get(i).trim().toLowerCase(Locale.US)) {
+                case "time":
+                    time = i;
+                    break;
+                case "lat":
+                    latitude = i;
+                    break;
+                case "lon":
+                    longitude = i;
+                    break;
+                case "elevation":
+                    elevation = i;
+                    break;
+                case "accuracy":
+                    accuracy = i;
+                    break;
+                case "bearing":
+                    bearing = i;
+                    break;
+                case "speed":
+                    speed = i;
+                    break;
+                case "satellites":
+                    satellites = i;
+                    break;
+                case "provider":
+                    provider = i;
+                    break;
+                case "hdop":
+                    hdop = i;
+                    break;
+            }
+        }
+    }
+
+    private String get(int column) {
+        return column >= 0 && column < fields.size() ? fields.get(column) : null;
+    }
+
+    /**
+     * Splits a line into fields, allowing for quoted fields with commas and doubled quotes in them
+     */
+    private void split(String line) {
+        fields.clear();
+        field.setLength(0);
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+    }
+}
@@ -0,0 +1,185 @@
+package com.ml.map.replay;
+
+import com.ml.map.Strings;
+import com.ml.map.track.TrackRecord;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads track points back from a GPX 1.0 or 1.1 file. Only what the GPX loggers write is looked at, so this is
+ * a simple tag scanner rather than a full XML parser, and it doesn't need the whole file in memory. Waypoints
+ * and points without a time are skipped. GPX has no accuracy, so it is estimated from the HDOP when there is one.
+ */
+public class GpxReplaySource implements ReplaySource {
+
+    private final Reader reader;
+    private final StringBuilder text = new StringBuilder();
+    private final StringBuilder tag = new StringBuilder();
+
+    private boolean newSegment;
+    private boolean inPoint;
+    private double latitude;
+    private double longitude;
+    private long time;
+    private double altitude;
+    private float speed;
+    private float bearing;
+    private int satellites;
+    private float hdop;
+    private String provider;
+
+    public GpxReplaySource(Reader reader) {
+        this.reader = reader instanceof BufferedReader ? reader : new BufferedReader(reader);
+    }
+
+    @Override
+    public boolean next(TrackRecord record) throws IOException {
+        while (nextTag()) {
+            if (tag.length() == 0 || tag.charAt(0) == '?' || tag.charAt(0) == '!') {
+                continue;
+            }
+
+            boolean closing = tag.charAt(0) == '/';
+            String name = getName(closing);
+
+            if (!closing) {
+                if (name.equals("trkseg")) {
+                    newSegment = true;
+                } else if (name.equals("trkpt")) {
+                    startPoint();
+                }
+                continue;
+            }
+
+            if (!inPoint) {
+                continue;
+            }
+
+            String value = text.toString().trim();
+            switch (name) {
+                case "trkpt":
+                    inPoint = false;
+                    if (time >= 0 && !Double.isNaN(latitude) && !Double.isNaN(longitude)) {
+                        fill(record);
+                        return true;
+                    }
+                    break;
+                case "time":
+                    time = ReplaySources.parseTime(value);
+                    break;
+                case "ele":
+                    altitude = ReplaySources.parseDouble(value, Double.NaN);
+                    break;
+                case "speed":
+                    speed = (float) ReplaySources.parseDouble(value, -1);
+                    break;
+                case "course":
+                    bearing = (float) ReplaySources.parseDouble(value, -1);
+                    break;
+                case "sat":
+                    satellites = (int) ReplaySources.parseDouble(value, 0);
+                    break;
+                case "hdop":
+                    hdop = (float) ReplaySources.parseDouble(value, -1);
+                    break;
+                case "src":
+                    provider = value;
+                    break;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private void startPoint() {
+        latitude = ReplaySources.parseDouble(getAttribute("lat"), Double.NaN);
+        longitude = ReplaySources.parseDouble(getAttribute("lon"), Double.NaN);
+        time = -1;
+        altitude = Double.NaN;
+        speed = -1;
+        bearing = -1;
+        satellites = 0;
+        hdop = -1;
+        provider = null;
+        inPoint = tag.charAt(tag.length() - 1) != '/';
+    }
+
+    private void fill(TrackRecord record) {
+        record.setPoint(Strings.isNullOrEmpty(provider) ? "gps" : provider, time, latitude, longitude, newSegment);
+        newSegment = false;
+        if (!Double.isNaN(altitude)) {
+            record.setAltitude(altitude);
+        }
+        if (speed >= 0) {
+            record.setSpeed(speed);
+        }
+        if (bearing >= 0) {
+            record.setBearing(bearing);
+        }
+        if (satellites > 0) {
+            record.setSatellites(satellites);
+        }
+        if (hdop > 0) {
+            record.setHdop(hdop);
+            record.setAccuracy(hdop * ReplaySources.METERS_PER_HDOP);
+        }
+    }
+
+    /**
+     * Reads up to the next tag, leaving the text before it in {@link #text} and the tag itself, without the angle
+     * brackets, in {@link #tag}
+     */
+    private boolean nextTag() throws IOException {
+        text.setLength(0);
+        tag.setLength(0);
+        int c;
+        while ((c = reader.read()) != -1 && c != '<') {
+            text.append((char) c);
+        }
+        if (c == -1) {
+            return false;
+        }
+        while ((c = reader.read()) != -1 && c != '>') {
+            tag.append((char) c);
+        }
+        return c != -1;
+    }
+
+    /**
+     * @return the tag's name without any namespace prefix
+     */
+    private String getName(boolean closing) {
+        int start = closing ? 1 : 0;
+        int end = start;
+        while (end < tag.length() && !Character.isWhitespace(tag.charAt(end)) && tag.charAt(end) != '/') {
+            end++;
+        }
+        String name = tag.substring(start, end);
+        int colon = name.indexOf(':');
+        return colon >= 0 ? name.substring(colon + 1) : name;
+    }
+
+    private String getAttribute(String name) {
+        int index = 0;
+        while ((index = tag.indexOf(name + "=", index)) >= 0) {
+            boolean wordStart = index > 0 && Character.isWhitespace(tag.charAt(index - 1));
+            int valueStart = index + name.length() + 1;
+            index = valueStart;
+            if (!wordStart || valueStart >= tag.length()) {
+                continue;
+            }
+            char quote = tag.charAt(valueStart);
+            int valueEnd = tag.indexOf(String.valueOf(quote), valueStart + 1);
+            if (valueEnd > valueStart) {
+                return tag.substring(valueStart + 1, valueEnd);
+            }
+        }
+        return null;
+    }
+}
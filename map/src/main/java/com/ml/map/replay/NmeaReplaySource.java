@@ -0,0 +1,242 @@
+package com.ml.map.replay;
+
+import com.ml.map.track.TrackRecord;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+/**
+ * Reads points back from the raw sentences in an .nmea file. RMC and GGA sentences with the same time of day
+ * make up one point: RMC gives the date, position, speed and course, GGA the altitude, satellites and HDOP.
+ * Points without a valid RMC are skipped, since there is no date to put them on. NMEA carries no accuracy, so
+ * it is estimated from the HDOP when there is one.
+ *
+ * Sentences with a bad checksum are skipped, as a field recording may have been cut off mid-line.
+ */
+public class NmeaReplaySource implements ReplaySource {
+
+    private static final double KNOTS_TO_METERS_PER_SECOND = 0.514444;
+
+    private final BufferedReader reader;
+    private final Calendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+
+    private long epochTimeOfDay = -1;
+    private boolean hasRmc;
+    private long date;
+    private double latitude;
+    private double longitude;
+    private float speed;
+    private boolean hasSpeed;
+    private float bearing;
+    private boolean hasBearing;
+    private double altitude;
+    private boolean hasAltitude;
+    private int satellites = -1;
+    private float hdop = -1;
+
+    public NmeaReplaySource(Reader reader) {
+        this.reader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+    }
+
+    @Override
+    public boolean next(TrackRecord record) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] parts = split(line.trim());
+            if (parts == null) {
+                continue;
+            }
+
+            String type = parts[0].length() == 6 ? parts[0].substring(3) : "";
+            boolean rmc = type.equals("RMC");
+            if (!rmc && !type.equals("GGA")) {
+                continue;
+            }
+
+            long timeOfDay = parseTimeOfDay(parts[1]);
+            if (timeOfDay < 0) {
+                continue;
+            }
+
+            boolean complete = false;
+            if (timeOfDay != epochTimeOfDay) {
+                complete = fill(record);
+                startEpoch(timeOfDay);
+            }
+
+            if (rmc) {
+                readRmc(parts);
+            } else {
+                readGga(parts);
+            }
+
+            if (complete) {
+                return true;
+            }
+        }
+
+        boolean complete = fill(record);
+        epochTimeOfDay = -1;
+        hasRmc = false;
+        return complete;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private boolean fill(TrackRecord record) {
+        if (epochTimeOfDay < 0 || !hasRmc) {
+            return false;
+        }
+        record.setPoint("gps", date + epochTimeOfDay, latitude, longitude, false);
+        if (hasAltitude) {
+            record.setAltitude(altitude);
+        }
+        if (hasSpeed) {
+            record.setSpeed(speed);
+        }
+        if (hasBearing) {
+            record.setBearing(bearing);
+        }
+        if (satellites >= 0) {
+            record.setSatellites(satellites);
+        }
+        if (hdop > 0) {
+            record.setHdop(hdop);
+            record.setAccuracy(hdop * ReplaySources.METERS_PER_HDOP);
+        }
+        return true;
+    }
+
+    private void startEpoch(long timeOfDay) {
+        epochTimeOfDay = timeOfDay;
+        hasRmc = false;
+        hasSpeed = false;
+        hasBearing = false;
+        hasAltitude = false;
+        satellites = -1;
+        hdop = -1;
+    }
+
+    private void readRmc(String[] parts) {
+        if (parts.length < 10 || !"A".equals(parts[2])) {
+            return;
+        }
+        double lat = parseCoordinate(parts[3], parts[4]);
+        double lon = parseCoordinate(parts[5], parts[6]);
+        long day = parseDate(parts[9]);
+        if (Double.isNaN(lat) || Double.isNaN(lon) || day < 0) {
+            return;
+        }
+        latitude = lat;
+        longitude = lon;
+        date = day;
+        hasRmc = true;
+
+        double knots = ReplaySources.parseDouble(parts[7], -1);
+        hasSpeed = knots >= 0;
+        speed = (float) (knots * KNOTS_TO_METERS_PER_SECOND);
+        double course = ReplaySources.parseDouble(parts[8], -1);
+        hasBearing = course >= 0;
+        bearing = (float) course;
+    }
+
+    private void readGga(String[] parts) {
+        if (parts.length < 10 || "0".equals(parts[6])) {
+            return;
+        }
+        satellites = (int) ReplaySources.parseDouble(parts[7], -1);
+        hdop = (float) ReplaySources.parseDouble(parts[8], -1);
+        double alt = ReplaySources.parseDouble(parts[9], Double.NaN);
+        hasAltitude = !Double.isNaN(alt);
+        altitude = hasAltitude ? alt : 0;
+    }
+
+    /**
+     * @return the sentence's fields without the checksum, or null if it isn't a sentence or the checksum is wrong
+     */
+    static String[] split(String sentence) {
+        if (!sentence.startsWith("$")) {
+            return null;
+        }
+        int star = sentence.lastIndexOf('*');
+        if (star >= 0) {
+            if (star + 3 > sentence.length()) {
+                return null;
+            }
+            int checksum = 0;
+            for (int i = 1; i < star; i++) {
+                checksum ^= sentence.charAt(i);
+            }
+            try {
+                if (Integer.parseInt(sentence.substring(star + 1, star + 3), 16) != checksum) {
+                    return null;
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            sentence = sentence.substring(0, star);
+        }
+        return sentence.split(",", -1);
+    }
+
+    /**
+     * @return milliseconds since midnight for hhmmss.sss, or -1
+     */
+    static long parseTimeOfDay(String text) {
+        if (text.length() < 6) {
+            return -1;
+        }
+        try {
+            int hours = Integer.parseInt(text.substring(0, 2));
+            int minutes = Integer.parseInt(text.substring(2, 4));
+            double seconds = Double.parseDouble(text.substring(4));
+            return hours * 3600000L + minutes * 60000L + Math.round(seconds * 1000);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return UTC midnight of ddmmyy in milliseconds since the epoch, or -1
+     */
+    private long parseDate(String text) {
+        if (text.length() != 6) {
+            return -1;
+        }
+        try {
+            int day = Integer.parseInt(text.substring(0, 2));
+            int month = Integer.parseInt(text.substring(2, 4));
+            int year = Integer.parseInt(text.substring(4, 6));
+            calendar.clear();
+            calendar.set(year < 80 ? 2000 + year : 1900 + year, month - 1, day);
+            return calendar.getTimeInMillis();
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return degrees for dddmm.mmmm and a hemisphere, or NaN
+     */
+    static double parseCoordinate(String text, String hemisphere) {
+        int dot = text.indexOf('.');
+        int degreeDigits = (dot < 0 ? text.length() : dot) - 2;
+        if (degreeDigits < 1) {
+            return Double.NaN;
+        }
+        try {
+            double degrees = Integer.parseInt(text.substring(0, degreeDigits))
+                    + Double.parseDouble(text.substring(degreeDigits)) / 60;
+            return "S".equals(hemisphere) || "W".equals(hemisphere) ? -degrees : degrees;
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.ml.map.replay;
+
+import com.ml.map.track.TrackRecord;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * Plays a recorded session back to a listener, in order, at a multiple of the speed it was recorded at.
+ *
+ * The engine keeps a virtual clock that reads the time of the point being played, so anything timed off the
+ * points sees the recorded timeline whatever the speed. The wall clock is only used to pace delivery: at speed N
+ * a gap of t between two points is waited out as t / N. At {@link #AS_FAST_AS_POSSIBLE} nothing is waited
+ * for, which makes replays quick to run and repeatable, e.g. to reproduce a bug from a field recording or to
+ * time the logging pipeline.
+ */
+public class ReplayEngine {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReplayEngine.class);
+
+    public static final double AS_FAST_AS_POSSIBLE = 0;
+
+    /**
+     * Receives each replayed point, on the thread calling {@link #run()}
+     */
+    public interface Listener {
+        /**
+         * The record is reused for the next point
+         */
+        void onPoint(TrackRecord record);
+    }
+
+    /**
+     * The wall clock used to pace a replay
+     */
+    public interface Clock {
+        long currentTimeMillis();
+
+        void sleep(long millis) throws InterruptedException;
+    }
+
+    private final ReplaySource source;
+    private final Listener listener;
+    private final Clock clock;
+    private final TrackRecord record = new TrackRecord();
+    private double speed = 1;
+    private volatile boolean stopped;
+    private boolean readFirst;
+    private boolean firstPending;
+    private long startTimeMillis;
+    private volatile long currentTimeMillis;
+    private volatile long replayed;
+
+    ReplayEngine(ReplaySource source, Listener listener, Clock clock) {
+        this.source = source;
+        this.listener = listener;
+        this.clock = clock;
+    }
+
+    public ReplayEngine(ReplaySource source, Listener listener) {
+        this(source, listener, new Clock() {
+            @Override
+            public long currentTimeMillis() {
+                return System.currentTimeMillis();
+            }
+
+            @Override
+            public void sleep(long millis) throws InterruptedException {
+                Thread.sleep(millis);
+            }
+        });
+    }
+
+    /**
+     * @param speed how many times faster than recorded to play, or {@link #AS_FAST_AS_POSSIBLE}
+     */
+    public ReplayEngine setSpeed(double speed) {
+        this.speed = speed;
+        return this;
+    }
+
+    /**
+     * Plays the whole session, or until {@link #stop()} is called, then closes the source
+     *
+     * @return the number of points played
+     */
+    public long run() throws IOException {
+        readFirst = true;
+        long wallStart = clock.currentTimeMillis();
+        try {
+            while (!stopped && nextRecord()) {
+                if (replayed == 0) {
+                    startTimeMillis = record.getTime();
+                }
+
+                if (speed > 0 && !waitUntil(wallStart + (long) ((record.getTime() - startTimeMillis) / speed))) {
+                    break;
+                }
+
+                currentTimeMillis = record.getTime();
+                listener.onPoint(record);
+                replayed++;
+            }
+        } finally {
+            source.close();
+        }
+
+        LOG.info("Replayed " + replayed + " points in " + (clock.currentTimeMillis() - wallStart) + " ms");
+        return replayed;
+    }
+
+    /**
+     * The recorded time of the first point. Called before {@link #run()}, it reads that point ahead, so the
+     * session can be set up for when it was recorded; the virtual clock then starts there.
+     *
+     * @return 0 if there are no points
+     */
+    public long getStartTimeMillis() throws IOException {
+        if (!readFirst) {
+            readFirst = true;
+            if (source.next(record)) {
+                firstPending = true;
+                startTimeMillis = record.getTime();
+                currentTimeMillis = startTimeMillis;
+            }
+        }
+        return startTimeMillis;
+    }
+
+    /**
+     * Stops the replay after the current point
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * The virtual clock: the recorded time of the last point played, or of the first point once read ahead
+     */
+    public long getCurrentTimeMillis() {
+        return currentTimeMillis;
+    }
+
+    public long getReplayed() {
+        return replayed;
+    }
+
+    private boolean nextRecord() throws IOException {
+        if (firstPending) {
+            firstPending = false;
+            return true;
+        }
+        return source.next(record);
+    }
+
+    /**
+     * Points that go back in time are played straight away
+     *
+     * @return false if interrupted
+     */
+    private boolean waitUntil(long wallTime) {
+        long wait;
+        while (!stopped && (wait = wallTime - clock.currentTimeMillis()) > 0) {
+            try {
+                clock.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return !stopped;
+    }
+}
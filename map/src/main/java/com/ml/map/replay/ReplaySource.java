@@ -0,0 +1,19 @@
+package com.ml.map.replay;
+
+import com.ml.map.track.TrackRecord;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A recorded session read back one point at a time, oldest first
+ */
+public interface ReplaySource extends Closeable {
+
+    /**
+     * Fills the record with the next point
+     *
+     * @return false once there are no more points
+     */
+    boolean next(TrackRecord record) throws IOException;
+}
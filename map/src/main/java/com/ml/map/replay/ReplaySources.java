@@ -0,0 +1,110 @@
+package com.ml.map.replay;
+
+import com.ml.map.Strings;
+import com.ml.map.track.TrackFileLogger;
+import com.ml.map.track.TrackReader;
+import com.ml.map.track.TrackRecord;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Opens recorded sessions for replay, picking the reader from the file extension
+ */
+public class ReplaySources {
+
+    /**
+     * Horizontal error of a fix with an HDOP of 1, used to give fixes from files without accuracies one
+     */
+    static final float METERS_PER_HDOP = 5f;
+
+    private static final String[] TIME_FORMATS = {
+            "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'",
+            "yyyy-MM-dd'T'HH:mm:ss'Z'",
+            "yyyy-MM-dd HH:mm:ss"
+    };
+
+    private ReplaySources() {
+    }
+
+    /**
+     * @return a source for an .nmea, .csv, .gpx or binary track file
+     * @throws IOException if the file can't be opened or isn't one of those
+     */
+    public static ReplaySource open(File file) throws IOException {
+        String name = file.getName().toLowerCase(Locale.US);
+        if (name.endsWith(TrackFileLogger.EXTENSION)) {
+            final TrackReader reader = TrackReader.open(file);
+            return new ReplaySource() {
+                @Override
+                public boolean next(TrackRecord record) throws IOException {
+                    while (reader.next(record)) {
+                        if (!record.isAnnotation()) {
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    reader.close();
+                }
+            };
+        }
+
+        Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+        if (name.endsWith(".nmea")) {
+            return new NmeaReplaySource(reader);
+        }
+        if (name.endsWith(".csv") || name.endsWith(".txt")) {
+            return new CsvReplaySource(reader);
+        }
+        if (name.endsWith(".gpx")) {
+            return new GpxReplaySource(reader);
+        }
+        reader.close();
+        throw new IOException("Don't know how to replay " + file.getName());
+    }
+
+    /**
+     * Reads the ISO 8601 times the loggers write, in UTC
+     *
+     * @return milliseconds since the epoch, or -1 if the text isn't a time
+     */
+    static long parseTime(String text) {
+        if (Strings.isNullOrEmpty(text)) {
+            return -1;
+        }
+        for (String format : TIME_FORMATS) {
+            SimpleDateFormat sdf = new SimpleDateFormat(format, Locale.US);
+            sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
+            try {
+                return sdf.parse(text.trim()).getTime();
+            } catch (ParseException e) {
+                //Try the next format
+            }
+        }
+        return -1;
+    }
+
+    static double parseDouble(String text, double defaultValue) {
+        if (Strings.isNullOrEmpty(text)) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(text.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.ml.map.senders;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Uploads log files somewhere. Senders are registered with the {@link SendQueue}, which keeps the files each
+ * sender still has to upload in a journal on disk and retries failed uploads with a growing delay.
+ */
+public abstract class FileSender {
+
+    /**
+     * Identifies the sender's queued files in the journal, so it must not change between releases
+     */
+    public abstract String getName();
+
+    /**
+     * Whether the sender wants this file at all
+     */
+    public abstract boolean accept(File file);
+
+    /**
+     * Uploads the files as one batch. Called on a worker thread, possibly with the same files again after a
+     * failure, so uploads must be safe to repeat.
+     *
+     * @throws IOException if the batch was not accepted, to be retried later as a whole
+     */
+    public abstract void upload(List<File> files) throws IOException;
+
+    /**
+     * Whether the sender can upload right now, e.g. it is configured and the network it needs is up. Files stay
+     * queued while it can't.
+     */
+    public boolean isAvailable() {
+        return true;
+    }
+
+    /**
+     * How many batches the sender may upload at the same time
+     */
+    public int getMaxConcurrency() {
+        return 1;
+    }
+
+    /**
+     * Most files to put in one {@link #upload(List)} call
+     */
+    public int getMaxBatchSize() {
+        return 10;
+    }
+}
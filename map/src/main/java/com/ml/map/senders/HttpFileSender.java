@@ -0,0 +1,114 @@
+package com.ml.map.senders;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Uploads each batch of files as one multipart/form-data POST, with a "file" part per file. Any 2xx response
+ * counts as success.
+ */
+public class HttpFileSender extends FileSender {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String BOUNDARY = "goblob-upload-boundary";
+
+    private final String name;
+    private final URL url;
+    private final Map<String, String> headers = new LinkedHashMap<>();
+    private int timeoutMillis = 30000;
+
+    /**
+     * @param name how the sender's files are known in the send journal
+     */
+    public HttpFileSender(String name, URL url) {
+        this.name = name;
+        this.url = url;
+    }
+
+    /**
+     * Adds a header to every request, e.g. for authorization
+     */
+    public HttpFileSender setHeader(String header, String value) {
+        headers.put(header, value);
+        return this;
+    }
+
+    public HttpFileSender setTimeout(int timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        return this;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean accept(File file) {
+        return true;
+    }
+
+    @Override
+    public void upload(List<File> files) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setConnectTimeout(timeoutMillis);
+            connection.setReadTimeout(timeoutMillis);
+            connection.setChunkedStreamingMode(64 * 1024);
+            connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+
+            OutputStream out = connection.getOutputStream();
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                for (File file : files) {
+                    out.write(("--" + BOUNDARY + "\r\n"
+                            + "Content-Disposition: form-data; name=\"file\"; filename=\""
+                            + file.getName().replace("\"", "%22") + "\"\r\n"
+                            + "Content-Type: application/octet-stream\r\n\r\n").getBytes(UTF8));
+                    InputStream in = new FileInputStream(file);
+                    try {
+                        int read;
+                        while ((read = in.read(buffer)) != -1) {
+                            out.write(buffer, 0, read);
+                        }
+                    } finally {
+                        in.close();
+                    }
+                    out.write("\r\n".getBytes(UTF8));
+                }
+                out.write(("--" + BOUNDARY + "--\r\n").getBytes(UTF8));
+            } finally {
+                out.close();
+            }
+
+            int code = connection.getResponseCode();
+            InputStream response = code < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (response != null) {
+                //Drain the response so the server sees it fully read
+                byte[] discard = new byte[4096];
+                while (response.read(discard) != -1) {
+                }
+                response.close();
+            }
+            if (code / 100 != 2) {
+                throw new IOException("HTTP " + code + " from " + url.getHost());
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,628 @@
+package com.ml.map.senders;
+
+import com.ml.map.IncrementalSender;
+import com.ml.map.PreferenceHelper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Files waiting to be uploaded by the registered {@link FileSender}s, kept in a journal on disk.
+ *
+ * Every change is appended to the journal and synced before it counts, so queued files and their retry state
+ * survive the process being killed. A line cut short by a crash is ignored when the journal is read back, and
+ * the journal is rewritten with just the waiting files when it is opened and whenever finished entries come to
+ * outnumber them.
+ *
+ * {@link #sendDue()} groups each sender's due files into batches of up to {@link FileSender#getMaxBatchSize()}
+ * and uploads at most {@link FileSender#getMaxConcurrency()} of a sender's batches at the same time. A failed
+ * batch is retried after a delay that doubles with each attempt up to a maximum, plus up to a quarter more at
+ * random so that devices that lost the same server don't all come back at the same moment.
+ *
+ * After each round of uploads the {@link Scheduler} is asked to run {@link #sendDue()} again when the next file is
+ * due, and the {@link FinishedListener} hears about each file once no sender has it queued any more.
+ *
+ * The clock is passed in, so this class has no Android dependencies and can be tested on the JVM.
+ */
+public class SendQueue {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SendQueue.class);
+
+    public interface Clock {
+        long currentTimeMillis();
+    }
+
+    public interface Scheduler {
+        /**
+         * Asks for {@link #sendDue()} to be called at the given {@link Clock} time, replacing any earlier request
+         */
+        void schedule(long time);
+    }
+
+    public interface FinishedListener {
+        /**
+         * Called once no sender has the file queued any more, with the queue locked
+         *
+         * @param sentByAll false if a sender gave up on the file, or it was gone before it could be sent
+         */
+        void onFinished(File file, boolean sentByAll);
+    }
+
+    static final String JOURNAL_NAME = "send-journal";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String ADDED = "A";
+    private static final String RETRY = "R";
+    private static final String DONE = "D";
+    private static final String DROPPED = "X";
+
+    private static SendQueue instance = null;
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final ExecutorService uploadExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "goblob-send-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private static final ExecutorService backgroundExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "goblob-send-queue");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final File journal;
+    private final Clock clock;
+    private final Random random = new Random();
+    private final Map<String, FileSender> senders = new LinkedHashMap<>();
+    private final Map<Long, Entry> entries = new LinkedHashMap<>();
+    //Dropped entries whose file is still queued for another sender, so it isn't taken as sent by all
+    private final Map<Long, Entry> dropped = new LinkedHashMap<>();
+    private Scheduler scheduler;
+    private FinishedListener finishedListener;
+    private long nextId = 1;
+    private int journalLines;
+    private long baseDelayMillis = 30 * 1000L;
+    private long maxDelayMillis = 6 * 60 * 60 * 1000L;
+    private int maxAttempts = 20;
+
+    SendQueue(File journal, Clock clock) {
+        this.journal = journal;
+        this.clock = clock;
+        load();
+    }
+
+    public static synchronized SendQueue getInstance() {
+        if (instance == null) {
+            File folder = new File(PreferenceHelper.getInstance().getGoblobFolder(), IncrementalSender.CHECKPOINT_FOLDER);
+            instance = new SendQueue(new File(folder, JOURNAL_NAME), new Clock() {
+                @Override
+                public long currentTimeMillis() {
+                    //Wall clock time, as retry times are kept across restarts
+                    return System.currentTimeMillis();
+                }
+            });
+        }
+        return instance;
+    }
+
+    /**
+     * Adds a sender, or replaces the one with the same name. Files queued for it before a restart are picked up
+     * again once it is registered.
+     */
+    public synchronized void register(FileSender sender) {
+        senders.put(sender.getName(), sender);
+    }
+
+    public synchronized SendQueue setScheduler(Scheduler scheduler) {
+        this.scheduler = scheduler;
+        return this;
+    }
+
+    public synchronized SendQueue setFinishedListener(FinishedListener listener) {
+        this.finishedListener = listener;
+        return this;
+    }
+
+    /**
+     * @param baseMillis delay before the first retry
+     * @param maxMillis longest delay between retries
+     */
+    public synchronized SendQueue setBackoff(long baseMillis, long maxMillis) {
+        this.baseDelayMillis = baseMillis;
+        this.maxDelayMillis = maxMillis;
+        return this;
+    }
+
+    /**
+     * Failed uploads are dropped from the queue after this many attempts
+     */
+    public synchronized SendQueue setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    /**
+     * Queues the file for every registered sender that accepts it and doesn't have it queued already
+     *
+     * @return how many senders it was queued for
+     */
+    public synchronized int enqueue(File file) {
+        String path = file.getAbsolutePath();
+        if (path.indexOf('\n') >= 0 || path.indexOf('\t') >= 0) {
+            LOG.warn("Can't queue a file with tabs or line breaks in its path: " + path);
+            return 0;
+        }
+
+        List<Entry> added = new ArrayList<>();
+        List<String> lines = new ArrayList<>();
+        long id = nextId;
+        for (FileSender sender : senders.values()) {
+            if (!sender.accept(file) || isQueued(sender.getName(), path)) {
+                continue;
+            }
+            Entry entry = new Entry(id++, sender.getName(), path);
+            entry.nextAttempt = clock.currentTimeMillis();
+            added.add(entry);
+            lines.add(ADDED + "\t" + entry.id + "\t" + entry.sender + "\t" + entry.path);
+        }
+        if (added.isEmpty()) {
+            return 0;
+        }
+
+        try {
+            append(lines);
+        } catch (IOException e) {
+            LOG.error("Could not queue " + path, e);
+            return 0;
+        }
+
+        nextId = id;
+        for (Entry entry : added) {
+            entries.put(entry.id, entry);
+        }
+        return added.size();
+    }
+
+    /**
+     * Uploads every queued file whose time has come, waiting for the uploads to finish
+     *
+     * @return how many files were uploaded
+     */
+    public int sendDue() {
+        Map<FileSender, List<Entry>> due = new LinkedHashMap<>();
+        synchronized (this) {
+            long now = clock.currentTimeMillis();
+            for (Entry entry : entries.values()) {
+                FileSender sender = senders.get(entry.sender);
+                if (sender == null || entry.inFlight || entry.nextAttempt > now) {
+                    continue;
+                }
+                List<Entry> list = due.get(sender);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    due.put(sender, list);
+                }
+                list.add(entry);
+                entry.inFlight = true;
+            }
+        }
+
+        List<Future<Integer>> futures = new ArrayList<>();
+        for (Map.Entry<FileSender, List<Entry>> senderEntries : due.entrySet()) {
+            final FileSender sender = senderEntries.getKey();
+            List<Entry> list = senderEntries.getValue();
+
+            boolean available;
+            try {
+                available = sender.isAvailable();
+            } catch (Exception e) {
+                LOG.error("Could not check " + sender.getName(), e);
+                available = false;
+            }
+            if (!available) {
+                LOG.debug(sender.getName() + " is not available, " + list.size() + " files stay queued");
+                release(list);
+                continue;
+            }
+
+            final ConcurrentLinkedQueue<List<Entry>> batches = new ConcurrentLinkedQueue<>();
+            List<Entry> batch = new ArrayList<>();
+            for (Entry entry : list) {
+                if (!new File(entry.path).exists()) {
+                    LOG.warn(entry.path + " no longer exists, dropping it from the " + entry.sender + " queue");
+                    finish(Collections.singletonList(entry), DROPPED);
+                    continue;
+                }
+                batch.add(entry);
+                if (batch.size() >= Math.max(1, sender.getMaxBatchSize())) {
+                    batches.add(batch);
+                    batch = new ArrayList<>();
+                }
+            }
+            if (!batch.isEmpty()) {
+                batches.add(batch);
+            }
+
+            int workers = Math.min(Math.max(1, sender.getMaxConcurrency()), batches.size());
+            for (int i = 0; i < workers; i++) {
+                futures.add(uploadExecutor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        return upload(sender, batches);
+                    }
+                }));
+            }
+        }
+
+        int sent = 0;
+        for (Future<Integer> future : futures) {
+            try {
+                sent += future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                LOG.error("Upload worker failed", e.getCause());
+            }
+        }
+        scheduleNext();
+        return sent;
+    }
+
+    /**
+     * Runs {@link #sendDue()} on a background thread, so it can be called from the main thread
+     */
+    public void sendDueInBackground() {
+        backgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int sent = sendDue();
+                    LOG.debug("Sent " + sent + " queued files, " + getPendingCount() + " still queued");
+                } catch (Exception e) {
+                    LOG.error("Could not send queued files", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return when the earliest waiting file is due, or -1 if nothing is waiting for a registered sender
+     */
+    public synchronized long getNextAttemptTime() {
+        long next = -1;
+        for (Entry entry : entries.values()) {
+            if (!entry.inFlight && senders.containsKey(entry.sender) && (next < 0 || entry.nextAttempt < next)) {
+                next = entry.nextAttempt;
+            }
+        }
+        return next;
+    }
+
+    public synchronized int getPendingCount() {
+        return entries.size();
+    }
+
+    /**
+     * Uploads batches until there are none left, recording each one's outcome as soon as it is known
+     */
+    private int upload(FileSender sender, ConcurrentLinkedQueue<List<Entry>> batches) {
+        int sent = 0;
+        List<Entry> batch;
+        while ((batch = batches.poll()) != null) {
+            List<File> files = new ArrayList<>();
+            for (Entry entry : batch) {
+                files.add(new File(entry.path));
+            }
+
+            try {
+                sender.upload(files);
+            } catch (Exception e) {
+                LOG.warn(sender.getName() + " could not upload " + files.size() + " files", e);
+                retryLater(batch);
+                continue;
+            }
+
+            finish(batch, DONE);
+            sent += batch.size();
+            LOG.info(sender.getName() + " uploaded " + files.size() + " files");
+        }
+        return sent;
+    }
+
+    private synchronized void finish(List<Entry> batch, String outcome) {
+        List<String> lines = new ArrayList<>();
+        for (Entry entry : batch) {
+            entries.remove(entry.id);
+            if (DROPPED.equals(outcome)) {
+                dropped.put(entry.id, entry);
+            }
+            lines.add(outcome + "\t" + entry.id);
+        }
+        try {
+            append(lines);
+        } catch (IOException e) {
+            //Only means these may be sent once more after a restart
+            LOG.error("Could not record finished uploads", e);
+        }
+
+        for (Entry entry : batch) {
+            if (!isQueued(entry.path)) {
+                boolean sentByAll = !forgetDropped(entry.path);
+                if (finishedListener != null) {
+                    finishedListener.onFinished(new File(entry.path), sentByAll);
+                }
+            }
+        }
+        compactIfNeeded();
+    }
+
+    /**
+     * Asks for the next round when the earliest waiting file is due. Files that are due already are waiting for a
+     * sender that isn't available, so they are tried again after the base delay rather than straight away.
+     */
+    private synchronized void scheduleNext() {
+        long next = getNextAttemptTime();
+        if (scheduler != null && next >= 0) {
+            scheduler.schedule(Math.max(next, clock.currentTimeMillis() + baseDelayMillis));
+        }
+    }
+
+    private synchronized void retryLater(List<Entry> batch) {
+        long now = clock.currentTimeMillis();
+        //One draw for the whole batch, so its files stay together when they come back
+        double jitter = random.nextDouble();
+        List<Entry> givenUp = new ArrayList<>();
+        List<String> lines = new ArrayList<>();
+        for (Entry entry : batch) {
+            entry.attempts++;
+            entry.inFlight = false;
+            if (entry.attempts >= maxAttempts) {
+                LOG.error("Giving up on " + entry.path + " for " + entry.sender + " after " + entry.attempts + " attempts");
+                givenUp.add(entry);
+                continue;
+            }
+            entry.nextAttempt = now + getRetryDelay(entry.attempts, jitter);
+            lines.add(RETRY + "\t" + entry.id + "\t" + entry.attempts + "\t" + entry.nextAttempt);
+        }
+
+        try {
+            append(lines);
+        } catch (IOException e) {
+            //The files stay queued, they are just retried sooner after a restart
+            LOG.error("Could not record failed uploads", e);
+        }
+        if (!givenUp.isEmpty()) {
+            finish(givenUp, DROPPED);
+        }
+        scheduleNext();
+    }
+
+    private synchronized void release(List<Entry> list) {
+        for (Entry entry : list) {
+            entry.inFlight = false;
+        }
+    }
+
+    long getRetryDelay(int attempts) {
+        return getRetryDelay(attempts, random.nextDouble());
+    }
+
+    private long getRetryDelay(int attempts, double jitter) {
+        long delay = baseDelayMillis;
+        for (int i = 1; i < attempts && delay < maxDelayMillis; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, maxDelayMillis);
+        return delay + (long) (jitter * delay / 4);
+    }
+
+    private boolean isQueued(String path) {
+        for (Entry entry : entries.values()) {
+            if (entry.path.equals(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether any sender had dropped the file
+     */
+    private boolean forgetDropped(String path) {
+        boolean found = false;
+        Iterator<Entry> it = dropped.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().path.equals(path)) {
+                it.remove();
+                found = true;
+            }
+        }
+        return found;
+    }
+
+    private boolean isQueued(String sender, String path) {
+        for (Entry entry : entries.values()) {
+            if (entry.sender.equals(sender) && entry.path.equals(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void append(List<String> lines) throws IOException {
+        if (lines.isEmpty()) {
+            return;
+        }
+        File folder = journal.getParentFile();
+        if (folder != null && !folder.exists() && !folder.mkdirs()) {
+            throw new IOException("Could not create " + folder.getPath());
+        }
+
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) {
+            text.append(line).append('\n');
+        }
+        FileOutputStream out = new FileOutputStream(journal, true);
+        try {
+            out.write(text.toString().getBytes(UTF8));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        journalLines += lines.size();
+    }
+
+    private void load() {
+        if (!journal.exists()) {
+            return;
+        }
+
+        String text;
+        try {
+            RandomAccessFile file = new RandomAccessFile(journal, "r");
+            try {
+                byte[] data = new byte[(int) file.length()];
+                file.readFully(data);
+                text = new String(data, UTF8);
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            LOG.error("Could not read the send journal", e);
+            return;
+        }
+
+        //Anything after the last line break was cut short
+        int end = text.lastIndexOf('\n');
+        if (end > 0) {
+            for (String line : text.substring(0, end).split("\n")) {
+                try {
+                    replay(line.split("\t", 4));
+                } catch (RuntimeException e) {
+                    LOG.warn("Skipping bad send journal line: " + line);
+                }
+            }
+        }
+
+        //Only drops that still matter to a waiting file are kept
+        Iterator<Entry> it = dropped.values().iterator();
+        while (it.hasNext()) {
+            if (!isQueued(it.next().path)) {
+                it.remove();
+            }
+        }
+
+        //Also gets rid of any partial line, so that new lines are not appended to it
+        compact();
+        LOG.debug("Send journal has " + entries.size() + " queued files");
+    }
+
+    private void replay(String[] fields) {
+        long id = Long.parseLong(fields[1]);
+        nextId = Math.max(nextId, id + 1);
+        if (ADDED.equals(fields[0])) {
+            Entry entry = new Entry(id, fields[2], fields[3]);
+            entry.nextAttempt = 0;
+            entries.put(id, entry);
+        } else if (RETRY.equals(fields[0])) {
+            Entry entry = entries.get(id);
+            if (entry != null) {
+                entry.attempts = Integer.parseInt(fields[2]);
+                entry.nextAttempt = Long.parseLong(fields[3]);
+            }
+        } else if (DONE.equals(fields[0])) {
+            entries.remove(id);
+        } else if (DROPPED.equals(fields[0])) {
+            Entry entry = entries.remove(id);
+            if (entry != null) {
+                dropped.put(id, entry);
+            }
+        }
+    }
+
+    private void compactIfNeeded() {
+        if (journalLines > 64 && journalLines > entries.size() * 4) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrites the journal with only the waiting files and the drops that still matter to them, through a temporary file so a crash leaves one or the other
+     */
+    private void compact() {
+        List<String> lines = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            lines.add(ADDED + "\t" + entry.id + "\t" + entry.sender + "\t" + entry.path);
+            if (entry.attempts > 0) {
+                lines.add(RETRY + "\t" + entry.id + "\t" + entry.attempts + "\t" + entry.nextAttempt);
+            }
+        }
+        for (Entry entry : dropped.values()) {
+            lines.add(ADDED + "\t" + entry.id + "\t" + entry.sender + "\t" + entry.path);
+            lines.add(DROPPED + "\t" + entry.id);
+        }
+
+        File temp = new File(journal.getPath() + ".tmp");
+        try {
+            StringBuilder text = new StringBuilder();
+            for (String line : lines) {
+                text.append(line).append('\n');
+            }
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(text.toString().getBytes(UTF8));
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(journal)) {
+                throw new IOException("Could not replace " + journal.getPath());
+            }
+            journalLines = lines.size();
+        } catch (IOException e) {
+            LOG.error("Could not compact the send journal", e);
+            temp.delete();
+        }
+    }
+
+    private static class Entry {
+        final long id;
+        final String sender;
+        final String path;
+        int attempts;
+        long nextAttempt;
+        boolean inFlight;
+
+        Entry(long id, String sender, String path) {
+            this.id = id;
+            this.sender = sender;
+            this.path = path;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.ml.map.track;
+
+import com.ml.map.ByteEncoder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+
+/**
+ * Base for encoders that stream to a file through a fixed size buffer. Output a format has to place after
+ * everything else, like waypoints or placemarks, goes to a spool file next to the output and is copied over by
+ * {@link #appendSpool()}, so memory use does not depend on the length of the track.
+ */
+public abstract class FileTrackEncoder implements TrackEncoder {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileTrackEncoder.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    protected final ByteEncoder encoder = new ByteEncoder(512);
+
+    private File file;
+    private FileOutputStream fileStream;
+    private OutputStream out;
+    private File spoolFile;
+    private OutputStream spool;
+
+    @Override
+    public void open(File file, long startTime) throws IOException {
+        this.file = file;
+        fileStream = new FileOutputStream(file);
+        out = new BufferedOutputStream(fileStream, BUFFER_SIZE);
+        begin(startTime);
+    }
+
+    /**
+     * Writes the start of the file
+     */
+    protected abstract void begin(long startTime) throws IOException;
+
+    /**
+     * Writes the end of the file
+     */
+    protected abstract void end() throws IOException;
+
+    @Override
+    public void finish() throws IOException {
+        end();
+        out.flush();
+        fileStream.getFD().sync();
+    }
+
+    /**
+     * Writes the encoded bytes to the output
+     */
+    protected void output(ByteEncoder bytes) throws IOException {
+        out.write(bytes.array(), 0, bytes.length());
+    }
+
+    protected void output(byte[] bytes) throws IOException {
+        out.write(bytes);
+    }
+
+    /**
+     * Sets the encoded bytes aside until {@link #appendSpool()}
+     */
+    protected void spool(ByteEncoder bytes) throws IOException {
+        if (spool == null) {
+            spoolFile = new File(file.getPath() + ".spool");
+            spool = new BufferedOutputStream(new FileOutputStream(spoolFile), BUFFER_SIZE);
+        }
+        spool.write(bytes.array(), 0, bytes.length());
+    }
+
+    protected boolean hasSpool() {
+        return spool != null;
+    }
+
+    /**
+     * Copies everything spooled so far to the output
+     */
+    protected void appendSpool() throws IOException {
+        if (spool == null) {
+            return;
+        }
+
+        spool.close();
+        spool = null;
+        out.flush();
+
+        FileInputStream in = new FileInputStream(spoolFile);
+        try {
+            FileChannel source = in.getChannel();
+            FileChannel target = fileStream.getChannel();
+            long size = source.size();
+            long position = 0;
+            while (position < size) {
+                position += source.transferTo(position, size - position, target);
+            }
+        } finally {
+            in.close();
+        }
+        deleteSpool();
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (spool != null) {
+                spool.close();
+                spool = null;
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not close spool for " + file.getName(), e);
+        }
+        deleteSpool();
+
+        try {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not close " + file.getName(), e);
+        }
+    }
+
+    private void deleteSpool() {
+        if (spoolFile != null && spoolFile.exists() && !spoolFile.delete()) {
+            LOG.warn("Could not delete " + spoolFile.getPath());
+        }
+        spoolFile = null;
+    }
+}
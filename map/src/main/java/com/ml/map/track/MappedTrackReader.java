@@ -0,0 +1,280 @@
+package com.ml.map.track;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Queries a binary track file by time through a memory mapping, without reading the parts of the file that
+ * are not needed.
+ *
+ * The block index doubles as a sparse time index. Fixes can arrive slightly out of order, so block time ranges
+ * may overlap; a running maximum of the block end times and a running minimum (from the end) of the block start
+ * times are both sorted, which makes finding the blocks for a time range a pair of binary searches.
+ *
+ * The mapping covers the file as it was when opened. Open a new reader to see points written since.
+ */
+public class MappedTrackReader implements Closeable {
+
+    private final FileChannel channel;
+    private final MappedByteBuffer mapped;
+    private final TrackIndex index;
+    private final long[] maxLastTimeUpTo;
+    private final long[] minFirstTimeFrom;
+    private final long[] firstRecordOf;
+
+    private MappedTrackReader(FileChannel channel, MappedByteBuffer mapped, TrackIndex index) {
+        this.channel = channel;
+        this.mapped = mapped;
+        this.index = index;
+
+        int blocks = index.getBlockCount();
+        maxLastTimeUpTo = new long[blocks];
+        minFirstTimeFrom = new long[blocks];
+        firstRecordOf = new long[blocks];
+        for (int i = 0; i < blocks; i++) {
+            maxLastTimeUpTo[i] = i == 0 ? index.getLastTime(i) : Math.max(maxLastTimeUpTo[i - 1], index.getLastTime(i));
+            firstRecordOf[i] = i == 0 ? 0 : firstRecordOf[i - 1] + index.getRecordCount(i - 1);
+        }
+        for (int i = blocks - 1; i >= 0; i--) {
+            minFirstTimeFrom[i] = i == blocks - 1 ? index.getFirstTime(i) : Math.min(minFirstTimeFrom[i + 1], index.getFirstTime(i));
+        }
+    }
+
+    /**
+     * @throws IOException if the file can't be read or is not a track file
+     */
+    public static MappedTrackReader open(File file) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            TrackIndex index = TrackIndex.load(channel);
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, index.getDataEnd());
+            return new MappedTrackReader(channel, mapped, index);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public long getRecordCount() {
+        return index.getRecordCount();
+    }
+
+    /**
+     * Earliest record time in the file, or 0 if it is empty
+     */
+    public long getStartTime() {
+        return minFirstTimeFrom.length == 0 ? 0 : minFirstTimeFrom[0];
+    }
+
+    /**
+     * Latest record time in the file, or 0 if it is empty
+     */
+    public long getEndTime() {
+        return maxLastTimeUpTo.length == 0 ? 0 : maxLastTimeUpTo[maxLastTimeUpTo.length - 1];
+    }
+
+    /**
+     * Adds the points (not annotations) with from &lt;= time &lt;= to to the given points, in file order
+     *
+     * @return the number of points added
+     */
+    public int query(long from, long to, TrackPoints out) {
+        Cursor cursor = cursor();
+        TrackRecord record = new TrackRecord();
+        int before = out.size();
+        cursor.seek(from, to);
+        while (cursor.next(record, false)) {
+            if (!record.isAnnotation()) {
+                out.add(record.time, record.latitude, record.longitude);
+            }
+        }
+        return out.size() - before;
+    }
+
+    /**
+     * Replaces the contents of the given points with the last n points of the file
+     */
+    public void last(int n, TrackPoints out) {
+        out.clear();
+        if (n <= 0) {
+            return;
+        }
+
+        //Records include annotations, so going back far enough in records is enough in points too
+        int firstBlock = index.getBlockCount();
+        long records = 0;
+        while (firstBlock > 0 && records < n) {
+            firstBlock--;
+            records += index.getRecordCount(firstBlock);
+        }
+
+        Cursor cursor = cursor();
+        TrackRecord record = new TrackRecord();
+        cursor.seekBlocks(firstBlock, index.getBlockCount(), Long.MIN_VALUE, Long.MAX_VALUE);
+        while (cursor.next(record, false)) {
+            if (!record.isAnnotation()) {
+                out.add(record.time, record.latitude, record.longitude);
+            }
+        }
+        out.keepLast(n);
+    }
+
+    /**
+     * A new cursor over this file. A cursor allocates nothing while reading, so keep one per thread and reuse it.
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Index of the first block that can hold a record at or after the given time
+     */
+    private int firstBlockFrom(long from) {
+        int low = 0;
+        int high = maxLastTimeUpTo.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (maxLastTimeUpTo[mid] < from) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Index after the last block that can hold a record at or before the given time
+     */
+    private int endBlockTo(long to) {
+        int low = 0;
+        int high = minFirstTimeFrom.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (minFirstTimeFrom[mid] <= to) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Reads the records in a time range, block by block, straight from the mapping
+     */
+    public class Cursor {
+        private final ByteBuffer view = mapped.duplicate();
+        private final TrackCodec codec = new TrackCodec();
+        private int block;
+        private int endBlock;
+        private int remainingInBlock;
+        private long from;
+        private long to;
+
+        private Cursor() {
+        }
+
+        /**
+         * Positions the cursor before the first record of the whole file
+         */
+        public void rewind() {
+            seekBlocks(0, index.getBlockCount(), Long.MIN_VALUE, Long.MAX_VALUE);
+        }
+
+        /**
+         * Positions the cursor before the first record with from &lt;= time &lt;= to
+         */
+        public void seek(long from, long to) {
+            seekBlocks(firstBlockFrom(from), endBlockTo(to), from, to);
+        }
+
+        /**
+         * Positions the cursor before the record with the given index in file order, for reading on to the end
+         */
+        public void seekRecord(long record) {
+            int low = 0;
+            int high = firstRecordOf.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (firstRecordOf[mid] <= record) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            int block = Math.max(0, low - 1);
+            seekBlocks(block, index.getBlockCount(), Long.MIN_VALUE, Long.MAX_VALUE);
+
+            long skip = block < firstRecordOf.length ? record - firstRecordOf[block] : 0;
+            if (skip > 0 && block < index.getBlockCount()) {
+                TrackRecord skipped = new TrackRecord();
+                while (skip-- > 0 && next(skipped, true)) {
+                    //Records are delta encoded, so the ones before have to be decoded, provider included
+                }
+            }
+        }
+
+        void seekBlocks(int firstBlock, int endBlock, long from, long to) {
+            this.block = firstBlock;
+            this.endBlock = endBlock;
+            this.from = from;
+            this.to = to;
+            this.remainingInBlock = 0;
+        }
+
+        /**
+         * Reads the next record in the range, with its provider and description
+         *
+         * @return false once there are no more records in the range
+         */
+        public boolean next(TrackRecord record) {
+            return next(record, true);
+        }
+
+        /**
+         * @param readStrings whether to decode the provider and description, which allocates
+         */
+        public boolean next(TrackRecord record, boolean readStrings) {
+            while (true) {
+                while (remainingInBlock == 0) {
+                    if (block >= endBlock) {
+                        return false;
+                    }
+                    loadBlock(block++);
+                }
+
+                codec.decode(view, record, readStrings);
+                remainingInBlock--;
+                if (record.time >= from && record.time <= to) {
+                    return true;
+                }
+            }
+        }
+
+        private void loadBlock(int i) {
+            //Skip blocks in the middle of the range whose records are all outside it
+            if (index.getLastTime(i) < from || index.getFirstTime(i) > to) {
+                remainingInBlock = 0;
+                return;
+            }
+
+            int offset = (int) index.getOffset(i);
+            int payloadLength = mapped.getInt(offset + 4);
+            view.limit(offset + TrackIndex.BLOCK_HEADER_SIZE + payloadLength);
+            view.position(offset + TrackIndex.BLOCK_HEADER_SIZE);
+            codec.reset();
+            remainingInBlock = index.getRecordCount(i);
+        }
+    }
+}
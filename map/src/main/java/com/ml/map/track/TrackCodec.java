@@ -0,0 +1,223 @@
+package com.ml.map.track;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Encodes records as a flags varint followed by the values they have. Time, coordinates and altitude are
+ * zigzag varint deltas from the previous record in the block, so a typical point takes 12 to 20 bytes. The
+ * state is reset at every block, which keeps blocks readable on their own.
+ */
+class TrackCodec {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final double COORDINATE_SCALE = 1e7;
+    static final double CENTI = 100;
+
+    private long previousTime;
+    private long previousLatitude;
+    private long previousLongitude;
+    private long previousAltitude;
+    private String previousProvider;
+
+    private byte[] out = new byte[4096];
+    private int length;
+
+    /**
+     * Starts a new block, its first record holds absolute values
+     */
+    void reset() {
+        previousTime = 0;
+        previousLatitude = 0;
+        previousLongitude = 0;
+        previousAltitude = 0;
+        previousProvider = null;
+    }
+
+    byte[] array() {
+        return out;
+    }
+
+    int length() {
+        return length;
+    }
+
+    void clearOutput() {
+        length = 0;
+    }
+
+    void encode(TrackRecord record) {
+        ensureCapacity(128);
+
+        boolean providerChanged = !equal(record.provider, previousProvider);
+        int flags = record.flags & ~TrackRecord.PROVIDER_CHANGED;
+        if (providerChanged) {
+            flags |= TrackRecord.PROVIDER_CHANGED;
+        }
+        writeVarint(flags);
+
+        writeVarint(zigzag(record.time - previousTime));
+        previousTime = record.time;
+
+        long lat = Math.round(record.latitude * COORDINATE_SCALE);
+        long lon = Math.round(record.longitude * COORDINATE_SCALE);
+        writeVarint(zigzag(lat - previousLatitude));
+        writeVarint(zigzag(lon - previousLongitude));
+        previousLatitude = lat;
+        previousLongitude = lon;
+
+        if (record.hasAltitude()) {
+            long alt = Math.round(record.altitude * CENTI);
+            writeVarint(zigzag(alt - previousAltitude));
+            previousAltitude = alt;
+        }
+        if (record.hasAccuracy()) {
+            writeVarint(Math.round(Math.max(record.accuracy, 0) * CENTI));
+        }
+        if (record.hasSpeed()) {
+            writeVarint(Math.round(Math.max(record.speed, 0) * CENTI));
+        }
+        if (record.hasBearing()) {
+            writeVarint(Math.round(Math.max(record.bearing, 0) * CENTI));
+        }
+        if (record.hasSatellites()) {
+            writeVarint(record.satellites);
+        }
+        if (record.hasHdop()) {
+            writeVarint(Math.round(record.hdop * CENTI));
+        }
+        if (record.hasVdop()) {
+            writeVarint(Math.round(record.vdop * CENTI));
+        }
+        if (record.hasPdop()) {
+            writeVarint(Math.round(record.pdop * CENTI));
+        }
+        if (providerChanged) {
+            writeString(record.provider);
+            previousProvider = record.provider;
+        }
+        if (record.isAnnotation()) {
+            writeString(record.description);
+        }
+    }
+
+    /**
+     * Reads the next record of a block into the given instance
+     */
+    void decode(ByteBuffer in, TrackRecord record) {
+        decode(in, record, true);
+    }
+
+    /**
+     * Reads the next record of a block. Without strings the provider and description are skipped rather than
+     * decoded, so nothing is allocated.
+     */
+    void decode(ByteBuffer in, TrackRecord record, boolean readStrings) {
+        int flags = (int) readVarint(in);
+        record.flags = flags & ~TrackRecord.PROVIDER_CHANGED;
+
+        previousTime += unzigzag(readVarint(in));
+        record.time = previousTime;
+
+        previousLatitude += unzigzag(readVarint(in));
+        previousLongitude += unzigzag(readVarint(in));
+        record.latitude = previousLatitude / COORDINATE_SCALE;
+        record.longitude = previousLongitude / COORDINATE_SCALE;
+
+        if ((flags & TrackRecord.HAS_ALTITUDE) != 0) {
+            previousAltitude += unzigzag(readVarint(in));
+            record.altitude = previousAltitude / CENTI;
+        } else {
+            record.altitude = 0;
+        }
+        record.accuracy = (flags & TrackRecord.HAS_ACCURACY) != 0 ? (float) (readVarint(in) / CENTI) : 0;
+        record.speed = (flags & TrackRecord.HAS_SPEED) != 0 ? (float) (readVarint(in) / CENTI) : 0;
+        record.bearing = (flags & TrackRecord.HAS_BEARING) != 0 ? (float) (readVarint(in) / CENTI) : 0;
+        record.satellites = (flags & TrackRecord.HAS_SATELLITES) != 0 ? (int) readVarint(in) : 0;
+        record.hdop = (flags & TrackRecord.HAS_HDOP) != 0 ? (float) (readVarint(in) / CENTI) : 0;
+        record.vdop = (flags & TrackRecord.HAS_VDOP) != 0 ? (float) (readVarint(in) / CENTI) : 0;
+        record.pdop = (flags & TrackRecord.HAS_PDOP) != 0 ? (float) (readVarint(in) / CENTI) : 0;
+
+        if ((flags & TrackRecord.PROVIDER_CHANGED) != 0) {
+            if (readStrings) {
+                previousProvider = readString(in);
+            } else {
+                skipString(in);
+            }
+        }
+        record.provider = previousProvider;
+
+        record.description = null;
+        if ((flags & TrackRecord.ANNOTATION) != 0) {
+            if (readStrings) {
+                record.description = readString(in);
+            } else {
+                skipString(in);
+            }
+        }
+    }
+
+    private void writeString(String value) {
+        if (value == null) {
+            value = "";
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        ensureCapacity(bytes.length + 5);
+        writeVarint(bytes.length);
+        System.arraycopy(bytes, 0, out, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[(int) readVarint(in)];
+        in.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static void skipString(ByteBuffer in) {
+        int n = (int) readVarint(in);
+        in.position(in.position() + n);
+    }
+
+    private void writeVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            out[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[length++] = (byte) value;
+    }
+
+    static long readVarint(ByteBuffer in) {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > out.length) {
+            byte[] bigger = new byte[Math.max(out.length * 2, length + extra)];
+            System.arraycopy(out, 0, bigger, 0, length);
+            out = bigger;
+        }
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,39 @@
+package com.ml.map.track;
+
+import android.location.Location;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Writes the points of a stored track in one output format. Used by {@link TrackExporter}, which reads the track
+ * once and hands every record to all of its encoders.
+ */
+public interface TrackEncoder extends Closeable {
+
+    /**
+     * File extension of the output, including the dot
+     */
+    String getExtension();
+
+    /**
+     * @param startTime time of the first record to be exported, for headers
+     */
+    void open(File file, long startTime) throws IOException;
+
+    void write(Location loc, boolean newSegment) throws IOException;
+
+    void annotate(String description, Location loc) throws IOException;
+
+    /**
+     * Completes the output. {@link #close()} is still called afterwards.
+     */
+    void finish() throws IOException;
+
+    /**
+     * Releases the output and any temporary files, whether or not {@link #finish()} was called
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,202 @@
+package com.ml.map.track;
+
+import android.location.Location;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Exports a binary track file to any number of formats in a single read. Each record is decoded once and
+ * handed to every encoder, which stream their output, so memory use stays the same however long the track is.
+ *
+ * Outputs are written to a .part file first and only replace the target once every format has been written.
+ */
+public class TrackExporter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TrackExporter.class);
+
+    private final File trackFile;
+    private final List<TrackEncoder> encoders = new ArrayList<>();
+    private final List<File> outputs = new ArrayList<>();
+    private long from = Long.MIN_VALUE;
+    private long to = Long.MAX_VALUE;
+    private long firstRecord = -1;
+    private long endRecord;
+    private AtomicBoolean cancelled;
+
+    public TrackExporter(File trackFile) {
+        this.trackFile = trackFile;
+    }
+
+    /**
+     * Adds a format to the export, written to the given file
+     */
+    public TrackExporter add(TrackEncoder encoder, File output) {
+        encoders.add(encoder);
+        outputs.add(output);
+        return this;
+    }
+
+    /**
+     * Only exports the records with from &lt;= time &lt;= to
+     */
+    public TrackExporter setTimeRange(long from, long to) {
+        this.from = from;
+        this.to = to;
+        return this;
+    }
+
+    /**
+     * Only exports the records with first &lt;= index &lt; end, counting all records in file order. Takes the
+     * place of the time range.
+     */
+    public TrackExporter setRecordRange(long first, long end) {
+        this.firstRecord = first;
+        this.endRecord = end;
+        return this;
+    }
+
+    /**
+     * Stops the export, leaving no output, once the given flag is set
+     */
+    public TrackExporter setCancelSignal(AtomicBoolean cancelled) {
+        this.cancelled = cancelled;
+        return this;
+    }
+
+    public List<File> getOutputs() {
+        return outputs;
+    }
+
+    /**
+     * @return the number of records exported
+     * @throws IOException if the track can't be read or any output can't be written, in which case no output is
+     *                     replaced
+     * @throws InterruptedIOException if the export was cancelled
+     */
+    public long export() throws IOException {
+        if (encoders.isEmpty()) {
+            return 0;
+        }
+
+        List<File> parts = new ArrayList<>(outputs.size());
+        for (File output : outputs) {
+            parts.add(new File(output.getPath() + ".part"));
+        }
+
+        MappedTrackReader reader = MappedTrackReader.open(trackFile);
+        long records = 0;
+        boolean done = false;
+        try {
+            MappedTrackReader.Cursor cursor = reader.cursor();
+            TrackRecord record = new TrackRecord();
+            long limit = Long.MAX_VALUE;
+            if (firstRecord >= 0) {
+                cursor.seekRecord(firstRecord);
+                limit = endRecord - firstRecord;
+            } else {
+                cursor.seek(from, to);
+            }
+
+            //Headers carry the time of the first record exported, as the loggers use the first point they write
+            boolean hasRecord = limit > 0 && cursor.next(record);
+            long startTime = hasRecord ? record.getTime() : Math.max(from, reader.getStartTime());
+            for (int i = 0; i < encoders.size(); i++) {
+                encoders.get(i).open(parts.get(i), startTime);
+            }
+
+            while (hasRecord) {
+                if ((records & 1023) == 0 && cancelled != null && cancelled.get()) {
+                    throw new InterruptedIOException("Export of " + trackFile.getName() + " cancelled");
+                }
+
+                Location loc = record.toLocation();
+                if (record.isAnnotation()) {
+                    for (TrackEncoder encoder : encoders) {
+                        encoder.annotate(record.getDescription(), loc);
+                    }
+                } else {
+                    for (TrackEncoder encoder : encoders) {
+                        encoder.write(loc, record.isNewSegment());
+                    }
+                }
+                records++;
+                hasRecord = records < limit && cursor.next(record);
+            }
+
+            for (TrackEncoder encoder : encoders) {
+                encoder.finish();
+            }
+            done = true;
+        } finally {
+            for (TrackEncoder encoder : encoders) {
+                encoder.close();
+            }
+            reader.close();
+            if (!done) {
+                deleteAll(parts);
+            }
+        }
+
+        replaceAll(parts, outputs);
+
+        LOG.debug("Exported " + records + " records from " + trackFile.getName() + " to " + outputs.size() + " formats");
+        return records;
+    }
+
+    /**
+     * Moves the earlier outputs aside until every part is in place, so that if one rename fails they can all be put
+     * back as they were
+     */
+    private static void replaceAll(List<File> parts, List<File> outputs) throws IOException {
+        List<File> backups = new ArrayList<>(outputs.size());
+        for (File output : outputs) {
+            backups.add(new File(output.getPath() + ".old"));
+        }
+
+        int movedAside = 0;
+        int installed = 0;
+        try {
+            for (; movedAside < outputs.size(); movedAside++) {
+                File output = outputs.get(movedAside);
+                if (output.exists() && !output.renameTo(backups.get(movedAside))) {
+                    throw new IOException("Could not move " + output.getName() + " aside");
+                }
+            }
+            for (; installed < parts.size(); installed++) {
+                if (!parts.get(installed).renameTo(outputs.get(installed))) {
+                    throw new IOException("Could not rename " + parts.get(installed).getName() + " to "
+                            + outputs.get(installed).getName());
+                }
+            }
+        } catch (IOException e) {
+            for (int i = 0; i < installed; i++) {
+                outputs.get(i).delete();
+            }
+            for (int i = 0; i < movedAside; i++) {
+                File backup = backups.get(i);
+                if (backup.exists() && !backup.renameTo(outputs.get(i))) {
+                    LOG.error("Could not restore " + outputs.get(i).getPath() + " from " + backup.getName());
+                }
+            }
+            deleteAll(parts);
+            throw e;
+        }
+        deleteAll(backups);
+    }
+
+    private static void deleteAll(List<File> files) {
+        for (File file : files) {
+            if (file.exists() && !file.delete()) {
+                LOG.warn("Could not delete " + file.getPath());
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.ml.map.track;
+
+import android.location.Location;
+
+import com.ml.map.PreferenceHelper;
+import com.ml.map.SegmentedFileLogger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Logs to the compact binary track format, see {@link TrackWriter}. Points take a few bytes each and are written
+ * in blocks, so this is cheap enough to keep on for every session; GPX, KML, CSV and GeoJSON can be generated
+ * from it afterwards.
+ */
+public class TrackFileLogger implements SegmentedFileLogger {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TrackFileLogger.class);
+    protected final static Object lock = new Object();
+
+    public static final String EXTENSION = ".gbt";
+
+    /**
+     * A partly filled block is written once its oldest point has waited this long
+     */
+    private static final long FLUSH_DELAY_MILLIS = 10000;
+
+    private static TrackWriter writer;
+    private static final TrackRecord record = new TrackRecord();
+
+    private final File file;
+    protected final String name = "TRACK";
+
+    public TrackFileLogger(File file) {
+        this.file = file;
+    }
+
+    @Override
+    public void write(Location loc) throws Exception {
+        write(loc, false);
+    }
+
+    @Override
+    public void write(Location loc, boolean addNewTrackSegment) throws Exception {
+        synchronized (lock) {
+            getWriter(file).append(record.setPoint(loc, addNewTrackSegment));
+        }
+    }
+
+    @Override
+    public void annotate(String description, Location loc) throws Exception {
+        synchronized (lock) {
+            getWriter(file).append(record.setAnnotation(description, loc));
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        synchronized (lock) {
+            if (writer != null && writer.getFile().equals(file)) {
+                writer.flush();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            closeWriter();
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the session writer for the given file, closing the previous one if the file has rotated.
+     * Must be called while holding {@link #lock}.
+     */
+    private static TrackWriter getWriter(File file) throws IOException {
+        if (writer != null && writer.getFile().equals(file) && file.exists()) {
+            return writer;
+        }
+
+        closeWriter();
+
+        try {
+            writer = TrackWriter.open(file);
+        } catch (IOException e) {
+            File broken = new File(file.getPath() + ".broken");
+            LOG.error("Could not open " + file.getName() + ", moving it to " + broken.getName(), e);
+            if (!file.renameTo(broken)) {
+                throw e;
+            }
+            writer = TrackWriter.open(file);
+        }
+
+        PreferenceHelper preferenceHelper = PreferenceHelper.getInstance();
+        writer.setSyncPolicy(preferenceHelper.getFileSyncPoints(), preferenceHelper.getFileSyncSeconds() * 1000L);
+        writer.setFlushDelay(FLUSH_DELAY_MILLIS);
+        return writer;
+    }
+
+    /**
+     * Writes the footer index and closes the session writer, if any. Must be called while holding {@link #lock}.
+     */
+    private static void closeWriter() throws IOException {
+        if (writer == null) {
+            return;
+        }
+
+        TrackWriter closing = writer;
+        writer = null;
+        closing.close();
+        LOG.debug("Closed track file " + closing.getFile().getName() + ", " + closing.getRecordCount() + " records");
+    }
+}
@@ -0,0 +1,243 @@
+package com.ml.map.track;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Layout of a binary track file and the index of its blocks.
+ *
+ * <pre>
+ * header  magic, version, reserved                                      16 bytes
+ * block   magic, payload length, record count, first time, last time, CRC32 of payload, payload
+ * ...
+ * footer  one entry per block: offset, first time, last time, record count
+ *         entry count, footer offset, CRC32 of the entries, magic           20 bytes
+ * </pre>
+ *
+ * First and last time are the earliest and latest record time in the block.
+ *
+ * The footer is only written when the file is closed. A file without a valid footer, because the process died
+ * while it was being written, is indexed by walking the blocks and stops at the first one that is incomplete or
+ * fails its CRC.
+ */
+class TrackIndex {
+
+    static final int FILE_MAGIC = 0x47425431;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+
+    static final int BLOCK_MAGIC = 0x47424B31;
+    static final int BLOCK_HEADER_SIZE = 32;
+    static final int MAX_BLOCK_PAYLOAD = 16 * 1024 * 1024;
+
+    static final int FOOTER_MAGIC = 0x47424931;
+    static final int FOOTER_ENTRY_SIZE = 28;
+    static final int FOOTER_TAIL_SIZE = 20;
+
+    private long[] offsets = new long[16];
+    private long[] firstTimes = new long[16];
+    private long[] lastTimes = new long[16];
+    private int[] recordCounts = new int[16];
+    private int size;
+    private long recordCount;
+
+    /**
+     * Where the last complete block ends, and so where the next block or the footer goes
+     */
+    private long dataEnd = HEADER_SIZE;
+    private boolean hadFooter;
+
+    void add(long offset, int records, long firstTime, long lastTime, long end) {
+        if (size == offsets.length) {
+            int capacity = size * 2;
+            offsets = Arrays.copyOf(offsets, capacity);
+            firstTimes = Arrays.copyOf(firstTimes, capacity);
+            lastTimes = Arrays.copyOf(lastTimes, capacity);
+            recordCounts = Arrays.copyOf(recordCounts, capacity);
+        }
+        offsets[size] = offset;
+        firstTimes[size] = firstTime;
+        lastTimes[size] = lastTime;
+        recordCounts[size] = records;
+        size++;
+        recordCount += records;
+        dataEnd = end;
+    }
+
+    int getBlockCount() {
+        return size;
+    }
+
+    long getOffset(int block) {
+        return offsets[block];
+    }
+
+    long getFirstTime(int block) {
+        return firstTimes[block];
+    }
+
+    long getLastTime(int block) {
+        return lastTimes[block];
+    }
+
+    int getRecordCount(int block) {
+        return recordCounts[block];
+    }
+
+    long getRecordCount() {
+        return recordCount;
+    }
+
+    long getDataEnd() {
+        return dataEnd;
+    }
+
+    boolean hadFooter() {
+        return hadFooter;
+    }
+
+    static ByteBuffer header() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(FILE_MAGIC);
+        header.put((byte) VERSION);
+        header.position(HEADER_SIZE);
+        header.flip();
+        return header;
+    }
+
+    ByteBuffer footer() {
+        ByteBuffer footer = ByteBuffer.allocate(size * FOOTER_ENTRY_SIZE + FOOTER_TAIL_SIZE);
+        for (int i = 0; i < size; i++) {
+            footer.putLong(offsets[i]);
+            footer.putLong(firstTimes[i]);
+            footer.putLong(lastTimes[i]);
+            footer.putInt(recordCounts[i]);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(footer.array(), 0, footer.position());
+
+        footer.putInt(size);
+        footer.putLong(dataEnd);
+        footer.putInt((int) crc.getValue());
+        footer.putInt(FOOTER_MAGIC);
+        footer.flip();
+        return footer;
+    }
+
+    /**
+     * Indexes an existing track file, from its footer if it has a valid one, otherwise by walking its blocks
+     *
+     * @throws IOException if it is not a track file
+     */
+    static TrackIndex load(FileChannel channel) throws IOException {
+        long length = channel.size();
+        if (length < HEADER_SIZE) {
+            throw new IOException("Not a track file");
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header, 0);
+        header.flip();
+        if (header.getInt() != FILE_MAGIC) {
+            throw new IOException("Not a track file");
+        }
+        if (header.get() > VERSION) {
+            throw new IOException("Unsupported track file version");
+        }
+
+        TrackIndex index = fromFooter(channel, length);
+        return index != null ? index : fromBlocks(channel, length);
+    }
+
+    private static TrackIndex fromFooter(FileChannel channel, long length) throws IOException {
+        if (length < HEADER_SIZE + FOOTER_TAIL_SIZE) {
+            return null;
+        }
+
+        ByteBuffer tail = ByteBuffer.allocate(FOOTER_TAIL_SIZE);
+        readFully(channel, tail, length - FOOTER_TAIL_SIZE);
+        tail.flip();
+        int count = tail.getInt();
+        long footerOffset = tail.getLong();
+        int expectedCrc = tail.getInt();
+        if (tail.getInt() != FOOTER_MAGIC || count < 0 || footerOffset < HEADER_SIZE
+                || footerOffset + (long) count * FOOTER_ENTRY_SIZE + FOOTER_TAIL_SIZE != length) {
+            return null;
+        }
+
+        ByteBuffer entries = ByteBuffer.allocate(count * FOOTER_ENTRY_SIZE);
+        readFully(channel, entries, footerOffset);
+        CRC32 crc = new CRC32();
+        crc.update(entries.array(), 0, entries.position());
+        if ((int) crc.getValue() != expectedCrc) {
+            return null;
+        }
+
+        entries.flip();
+        TrackIndex index = new TrackIndex();
+        for (int i = 0; i < count; i++) {
+            long offset = entries.getLong();
+            long firstTime = entries.getLong();
+            long lastTime = entries.getLong();
+            int records = entries.getInt();
+            index.add(offset, records, firstTime, lastTime, footerOffset);
+        }
+        index.dataEnd = footerOffset;
+        index.hadFooter = true;
+        return index;
+    }
+
+    private static TrackIndex fromBlocks(FileChannel channel, long length) throws IOException {
+        TrackIndex index = new TrackIndex();
+        ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        ByteBuffer payload = ByteBuffer.allocate(8 * 1024);
+        CRC32 crc = new CRC32();
+
+        long position = HEADER_SIZE;
+        while (position + BLOCK_HEADER_SIZE <= length) {
+            blockHeader.clear();
+            readFully(channel, blockHeader, position);
+            blockHeader.flip();
+
+            int magic = blockHeader.getInt();
+            int payloadLength = blockHeader.getInt();
+            int records = blockHeader.getInt();
+            long firstTime = blockHeader.getLong();
+            long lastTime = blockHeader.getLong();
+            int expectedCrc = blockHeader.getInt();
+
+            long end = position + BLOCK_HEADER_SIZE + payloadLength;
+            if (magic != BLOCK_MAGIC || payloadLength <= 0 || payloadLength > MAX_BLOCK_PAYLOAD || end > length) {
+                break;
+            }
+
+            if (payload.capacity() < payloadLength) {
+                payload = ByteBuffer.allocate(payloadLength);
+            }
+            payload.clear();
+            payload.limit(payloadLength);
+            readFully(channel, payload, position + BLOCK_HEADER_SIZE);
+            crc.reset();
+            crc.update(payload.array(), 0, payloadLength);
+            if ((int) crc.getValue() != expectedCrc) {
+                break;
+            }
+
+            index.add(position, records, firstTime, lastTime, end);
+            position = end;
+        }
+        return index;
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.ml.map.track;
+
+import java.util.Arrays;
+
+/**
+ * Time and position of track points in parallel primitive arrays. Reuse one instance across queries; it only
+ * allocates when it has to grow.
+ */
+public class TrackPoints {
+
+    private long[] times;
+    private double[] latitudes;
+    private double[] longitudes;
+    private int size;
+
+    public TrackPoints() {
+        this(256);
+    }
+
+    public TrackPoints(int capacity) {
+        capacity = Math.max(capacity, 16);
+        times = new long[capacity];
+        latitudes = new double[capacity];
+        longitudes = new double[capacity];
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getTime(int i) {
+        return times[i];
+    }
+
+    public double getLatitude(int i) {
+        return latitudes[i];
+    }
+
+    public double getLongitude(int i) {
+        return longitudes[i];
+    }
+
+    /**
+     * The backing arrays, valid up to {@link #size()}. They are replaced when the points grow.
+     */
+    public long[] times() {
+        return times;
+    }
+
+    public double[] latitudes() {
+        return latitudes;
+    }
+
+    public double[] longitudes() {
+        return longitudes;
+    }
+
+    void add(long time, double latitude, double longitude) {
+        if (size == times.length) {
+            int capacity = size * 2;
+            times = Arrays.copyOf(times, capacity);
+            latitudes = Arrays.copyOf(latitudes, capacity);
+            longitudes = Arrays.copyOf(longitudes, capacity);
+        }
+        times[size] = time;
+        latitudes[size] = latitude;
+        longitudes[size] = longitude;
+        size++;
+    }
+
+    /**
+     * Drops all but the last n points
+     */
+    void keepLast(int n) {
+        if (n >= size) {
+            return;
+        }
+        int from = size - n;
+        System.arraycopy(times, from, times, 0, n);
+        System.arraycopy(latitudes, from, latitudes, 0, n);
+        System.arraycopy(longitudes, from, longitudes, 0, n);
+        size = n;
+    }
+}
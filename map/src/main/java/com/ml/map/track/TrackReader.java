@@ -0,0 +1,121 @@
+package com.ml.map.track;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the records of a binary track file in the order they were written, one block at a time.
+ * Works on files that are still being written, up to their last complete block.
+ */
+public class TrackReader implements Closeable {
+
+    private final FileChannel channel;
+    private final TrackIndex index;
+    private final TrackCodec codec = new TrackCodec();
+    private final ByteBuffer blockHeader = ByteBuffer.allocate(TrackIndex.BLOCK_HEADER_SIZE);
+    private ByteBuffer block = ByteBuffer.allocate(TrackWriter.BLOCK_SIZE * 2);
+
+    private int nextBlock;
+    private int remainingInBlock;
+
+    private TrackReader(FileChannel channel, TrackIndex index) {
+        this.channel = channel;
+        this.index = index;
+    }
+
+    /**
+     * @throws IOException if the file can't be read or is not a track file
+     */
+    public static TrackReader open(File file) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            return new TrackReader(channel, TrackIndex.load(channel));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public long getRecordCount() {
+        return index.getRecordCount();
+    }
+
+    /**
+     * Earliest record time in the file, or 0 if it is empty
+     */
+    public long getStartTime() {
+        long start = 0;
+        for (int i = 0; i < index.getBlockCount(); i++) {
+            if (i == 0 || index.getFirstTime(i) < start) {
+                start = index.getFirstTime(i);
+            }
+        }
+        return start;
+    }
+
+    /**
+     * Latest record time in the file, or 0 if it is empty
+     */
+    public long getEndTime() {
+        long end = 0;
+        for (int i = 0; i < index.getBlockCount(); i++) {
+            end = Math.max(end, index.getLastTime(i));
+        }
+        return end;
+    }
+
+    /**
+     * Reads the next record into the given instance
+     *
+     * @return false once there are no more records
+     */
+    public boolean next(TrackRecord record) throws IOException {
+        while (remainingInBlock == 0) {
+            if (nextBlock >= index.getBlockCount()) {
+                return false;
+            }
+            loadBlock(nextBlock++);
+        }
+
+        codec.decode(block, record);
+        remainingInBlock--;
+        return true;
+    }
+
+    /**
+     * Continues reading from the start of the file
+     */
+    public void rewind() {
+        nextBlock = 0;
+        remainingInBlock = 0;
+    }
+
+    private void loadBlock(int i) throws IOException {
+        long offset = index.getOffset(i);
+        blockHeader.clear();
+        TrackIndex.readFully(channel, blockHeader, offset);
+        blockHeader.flip();
+        blockHeader.getInt();
+        int payloadLength = blockHeader.getInt();
+
+        if (block.capacity() < payloadLength) {
+            block = ByteBuffer.allocate(payloadLength);
+        }
+        block.clear();
+        block.limit(payloadLength);
+        TrackIndex.readFully(channel, block, offset + TrackIndex.BLOCK_HEADER_SIZE);
+        block.flip();
+
+        codec.reset();
+        remainingInBlock = index.getRecordCount(i);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,310 @@
+package com.ml.map.track;
+
+import android.location.Location;
+import android.os.Bundle;
+
+import com.ml.map.BundleConstants;
+import com.ml.map.Maths;
+import com.ml.map.Strings;
+
+/**
+ * One point or annotation in a binary track. Readers fill the same instance over and over, so keep a copy of
+ * anything that is needed after the next record has been read.
+ *
+ * Values are stored at a fixed precision: coordinates to 1e-7 degrees, altitude and accuracy to the centimetre,
+ * speed to the cm/s, bearing to 0.01 degrees and DOPs to two decimals.
+ */
+public class TrackRecord {
+
+    static final int ANNOTATION = 1;
+    static final int NEW_SEGMENT = 1 << 1;
+    static final int HAS_ALTITUDE = 1 << 2;
+    static final int HAS_ACCURACY = 1 << 3;
+    static final int HAS_SPEED = 1 << 4;
+    static final int HAS_BEARING = 1 << 5;
+    static final int HAS_SATELLITES = 1 << 6;
+    static final int HAS_HDOP = 1 << 7;
+    static final int HAS_VDOP = 1 << 8;
+    static final int HAS_PDOP = 1 << 9;
+    static final int PROVIDER_CHANGED = 1 << 10;
+
+    int flags;
+    long time;
+    double latitude;
+    double longitude;
+    double altitude;
+    float accuracy;
+    float speed;
+    float bearing;
+    int satellites;
+    float hdop;
+    float vdop;
+    float pdop;
+    String provider;
+    String description;
+
+    public void clear() {
+        flags = 0;
+        time = 0;
+        latitude = 0;
+        longitude = 0;
+        altitude = 0;
+        accuracy = 0;
+        speed = 0;
+        bearing = 0;
+        satellites = 0;
+        hdop = 0;
+        vdop = 0;
+        pdop = 0;
+        provider = null;
+        description = null;
+    }
+
+    /**
+     * Fills this record with a logged point
+     */
+    public TrackRecord setPoint(Location loc, boolean newSegment) {
+        clear();
+        time = loc.getTime();
+        latitude = loc.getLatitude();
+        longitude = loc.getLongitude();
+        provider = loc.getProvider();
+        if (newSegment) {
+            flags |= NEW_SEGMENT;
+        }
+        if (loc.hasAltitude()) {
+            flags |= HAS_ALTITUDE;
+            altitude = loc.getAltitude();
+        }
+        if (loc.hasAccuracy()) {
+            flags |= HAS_ACCURACY;
+            accuracy = loc.getAccuracy();
+        }
+        if (loc.hasSpeed()) {
+            flags |= HAS_SPEED;
+            speed = loc.getSpeed();
+        }
+        if (loc.hasBearing()) {
+            flags |= HAS_BEARING;
+            bearing = loc.getBearing();
+        }
+
+        int sats = Maths.getBundledSatelliteCount(loc);
+        if (sats > 0) {
+            flags |= HAS_SATELLITES;
+            satellites = sats;
+        }
+
+        Bundle extras = loc.getExtras();
+        if (extras != null) {
+            hdop = parseDop(extras.getString(BundleConstants.HDOP));
+            vdop = parseDop(extras.getString(BundleConstants.VDOP));
+            pdop = parseDop(extras.getString(BundleConstants.PDOP));
+            flags |= (hdop >= 0 ? HAS_HDOP : 0) | (vdop >= 0 ? HAS_VDOP : 0) | (pdop >= 0 ? HAS_PDOP : 0);
+        }
+        return this;
+    }
+
+    /**
+     * Fills this record with an annotation made at the given location
+     */
+    public TrackRecord setAnnotation(String description, Location loc) {
+        setPoint(loc, false);
+        flags |= ANNOTATION;
+        this.description = description;
+        return this;
+    }
+
+    /**
+     * Fills this record with a point read from somewhere other than a {@link Location}, e.g. a file being
+     * replayed. The other values can then be added with the setters below.
+     */
+    public TrackRecord setPoint(String provider, long time, double latitude, double longitude, boolean newSegment) {
+        clear();
+        this.provider = provider;
+        this.time = time;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        if (newSegment) {
+            flags |= NEW_SEGMENT;
+        }
+        return this;
+    }
+
+    public TrackRecord setAltitude(double altitude) {
+        this.altitude = altitude;
+        flags |= HAS_ALTITUDE;
+        return this;
+    }
+
+    public TrackRecord setAccuracy(float accuracy) {
+        this.accuracy = accuracy;
+        flags |= HAS_ACCURACY;
+        return this;
+    }
+
+    public TrackRecord setSpeed(float speed) {
+        this.speed = speed;
+        flags |= HAS_SPEED;
+        return this;
+    }
+
+    public TrackRecord setBearing(float bearing) {
+        this.bearing = bearing;
+        flags |= HAS_BEARING;
+        return this;
+    }
+
+    public TrackRecord setSatellites(int satellites) {
+        this.satellites = satellites;
+        flags |= HAS_SATELLITES;
+        return this;
+    }
+
+    public TrackRecord setHdop(float hdop) {
+        this.hdop = hdop;
+        flags |= HAS_HDOP;
+        return this;
+    }
+
+    private static float parseDop(String value) {
+        if (Strings.isNullOrEmpty(value)) {
+            return -1;
+        }
+        try {
+            return Float.parseFloat(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Creates a {@link Location} with the same values, DOPs and satellites included as extras
+     */
+    public Location toLocation() {
+        Location loc = new Location(provider == null ? "" : provider);
+        loc.setTime(time);
+        loc.setLatitude(latitude);
+        loc.setLongitude(longitude);
+        if (hasAltitude()) {
+            loc.setAltitude(altitude);
+        }
+        if (hasAccuracy()) {
+            loc.setAccuracy(accuracy);
+        }
+        if (hasSpeed()) {
+            loc.setSpeed(speed);
+        }
+        if (hasBearing()) {
+            loc.setBearing(bearing);
+        }
+
+        Bundle extras = new Bundle();
+        if (hasSatellites()) {
+            extras.putInt(BundleConstants.SATELLITES_FIX, satellites);
+        }
+        if (hasHdop()) {
+            extras.putString(BundleConstants.HDOP, String.valueOf(hdop));
+        }
+        if (hasVdop()) {
+            extras.putString(BundleConstants.VDOP, String.valueOf(vdop));
+        }
+        if (hasPdop()) {
+            extras.putString(BundleConstants.PDOP, String.valueOf(pdop));
+        }
+        loc.setExtras(extras);
+        return loc;
+    }
+
+    public boolean isAnnotation() {
+        return (flags & ANNOTATION) != 0;
+    }
+
+    public boolean isNewSegment() {
+        return (flags & NEW_SEGMENT) != 0;
+    }
+
+    public boolean hasAltitude() {
+        return (flags & HAS_ALTITUDE) != 0;
+    }
+
+    public boolean hasAccuracy() {
+        return (flags & HAS_ACCURACY) != 0;
+    }
+
+    public boolean hasSpeed() {
+        return (flags & HAS_SPEED) != 0;
+    }
+
+    public boolean hasBearing() {
+        return (flags & HAS_BEARING) != 0;
+    }
+
+    public boolean hasSatellites() {
+        return (flags & HAS_SATELLITES) != 0;
+    }
+
+    public boolean hasHdop() {
+        return (flags & HAS_HDOP) != 0;
+    }
+
+    public boolean hasVdop() {
+        return (flags & HAS_VDOP) != 0;
+    }
+
+    public boolean hasPdop() {
+        return (flags & HAS_PDOP) != 0;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+
+    public double getAltitude() {
+        return altitude;
+    }
+
+    public float getAccuracy() {
+        return accuracy;
+    }
+
+    public float getSpeed() {
+        return speed;
+    }
+
+    public float getBearing() {
+        return bearing;
+    }
+
+    public int getSatellites() {
+        return satellites;
+    }
+
+    public float getHdop() {
+        return hdop;
+    }
+
+    public float getVdop() {
+        return vdop;
+    }
+
+    public float getPdop() {
+        return pdop;
+    }
+
+    public String getProvider() {
+        return provider;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+}
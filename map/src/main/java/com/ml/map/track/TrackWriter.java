@@ -0,0 +1,217 @@
+package com.ml.map.track;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Appends records to a binary track file, see {@link TrackIndex} for the layout.
+ *
+ * Records are encoded into an in-memory block, which is written out with its CRC once it reaches
+ * {@link #BLOCK_SIZE} bytes, or on {@link #flush()} once its oldest record has waited for the flush delay.
+ * Nothing already written is ever rewritten: reopening a file only cuts off the footer, or anything after the
+ * last intact block if the footer is missing.
+ */
+public class TrackWriter implements Closeable, Flushable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TrackWriter.class);
+
+    static final int BLOCK_SIZE = 4096;
+
+    private final File file;
+    private final FileChannel channel;
+    private final TrackIndex index;
+    private final TrackCodec codec = new TrackCodec();
+    private final CRC32 crc = new CRC32();
+    private final ByteBuffer blockHeader = ByteBuffer.allocate(TrackIndex.BLOCK_HEADER_SIZE);
+
+    private int blockRecords;
+    private long blockFirstTime;
+    private long blockLastTime;
+    private long blockSinceNanos;
+    private long flushDelayNanos;
+
+    private int syncEveryRecords;
+    private long syncEveryNanos;
+    private int unsyncedRecords;
+    private long lastSyncNanos = System.nanoTime();
+
+    private TrackWriter(File file, FileChannel channel, TrackIndex index) {
+        this.file = file;
+        this.channel = channel;
+        this.index = index;
+    }
+
+    /**
+     * Opens the file for appending, creating it if it is new or empty
+     *
+     * @throws IOException if the file exists but is not a track file
+     */
+    public static TrackWriter open(File file) throws IOException {
+        File folder = file.getParentFile();
+        if (folder != null && !folder.exists()) {
+            folder.mkdirs();
+        }
+
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            TrackIndex index;
+            if (channel.size() == 0) {
+                index = new TrackIndex();
+                ByteBuffer header = TrackIndex.header();
+                while (header.hasRemaining()) {
+                    channel.write(header, header.position());
+                }
+            } else {
+                index = TrackIndex.load(channel);
+                if (channel.size() != index.getDataEnd()) {
+                    LOG.debug("Reopened " + file.getName() + ", " + index.getRecordCount() + " records, data ends at "
+                            + index.getDataEnd() + " of " + channel.size());
+                    channel.truncate(index.getDataEnd());
+                }
+            }
+            channel.position(index.getDataEnd());
+            return new TrackWriter(file, channel, index);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Writes a partly filled block on {@link #flush()} only once its oldest record is this old. Zero writes on
+     * every flush.
+     */
+    public void setFlushDelay(long delayMillis) {
+        this.flushDelayNanos = delayMillis * 1000000L;
+    }
+
+    /**
+     * Forces the file to the storage device once this many records have been written since the last sync,
+     * or this much time has passed. Zero disables either condition.
+     */
+    public void setSyncPolicy(int everyRecords, long everyMillis) {
+        this.syncEveryRecords = everyRecords;
+        this.syncEveryNanos = everyMillis * 1000000L;
+    }
+
+    public void append(TrackRecord record) throws IOException {
+        if (blockRecords == 0) {
+            codec.clearOutput();
+            codec.reset();
+            blockFirstTime = record.time;
+            blockLastTime = record.time;
+            blockSinceNanos = System.nanoTime();
+        }
+
+        codec.encode(record);
+        blockRecords++;
+        //Fixes don't always arrive in time order, so the index keeps the time range of each block
+        blockFirstTime = Math.min(blockFirstTime, record.time);
+        blockLastTime = Math.max(blockLastTime, record.time);
+
+        if (codec.length() >= BLOCK_SIZE) {
+            writeBlock();
+        }
+    }
+
+    /**
+     * Number of records in the file, including the ones not written yet
+     */
+    public long getRecordCount() {
+        return index.getRecordCount() + blockRecords;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (blockRecords > 0 && System.nanoTime() - blockSinceNanos >= flushDelayNanos) {
+            writeBlock();
+        }
+        maybeSync();
+    }
+
+    /**
+     * Writes any pending records and forces the file to the storage device
+     */
+    public void sync() throws IOException {
+        writeBlock();
+        force();
+    }
+
+    /**
+     * Writes any pending records and the footer index, then closes the file
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            writeBlock();
+            ByteBuffer footer = index.footer();
+            while (footer.hasRemaining()) {
+                channel.write(footer);
+            }
+            force();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        if (blockRecords == 0) {
+            return;
+        }
+
+        int payloadLength = codec.length();
+        crc.reset();
+        crc.update(codec.array(), 0, payloadLength);
+
+        blockHeader.clear();
+        blockHeader.putInt(TrackIndex.BLOCK_MAGIC);
+        blockHeader.putInt(payloadLength);
+        blockHeader.putInt(blockRecords);
+        blockHeader.putLong(blockFirstTime);
+        blockHeader.putLong(blockLastTime);
+        blockHeader.putInt((int) crc.getValue());
+        blockHeader.flip();
+
+        long offset = index.getDataEnd();
+        ByteBuffer[] block = {blockHeader, ByteBuffer.wrap(codec.array(), 0, payloadLength)};
+        long remaining = TrackIndex.BLOCK_HEADER_SIZE + payloadLength;
+        while (remaining > 0) {
+            remaining -= channel.write(block);
+        }
+
+        index.add(offset, blockRecords, blockFirstTime, blockLastTime, offset + TrackIndex.BLOCK_HEADER_SIZE + payloadLength);
+        unsyncedRecords += blockRecords;
+        blockRecords = 0;
+        codec.clearOutput();
+    }
+
+    private void maybeSync() throws IOException {
+        if (unsyncedRecords == 0) {
+            return;
+        }
+        boolean dueByCount = syncEveryRecords > 0 && unsyncedRecords >= syncEveryRecords;
+        boolean dueByTime = syncEveryNanos > 0 && System.nanoTime() - lastSyncNanos >= syncEveryNanos;
+        if (dueByCount || dueByTime) {
+            force();
+        }
+    }
+
+    private void force() throws IOException {
+        channel.force(false);
+        unsyncedRecords = 0;
+        lastSyncNanos = System.nanoTime();
+    }
+}
@@ -0,0 +1,170 @@
+package com.ml.map;
+
+import com.ml.map.track.TrackFileLogger;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class BatchExporterTest {
+
+    private static final List<String> SESSIONS = Arrays.asList("20160501", "20160502", "20160503", "20160504",
+            "20160505", "20160506");
+    private static final List<String> FORMATS = Arrays.asList(TrackExportFactory.GPX, TrackExportFactory.CSV);
+
+    @Rule
+    public final TemporaryFolder temp = new TemporaryFolder();
+
+    private File folder;
+
+    @Before
+    public void setUp() throws Exception {
+        GoblobLocationManager.getInstance().init(RuntimeEnvironment.getApplication());
+        folder = temp.newFolder("batch-export");
+
+        //Written out of order, and with a file that isn't a session
+        List<String> shuffled = new ArrayList<>(SESSIONS);
+        Collections.reverse(shuffled);
+        for (String session : shuffled) {
+            TrackExportFactoryTest.appendTrack(new File(folder, session + TrackFileLogger.EXTENSION), 0, 2000);
+        }
+        TrackExportFactoryTest.write(new File(folder, "notes.txt"), "not a session");
+    }
+
+    @Test
+    public void findTrackSessions_listsSessionsInNameOrder() {
+        assertEquals(SESSIONS, BatchExporter.findTrackSessions(folder));
+        assertTrue(BatchExporter.findTrackSessions(new File(folder, "missing")).isEmpty());
+    }
+
+    @Test
+    public void run_exportsEverySessionInSessionOrder() throws Exception {
+        final List<Integer> progress = Collections.synchronizedList(new ArrayList<Integer>());
+        Map<String, List<File>> results = new BatchExporter(folder, SESSIONS, FORMATS, false)
+                .setParallelism(3)
+                .setProgressListener(new BatchExporter.ProgressListener() {
+                    @Override
+                    public void onSessionDone(String session, List<File> files, int done, int total) {
+                        assertEquals(SESSIONS.size(), total);
+                        progress.add(done);
+                    }
+                })
+                .run();
+
+        assertEquals(SESSIONS, new ArrayList<>(results.keySet()));
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6), progress);
+        for (String session : SESSIONS) {
+            //The track file itself is never sent
+            assertEquals(names(session + ".csv", session + ".gpx"), names(results.get(session)));
+            String gpx = TrackExportFactoryTest.read(new File(folder, session + ".gpx"));
+            assertEquals(2000, count(gpx, "<trkpt "));
+            assertTrue(gpx.endsWith("</trk></gpx>"));
+        }
+        assertNoTemporaryFiles();
+    }
+
+    @Test
+    public void run_zipsEachSession() throws Exception {
+        Map<String, List<File>> results = new BatchExporter(folder, SESSIONS, FORMATS, true).setParallelism(4).run();
+
+        assertEquals(SESSIONS, new ArrayList<>(results.keySet()));
+        for (String session : SESSIONS) {
+            assertEquals(Collections.singletonList(new File(folder, session + ".zip")), results.get(session));
+
+            Set<String> entries = new HashSet<>();
+            ZipFile zip = new ZipFile(results.get(session).get(0));
+            try {
+                Enumeration<? extends ZipEntry> e = zip.entries();
+                while (e.hasMoreElements()) {
+                    ZipEntry entry = e.nextElement();
+                    entries.add(entry.getName());
+                    assertEquals(new File(folder, entry.getName()).length(), entry.getSize());
+                }
+            } finally {
+                zip.close();
+            }
+            assertEquals(names(session + ".csv", session + ".gpx"), entries);
+        }
+    }
+
+    @Test
+    public void cancelledBeforeRun_doesNothing() throws Exception {
+        BatchExporter exporter = new BatchExporter(folder, SESSIONS, FORMATS, false);
+        exporter.cancel();
+
+        assertTrue(exporter.run().isEmpty());
+        assertTrue(exporter.isCancelled());
+        for (String session : SESSIONS) {
+            assertFalse(new File(folder, session + ".gpx").exists());
+        }
+        assertNoTemporaryFiles();
+    }
+
+    @Test
+    public void cancelledDuringRun_keepsOnlyFinishedSessions() throws Exception {
+        final BatchExporter exporter = new BatchExporter(folder, SESSIONS, FORMATS, false).setParallelism(1);
+        exporter.setProgressListener(new BatchExporter.ProgressListener() {
+            @Override
+            public void onSessionDone(String session, List<File> files, int done, int total) {
+                exporter.cancel();
+            }
+        });
+
+        Map<String, List<File>> results = exporter.run();
+
+        assertTrue(results.size() >= 1);
+        assertTrue(results.size() < SESSIONS.size());
+        for (List<File> files : results.values()) {
+            for (File file : files) {
+                assertTrue(file.exists());
+            }
+        }
+        assertNoTemporaryFiles();
+    }
+
+    private void assertNoTemporaryFiles() {
+        for (String name : folder.list()) {
+            assertFalse(name, name.endsWith(".part"));
+            assertFalse(name, name.endsWith(".spool"));
+        }
+    }
+
+    private static Set<String> names(String... names) {
+        return new HashSet<>(Arrays.asList(names));
+    }
+
+    private static Set<String> names(List<File> files) {
+        Set<String> names = new HashSet<>();
+        for (File file : files) {
+            names.add(file.getName());
+        }
+        return names;
+    }
+
+    private static int count(String text, String part) {
+        int count = 0;
+        for (int i = text.indexOf(part); i >= 0; i = text.indexOf(part, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,155 @@
+package com.ml.map;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ByteEncoderTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ByteEncoder encoder = new ByteEncoder(16);
+
+    @Test
+    public void fixed_matchesStringFormat() {
+        double[] values = {0, -0.0, 1, -1, 0.5, -0.5, 51.5007292, -0.1246254, 179.9999995, -179.9999995,
+                66.7544205, -65.4080025, 0.0000004, -0.0000004, -0.0000006, 0.9999999995, 123456.654321};
+        for (double value : values) {
+            assertFixed(value, 6);
+            assertFixed(value, 3);
+            assertFixed(value, 8);
+        }
+
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            //Coordinates and values sitting right on a rounding tie
+            assertFixed(random.nextDouble() * 360 - 180, 6);
+            assertFixed(Math.round(random.nextDouble() * 2e8 - 1e8) / 1e6 + 5e-7, 6);
+            assertFixed((random.nextInt(2000000) - 1000000) / 1000.0 + 0.0005, 3);
+        }
+    }
+
+    @Test
+    public void fixed_roundingCarriesIntoWholePart() {
+        assertEquals("1.00000000", fixed(0.9999999995, 8));
+        assertEquals("-1.00000000", fixed(-0.9999999995, 8));
+        assertEquals("10.000", fixed(9.9995, 3));
+        assertEquals("180.000000", fixed(179.9999995, 6));
+    }
+
+    @Test
+    public void fixed_nonFiniteAndLargeValues() {
+        assertFixed(Double.NaN, 6);
+        assertFixed(Double.POSITIVE_INFINITY, 6);
+        assertFixed(Double.NEGATIVE_INFINITY, 6);
+        assertFixed(1e9, 6);
+        assertFixed(-2.5e12, 3);
+    }
+
+    @Test
+    public void decimal_matchesShortValuesOfStringValueOf() {
+        double[] values = {0, 1, -1, 12.5, -0.25, 3.0, 100.0, 51.5007292, -0.1246254, 8848.86};
+        for (double value : values) {
+            assertEquals(String.valueOf(value), decimal(value, 8));
+        }
+        assertEquals(String.valueOf(2.5f), decimal(2.5f, 3));
+    }
+
+    @Test
+    public void decimal_roundsLikeOldValues() {
+        Random random = new Random(7);
+        for (int i = 0; i < 100000; i++) {
+            double value = random.nextDouble() * 360 - 180;
+            String expected = new BigDecimal(Double.toString(value)).setScale(8, RoundingMode.HALF_UP)
+                    .stripTrailingZeros().toPlainString();
+            if (!expected.contains(".")) {
+                expected += ".0";
+            }
+            assertEquals(expected, decimal(value, 8));
+        }
+
+        assertEquals("1.0", decimal(0.9999999995, 8));
+        assertEquals("-0.0", decimal(-0.0000000001, 8));
+        assertEquals("NaN", decimal(Double.NaN, 3));
+        assertEquals("Infinity", decimal(Double.POSITIVE_INFINITY, 3));
+        assertEquals("-Infinity", decimal(Double.NEGATIVE_INFINITY, 3));
+        assertEquals(String.valueOf(1e9), decimal(1e9, 3));
+    }
+
+    @Test
+    public void isoDateTime_matchesStrings() {
+        long[] times = {0, 1, 999, 1000, 951782400000L, 951868799999L, 1462110310123L, 4102444799999L,
+                -1L, -86400001L, -2208988800000L};
+        for (long time : times) {
+            assertIso(time);
+        }
+
+        Random random = new Random(3);
+        for (int i = 0; i < 20000; i++) {
+            assertIso((long) (random.nextDouble() * 6e12) - 2000000000000L);
+        }
+    }
+
+    @Test
+    public void utf8_matchesGetBytes() {
+        String[] texts = {"", "plain", "café", "über äöß", "日本語",
+                "Русский", "emoji 😀 here", "€5 & <tag>",
+                "ࠀ߿\u007f￿"};
+        for (String text : texts) {
+            assertBytes(text.getBytes(UTF_8), encoder.reset().utf8(text));
+        }
+
+        //Unpaired surrogates are replaced the same way
+        assertBytes("a\ud83db".getBytes(UTF_8), encoder.reset().utf8("a\ud83db"));
+        assertBytes("a\ude00".getBytes(UTF_8), encoder.reset().utf8("a\ude00"));
+        assertEquals("null", string(encoder.reset().utf8(null)));
+    }
+
+    @Test
+    public void buffer_growsAndResets() {
+        encoder.reset();
+        for (int i = 0; i < 1000; i++) {
+            encoder.number(i).ascii(',');
+        }
+        assertTrue(encoder.length() > 16);
+        assertTrue(string(encoder).startsWith("0,1,2,"));
+        assertTrue(string(encoder).endsWith("998,999,"));
+
+        assertEquals("-9223372036854775808", string(encoder.reset().number(Long.MIN_VALUE)));
+        assertEquals("-42", string(encoder.reset().number(-42)));
+    }
+
+    private void assertFixed(double value, int digits) {
+        assertEquals(value + " to " + digits, String.format(Locale.US, "%." + digits + "f", value), fixed(value, digits));
+    }
+
+    private void assertIso(long time) {
+        assertEquals(Strings.getIsoDateTime(new Date(time)), string(encoder.reset().isoDateTime(time)));
+    }
+
+    private String fixed(double value, int digits) {
+        return string(encoder.reset().fixed(value, digits));
+    }
+
+    private String decimal(double value, int digits) {
+        return string(encoder.reset().decimal(value, digits));
+    }
+
+    private static String string(ByteEncoder encoder) {
+        return new String(encoder.array(), 0, encoder.length(), UTF_8);
+    }
+
+    private static void assertBytes(byte[] expected, ByteEncoder actual) {
+        assertEquals(expected.length, actual.length());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], actual.array()[i]);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.ml.map;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Just enough HTTP/1.1 on a local port for the network logger tests: keeps connections open between requests,
+ * records each request and answers with a set status.
+ */
+public class FakeHttpServer {
+
+    public static class Request {
+        public final String method;
+        public final String target;
+        public final Map<String, String> headers;
+        public final byte[] body;
+
+        Request(String method, String target, Map<String, String> headers, byte[] body) {
+            this.method = method;
+            this.target = target;
+            this.headers = headers;
+            this.body = body;
+        }
+    }
+
+    private final ServerSocket server;
+    private final List<Request> requests = Collections.synchronizedList(new ArrayList<Request>());
+    private final AtomicInteger connections = new AtomicInteger();
+    private volatile int status = 200;
+
+    public FakeHttpServer() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = server.accept();
+                        connections.incrementAndGet();
+                        Thread connection = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        });
+                        connection.setDaemon(true);
+                        connection.start();
+                    }
+                } catch (IOException closed) {
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    public List<Request> getRequests() {
+        synchronized (requests) {
+            return new ArrayList<>(requests);
+        }
+    }
+
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    public void waitForRequests(int count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (requests.size() < count) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Timed out waiting for " + count + " requests, got " + requests.size());
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    public void close() throws IOException {
+        server.close();
+    }
+
+    private void serve(Socket socket) {
+        try {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            String requestLine;
+            while ((requestLine = readLine(in)) != null) {
+                Map<String, String> headers = new LinkedHashMap<>();
+                String line;
+                while ((line = readLine(in)) != null && !line.isEmpty()) {
+                    int colon = line.indexOf(':');
+                    headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+                }
+
+                byte[] body;
+                if (headers.containsKey("content-length")) {
+                    body = new byte[Integer.parseInt(headers.get("content-length"))];
+                    in.readFully(body);
+                } else if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+                    body = readChunked(in);
+                } else {
+                    body = new byte[0];
+                }
+
+                String[] parts = requestLine.split(" ");
+                requests.add(new Request(parts[0], parts[1], headers, body));
+
+                out.write(("HTTP/1.1 " + status + " Status\r\nContent-Length: 0\r\n\r\n").getBytes("UTF-8"));
+                out.flush();
+            }
+            socket.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private static byte[] readChunked(DataInputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        while (true) {
+            int size = Integer.parseInt(readLine(in).trim(), 16);
+            if (size == 0) {
+                readLine(in);
+                return body.toByteArray();
+            }
+            byte[] chunk = new byte[size];
+            in.readFully(chunk);
+            body.write(chunk);
+            readLine(in);
+        }
+    }
+
+    private static String readLine(DataInputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                return line.toString();
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+}
@@ -0,0 +1,118 @@
+package com.ml.map;
+
+import android.location.Location;
+
+import com.ml.map.track.TrackRecord;
+import com.ml.map.track.TrackWriter;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class IncrementalSenderTest {
+
+    @Rule
+    public final TemporaryFolder temp = new TemporaryFolder();
+
+    private File folder;
+    private File outbox;
+    private File trackFile;
+    private boolean offline;
+    private IncrementalSender sender;
+
+    @Before
+    public void setUp() throws IOException {
+        GoblobLocationManager.getInstance().init(RuntimeEnvironment.getApplication());
+
+        folder = temp.newFolder("incremental-send");
+        outbox = new File(folder, "outbox");
+        trackFile = new File(folder, "session.gbt");
+
+        final IncrementalSender.FolderSink folderSink = new IncrementalSender.FolderSink(outbox);
+        sender = new IncrementalSender(folder, Collections.singletonList(TrackExportFactory.CSV), new IncrementalSender.Sink() {
+            @Override
+            public void send(File deltaPackage, String session, long sequence) throws IOException {
+                if (offline) {
+                    throw new IOException("Offline");
+                }
+                folderSink.send(deltaPackage, session, sequence);
+            }
+        });
+    }
+
+    @Test
+    public void sendsOnlyNewPoints() throws Exception {
+        appendPoints(0, 100);
+        assertEquals(1, sender.sendNew("session"));
+        assertEquals(-1, sender.sendNew("session"));
+
+        appendPoints(100, 40);
+        assertEquals(2, sender.sendNew("session"));
+
+        assertRange(1, 0, 100);
+        assertRange(2, 100, 140);
+    }
+
+    @Test
+    public void retryResendsTheSamePackage() throws Exception {
+        appendPoints(0, 100);
+        offline = true;
+        try {
+            sender.sendNew("session");
+            fail("Expected the send to fail");
+        } catch (IOException expected) {
+        }
+
+        //Points logged while offline go in the next package, not the one being retried
+        appendPoints(100, 40);
+        offline = false;
+        assertEquals(1, sender.sendNew("session"));
+        assertEquals(2, sender.sendNew("session"));
+
+        assertRange(1, 0, 100);
+        assertRange(2, 100, 140);
+    }
+
+    private void assertRange(long sequence, long first, long end) throws IOException {
+        ZipFile zip = new ZipFile(new File(outbox, IncrementalSender.getPackageName("session", sequence)));
+        try {
+            Properties manifest = new Properties();
+            InputStream in = zip.getInputStream(zip.getEntry("delta.properties"));
+            manifest.load(in);
+            in.close();
+            assertEquals(String.valueOf(sequence), manifest.getProperty("sequence"));
+            assertEquals(String.valueOf(first), manifest.getProperty("firstRecord"));
+            assertEquals(String.valueOf(end), manifest.getProperty("endRecord"));
+            assertNotNull(zip.getEntry("session.csv"));
+        } finally {
+            zip.close();
+        }
+    }
+
+    private void appendPoints(int first, int count) throws IOException {
+        TrackWriter writer = TrackWriter.open(trackFile);
+        TrackRecord record = new TrackRecord();
+        for (int i = first; i < first + count; i++) {
+            Location loc = new Location("gps");
+            loc.setTime(1788220800000L + i * 1000L);
+            loc.setLatitude(40.4168 + i * 0.00001);
+            loc.setLongitude(-3.7038 + i * 0.000013);
+            writer.append(record.setPoint(loc, false));
+        }
+        writer.close();
+    }
+}
@@ -0,0 +1,319 @@
+package com.ml.map;
+
+import android.location.Location;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class LoggingPipelineTest {
+
+    @Rule
+    public final TemporaryFolder temp = new TemporaryFolder();
+
+    private File folder;
+    private RecordingLogger logger;
+
+    @Before
+    public void setUp() throws Exception {
+        folder = temp.newFolder("logging-pipeline");
+        logger = new RecordingLogger("test");
+    }
+
+    @After
+    public void tearDown() {
+        logger.open();
+    }
+
+    @Test
+    public void flush_waitsForEverythingQueuedBefore() throws Exception {
+        LoggingPipeline pipeline = new LoggingPipeline(8, LoggingPipeline.Backpressure.BLOCK, folder);
+        pipeline.write(logger, point(1));
+        pipeline.annotate(logger, "note", point(2));
+        pipeline.write(logger, point(3));
+
+        assertTrue(pipeline.flush(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("w1", "a:note", "w3"), logger.getEvents());
+        assertTrue(logger.flushes > 0);
+        assertEquals(0, logger.closes);
+
+        assertTrue(pipeline.close(5, TimeUnit.SECONDS));
+        assertEquals(1, logger.closes);
+    }
+
+    @Test
+    public void block_dropsPointAfterTimeout() throws Exception {
+        LoggingPipeline pipeline = new LoggingPipeline(1, LoggingPipeline.Backpressure.BLOCK, folder);
+        logger.hold();
+        pipeline.write(logger, point(1));
+        logger.awaitHeld();
+        pipeline.write(logger, point(2));
+
+        pipeline.write(logger, point(3));
+        assertEquals(1, pipeline.getDroppedCount());
+
+        logger.open();
+        assertTrue(pipeline.flush(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("w1", "w2"), logger.getEvents());
+    }
+
+    @Test
+    public void coalesce_replacesNewestQueuedPoint() throws Exception {
+        LoggingPipeline pipeline = new LoggingPipeline(2, LoggingPipeline.Backpressure.COALESCE, folder);
+        logger.hold();
+        pipeline.write(logger, point(1));
+        logger.awaitHeld();
+        pipeline.write(logger, point(2));
+        pipeline.write(logger, point(3));
+
+        pipeline.write(logger, point(4));
+        assertEquals(1, pipeline.getCoalescedCount());
+
+        logger.open();
+        assertTrue(pipeline.flush(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("w1", "w2", "w4"), logger.getEvents());
+    }
+
+    @Test
+    public void coalesce_neverMovesPointAcrossAnnotation() throws Exception {
+        LoggingPipeline pipeline = new LoggingPipeline(2, LoggingPipeline.Backpressure.COALESCE, folder);
+        logger.hold();
+        pipeline.write(logger, point(1));
+        logger.awaitHeld();
+        pipeline.write(logger, point(2));
+        pipeline.annotate(logger, "note", point(2));
+
+        //Falls back to waiting for room, so let the logger go shortly
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException ignored) {
+                }
+                logger.open();
+            }
+        }).start();
+        pipeline.write(logger, point(3));
+
+        assertTrue(pipeline.flush(5, TimeUnit.SECONDS));
+        assertEquals(0, pipeline.getCoalescedCount());
+        assertEquals(Arrays.asList("w1", "w2", "a:note", "w3"), logger.getEvents());
+    }
+
+    @Test
+    public void spill_keepsOrder() throws Exception {
+        LoggingPipeline pipeline = new LoggingPipeline(1, LoggingPipeline.Backpressure.SPILL, folder);
+        logger.hold();
+        pipeline.write(logger, point(1));
+        logger.awaitHeld();
+        pipeline.write(logger, point(2));
+        pipeline.write(logger, point(3));
+        pipeline.annotate(logger, "note", point(3));
+        pipeline.write(logger, point(4));
+        assertEquals(3, pipeline.getSpilledCount());
+
+        logger.open();
+        assertTrue(pipeline.flush(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("w1", "w2", "w3", "a:note", "w4"), logger.getEvents());
+        assertFalse(new File(folder, LoggingPipeline.SPILL_FILE_NAME).exists());
+
+        pipeline.write(logger, point(5));
+        assertTrue(pipeline.flush(5, TimeUnit.SECONDS));
+        assertEquals("w5", logger.getEvents().get(5));
+    }
+
+    @Test
+    public void truncatedSpillFile_replaysCompleteEntries() throws Exception {
+        LoggingPipeline pipeline = new LoggingPipeline(1, LoggingPipeline.Backpressure.SPILL, folder);
+        logger.hold();
+        pipeline.write(logger, point(1));
+        logger.awaitHeld();
+        pipeline.write(logger, point(2));
+        pipeline.write(logger, point(3));
+        pipeline.write(logger, point(4));
+        pipeline.write(logger, point(5));
+
+        //Cut the last entry short, as if the process was killed while spilling it
+        RandomAccessFile spill = new RandomAccessFile(new File(folder, LoggingPipeline.SPILL_FILE_NAME), "rw");
+        try {
+            spill.setLength(spill.length() - 5);
+        } finally {
+            spill.close();
+        }
+
+        logger.open();
+        assertTrue(pipeline.flush(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("w1", "w2", "w3", "w4"), logger.getEvents());
+        assertFalse(new File(folder, LoggingPipeline.SPILL_FILE_NAME).exists());
+        assertFalse(new File(folder, LoggingPipeline.SPILL_FILE_NAME + ".draining").exists());
+    }
+
+    @Test
+    public void newSegment_isPassedWithThePointAndNeverCoalesced() throws Exception {
+        LoggingPipeline pipeline = new LoggingPipeline(2, LoggingPipeline.Backpressure.COALESCE, folder);
+        logger.hold();
+        pipeline.write(logger, point(1), true);
+        logger.awaitHeld();
+        pipeline.write(logger, point(2));
+        pipeline.write(logger, point(3), true);
+
+        //Can't replace the segment start, so falls back to waiting for room
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException ignored) {
+                }
+                logger.open();
+            }
+        }).start();
+        pipeline.write(logger, point(4));
+
+        assertTrue(pipeline.flush(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("s1", "w2", "s3", "w4"), logger.getEvents());
+    }
+
+    @Test
+    public void newSegment_survivesSpill() throws Exception {
+        LoggingPipeline pipeline = new LoggingPipeline(1, LoggingPipeline.Backpressure.SPILL, folder);
+        logger.hold();
+        pipeline.write(logger, point(1));
+        logger.awaitHeld();
+        pipeline.write(logger, point(2));
+        pipeline.write(logger, point(3), true);
+        pipeline.write(logger, point(4));
+
+        logger.open();
+        assertTrue(pipeline.flush(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("w1", "w2", "s3", "w4"), logger.getEvents());
+    }
+
+    @Test
+    public void spill_writesEntriesBackToTheSessionTheyWereLoggedIn() throws Exception {
+        final RecordingLogger yesterday = new RecordingLogger("test");
+        final String[] currentSession = {"20160501"};
+        LoggingPipeline pipeline = new LoggingPipeline(1, LoggingPipeline.Backpressure.SPILL, folder,
+                new LoggingPipeline.Sessions() {
+                    @Override
+                    public String getCurrentSession() {
+                        return currentSession[0];
+                    }
+
+                    @Override
+                    public FileLogger getFileLogger(String name, String session) {
+                        assertEquals("20160501", session);
+                        return yesterday;
+                    }
+                });
+        logger.hold();
+        pipeline.write(logger, point(1));
+        logger.awaitHeld();
+        pipeline.write(logger, point(2));
+        pipeline.write(logger, point(3));
+        pipeline.annotate(logger, "note", point(3));
+
+        //The day changes while the points are still in the spill file
+        currentSession[0] = "20160502";
+        pipeline.write(logger, point(4));
+        assertEquals(3, pipeline.getSpilledCount());
+
+        logger.open();
+        assertTrue(pipeline.flush(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("w1", "w2", "w4"), logger.getEvents());
+        assertEquals(Arrays.asList("w3", "a:note"), yesterday.getEvents());
+        assertEquals(1, yesterday.closes);
+        assertEquals(0, logger.closes);
+    }
+
+    private static Location point(long time) {
+        Location loc = new Location("gps");
+        loc.setTime(time);
+        loc.setLatitude(51.5);
+        loc.setLongitude(-0.1);
+        return loc;
+    }
+
+    /**
+     * Records what it is asked to do, and can be held inside a write to keep the pipeline thread busy
+     */
+    static class RecordingLogger implements SegmentedFileLogger {
+        private final String name;
+        private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        private volatile CountDownLatch gate = new CountDownLatch(0);
+        private final CountDownLatch held = new CountDownLatch(1);
+        volatile int flushes;
+        volatile int closes;
+
+        RecordingLogger(String name) {
+            this.name = name;
+        }
+
+        void hold() {
+            gate = new CountDownLatch(1);
+        }
+
+        void open() {
+            gate.countDown();
+        }
+
+        void awaitHeld() throws InterruptedException {
+            assertTrue(held.await(5, TimeUnit.SECONDS));
+        }
+
+        List<String> getEvents() {
+            synchronized (events) {
+                return new ArrayList<>(events);
+            }
+        }
+
+        @Override
+        public void write(Location loc) throws Exception {
+            write(loc, false);
+        }
+
+        @Override
+        public void write(Location loc, boolean addNewTrackSegment) throws Exception {
+            events.add((addNewTrackSegment ? "s" : "w") + loc.getTime());
+            held.countDown();
+            gate.await();
+        }
+
+        @Override
+        public void annotate(String description, Location loc) {
+            events.add("a:" + description);
+        }
+
+        @Override
+        public void flush() {
+            flushes++;
+        }
+
+        @Override
+        public void close() {
+            closes++;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+    }
+}
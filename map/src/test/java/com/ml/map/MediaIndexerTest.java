@@ -0,0 +1,115 @@
+package com.ml.map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MediaIndexerTest {
+
+    private final List<String> scanned = new ArrayList<>();
+    private final List<Long> scheduledDelays = new ArrayList<>();
+    private final List<Runnable> scheduledTasks = new ArrayList<>();
+    private long now;
+    private MediaIndexer indexer;
+
+    @Before
+    public void setUp() {
+        now = 1000;
+        indexer = new MediaIndexer(
+                new MediaIndexer.Scanner() {
+                    @Override
+                    public void scanFile(String path, String mimeType) {
+                        scanned.add(path);
+                    }
+                },
+                new MediaIndexer.Clock() {
+                    @Override
+                    public long elapsedMillis() {
+                        return now;
+                    }
+                },
+                new MediaIndexer.Scheduler() {
+                    @Override
+                    public void schedule(Runnable task, long delayMillis) {
+                        scheduledTasks.add(task);
+                        scheduledDelays.add(delayMillis);
+                    }
+                },
+                60000);
+    }
+
+    @Test
+    public void firstRequest_scansImmediately() {
+        indexer.request(new File("/logs/a.gpx"), "text/plain");
+
+        assertEquals(1, scanned.size());
+        assertEquals(0, indexer.getPendingCount());
+        assertTrue(scheduledTasks.isEmpty());
+    }
+
+    @Test
+    public void repeatedRequests_coalesceIntoOneScanAfterInterval() {
+        File file = new File("/logs/a.gpx");
+        indexer.request(file, "text/plain");
+
+        for (int i = 0; i < 50; i++) {
+            now += 100;
+            indexer.request(file, "text/plain");
+        }
+
+        assertEquals(1, scanned.size());
+        assertEquals(1, indexer.getPendingCount());
+        assertEquals(1, scheduledTasks.size());
+        assertEquals(Long.valueOf(59900), scheduledDelays.get(0));
+
+        now += 55000;
+        scheduledTasks.get(0).run();
+
+        assertEquals(2, scanned.size());
+        assertEquals(0, indexer.getPendingCount());
+        assertEquals(1, scheduledTasks.size());
+    }
+
+    @Test
+    public void runDue_leavesFilesThatAreNotDueYet() {
+        File a = new File("/logs/a.gpx");
+        File b = new File("/logs/b.kml");
+        indexer.request(a, "text/plain");
+        now += 30000;
+        indexer.request(b, "text/xml");
+
+        now += 10000;
+        indexer.request(a, "text/plain");
+        indexer.request(b, "text/xml");
+
+        now += 20000;
+        assertEquals(30000, indexer.runDue());
+        assertEquals(3, scanned.size());
+        assertEquals(1, indexer.getPendingCount());
+
+        now += 30000;
+        assertEquals(-1, indexer.runDue());
+        assertEquals(4, scanned.size());
+    }
+
+    @Test
+    public void indexNow_scansImmediatelyAndClearsPending() {
+        File file = new File("/logs/a.gpx");
+        indexer.request(file, "text/plain");
+        now += 100;
+        indexer.request(file, "text/plain");
+        assertEquals(1, indexer.getPendingCount());
+
+        indexer.indexNow(file, "text/plain");
+
+        assertEquals(2, scanned.size());
+        assertEquals(0, indexer.getPendingCount());
+        assertEquals(-1, indexer.runDue());
+        assertEquals(2, indexer.getScanCount());
+    }
+}
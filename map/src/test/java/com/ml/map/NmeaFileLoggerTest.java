@@ -0,0 +1,95 @@
+package com.ml.map;
+
+import android.location.Location;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class NmeaFileLoggerTest {
+
+    @Rule
+    public final TemporaryFolder temp = new TemporaryFolder();
+
+    private File folder;
+    private File nmeaFile;
+
+    @Before
+    public void setUp() throws Exception {
+        folder = temp.newFolder("nmea-logger");
+        nmeaFile = new File(folder, "test.nmea");
+    }
+
+    @Test
+    public void fullRing_neitherBlocksNorLosesFlushes() throws Exception {
+        LoggingPipeline pipeline = new LoggingPipeline(1, LoggingPipeline.Backpressure.BLOCK, folder);
+        NmeaFileLogger nmea = new NmeaFileLogger(pipeline, nmeaFile);
+
+        //Keep the pipeline thread busy and the ring buffer full
+        LoggingPipelineTest.RecordingLogger busy = new LoggingPipelineTest.RecordingLogger("busy");
+        busy.hold();
+        pipeline.write(busy, new Location("gps"));
+        busy.awaitHeld();
+        pipeline.write(busy, new Location("gps"));
+
+        long start = System.nanoTime();
+        nmea.write(0, "$GPGGA,first");
+        nmea.write(6000, "$GPGGA,second");
+        assertTrue("Flush request waited for room", System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+
+        busy.open();
+        assertTrue(pipeline.flush(5, TimeUnit.SECONDS));
+        assertEquals("$GPGGA,first\n$GPGGA,second\n", read(nmeaFile));
+
+        //Later sentences still get flushed
+        nmea.write(12000, "$GPGGA,third");
+        nmea.write(18000, "$GPGGA,fourth");
+        assertTrue(pipeline.flush(5, TimeUnit.SECONDS));
+        assertEquals("$GPGGA,first\n$GPGGA,second\n$GPGGA,third\n$GPGGA,fourth\n", read(nmeaFile));
+        assertEquals(0, nmea.getDroppedCount());
+
+        nmea.write(19000, "$GPGGA,last");
+        assertTrue(pipeline.close(5, TimeUnit.SECONDS));
+        assertTrue(read(nmeaFile).endsWith("$GPGGA,fourth\n$GPGGA,last\n"));
+    }
+
+    @Test
+    public void flushRequests_areMerged() throws Exception {
+        LoggingPipeline pipeline = new LoggingPipeline(4, LoggingPipeline.Backpressure.BLOCK, folder);
+        NmeaFileLogger nmea = new NmeaFileLogger(pipeline, nmeaFile);
+
+        for (int i = 0; i < 50; i++) {
+            nmea.write(i * 6000L, "$GPRMC," + i);
+            nmea.requestFlush();
+        }
+        assertTrue(pipeline.flush(5, TimeUnit.SECONDS));
+        assertEquals(0, pipeline.getPendingCount());
+        assertEquals(0, pipeline.getDroppedCount());
+        assertTrue(read(nmeaFile).endsWith("$GPRMC,49\n"));
+    }
+
+    private static String read(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                offset += in.read(data, offset, data.length - offset);
+            }
+        } finally {
+            in.close();
+        }
+        return new String(data, "US-ASCII");
+    }
+}
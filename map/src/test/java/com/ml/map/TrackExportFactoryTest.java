@@ -0,0 +1,221 @@
+package com.ml.map;
+
+import android.location.Location;
+import android.os.Bundle;
+
+import com.ml.map.csv.CSVFileLogger;
+import com.ml.map.geojson.GeoJSONLogger;
+import com.ml.map.gpx.Gpx10FileLogger;
+import com.ml.map.gpx.Gpx11FileLogger;
+import com.ml.map.kml.Kml22FileLogger;
+import com.ml.map.track.TrackFileLogger;
+import com.ml.map.track.TrackRecord;
+import com.ml.map.track.TrackWriter;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class TrackExportFactoryTest {
+
+    private static final long START = 1462110310000L;
+    private static final String SESSION = "20160501";
+
+    @Rule
+    public final TemporaryFolder temp = new TemporaryFolder();
+
+    private File folder;
+
+    @Before
+    public void setUp() throws Exception {
+        GoblobLocationManager.getInstance().init(RuntimeEnvironment.getApplication());
+        folder = temp.newFolder("track-export");
+    }
+
+    @Test
+    public void export_matchesWhatTheLoggersWrote() throws Exception {
+        File logged = new File(folder, "logged");
+        File exported = new File(folder, "exported");
+        logged.mkdirs();
+        exported.mkdirs();
+
+        PreferenceHelper preferenceHelper = PreferenceHelper.getInstance();
+        File trackFile = new File(logged, SESSION + TrackFileLogger.EXTENSION);
+        List<SegmentedFileLogger> segmented = Arrays.asList(
+                new TrackFileLogger(trackFile),
+                preferenceHelper.shouldLogAsGpx11()
+                        ? new Gpx11FileLogger(new File(logged, SESSION + ".gpx"))
+                        : new Gpx10FileLogger(new File(logged, SESSION + ".gpx")),
+                new Kml22FileLogger(new File(logged, SESSION + ".kml")),
+                new GeoJSONLogger(new File(logged, SESSION + ".geojson"), preferenceHelper.shouldLogGeoJSONAsLineString()));
+        CSVFileLogger csv = new CSVFileLogger(new File(logged, SESSION + ".csv"), null);
+
+        for (int i = 0; i < 500; i++) {
+            Location loc = location(i);
+            if (i % 97 == 50) {
+                String description = "Note " + i + " <b> & \"more\"";
+                for (SegmentedFileLogger logger : segmented) {
+                    logger.annotate(description, loc);
+                }
+                csv.annotate(description, loc);
+            } else {
+                for (SegmentedFileLogger logger : segmented) {
+                    logger.write(loc, i % 200 == 199);
+                }
+                csv.write(loc);
+            }
+        }
+        for (SegmentedFileLogger logger : segmented) {
+            logger.close();
+        }
+        csv.close();
+
+        List<File> files = TrackExportFactory.export(trackFile, exported, Arrays.asList(
+                TrackExportFactory.GPX, TrackExportFactory.KML, TrackExportFactory.CSV, TrackExportFactory.GEOJSON));
+        assertEquals(4, files.size());
+
+        for (File file : files) {
+            String expected = read(new File(logged, file.getName()));
+            String actual = read(file);
+            if (file.getName().endsWith(".gpx") || file.getName().endsWith(".kml")) {
+                //The loggers leave room for waypoints, which the export doesn't need
+                expected = expected.replaceAll(">\\s+<", "><");
+                actual = actual.replaceAll(">\\s+<", "><");
+            }
+            assertEquals(file.getName(), expected, actual);
+        }
+    }
+
+    @Test
+    public void exportMissingFormats_exportsAgainOnceTrackHasGrown() throws Exception {
+        File trackFile = new File(folder, SESSION + TrackFileLogger.EXTENSION);
+        File gpx = new File(folder, SESSION + ".gpx");
+        appendTrack(trackFile, 0, 10);
+
+        List<String> formats = Collections.singletonList(TrackExportFactory.GPX);
+        assertEquals(Collections.singletonList(gpx), TrackExportFactory.exportMissingFormats(folder, SESSION, formats, null));
+        assertTrue(read(gpx).contains(Strings.getIsoDateTime(new Date(time(9)))));
+
+        //Up to date, so left as it is
+        assertTrue(TrackExportFactory.exportMissingFormats(folder, SESSION, formats, null).isEmpty());
+
+        appendTrack(trackFile, 10, 5);
+        assertEquals(Collections.singletonList(gpx), TrackExportFactory.exportMissingFormats(folder, SESSION, formats, null));
+        assertTrue(read(gpx).contains(Strings.getIsoDateTime(new Date(time(14)))));
+        assertTrue(TrackExportFactory.exportMissingFormats(folder, SESSION, formats, null).isEmpty());
+    }
+
+    @Test
+    public void exportMissingFormats_leavesLoggedFilesAlone() throws Exception {
+        File trackFile = new File(folder, SESSION + TrackFileLogger.EXTENSION);
+        File kml = new File(folder, SESSION + ".kml");
+        File nmea = new File(folder, SESSION + ".nmea");
+        write(kml, "logged");
+        write(nmea, "$GPGGA,logged\n");
+        appendTrack(trackFile, 0, 10);
+
+        List<String> formats = Arrays.asList(TrackExportFactory.KML, TrackExportFactory.NMEA, TrackExportFactory.CSV);
+        List<File> exported = TrackExportFactory.exportMissingFormats(folder, SESSION, formats, null);
+        assertEquals(Collections.singletonList(new File(folder, SESSION + ".csv")), exported);
+
+        appendTrack(trackFile, 10, 5);
+        exported = TrackExportFactory.exportMissingFormats(folder, SESSION, formats, null);
+        assertEquals(Collections.singletonList(new File(folder, SESSION + ".csv")), exported);
+        assertEquals("logged", read(kml));
+        assertEquals("$GPGGA,logged\n", read(nmea));
+    }
+
+    @Test
+    public void export_copiesNmeaAsItIs() throws Exception {
+        File trackFile = new File(folder, SESSION + TrackFileLogger.EXTENSION);
+        appendTrack(trackFile, 0, 10);
+        write(new File(folder, SESSION + ".nmea"), "$GPGGA,first\n$GPRMC,second\n");
+        File exported = new File(folder, "exported");
+        exported.mkdirs();
+
+        List<File> files = TrackExportFactory.export(trackFile, exported, Collections.singletonList(TrackExportFactory.NMEA));
+        assertEquals(Collections.singletonList(new File(exported, SESSION + ".nmea")), files);
+        assertEquals("$GPGGA,first\n$GPRMC,second\n", read(files.get(0)));
+    }
+
+    static void appendTrack(File trackFile, int first, int count) throws IOException {
+        TrackWriter writer = TrackWriter.open(trackFile);
+        try {
+            for (int i = first; i < first + count; i++) {
+                writer.append(new TrackRecord().setPoint("gps", time(i), 51.5 + i * 1e-4, -0.12, false)
+                        .setAltitude(30 + i));
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    static long time(int i) {
+        return START + i * 1000L;
+    }
+
+    /**
+     * A fix with values the track file stores exactly, so any difference is in the markup
+     */
+    private static Location location(int i) {
+        Location loc = new Location(i % 50 < 25 ? "gps" : "network");
+        loc.setTime(time(i));
+        loc.setLatitude((515000000 + i * 15L) / 1e7);
+        loc.setLongitude((-1246254 - i * 23L) / 1e7);
+        if (i % 5 != 0) {
+            loc.setAltitude((3527 + i * 7) / 100.0);
+            loc.setAccuracy((float) ((300 + i % 50) / 100.0));
+        }
+        if (i % 3 == 0) {
+            loc.setSpeed((float) ((125 + i) / 100.0));
+            loc.setBearing((float) ((i * 71 % 36000) / 100.0));
+        }
+        Bundle extras = new Bundle();
+        if (i % 4 != 0) {
+            extras.putInt(BundleConstants.SATELLITES_FIX, 4 + i % 8);
+            extras.putString(BundleConstants.HDOP, String.valueOf((float) ((90 + i % 20) / 100.0)));
+        }
+        loc.setExtras(extras);
+        return loc;
+    }
+
+    static void write(File file, String text) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(text.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    static String read(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                offset += in.read(data, offset, data.length - offset);
+            }
+        } finally {
+            in.close();
+        }
+        return new String(data, "UTF-8");
+    }
+}
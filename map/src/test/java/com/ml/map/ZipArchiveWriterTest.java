@@ -0,0 +1,233 @@
+package com.ml.map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.*;
+
+public class ZipArchiveWriterTest {
+
+    @Rule
+    public final TemporaryFolder temp = new TemporaryFolder();
+
+    private File folder;
+    private final Map<String, byte[]> contents = new LinkedHashMap<>();
+
+    @Before
+    public void setUp() throws Exception {
+        folder = temp.newFolder("zip-writer");
+    }
+
+    @Test
+    public void largeFile_isDeflatedInChunksThatJoinUp() throws Exception {
+        //Several 256 KB chunks, with a short last one
+        File large = create("20160501.csv", csv(1500 * 1024));
+        File small = create("20160501.gpx", csv(1000));
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            File parallel = new File(folder, "parallel.zip");
+            ZipArchiveWriter writer = new ZipArchiveWriter(new FileOutputStream(parallel).getChannel())
+                    .setCompressor(pool, 4);
+            writer.addFile(large, large.getName());
+            writer.addFile(small, small.getName());
+            writer.close();
+            assertReadsBack(parallel, ZipEntry.DEFLATED);
+            assertTrue(parallel.length() < large.length() / 2);
+
+            //The chunks come out the same whichever thread deflated them
+            File inline = new File(folder, "inline.zip");
+            writer = new ZipArchiveWriter(new FileOutputStream(inline).getChannel());
+            writer.addFile(large, large.getName());
+            writer.addFile(small, small.getName());
+            writer.close();
+            assertReadsBack(inline, ZipEntry.DEFLATED);
+            assertArrayEquals(read(parallel), read(inline));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void emptyFile_isReadBackEmpty() throws Exception {
+        File empty = create("empty.txt", new byte[0]);
+        File emptyGz = create("empty.gz", new byte[0]);
+
+        File zip = new File(folder, "empty.zip");
+        ZipArchiveWriter writer = new ZipArchiveWriter(new FileOutputStream(zip))
+                .setCompressor(ZipArchiveWriter.getSharedCompressor(), 2);
+        writer.addFile(empty, empty.getName());
+        writer.addFile(emptyGz, emptyGz.getName());
+        writer.close();
+
+        ZipFile zipFile = new ZipFile(zip);
+        try {
+            assertEquals(ZipEntry.DEFLATED, zipFile.getEntry("empty.txt").getMethod());
+            assertEquals(ZipEntry.STORED, zipFile.getEntry("empty.gz").getMethod());
+        } finally {
+            zipFile.close();
+        }
+        assertReadsBack(zip, -1);
+    }
+
+    @Test
+    public void compressedFile_isStoredAsItIs() throws Exception {
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(gzipped);
+        gzip.write(csv(600 * 1024));
+        gzip.close();
+        File gz = create("20160501.nmea.gz", gzipped.toByteArray());
+        File csv = create("20160501.csv", csv(1000));
+
+        //Straight to a stream, as when uploading
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ZipArchiveWriter writer = new ZipArchiveWriter(out).setCompressor(ZipArchiveWriter.getSharedCompressor(), 2);
+        writer.addFile(csv, csv.getName());
+        writer.addFile(gz, gz.getName());
+        writer.close();
+        File zip = new File(folder, "stream.zip");
+        write(zip, out.toByteArray());
+
+        ZipFile zipFile = new ZipFile(zip);
+        try {
+            ZipEntry entry = zipFile.getEntry(gz.getName());
+            assertEquals(ZipEntry.STORED, entry.getMethod());
+            assertEquals(gz.length(), entry.getCompressedSize());
+            assertEquals(ZipEntry.DEFLATED, zipFile.getEntry(csv.getName()).getMethod());
+        } finally {
+            zipFile.close();
+        }
+        assertReadsBack(zip, -1);
+    }
+
+    @Test
+    public void isCompressed_goesByExtension() {
+        assertTrue(ZipArchiveWriter.isCompressed("20160501.nmea.gz"));
+        assertTrue(ZipArchiveWriter.isCompressed("photo.JPG"));
+        assertTrue(ZipArchiveWriter.isCompressed("session.zip"));
+        assertFalse(ZipArchiveWriter.isCompressed("20160501.gpx"));
+        assertFalse(ZipArchiveWriter.isCompressed("gz"));
+    }
+
+    @Test(expected = IOException.class)
+    public void addAfterClose_isRejected() throws Exception {
+        File file = create("20160501.csv", csv(100));
+        ZipArchiveWriter writer = new ZipArchiveWriter(new ByteArrayOutputStream());
+        writer.close();
+        writer.addFile(file, file.getName());
+    }
+
+    /**
+     * Reads the archive back both through its central directory and as a stream, as a receiving server might
+     */
+    private void assertReadsBack(File zip, int method) throws IOException {
+        ZipFile zipFile = new ZipFile(zip);
+        try {
+            assertEquals(contents.size(), zipFile.size());
+            for (Map.Entry<String, byte[]> expected : contents.entrySet()) {
+                ZipEntry entry = zipFile.getEntry(expected.getKey());
+                assertNotNull(expected.getKey(), entry);
+                if (method >= 0) {
+                    assertEquals(method, entry.getMethod());
+                }
+                assertEquals(expected.getValue().length, entry.getSize());
+                assertEquals(crc(expected.getValue()), entry.getCrc());
+                assertArrayEquals(expected.getKey(), expected.getValue(), readAll(zipFile.getInputStream(entry)));
+            }
+        } finally {
+            zipFile.close();
+        }
+
+        int count = 0;
+        ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(read(zip)));
+        try {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                assertArrayEquals(entry.getName(), contents.get(entry.getName()), readAll(in));
+                count++;
+            }
+        } finally {
+            in.close();
+        }
+        assertEquals(contents.size(), count);
+    }
+
+    private File create(String name, byte[] data) throws IOException {
+        File file = new File(folder, name);
+        write(file, data);
+        contents.put(name, data);
+        return file;
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Log-like lines that deflate well but not trivially, so matches do reach across chunk boundaries
+     */
+    private static byte[] csv(int size) throws IOException {
+        Random random = new Random(size);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size + 100);
+        long time = 1462110310000L;
+        while (out.size() < size) {
+            time += 1000;
+            String line = time + ",51." + (5000000 + random.nextInt(100000)) + ",-0." + (1200000 + random.nextInt(100000))
+                    + "," + random.nextInt(100) + ",gps\n";
+            out.write(line.getBytes("US-ASCII"));
+        }
+        return Arrays.copyOf(out.toByteArray(), size);
+    }
+
+    private static long crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+
+    private static byte[] read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return readAll(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,151 @@
+package com.ml.map.customurl;
+
+import android.location.Location;
+
+import com.ml.map.FakeHttpServer;
+import com.ml.map.QueuedLocationLogger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class CustomUrlLoggerTest {
+
+    @Rule
+    public final TemporaryFolder temp = new TemporaryFolder();
+
+    private volatile boolean online = true;
+    private FakeHttpServer server;
+    private File queueFile;
+    private CustomUrlLogger logger;
+
+    @Before
+    public void setUp() throws Exception {
+        //Queues are shared per file, so each test gets its own
+        queueFile = new File(temp.getRoot(), "customurl.queue");
+
+        server = new FakeHttpServer();
+        CustomUrlRequest request = new CustomUrlRequest(
+                "http://127.0.0.1:" + server.getPort() + "/log?lat=%LAT&lon=%LON",
+                "GET", "%TIMESTAMP,%LAT,%LON", "Authorization: Bearer test", "device", null);
+        logger = new CustomUrlLogger(request, queueFile, new QueuedLocationLogger.Connectivity() {
+            @Override
+            public boolean canSend() {
+                return online;
+            }
+        }, 10, 60000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void points_areSentInGzippedBatchesOverOneConnection() throws Exception {
+        writePoints(0, 35);
+        logger.flush();
+
+        server.waitForRequests(4, 5000);
+        List<FakeHttpServer.Request> requests = server.getRequests();
+        assertEquals(4, requests.size());
+        assertEquals(10, getLines(requests.get(0)).size());
+        assertEquals(5, getLines(requests.get(3)).size());
+        assertEquals("1788220800,40.0,-3.0", getLines(requests.get(0)).get(0));
+        assertEquals("POST", requests.get(0).method);
+        assertEquals("gzip", requests.get(0).headers.get("content-encoding"));
+        assertEquals("Bearer test", requests.get(0).headers.get("authorization"));
+        assertEquals(1, server.getConnectionCount());
+    }
+
+    @Test
+    public void nothingIsSent_untilABatchIsWaiting() throws Exception {
+        writePoints(0, 9);
+        logger.flush();
+        Thread.sleep(300);
+        assertEquals(0, server.getRequests().size());
+
+        writePoints(9, 1);
+        logger.flush();
+        server.waitForRequests(1, 5000);
+        assertEquals(10, getLines(server.getRequests().get(0)).size());
+    }
+
+    @Test
+    public void points_waitWhileSendingIsNotAllowed() throws Exception {
+        online = false;
+        writePoints(0, 20);
+        logger.flush();
+        Thread.sleep(300);
+        assertEquals(0, server.getRequests().size());
+
+        online = true;
+        logger.sendQueued();
+        server.waitForRequests(2, 5000);
+        assertEquals(0, waitForEmptyQueue());
+    }
+
+    @Test
+    public void failedRequest_keepsPointsForLater() throws Exception {
+        server.setStatus(503);
+        writePoints(0, 10);
+        logger.flush();
+        server.waitForRequests(1, 5000);
+        Thread.sleep(300);
+        assertEquals(10, logger.getQueuedCount());
+
+        server.setStatus(200);
+        logger.clearRetryDelay();
+        logger.sendQueued();
+        server.waitForRequests(2, 5000);
+
+        List<FakeHttpServer.Request> requests = server.getRequests();
+        assertEquals(getLines(requests.get(0)), getLines(requests.get(1)));
+        assertEquals(0, waitForEmptyQueue());
+    }
+
+    private int waitForEmptyQueue() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (logger.getQueuedCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        return logger.getQueuedCount();
+    }
+
+    private void writePoints(int first, int count) throws Exception {
+        for (int i = first; i < first + count; i++) {
+            Location loc = new Location("gps");
+            loc.setTime(1788220800000L + i * 1000L);
+            loc.setLatitude(40 + i * 0.001);
+            loc.setLongitude(-3 - i * 0.001);
+            logger.write(loc);
+        }
+    }
+
+    private static List<String> getLines(FakeHttpServer.Request request) throws IOException {
+        List<String> lines = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new ByteArrayInputStream(request.body)), "UTF-8"));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lines.add(line);
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,123 @@
+package com.ml.map.filter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class KalmanLocationFilterTest {
+
+    private static final double LATITUDE = 40.4168;
+    private static final double LONGITUDE = -3.7038;
+    private static final double METERS_PER_DEGREE = 111320.0;
+    private static final long START = 1788220800000L;
+
+    private KalmanLocationFilter filter;
+
+    @Before
+    public void setUp() {
+        filter = new KalmanLocationFilter(1.0, 60000);
+    }
+
+    @Test
+    public void noisyStraightTrack_isSmoothed() {
+        Random random = new Random(42);
+        double rawError = 0;
+        double filteredError = 0;
+
+        for (int i = 0; i < 300; i++) {
+            double east = i * 10.0;
+            double noiseEast = random.nextGaussian() * 8;
+            double noiseNorth = random.nextGaussian() * 8;
+            filter.update(START + i * 1000L, latitude(noiseNorth), longitude(east + noiseEast), false, 0, 8f);
+
+            if (i >= 20) {
+                rawError += noiseEast * noiseEast + noiseNorth * noiseNorth;
+                double errorEast = eastOf(filter.getLongitude()) - east;
+                double errorNorth = northOf(filter.getLatitude());
+                filteredError += errorEast * errorEast + errorNorth * errorNorth;
+            }
+        }
+
+        assertTrue("Filtered " + Math.sqrt(filteredError) + " vs raw " + Math.sqrt(rawError),
+                filteredError < rawError * 0.36);
+        assertEquals(10.0, filter.getSpeed(), 2.5);
+    }
+
+    @Test
+    public void preciseFix_outweighsRoughOne() {
+        filter.update(START, LATITUDE, LONGITUDE, false, 0, 50f);
+        filter.update(START + 1000, latitude(20), LONGITUDE, false, 0, 2f);
+
+        assertEquals(20, northOf(filter.getLatitude()), 1.0);
+        assertTrue(filter.getAccuracy() < 2.1f);
+    }
+
+    @Test
+    public void roughFix_barelyMovesPreciseTrack() {
+        for (int i = 0; i < 30; i++) {
+            filter.update(START + i * 1000L, LATITUDE, LONGITUDE, true, 650, 3f);
+        }
+        filter.update(START + 30000, latitude(100), LONGITUDE, true, 750, 500f);
+
+        assertTrue(northOf(filter.getLatitude()) < 2);
+        assertEquals(650, filter.getAltitude(), 2);
+    }
+
+    @Test
+    public void longGap_startsOver() {
+        filter.update(START, LATITUDE, LONGITUDE, false, 0, 5f);
+        filter.update(START + 1000, LATITUDE, LONGITUDE, false, 0, 5f);
+        filter.update(START + 120000, latitude(500), LONGITUDE, false, 0, 5f);
+
+        assertEquals(500, northOf(filter.getLatitude()), 1e-6);
+        assertEquals(5f, filter.getAccuracy(), 1e-3f);
+    }
+
+    @Test
+    public void earlierFix_startsOver() {
+        filter.update(START + 5000, LATITUDE, LONGITUDE, false, 0, 5f);
+        filter.update(START, latitude(300), LONGITUDE, false, 0, 5f);
+
+        assertEquals(300, northOf(filter.getLatitude()), 1e-6);
+    }
+
+    @Test
+    public void longTrack_keepsPrecisionFarFromStart() {
+        //200 km east at 50 m/s, past where the local origin is moved
+        for (int i = 0; i <= 4000; i++) {
+            filter.update(START + i * 1000L, LATITUDE, LONGITUDE + i * 50.0 / (METERS_PER_DEGREE * Math.cos(Math.toRadians(LATITUDE))),
+                    false, 0, 5f);
+        }
+
+        assertEquals(200000, eastOf(filter.getLongitude()), 1.0);
+        assertEquals(0, northOf(filter.getLatitude()), 1.0);
+    }
+
+    @Test
+    public void reset_forgetsState() {
+        filter.update(START, LATITUDE, LONGITUDE, false, 0, 5f);
+        assertTrue(filter.isInitialized());
+
+        filter.reset();
+        assertFalse(filter.isInitialized());
+    }
+
+    private static double latitude(double northMeters) {
+        return LATITUDE + northMeters / METERS_PER_DEGREE;
+    }
+
+    private static double longitude(double eastMeters) {
+        return LONGITUDE + eastMeters / (METERS_PER_DEGREE * Math.cos(Math.toRadians(LATITUDE)));
+    }
+
+    private static double northOf(double latitude) {
+        return (latitude - LATITUDE) * METERS_PER_DEGREE;
+    }
+
+    private static double eastOf(double longitude) {
+        return (longitude - LONGITUDE) * METERS_PER_DEGREE * Math.cos(Math.toRadians(LATITUDE));
+    }
+}
@@ -0,0 +1,180 @@
+package com.ml.map.filter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LocationFilterChainTest {
+
+    private static final double LATITUDE = 40.4168;
+    private static final double LONGITUDE = -3.7038;
+    private static final double METERS_PER_DEGREE = 111320.0;
+    private static final long START = 1788220800000L;
+
+    private final Fix fix = new Fix();
+    private long stillSince;
+
+    @Before
+    public void setUp() {
+        stillSince = 0;
+    }
+
+    @Test
+    public void timeGate_thinsStreamToInterval() {
+        TimeGate time = new TimeGate(10000);
+        LocationFilterChain chain = new LocationFilterChain().add(time);
+
+        int logged = 0;
+        for (int i = 0; i < 60; i++) {
+            if (chain.filter(gps(i * 1000L, i * 5.0, 5f))) {
+                logged++;
+            }
+        }
+
+        assertEquals(6, logged);
+        assertEquals(6, time.getPassed());
+        assertEquals(54, time.getRejected());
+    }
+
+    @Test
+    public void accuracyGate_dropsRoughFixesAndGivesUpAfterRetryPeriod() {
+        AccuracyGate accuracy = new AccuracyGate(20, 30000);
+        LocationFilterChain chain = new LocationFilterChain().add(accuracy);
+
+        assertTrue(chain.filter(gps(0, 0, 10f)));
+        assertFalse(chain.filter(gps(1000, 0, 0f)));
+        assertFalse(chain.filter(gps(2000, 0, 50f)));
+        assertFalse(chain.isGivingUp());
+        assertFalse(chain.filter(gps(20000, 0, 50f)));
+        assertFalse(chain.isGivingUp());
+        assertFalse(chain.filter(gps(40000, 0, 50f)));
+        assertTrue(chain.isGivingUp());
+        assertSame(accuracy, chain.getRejectedBy());
+
+        //Passive fixes and annotated points aren't held back
+        assertTrue(chain.filter(gps(41000, 0, 50f).setPassive(true)));
+        assertTrue(chain.filter(gps(42000, 0, 80f).setForced(true)));
+        assertEquals(3, accuracy.getPassed());
+        assertEquals(4, accuracy.getRejected());
+    }
+
+    @Test
+    public void speedJumpGate_dropsJumps() {
+        LocationFilterChain chain = new LocationFilterChain().add(new SpeedJumpGate(357));
+
+        assertTrue(chain.filter(gps(0, 0, 5f)));
+        assertFalse(chain.filter(gps(1000, 50000, 5f)));
+        assertTrue(chain.filter(gps(2000, 100, 5f)));
+        //Compared with the last fix logged, not the jump
+        assertTrue(chain.filter(gps(3000, 300, 5f)));
+    }
+
+    @Test
+    public void distanceGate_dropsJitterUnlessMoreAccurate() {
+        DistanceGate distance = new DistanceGate(0, 10);
+        LocationFilterChain chain = new LocationFilterChain().add(distance);
+
+        assertTrue(chain.filter(gps(0, 0, 8f)));
+        assertFalse(chain.filter(gps(1000, 3, 8f)));
+        assertFalse(chain.filter(gps(2000, -4, 12f)));
+        assertTrue(chain.filter(gps(3000, 2, 4f)));
+        assertTrue(chain.filter(gps(4000, 20, 8f)));
+        assertFalse(chain.isGivingUp());
+    }
+
+    @Test
+    public void distanceGate_givesUpShortOfMinimumDistance() {
+        LocationFilterChain chain = new LocationFilterChain().add(new DistanceGate(50, 10));
+
+        assertTrue(chain.filter(gps(0, 0, 5f)));
+        assertFalse(chain.filter(gps(1000, 30, 5f)));
+        assertTrue(chain.isGivingUp());
+        assertTrue(chain.filter(gps(2000, 60, 5f)));
+    }
+
+    @Test
+    public void providerGate_keepsChosenProviders() {
+        LocationFilterChain gpsOnly = new LocationFilterChain().add(new ProviderGate(true, false));
+        assertTrue(gpsOnly.filter(fix.set("gps", START, LATITUDE, LONGITUDE, 5f)));
+        assertFalse(gpsOnly.filter(fix.set("network", START + 1000, LATITUDE, LONGITUDE, 5f)));
+
+        LocationFilterChain networkOnly = new LocationFilterChain().add(new ProviderGate(false, true));
+        assertFalse(networkOnly.filter(fix.set("gps", START, LATITUDE, LONGITUDE, 5f)));
+        assertTrue(networkOnly.filter(fix.set("network", START + 1000, LATITUDE, LONGITUDE, 5f)));
+
+        LocationFilterChain both = new LocationFilterChain().add(new ProviderGate(true, true));
+        assertTrue(both.filter(fix.set("network", START, LATITUDE, LONGITUDE, 5f)));
+    }
+
+    @Test
+    public void stillnessGate_dropsFixesOnceStillForTooLong() {
+        LocationFilterChain chain = new LocationFilterChain().add(new StillnessGate(new StillnessGate.Source() {
+            @Override
+            public long getStillSince() {
+                return stillSince;
+            }
+        }, 60000));
+
+        assertTrue(chain.filter(gps(0, 0, 5f)));
+        stillSince = START + 1000;
+        assertTrue(chain.filter(gps(30000, 0, 5f)));
+        assertFalse(chain.filter(gps(90000, 0, 5f)));
+        assertTrue(chain.filter(gps(91000, 0, 5f).setForced(true)));
+        stillSince = 0;
+        assertTrue(chain.filter(gps(92000, 0, 5f)));
+    }
+
+    @Test
+    public void laterStages_onlySeeFixesEarlierOnesLetThrough() {
+        AccuracyGate accuracy = new AccuracyGate(20, 60000);
+        SpeedJumpGate speed = new SpeedJumpGate(357);
+        TimeGate time = new TimeGate(5000);
+        LocationFilterChain chain = new LocationFilterChain().add(accuracy).add(speed).add(time);
+
+        for (int i = 0; i < 100; i++) {
+            float accuracyMeters = i % 4 == 0 ? 60f : 5f;
+            double east = i % 10 == 5 ? 100000 : i * 3.0;
+            chain.filter(gps(i * 1000L, east, accuracyMeters));
+        }
+
+        assertEquals(100, accuracy.getPassed() + accuracy.getRejected());
+        assertEquals(25, accuracy.getRejected());
+        assertEquals(accuracy.getPassed(), speed.getPassed() + speed.getRejected());
+        assertEquals(10, speed.getRejected());
+        assertEquals(speed.getPassed(), time.getPassed() + time.getRejected());
+        assertEquals("[accuracy 75/25, speed 65/10, time " + time.getPassed() + "/" + time.getRejected() + "]",
+                chain.toString());
+    }
+
+    @Test
+    public void reset_forgetsLastFix() {
+        TimeGate time = new TimeGate(60000);
+        LocationFilterChain chain = new LocationFilterChain().add(time);
+
+        assertTrue(chain.filter(gps(0, 0, 5f)));
+        assertFalse(chain.filter(gps(1000, 0, 5f)));
+        chain.reset();
+        assertTrue(chain.filter(gps(2000, 0, 5f)));
+        assertEquals(2, time.getPassed());
+    }
+
+    @Test
+    public void smoothingStage_changesPositionPassedOn() {
+        LocationFilterChain chain = new LocationFilterChain()
+                .add(new SmoothingStage(new KalmanLocationFilter(1.0, 60000)));
+
+        assertTrue(chain.filter(gps(0, 0, 50f)));
+        assertTrue(chain.filter(gps(1000, 40, 50f)));
+        double east = (fix.getLongitude() - LONGITUDE) * METERS_PER_DEGREE * Math.cos(Math.toRadians(LATITUDE));
+        assertTrue("Smoothed to " + east, east > 0 && east < 40);
+    }
+
+    /**
+     * A GPS fix the given number of metres east of the start point
+     */
+    private Fix gps(long offsetMillis, double east, float accuracy) {
+        double longitude = LONGITUDE + east / (METERS_PER_DEGREE * Math.cos(Math.toRadians(LATITUDE)));
+        return fix.set("gps", START + offsetMillis, LATITUDE, longitude, accuracy);
+    }
+}
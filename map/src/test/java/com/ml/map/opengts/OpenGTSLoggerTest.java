@@ -0,0 +1,177 @@
+package com.ml.map.opengts;
+
+import android.location.Location;
+
+import com.ml.map.FakeHttpServer;
+import com.ml.map.GoblobLocationManager;
+import com.ml.map.PreferenceHelper;
+import com.ml.map.QueuedLocationLogger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class OpenGTSLoggerTest {
+
+    @Rule
+    public final TemporaryFolder temp = new TemporaryFolder();
+
+    private FakeHttpServer server;
+    private DatagramSocket udpServer;
+    private File queueFile;
+
+    @Before
+    public void setUp() throws Exception {
+        //Queues are shared per file, so each test gets its own
+        queueFile = new File(temp.getRoot(), "opengts.queue");
+        server = new FakeHttpServer();
+        udpServer = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        udpServer.setSoTimeout(5000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+        udpServer.close();
+    }
+
+    @Test
+    public void gprmc_hasValidChecksum() {
+        String gprmc = OpenGTSLogger.getGprmc(location(0));
+
+        assertTrue(gprmc, gprmc.startsWith("$GPRMC,000000.000,A,4024.9800,N,00342.2280,W,2.39,90.00,020904,,*"));
+        assertTrue(isValidSentence(gprmc));
+    }
+
+    @Test
+    public void udp_packsManyRecordsIntoEachDatagram() throws Exception {
+        OpenGTSLogger logger = newLogger("UDP", udpServer.getLocalPort(), 30, false);
+        writePoints(logger, 30);
+        logger.flush();
+
+        List<String> lines = new ArrayList<>();
+        int datagrams = 0;
+        while (lines.size() < 30) {
+            DatagramPacket packet = new DatagramPacket(new byte[OpenGTSLogger.MAX_DATAGRAM], OpenGTSLogger.MAX_DATAGRAM);
+            udpServer.receive(packet);
+            datagrams++;
+            lines.addAll(Arrays.asList(new String(packet.getData(), 0, packet.getLength(), "UTF-8").split("\n")));
+        }
+
+        assertEquals(30, lines.size());
+        assertTrue(datagrams < 5);
+        for (String line : lines) {
+            assertTrue(line, line.startsWith("fleet/truck-7/$GPRMC,"));
+            assertTrue(line, isValidSentence(line.substring("fleet/truck-7/".length())));
+        }
+    }
+
+    @Test
+    public void http_postsBatchInOneRequest() throws Exception {
+        OpenGTSLogger logger = newLogger("HTTP", server.getPort(), 10, true);
+        writePoints(logger, 10);
+        logger.flush();
+
+        server.waitForRequests(1, 5000);
+        FakeHttpServer.Request request = server.getRequests().get(0);
+        assertEquals("POST", request.method);
+        assertEquals("/gprmc/Data?id=truck-7&dev=truck-7&acct=fleet", request.target);
+
+        String[] lines = new String(request.body, "UTF-8").split("\n");
+        assertEquals(10, lines.length);
+        for (String line : lines) {
+            assertTrue(line, line.startsWith("code=0xF020&alt=650.0&gprmc="));
+            assertTrue(isValidSentence(URLDecoder.decode(line.substring(line.indexOf("gprmc=") + 6), "UTF-8")));
+        }
+    }
+
+    @Test
+    public void http_defaultSettingsSendOneStockGetPerPoint() throws Exception {
+        GoblobLocationManager.getInstance().init(RuntimeEnvironment.getApplication());
+        PreferenceHelper preferenceHelper = PreferenceHelper.getInstance();
+        OpenGTSLogger logger = newLogger("HTTP", server.getPort(), preferenceHelper.getOpenGTSBatchSize(),
+                preferenceHelper.shouldPostOpenGTSBatches());
+        writePoints(logger, 3);
+        logger.flush();
+
+        server.waitForRequests(3, 5000);
+        Thread.sleep(300);
+        assertEquals(3, server.getRequests().size());
+        for (FakeHttpServer.Request request : server.getRequests()) {
+            assertEquals("GET", request.method);
+            assertTrue(request.target, request.target.startsWith("/gprmc/Data?id=truck-7&dev=truck-7&acct=fleet&code=0xF020&alt=650.0&gprmc=%24GPRMC"));
+            assertTrue(isValidSentence(URLDecoder.decode(request.target.substring(request.target.indexOf("gprmc=") + 6), "UTF-8")));
+            assertEquals(0, request.body.length);
+        }
+    }
+
+    @Test
+    public void failedRequest_keepsPointsQueued() throws Exception {
+        OpenGTSLogger logger = newLogger("HTTP", server.getPort(), 10, true);
+        server.setStatus(500);
+        writePoints(logger, 10);
+        logger.flush();
+        server.waitForRequests(1, 5000);
+        Thread.sleep(300);
+        assertEquals(10, logger.getQueuedCount());
+
+        server.setStatus(200);
+        logger.clearRetryDelay();
+        logger.sendQueued();
+        server.waitForRequests(2, 5000);
+        assertTrue(Arrays.equals(server.getRequests().get(0).body, server.getRequests().get(1).body));
+    }
+
+    private OpenGTSLogger newLogger(String protocol, int port, int batchSize, boolean postBatches) {
+        return new OpenGTSLogger("127.0.0.1", port, protocol, "", "truck-7", "fleet", null, queueFile,
+                new QueuedLocationLogger.Connectivity() {
+                    @Override
+                    public boolean canSend() {
+                        return true;
+                    }
+                }, batchSize, postBatches, 60000);
+    }
+
+    private static void writePoints(OpenGTSLogger logger, int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            logger.write(location(i));
+        }
+    }
+
+    private static Location location(int i) {
+        Location loc = new Location("gps");
+        loc.setTime(1094083200000L + i * 1000L);
+        loc.setLatitude(40.4163333 + i * 0.0001);
+        loc.setLongitude(-3.7038 - i * 0.0001);
+        loc.setAltitude(650);
+        loc.setSpeed(1.23f);
+        loc.setBearing(90);
+        return loc;
+    }
+
+    private static boolean isValidSentence(String sentence) {
+        int star = sentence.lastIndexOf('*');
+        int checksum = 0;
+        for (int i = 1; i < star; i++) {
+            checksum ^= sentence.charAt(i);
+        }
+        return sentence.startsWith("$") && Integer.parseInt(sentence.substring(star + 1), 16) == checksum;
+    }
+}
@@ -0,0 +1,142 @@
+package com.ml.map.provider;
+
+import com.google.android.gms.location.DetectedActivity;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SamplingSchedulerTest {
+
+    private static final long LOGGING_INTERVAL = 60000;
+
+    private long now;
+    private SamplingScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        now = 1000000;
+        scheduler = new SamplingScheduler(new SamplingScheduler.Clock() {
+            @Override
+            public long elapsedRealtime() {
+                return now;
+            }
+        }, LOGGING_INTERVAL, 0, 20);
+    }
+
+    @Test
+    public void moving_samplesAtHalfTheLoggingInterval() {
+        assertFalse(scheduler.onActivity(DetectedActivity.WALKING));
+        assertFalse(scheduler.onLocation(1.4f, 8));
+
+        LocationEngineRequest request = scheduler.getRequest();
+        assertEquals(LOGGING_INTERVAL / 2, request.getInterval());
+        assertEquals(LOGGING_INTERVAL / 4, request.getFastestInterval());
+        assertEquals(LocationEngineRequest.PRIORITY_HIGH_ACCURACY, request.getPriority());
+    }
+
+    @Test
+    public void fast_rampsUp() {
+        assertTrue(scheduler.onLocation(25, 5));
+        assertEquals(SamplingScheduler.FAST_INTERVAL, scheduler.getRequest().getInterval());
+
+        assertFalse(scheduler.onActivity(DetectedActivity.IN_VEHICLE));
+        assertFalse(scheduler.onLocation(3, 5));
+        assertEquals(SamplingScheduler.FAST_INTERVAL, scheduler.getRequest().getInterval());
+
+        assertTrue(scheduler.onActivity(DetectedActivity.ON_FOOT));
+        assertEquals(LOGGING_INTERVAL / 2, scheduler.getRequest().getInterval());
+    }
+
+    @Test
+    public void still_backsOffUpToMaximum() {
+        assertTrue(scheduler.onActivity(DetectedActivity.STILL));
+        LocationEngineRequest request = scheduler.getRequest();
+        assertEquals(LocationEngineRequest.PRIORITY_LOW_POWER, request.getPriority());
+        assertEquals(LOGGING_INTERVAL * 2, request.getInterval());
+        assertEquals(SamplingScheduler.STILL_DISPLACEMENT, request.getDisplacement(), 0);
+
+        assertTrue(scheduler.onActivity(DetectedActivity.STILL));
+        assertEquals(LOGGING_INTERVAL * 4, scheduler.getRequest().getInterval());
+        for (int i = 0; i < 10; i++) {
+            scheduler.onActivity(DetectedActivity.STILL);
+        }
+        assertEquals(SamplingScheduler.MAX_STILL_INTERVAL, scheduler.getRequest().getInterval());
+
+        //Moving again goes straight back to the normal interval
+        assertTrue(scheduler.onActivity(DetectedActivity.WALKING));
+        assertEquals(LOGGING_INTERVAL / 2, scheduler.getRequest().getInterval());
+        assertEquals(LocationEngineRequest.PRIORITY_HIGH_ACCURACY, scheduler.getRequest().getPriority());
+    }
+
+    @Test
+    public void slowFixes_countAsStillUnlessActivitySaysMoving() {
+        assertTrue(scheduler.onLocation(0.1f, 5));
+        assertEquals(LocationEngineRequest.PRIORITY_LOW_POWER, scheduler.getRequest().getPriority());
+
+        assertTrue(scheduler.onActivity(DetectedActivity.WALKING));
+        assertFalse(scheduler.onLocation(0.1f, 5));
+        assertEquals(LocationEngineRequest.PRIORITY_HIGH_ACCURACY, scheduler.getRequest().getPriority());
+    }
+
+    @Test
+    public void poorAccuracy_dropsToBalancedPowerThenRetries() {
+        assertFalse(scheduler.onLocation(1.4f, 120));
+        assertFalse(scheduler.onLocation(1.4f, 150));
+        assertTrue(scheduler.onLocation(1.4f, 200));
+        assertEquals(LocationEngineRequest.PRIORITY_BALANCED_POWER_ACCURACY, scheduler.getRequest().getPriority());
+        assertEquals(LOGGING_INTERVAL, scheduler.getRequest().getInterval());
+
+        now += SamplingScheduler.POOR_ACCURACY_RETRY;
+        assertEquals(LocationEngineRequest.PRIORITY_HIGH_ACCURACY, scheduler.getRequest().getPriority());
+
+        //A good fix clears it straight away
+        scheduler.onLocation(1.4f, 120);
+        scheduler.onLocation(1.4f, 120);
+        assertTrue(scheduler.onLocation(1.4f, 120));
+        assertTrue(scheduler.onLocation(1.4f, 10));
+        assertEquals(LocationEngineRequest.PRIORITY_HIGH_ACCURACY, scheduler.getRequest().getPriority());
+    }
+
+    @Test
+    public void gpsOnTime_followsTheRequests() {
+        //Half-minute interval: the receiver keeps tracking
+        now += 60000;
+        assertEquals(60000, scheduler.getEstimatedGpsOnMillis());
+
+        //Low power doesn't use the GPS
+        scheduler.onActivity(DetectedActivity.STILL);
+        now += 600000;
+        assertEquals(60000, scheduler.getEstimatedGpsOnMillis());
+
+        //Long interval at high accuracy: on for about one fix time per interval
+        SamplingScheduler slow = new SamplingScheduler(new SamplingScheduler.Clock() {
+            @Override
+            public long elapsedRealtime() {
+                return now;
+            }
+        }, 10 * 60000, 0, 0);
+        now += 600000;
+        assertEquals(300000, slow.getRequest().getInterval());
+        assertEquals(600000 * SamplingScheduler.GPS_FIX_TIME / 300000, slow.getEstimatedGpsOnMillis());
+        assertEquals(600000, slow.getElapsedMillis());
+    }
+
+    @Test
+    public void batching_waitsForSeveralIntervalsUpToMaximum() {
+        assertEquals(0, scheduler.getRequest().getMaxWaitTime());
+
+        scheduler.setBatchSize(4);
+        assertEquals(LOGGING_INTERVAL / 2 * 4, scheduler.getRequest().getMaxWaitTime());
+
+        for (int i = 0; i < 10; i++) {
+            scheduler.onActivity(DetectedActivity.STILL);
+        }
+        assertEquals(SamplingScheduler.MAX_STILL_INTERVAL, scheduler.getRequest().getInterval());
+        assertEquals(SamplingScheduler.MAX_BATCH_WAIT, scheduler.getRequest().getMaxWaitTime());
+
+        scheduler.setBatchSize(1);
+        assertEquals(0, scheduler.getRequest().getMaxWaitTime());
+    }
+}
@@ -0,0 +1,175 @@
+package com.ml.map.replay;
+
+import com.ml.map.Strings;
+import com.ml.map.track.TrackRecord;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ReplayEngineTest {
+
+    private static final long START = 1788220800000L;
+
+    private final List<Long> wallTimes = new ArrayList<>();
+    private final List<Long> virtualTimes = new ArrayList<>();
+    private long now;
+    private int sleeps;
+    private ReplayEngine engine;
+
+    @Before
+    public void setUp() {
+        now = 5000;
+        sleeps = 0;
+    }
+
+    @Test
+    public void points_arePacedBySpeed() throws Exception {
+        engine = newEngine(new long[]{0, 1000, 2000, 12000});
+        assertEquals(4, engine.setSpeed(10).run());
+
+        assertEquals(listOf(5000, 5100, 5200, 6200), wallTimes);
+        assertEquals(listOf(START, START + 1000, START + 2000, START + 12000), virtualTimes);
+        assertEquals(START + 12000, engine.getCurrentTimeMillis());
+    }
+
+    @Test
+    public void asFastAsPossible_neverWaits() throws Exception {
+        engine = newEngine(new long[]{0, 1000, 60000, 3600000});
+        assertEquals(4, engine.setSpeed(ReplayEngine.AS_FAST_AS_POSSIBLE).run());
+
+        assertEquals(0, sleeps);
+        assertEquals(listOf(5000, 5000, 5000, 5000), wallTimes);
+        assertEquals(listOf(START, START + 1000, START + 60000, START + 3600000), virtualTimes);
+    }
+
+    @Test
+    public void pointBackInTime_isPlayedStraightAway() throws Exception {
+        engine = newEngine(new long[]{0, 4000, 2000, 6000});
+        engine.setSpeed(2).run();
+
+        assertEquals(listOf(5000, 7000, 7000, 8000), wallTimes);
+    }
+
+    @Test
+    public void stop_endsReplayAfterCurrentPoint() throws Exception {
+        final int[] closed = {0};
+        final long[] times = {0, 1000, 2000, 3000};
+        engine = new ReplayEngine(new ReplaySource() {
+            int index;
+
+            @Override
+            public boolean next(TrackRecord record) {
+                if (index == times.length) {
+                    return false;
+                }
+                record.setPoint("gps", START + times[index++], 40.4168, -3.7038, false);
+                return true;
+            }
+
+            @Override
+            public void close() {
+                closed[0]++;
+            }
+        }, new ReplayEngine.Listener() {
+            @Override
+            public void onPoint(TrackRecord record) {
+                if (record.getTime() == START + 1000) {
+                    engine.stop();
+                }
+            }
+        }, clock());
+
+        assertEquals(2, engine.setSpeed(ReplayEngine.AS_FAST_AS_POSSIBLE).run());
+        assertEquals(1, closed[0]);
+    }
+
+    @Test
+    public void startTime_isReadAheadWithoutSkippingTheFirstPoint() throws Exception {
+        engine = newEngine(new long[]{0, 1000, 2000});
+        assertEquals(START, engine.getStartTimeMillis());
+        assertEquals(START, engine.getCurrentTimeMillis());
+        assertEquals(START, engine.getStartTimeMillis());
+
+        assertEquals(3, engine.setSpeed(1).run());
+        assertEquals(listOf(START, START + 1000, START + 2000), virtualTimes);
+        assertEquals(listOf(5000, 6000, 7000), wallTimes);
+    }
+
+    @Test
+    public void startTime_namesTheSessionInBothModes() throws Exception {
+        //Named before the first point is played, so the virtual clock must already be at the recorded time
+        long recorded = new GregorianCalendar(2026, Calendar.SEPTEMBER, 1, 8, 30, 15).getTimeInMillis();
+        engine = newEngine(recorded, new long[]{0, 1000});
+        engine.getStartTimeMillis();
+
+        assertEquals("20260901", Strings.getDatedFileName(true, engine.getCurrentTimeMillis()));
+        assertEquals("20260901083015", Strings.getDatedFileName(false, engine.getCurrentTimeMillis()));
+    }
+
+    @Test
+    public void emptySession_hasNoStartTime() throws Exception {
+        engine = newEngine(new long[0]);
+        assertEquals(0, engine.getStartTimeMillis());
+        assertEquals(0, engine.run());
+    }
+
+    private ReplayEngine newEngine(long[] times) {
+        return newEngine(START, times);
+    }
+
+    private ReplayEngine newEngine(final long start, final long[] times) {
+        return new ReplayEngine(new ReplaySource() {
+            int index;
+
+            @Override
+            public boolean next(TrackRecord record) {
+                if (index == times.length) {
+                    return false;
+                }
+                record.setPoint("gps", start + times[index++], 40.4168, -3.7038, false);
+                return true;
+            }
+
+            @Override
+            public void close() throws IOException {
+            }
+        }, new ReplayEngine.Listener() {
+            @Override
+            public void onPoint(TrackRecord record) {
+                wallTimes.add(now);
+                virtualTimes.add(engine.getCurrentTimeMillis());
+            }
+        }, clock());
+    }
+
+    private ReplayEngine.Clock clock() {
+        return new ReplayEngine.Clock() {
+            @Override
+            public long currentTimeMillis() {
+                return now;
+            }
+
+            @Override
+            public void sleep(long millis) {
+                sleeps++;
+                now += millis;
+            }
+        };
+    }
+
+    private static List<Long> listOf(long... values) {
+        List<Long> list = new ArrayList<>();
+        for (long value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+}
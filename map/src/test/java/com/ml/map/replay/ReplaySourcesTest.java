@@ -0,0 +1,111 @@
+package com.ml.map.replay;
+
+import com.ml.map.track.TrackRecord;
+
+import org.junit.Test;
+
+import java.io.StringReader;
+
+import static org.junit.Assert.*;
+
+public class ReplaySourcesTest {
+
+    //2 September 2004, 12:35:19 UTC
+    private static final long TIME = 1094128519000L;
+
+    private final TrackRecord record = new TrackRecord();
+
+    @Test
+    public void nmea_mergesRmcAndGgaOfSameFix() throws Exception {
+        NmeaReplaySource source = new NmeaReplaySource(new StringReader(
+                sentence("GPGGA,123519,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,") + "\n"
+                        + sentence("GPRMC,123519,A,4807.038,N,01131.000,E,022.4,084.4,020904,003.1,W") + "\n"
+                        + "$GPRMC,123520,A,4807.040,N,01131.010,E,022.4,084.4,020904,003.1,W*00\n"
+                        + sentence("GPRMC,123521,V,4807.040,N,01131.010,E,,,020904,,") + "\n"
+                        + sentence("GPRMC,123522,A,3348.500,S,07033.250,W,000.0,,020904,,") + "\n"));
+
+        assertTrue(source.next(record));
+        assertEquals(TIME, record.getTime());
+        assertEquals(48.1173, record.getLatitude(), 1e-6);
+        assertEquals(11.516667, record.getLongitude(), 1e-6);
+        assertEquals(545.4, record.getAltitude(), 1e-9);
+        assertEquals(8, record.getSatellites());
+        assertEquals(0.9f, record.getHdop(), 1e-6);
+        assertEquals(4.5f, record.getAccuracy(), 1e-5);
+        assertEquals(11.52f, record.getSpeed(), 0.01);
+        assertEquals(84.4f, record.getBearing(), 1e-5);
+
+        //Bad checksum and void fixes are skipped
+        assertTrue(source.next(record));
+        assertEquals(TIME + 3000, record.getTime());
+        assertEquals(-33.808333, record.getLatitude(), 1e-6);
+        assertEquals(-70.554167, record.getLongitude(), 1e-6);
+        assertFalse(record.hasAccuracy());
+
+        assertFalse(source.next(record));
+    }
+
+    @Test
+    public void csv_readsColumnsByHeader() throws Exception {
+        CsvReplaySource source = new CsvReplaySource(new StringReader(
+                "time,lat,lon,elevation,accuracy,bearing,speed,satellites,provider,hdop,vdop,pdop,geoidheight,ageofdgpsdata,dgpsid,activity,battery,annotation\n"
+                        + "2004-09-02T12:35:19.000Z,48.1173,11.5166,545.4,3.000,84.4,11.520,8,gps,0.9,,,,,,,80,\"Left, then \"\"right\"\"\"\n"
+                        + "not a time,1,2,,,,,,,,,,,,,,,\n"
+                        + "2004-09-02T12:35:20Z,48.1174,11.5167,,,,,0,network,,,,,,,,,\n"));
+
+        assertTrue(source.next(record));
+        assertEquals(TIME, record.getTime());
+        assertEquals(48.1173, record.getLatitude(), 1e-9);
+        assertEquals(545.4, record.getAltitude(), 1e-9);
+        assertEquals(3f, record.getAccuracy(), 1e-6);
+        assertEquals(8, record.getSatellites());
+        assertEquals("gps", record.getProvider());
+
+        assertTrue(source.next(record));
+        assertEquals(TIME + 1000, record.getTime());
+        assertEquals("network", record.getProvider());
+        assertFalse(record.hasAltitude());
+        assertFalse(record.hasAccuracy());
+
+        assertFalse(source.next(record));
+    }
+
+    @Test
+    public void gpx_readsTrackPointsAndSegments() throws Exception {
+        GpxReplaySource source = new GpxReplaySource(new StringReader(
+                "<?xml version=\"1.0\" encoding=\"UTF-8\" ?><gpx version=\"1.0\"><time>2004-09-02T12:00:00.000Z</time>"
+                        + "<wpt lat=\"1\" lon=\"2\"><time>2004-09-02T12:00:00.000Z</time><name>Note</name></wpt>"
+                        + "<trk><trkseg>"
+                        + "<trkpt lat=\"48.1173\" lon=\"11.5166\"><ele>545.4</ele><time>2004-09-02T12:35:19.000Z</time>"
+                        + "<course>84.4</course><speed>11.52</speed><src>gps</src><sat>8</sat><hdop>0.9</hdop></trkpt>"
+                        + "<trkpt lat=\"48.1174\" lon=\"11.5167\"></trkpt>"
+                        + "</trkseg><trkseg>"
+                        + "<trkpt lat=\"48.1175\" lon=\"11.5168\"><time>2004-09-02T12:35:21.000Z</time><src>network</src></trkpt>"
+                        + "</trkseg></trk></gpx>"));
+
+        assertTrue(source.next(record));
+        assertTrue(record.isNewSegment());
+        assertEquals(TIME, record.getTime());
+        assertEquals(11.5166, record.getLongitude(), 1e-9);
+        assertEquals(545.4, record.getAltitude(), 1e-9);
+        assertEquals(84.4f, record.getBearing(), 1e-5);
+        assertEquals(4.5f, record.getAccuracy(), 1e-5);
+
+        //The point without a time is skipped
+        assertTrue(source.next(record));
+        assertTrue(record.isNewSegment());
+        assertEquals(TIME + 2000, record.getTime());
+        assertEquals("network", record.getProvider());
+        assertFalse(record.hasAltitude());
+
+        assertFalse(source.next(record));
+    }
+
+    private static String sentence(String body) {
+        int checksum = 0;
+        for (int i = 0; i < body.length(); i++) {
+            checksum ^= body.charAt(i);
+        }
+        return String.format("$%s*%02X", body, checksum);
+    }
+}
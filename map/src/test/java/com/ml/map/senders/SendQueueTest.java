@@ -0,0 +1,357 @@
+package com.ml.map.senders;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SendQueueTest {
+
+    private static final long BACKOFF = 60000;
+
+    @Rule
+    public final TemporaryFolder temp = new TemporaryFolder();
+
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+    private volatile int status = 200;
+    private long now;
+    private File folder;
+    private File journal;
+    private HttpServer server;
+    private URL url;
+
+    @Before
+    public void setUp() throws Exception {
+        now = 1000000;
+        folder = temp.newFolder("send-queue");
+        journal = new File(folder, SendQueue.JOURNAL_NAME);
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/upload", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                InputStream in = exchange.getRequestBody();
+                byte[] buffer = new byte[4096];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    body.write(buffer, 0, read);
+                }
+                requests.add(body.toString("UTF-8"));
+                exchange.sendResponseHeaders(status, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+        url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/upload");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void dueFiles_areSentInOneBatch() throws Exception {
+        SendQueue queue = newQueue();
+        queue.enqueue(createFile("a.gpx", "first"));
+        queue.enqueue(createFile("b.gpx", "second"));
+        queue.enqueue(createFile("c.gpx", "third"));
+
+        assertEquals(3, queue.sendDue());
+
+        assertEquals(1, requests.size());
+        assertTrue(requests.get(0).contains("filename=\"a.gpx\""));
+        assertTrue(requests.get(0).contains("second"));
+        assertTrue(requests.get(0).contains("filename=\"c.gpx\""));
+        assertEquals(0, queue.getPendingCount());
+        assertEquals(0, queue.sendDue());
+    }
+
+    @Test
+    public void failedSend_isRetriedAfterBackoff() throws Exception {
+        SendQueue queue = newQueue();
+        queue.enqueue(createFile("a.gpx", "first"));
+
+        status = 503;
+        assertEquals(0, queue.sendDue());
+        assertEquals(1, queue.getPendingCount());
+        long next = queue.getNextAttemptTime();
+        assertTrue(next >= now + BACKOFF && next <= now + BACKOFF * 5 / 4);
+
+        //Not due yet, so nothing is attempted
+        status = 200;
+        assertEquals(0, queue.sendDue());
+        assertEquals(1, requests.size());
+
+        now = next;
+        assertEquals(1, queue.sendDue());
+        assertEquals(2, requests.size());
+        assertEquals(0, queue.getPendingCount());
+    }
+
+    @Test
+    public void backoff_doublesUpToMaximum() {
+        SendQueue queue = newQueue();
+        queue.setBackoff(BACKOFF, BACKOFF * 4);
+
+        assertInRange(BACKOFF, queue.getRetryDelay(1));
+        assertInRange(BACKOFF * 2, queue.getRetryDelay(2));
+        assertInRange(BACKOFF * 4, queue.getRetryDelay(3));
+        assertInRange(BACKOFF * 4, queue.getRetryDelay(30));
+    }
+
+    @Test
+    public void queue_survivesRestart() throws Exception {
+        SendQueue queue = newQueue();
+        queue.enqueue(createFile("a.gpx", "first"));
+        queue.enqueue(createFile("b.gpx", "second"));
+        status = 500;
+        queue.sendDue();
+        long next = queue.getNextAttemptTime();
+
+        //A line cut short by the process dying mid-write
+        FileOutputStream out = new FileOutputStream(journal, true);
+        out.write("A\t99\thttp\t/tmp/x".getBytes("UTF-8"));
+        out.close();
+
+        SendQueue restarted = newQueue();
+        assertEquals(2, restarted.getPendingCount());
+        assertEquals(next, restarted.getNextAttemptTime());
+
+        status = 200;
+        now = next;
+        assertEquals(2, restarted.sendDue());
+        assertEquals(0, newQueue().getPendingCount());
+    }
+
+    @Test
+    public void uploads_respectSenderConcurrency() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        SendQueue queue = new SendQueue(journal, clock());
+        queue.register(new FileSender() {
+            @Override
+            public String getName() {
+                return "slow";
+            }
+
+            @Override
+            public boolean accept(File file) {
+                return true;
+            }
+
+            @Override
+            public void upload(List<File> files) throws IOException {
+                int current = running.incrementAndGet();
+                synchronized (maxRunning) {
+                    maxRunning.set(Math.max(maxRunning.get(), current));
+                }
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                } finally {
+                    running.decrementAndGet();
+                }
+            }
+
+            @Override
+            public int getMaxConcurrency() {
+                return 2;
+            }
+
+            @Override
+            public int getMaxBatchSize() {
+                return 1;
+            }
+        });
+
+        for (int i = 0; i < 8; i++) {
+            queue.enqueue(createFile(i + ".gpx", "point " + i));
+        }
+
+        assertEquals(8, queue.sendDue());
+        assertEquals(2, maxRunning.get());
+    }
+
+    @Test
+    public void scheduler_isAskedForNextRetry() throws Exception {
+        final List<Long> scheduled = new ArrayList<>();
+        SendQueue queue = newQueue().setScheduler(new SendQueue.Scheduler() {
+            @Override
+            public void schedule(long time) {
+                scheduled.add(time);
+            }
+        });
+        queue.enqueue(createFile("a.gpx", "first"));
+
+        status = 503;
+        queue.sendDue();
+        assertEquals(queue.getNextAttemptTime(), (long) scheduled.get(scheduled.size() - 1));
+        assertTrue(scheduled.get(scheduled.size() - 1) >= now + BACKOFF);
+
+        //Nothing left waiting, so nothing more is asked for
+        scheduled.clear();
+        status = 200;
+        now = queue.getNextAttemptTime();
+        assertEquals(1, queue.sendDue());
+        assertTrue(scheduled.isEmpty());
+    }
+
+    @Test
+    public void scheduler_waitsForUnavailableSender() throws Exception {
+        final List<Long> scheduled = new ArrayList<>();
+        SendQueue queue = new SendQueue(journal, clock()).setBackoff(BACKOFF, BACKOFF * 60)
+                .setScheduler(new SendQueue.Scheduler() {
+                    @Override
+                    public void schedule(long time) {
+                        scheduled.add(time);
+                    }
+                });
+        queue.register(new RecordingSender("offline", null) {
+            @Override
+            public boolean isAvailable() {
+                return false;
+            }
+        });
+        queue.enqueue(createFile("a.gpx", "first"));
+
+        assertEquals(0, queue.sendDue());
+        //Due already, but trying again straight away would only spin
+        assertEquals(Collections.singletonList(now + BACKOFF), scheduled);
+    }
+
+    @Test
+    public void finishedListener_hearsOnceEverySenderIsDone() throws Exception {
+        final List<String> finished = new ArrayList<>();
+        SendQueue.FinishedListener listener = new SendQueue.FinishedListener() {
+            @Override
+            public void onFinished(File file, boolean sentByAll) {
+                finished.add(file.getName() + " " + sentByAll);
+            }
+        };
+        List<String> uploaded = Collections.synchronizedList(new ArrayList<String>());
+        SendQueue queue = newQueue().setFinishedListener(listener);
+        queue.register(new RecordingSender("copy", uploaded));
+        queue.enqueue(createFile("a.gpx", "first"));
+
+        //Sent by one sender but still waiting for the other
+        status = 503;
+        queue.sendDue();
+        assertEquals(Collections.singletonList("a.gpx"), uploaded);
+        assertTrue(finished.isEmpty());
+
+        status = 200;
+        now = queue.getNextAttemptTime();
+        queue.sendDue();
+        assertEquals(Collections.singletonList("a.gpx true"), finished);
+    }
+
+    @Test
+    public void finishedListener_isToldWhenASenderGaveUp() throws Exception {
+        final List<String> finished = new ArrayList<>();
+        SendQueue.FinishedListener listener = new SendQueue.FinishedListener() {
+            @Override
+            public void onFinished(File file, boolean sentByAll) {
+                finished.add(file.getName() + " " + sentByAll);
+            }
+        };
+        SendQueue queue = newQueue().setMaxAttempts(1).setFinishedListener(listener);
+        queue.register(new RecordingSender("slow", null) {
+            @Override
+            public boolean isAvailable() {
+                return status == 200;
+            }
+        });
+        queue.enqueue(createFile("a.gpx", "first"));
+
+        //The http sender gives up while the other one still has the file queued
+        status = 503;
+        queue.sendDue();
+        assertTrue(finished.isEmpty());
+
+        //Which is remembered across a restart
+        SendQueue restarted = newQueue().setFinishedListener(listener);
+        restarted.register(new RecordingSender("slow", null));
+        assertEquals(1, restarted.getPendingCount());
+        status = 200;
+        assertEquals(1, restarted.sendDue());
+        assertEquals(Collections.singletonList("a.gpx false"), finished);
+    }
+
+    private SendQueue newQueue() {
+        SendQueue queue = new SendQueue(journal, clock()).setBackoff(BACKOFF, BACKOFF * 60);
+        queue.register(new HttpFileSender("http", url));
+        return queue;
+    }
+
+    private SendQueue.Clock clock() {
+        return new SendQueue.Clock() {
+            @Override
+            public long currentTimeMillis() {
+                return now;
+            }
+        };
+    }
+
+    private File createFile(String name, String contents) throws IOException {
+        File file = new File(folder, name);
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(contents.getBytes("UTF-8"));
+        out.close();
+        return file;
+    }
+
+    private static class RecordingSender extends FileSender {
+        private final String name;
+        private final List<String> uploaded;
+
+        RecordingSender(String name, List<String> uploaded) {
+            this.name = name;
+            this.uploaded = uploaded;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public boolean accept(File file) {
+            return true;
+        }
+
+        @Override
+        public void upload(List<File> files) {
+            for (File file : files) {
+                if (uploaded != null) {
+                    uploaded.add(file.getName());
+                }
+            }
+        }
+    }
+
+    private static void assertInRange(long delay, long actual) {
+        assertTrue(actual + " not in [" + delay + ", " + delay * 5 / 4 + "]", actual >= delay && actual <= delay * 5 / 4);
+    }
+}
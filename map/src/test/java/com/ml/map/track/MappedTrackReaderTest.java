@@ -0,0 +1,228 @@
+package com.ml.map.track;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MappedTrackReaderTest {
+
+    private static final long START = 1462110310000L;
+    private static final int RECORDS = 3000;
+
+    @Rule
+    public final TemporaryFolder temp = new TemporaryFolder();
+
+    private File folder;
+    private File file;
+    private final List<TrackRecord> written = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        folder = temp.newFolder("mapped-track");
+        file = new File(folder, "test" + TrackFileLogger.EXTENSION);
+    }
+
+    @Test
+    public void cursor_readsEveryRecordInFileOrder() throws Exception {
+        write(RECORDS);
+
+        MappedTrackReader reader = MappedTrackReader.open(file);
+        try {
+            assertEquals(RECORDS, reader.getRecordCount());
+            assertEquals(START - 5000 + 399, reader.getStartTime());
+            assertEquals(time(RECORDS - 1), reader.getEndTime());
+
+            MappedTrackReader.Cursor cursor = reader.cursor();
+            cursor.rewind();
+            TrackRecord read = new TrackRecord();
+            for (TrackRecord expected : written) {
+                assertTrue(cursor.next(read));
+                TrackCodecTest.assertSameRecord(expected, read);
+            }
+            assertFalse(cursor.next(read));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void query_matchesScanOfWholeFile() throws Exception {
+        write(RECORDS);
+
+        MappedTrackReader reader = MappedTrackReader.open(file);
+        try {
+            long[][] ranges = {
+                    {Long.MIN_VALUE, Long.MAX_VALUE},
+                    {time(100), time(200)},
+                    {time(1000), time(1000)},
+                    //Takes in the late fixes that were written out of order
+                    {START - 5000, START},
+                    {time(RECORDS - 10), Long.MAX_VALUE},
+                    {0, START - 10000},
+                    {time(RECORDS) + 1, Long.MAX_VALUE}
+            };
+            TrackPoints points = new TrackPoints(16);
+            for (long[] range : ranges) {
+                points.clear();
+                List<TrackRecord> expected = pointsBetween(range[0], range[1]);
+                assertEquals(expected.size(), reader.query(range[0], range[1], points));
+                assertEquals(expected.size(), points.size());
+                for (int i = 0; i < expected.size(); i++) {
+                    assertEquals(expected.get(i).getTime(), points.getTime(i));
+                    assertEquals(expected.get(i).getLatitude(), points.getLatitude(i), 1e-7);
+                    assertEquals(expected.get(i).getLongitude(), points.getLongitude(i), 1e-7);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void last_returnsLastPointsWithoutAnnotations() throws Exception {
+        write(RECORDS);
+        List<TrackRecord> all = pointsBetween(Long.MIN_VALUE, Long.MAX_VALUE);
+
+        MappedTrackReader reader = MappedTrackReader.open(file);
+        try {
+            TrackPoints points = new TrackPoints();
+            for (int n : new int[]{1, 10, 500, all.size(), all.size() + 100}) {
+                reader.last(n, points);
+                int size = Math.min(n, all.size());
+                assertEquals(size, points.size());
+                for (int i = 0; i < size; i++) {
+                    assertEquals(all.get(all.size() - size + i).getTime(), points.getTime(i));
+                }
+            }
+
+            reader.last(0, points);
+            assertEquals(0, points.size());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void seekRecord_continuesWithFullRecords() throws Exception {
+        write(RECORDS);
+
+        MappedTrackReader reader = MappedTrackReader.open(file);
+        try {
+            MappedTrackReader.Cursor cursor = reader.cursor();
+            TrackRecord read = new TrackRecord();
+            for (int first : new int[]{0, 1, 149, 150, 151, 1234, RECORDS - 1, RECORDS}) {
+                cursor.seekRecord(first);
+                for (int i = first; i < RECORDS; i++) {
+                    assertTrue(cursor.next(read));
+                    TrackCodecTest.assertSameRecord(written.get(i), read);
+                }
+                assertFalse(cursor.next(read));
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void fileBeingWritten_isReadUpToLastWrittenBlock() throws Exception {
+        TrackWriter writer = TrackWriter.open(file);
+        try {
+            for (int i = 0; i < 100; i++) {
+                writer.append(record(i));
+            }
+            writer.sync();
+            writer.append(record(100));
+
+            MappedTrackReader reader = MappedTrackReader.open(file);
+            try {
+                assertEquals(100, reader.getRecordCount());
+                TrackPoints points = new TrackPoints();
+                reader.query(Long.MIN_VALUE, Long.MAX_VALUE, points);
+                assertEquals(pointsBetween(Long.MIN_VALUE, time(99)).size(), points.size());
+            } finally {
+                reader.close();
+            }
+        } finally {
+            writer.close();
+        }
+
+        MappedTrackReader reader = MappedTrackReader.open(file);
+        try {
+            assertEquals(101, reader.getRecordCount());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void emptyFile_hasNoRecords() throws Exception {
+        TrackWriter.open(file).close();
+
+        MappedTrackReader reader = MappedTrackReader.open(file);
+        try {
+            assertEquals(0, reader.getRecordCount());
+            assertEquals(0, reader.getStartTime());
+            assertEquals(0, reader.getEndTime());
+            TrackPoints points = new TrackPoints();
+            assertEquals(0, reader.query(Long.MIN_VALUE, Long.MAX_VALUE, points));
+            reader.last(10, points);
+            assertEquals(0, points.size());
+            assertFalse(reader.cursor().next(new TrackRecord()));
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void write(int count) throws IOException {
+        TrackWriter writer = TrackWriter.open(file);
+        try {
+            for (int i = 0; i < count; i++) {
+                writer.append(record(i));
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private List<TrackRecord> pointsBetween(long from, long to) {
+        List<TrackRecord> points = new ArrayList<>();
+        for (TrackRecord record : written) {
+            if (!record.isAnnotation() && record.getTime() >= from && record.getTime() <= to) {
+                points.add(record);
+            }
+        }
+        return points;
+    }
+
+    private static long time(long i) {
+        return START + i * 1000;
+    }
+
+    private TrackRecord record(int i) {
+        TrackRecord record;
+        if (i % 97 == 50) {
+            record = TrackCodecTest.annotation("note " + i, time(i));
+        } else {
+            //Every so often a fix turns up late, from before the start of the track
+            long time = i % 400 == 399 ? START - 5000 + i : time(i);
+            //The provider only changes now and then, so most records carry it over from the one before
+            record = new TrackRecord().setPoint(i % 300 < 150 ? "gps" : "network", time,
+                    51.5 + i * 1e-5, -0.12 - i * 2e-5, i % 500 == 0);
+            if (i % 3 != 0) {
+                record.setAltitude(30 + (i % 40) * 0.25).setAccuracy(3 + i % 7);
+            }
+        }
+        if (written.size() == i) {
+            written.add(record);
+        }
+        return record;
+    }
+}
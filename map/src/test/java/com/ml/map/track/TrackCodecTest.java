@@ -0,0 +1,133 @@
+package com.ml.map.track;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TrackCodecTest {
+
+    @Test
+    public void zigzag_roundTrips() {
+        long[] values = {0, 1, -1, 2, -2, 63, -64, 64, Integer.MAX_VALUE, Integer.MIN_VALUE,
+                Long.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE - 1, Long.MIN_VALUE + 1};
+        for (long value : values) {
+            assertEquals(value, TrackCodec.unzigzag(TrackCodec.zigzag(value)));
+        }
+
+        //Small magnitudes stay small either side of zero
+        assertEquals(0, TrackCodec.zigzag(0));
+        assertEquals(1, TrackCodec.zigzag(-1));
+        assertEquals(2, TrackCodec.zigzag(1));
+        assertEquals(127, TrackCodec.zigzag(-64));
+
+        Random random = new Random(11);
+        for (int i = 0; i < 100000; i++) {
+            long value = random.nextLong();
+            assertEquals(value, TrackCodec.unzigzag(TrackCodec.zigzag(value)));
+        }
+    }
+
+    @Test
+    public void varint_roundTripsAcrossByteBoundaries() {
+        TrackCodec codec = new TrackCodec();
+        TrackRecord record = new TrackRecord();
+        long[] deltas = {0, 1, -1, 63, -64, 64, 8191, -8192, 8192, 1L << 35, -(1L << 40), Integer.MAX_VALUE};
+
+        //Each time delta goes through one zigzag varint
+        codec.reset();
+        long time = 0;
+        for (long delta : deltas) {
+            time += delta;
+            codec.encode(record.setPoint("gps", time, 0, 0, false));
+        }
+
+        ByteBuffer in = ByteBuffer.wrap(codec.array(), 0, codec.length());
+        TrackCodec decoder = new TrackCodec();
+        decoder.reset();
+        time = 0;
+        for (long delta : deltas) {
+            time += delta;
+            decoder.decode(in, record);
+            assertEquals(time, record.getTime());
+        }
+        assertFalse(in.hasRemaining());
+
+        ByteBuffer single = ByteBuffer.wrap(new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F});
+        assertEquals(0xFFFFFFFFL, TrackCodec.readVarint(single));
+    }
+
+    @Test
+    public void records_roundTripWithinScale() {
+        TrackCodec codec = new TrackCodec();
+        codec.reset();
+        TrackRecord[] written = {
+                new TrackRecord().setPoint("gps", 1462110310123L, 51.5007292, -0.1246254, true)
+                        .setAltitude(35.27).setAccuracy(4.5f).setSpeed(1.25f).setBearing(359.99f)
+                        .setSatellites(9).setHdop(0.9f),
+                new TrackRecord().setPoint("gps", 1462110309000L, -33.8083333, 151.2, false),
+                new TrackRecord().setPoint("network", 1462110320000L, -90, 180, false).setAltitude(-12.5),
+                annotation("Left, then \"right\" – café 😀", 1462110320000L),
+                new TrackRecord().setPoint("gps", 1462110330000L, 90, -180, false).setAltitude(8848.86)
+        };
+        for (TrackRecord record : written) {
+            codec.encode(record);
+        }
+
+        ByteBuffer in = ByteBuffer.wrap(codec.array(), 0, codec.length());
+        TrackCodec decoder = new TrackCodec();
+        decoder.reset();
+        TrackRecord read = new TrackRecord();
+        for (TrackRecord expected : written) {
+            decoder.decode(in, read);
+            assertSameRecord(expected, read);
+        }
+        assertFalse(in.hasRemaining());
+    }
+
+    @Test
+    public void decodeWithoutStrings_keepsPositionsInStep() {
+        TrackCodec codec = new TrackCodec();
+        codec.reset();
+        codec.encode(new TrackRecord().setPoint("gps", 1000, 1, 2, false));
+        codec.encode(annotation("a long enough note to need skipping", 2000));
+        codec.encode(new TrackRecord().setPoint("network", 3000, 3, 4, false));
+
+        ByteBuffer in = ByteBuffer.wrap(codec.array(), 0, codec.length());
+        TrackCodec decoder = new TrackCodec();
+        decoder.reset();
+        TrackRecord read = new TrackRecord();
+        decoder.decode(in, read, false);
+        decoder.decode(in, read, false);
+        assertTrue(read.isAnnotation());
+        assertNull(read.getDescription());
+        decoder.decode(in, read, false);
+        assertEquals(3000, read.getTime());
+        assertEquals(3, read.getLatitude(), 1e-9);
+        assertFalse(in.hasRemaining());
+    }
+
+    static TrackRecord annotation(String description, long time) {
+        TrackRecord record = new TrackRecord().setPoint("gps", time, 10, 20, false);
+        record.flags |= TrackRecord.ANNOTATION;
+        record.description = description;
+        return record;
+    }
+
+    static void assertSameRecord(TrackRecord expected, TrackRecord actual) {
+        assertEquals(expected.flags, actual.flags);
+        assertEquals(expected.getTime(), actual.getTime());
+        assertEquals(expected.getLatitude(), actual.getLatitude(), 0.5 / TrackCodec.COORDINATE_SCALE);
+        assertEquals(expected.getLongitude(), actual.getLongitude(), 0.5 / TrackCodec.COORDINATE_SCALE);
+        assertEquals(expected.getAltitude(), actual.getAltitude(), 0.5 / TrackCodec.CENTI);
+        assertEquals(expected.getAccuracy(), actual.getAccuracy(), 0.5 / TrackCodec.CENTI);
+        assertEquals(expected.getSpeed(), actual.getSpeed(), 0.5 / TrackCodec.CENTI);
+        assertEquals(expected.getBearing(), actual.getBearing(), 0.5 / TrackCodec.CENTI);
+        assertEquals(expected.getSatellites(), actual.getSatellites());
+        assertEquals(expected.getHdop(), actual.getHdop(), 0.5 / TrackCodec.CENTI);
+        assertEquals(expected.getProvider(), actual.getProvider());
+        assertEquals(expected.getDescription(), actual.getDescription());
+    }
+}
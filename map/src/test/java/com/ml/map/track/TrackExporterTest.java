@@ -0,0 +1,255 @@
+package com.ml.map.track;
+
+import android.location.Location;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class TrackExporterTest {
+
+    private static final long START = 1462110310000L;
+    private static final int RECORDS = 3000;
+
+    @Rule
+    public final TemporaryFolder temp = new TemporaryFolder();
+
+    private File folder;
+    private File trackFile;
+    private File output;
+
+    @Before
+    public void setUp() throws Exception {
+        folder = temp.newFolder("track-exporter");
+        trackFile = new File(folder, "test" + TrackFileLogger.EXTENSION);
+        output = new File(folder, "test.txt");
+
+        TrackWriter writer = TrackWriter.open(trackFile);
+        try {
+            for (int i = 0; i < RECORDS; i++) {
+                if (i % 97 == 50) {
+                    writer.append(TrackCodecTest.annotation("note " + i, time(i)));
+                } else {
+                    writer.append(new TrackRecord().setPoint("gps", time(i), 51.5 + i * 1e-5, -0.12, i % 500 == 0));
+                }
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void export_writesEveryRecordToEveryOutput() throws Exception {
+        File second = new File(folder, "second.txt");
+        TrackExporter exporter = new TrackExporter(trackFile)
+                .add(new LineEncoder(), output)
+                .add(new LineEncoder(), second);
+
+        assertEquals(RECORDS, exporter.export());
+        String expected = expected(0, RECORDS);
+        assertEquals(expected, read(output));
+        assertEquals(expected, read(second));
+        assertNoTemporaryFiles();
+    }
+
+    @Test
+    public void recordRange_exportsRecordsByIndex() throws Exception {
+        long exported = new TrackExporter(trackFile).add(new LineEncoder(), output)
+                .setRecordRange(1234, 2345).export();
+
+        assertEquals(2345 - 1234, exported);
+        assertEquals(expected(1234, 2345), read(output));
+
+        //A range past the end stops at the last record
+        exported = new TrackExporter(trackFile).add(new LineEncoder(), output)
+                .setRecordRange(RECORDS - 10, RECORDS + 10).export();
+        assertEquals(10, exported);
+        assertEquals(expected(RECORDS - 10, RECORDS), read(output));
+    }
+
+    @Test
+    public void timeRange_exportsRecordsInRange() throws Exception {
+        long exported = new TrackExporter(trackFile).add(new LineEncoder(), output)
+                .setTimeRange(time(100), time(199)).export();
+
+        assertEquals(100, exported);
+        assertEquals(expected(100, 200), read(output));
+        assertNoTemporaryFiles();
+    }
+
+    @Test
+    public void cancelled_leavesExistingOutputAndNoPartFiles() throws Exception {
+        write(output, "earlier export");
+
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        LineEncoder cancelling = new LineEncoder() {
+            @Override
+            public void write(Location loc, boolean newSegment) throws IOException {
+                super.write(loc, newSegment);
+                if (loc.getTime() == time(1500)) {
+                    cancelled.set(true);
+                }
+            }
+        };
+        TrackExporter exporter = new TrackExporter(trackFile).add(cancelling, output)
+                .add(new LineEncoder(), new File(folder, "second.txt"))
+                .setCancelSignal(cancelled);
+
+        try {
+            exporter.export();
+            fail("Export was not cancelled");
+        } catch (InterruptedIOException expected) {
+        }
+        assertTrue(cancelling.closed);
+        assertEquals("earlier export", read(output));
+        assertFalse(new File(folder, "second.txt").exists());
+        assertNoTemporaryFiles();
+    }
+
+    @Test
+    public void failedEncoder_leavesNoOutput() throws Exception {
+        LineEncoder failing = new LineEncoder() {
+            @Override
+            public void finish() throws IOException {
+                throw new IOException("Disk full");
+            }
+        };
+        try {
+            new TrackExporter(trackFile).add(new LineEncoder(), output)
+                    .add(failing, new File(folder, "second.txt")).export();
+            fail("Failure was not reported");
+        } catch (IOException expected) {
+        }
+        assertFalse(output.exists());
+        assertFalse(new File(folder, "second.txt").exists());
+        assertNoTemporaryFiles();
+    }
+
+    @Test
+    public void failedRename_putsEveryEarlierOutputBack() throws Exception {
+        File second = new File(folder, "second.txt");
+        write(output, "earlier export");
+        write(second, "earlier second");
+        //Something in the way of moving the second output aside
+        File blocker = new File(folder, "second.txt.old");
+        blocker.mkdirs();
+        write(new File(blocker, "in the way"), "");
+
+        try {
+            new TrackExporter(trackFile).add(new LineEncoder(), output).add(new LineEncoder(), second).export();
+            fail("Failure was not reported");
+        } catch (IOException expected) {
+        }
+        assertEquals("earlier export", read(output));
+        assertEquals("earlier second", read(second));
+        assertFalse(new File(folder, "test.txt.old").exists());
+        assertNoTemporaryFiles();
+    }
+
+    private void assertNoTemporaryFiles() {
+        for (String name : folder.list()) {
+            assertFalse(name, name.endsWith(".part"));
+            assertFalse(name, name.endsWith(".spool"));
+        }
+    }
+
+    private static String expected(int first, int end) {
+        StringBuilder lines = new StringBuilder("start " + time(first) + "\n");
+        for (int i = first; i < end; i++) {
+            if (i % 97 == 50) {
+                lines.append("annotate note ").append(i).append('\n');
+            } else {
+                lines.append(i % 500 == 0 ? "segment " : "point ").append(time(i)).append('\n');
+            }
+        }
+        return lines.append("end\n").toString();
+    }
+
+    private static long time(long i) {
+        return START + i * 1000;
+    }
+
+    private static void write(File file, String text) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(text.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String read(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                offset += in.read(data, offset, data.length - offset);
+            }
+        } finally {
+            in.close();
+        }
+        return new String(data, "UTF-8");
+    }
+
+    /**
+     * Writes one line per call, to check what the exporter hands to its encoders
+     */
+    private static class LineEncoder implements TrackEncoder {
+        private OutputStream out;
+        boolean closed;
+
+        @Override
+        public String getExtension() {
+            return ".txt";
+        }
+
+        @Override
+        public void open(File file, long startTime) throws IOException {
+            out = new FileOutputStream(file);
+            line("start " + startTime);
+        }
+
+        @Override
+        public void write(Location loc, boolean newSegment) throws IOException {
+            line((newSegment ? "segment " : "point ") + loc.getTime());
+        }
+
+        @Override
+        public void annotate(String description, Location loc) throws IOException {
+            line("annotate " + description);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            line("end");
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            try {
+                out.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private void line(String text) throws IOException {
+            out.write((text + "\n").getBytes("UTF-8"));
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.ml.map.track;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+import static org.junit.Assert.*;
+
+public class TrackWriterTest {
+
+    //Enough records for several blocks
+    private static final int RECORDS = 2000;
+
+    @Rule
+    public final TemporaryFolder temp = new TemporaryFolder();
+
+    private File folder;
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        folder = temp.newFolder("track-writer");
+        file = new File(folder, "test" + TrackFileLogger.EXTENSION);
+    }
+
+    @Test
+    public void closedFile_isReadBackFromFooter() throws Exception {
+        write(0, RECORDS);
+
+        TrackIndex index = load();
+        assertTrue(index.hadFooter());
+        assertTrue(index.getBlockCount() > 2);
+        assertEquals(RECORDS, index.getRecordCount());
+        assertReads(RECORDS);
+
+        TrackReader reader = TrackReader.open(file);
+        try {
+            assertEquals(time(0), reader.getStartTime());
+            assertEquals(time(RECORDS - 1), reader.getEndTime());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void missingFooter_isRecoveredFromBlocks() throws Exception {
+        write(0, RECORDS);
+        TrackIndex closed = load();
+
+        //As if the process died before closing: blocks are there, footer isn't
+        setLength(closed.getDataEnd());
+
+        TrackIndex recovered = load();
+        assertFalse(recovered.hadFooter());
+        assertEquals(closed.getBlockCount(), recovered.getBlockCount());
+        assertEquals(RECORDS, recovered.getRecordCount());
+        for (int i = 0; i < closed.getBlockCount(); i++) {
+            assertEquals(closed.getOffset(i), recovered.getOffset(i));
+            assertEquals(closed.getFirstTime(i), recovered.getFirstTime(i));
+            assertEquals(closed.getLastTime(i), recovered.getLastTime(i));
+            assertEquals(closed.getRecordCount(i), recovered.getRecordCount(i));
+        }
+        assertReads(RECORDS);
+
+        //A damaged footer is ignored the same way
+        write(RECORDS, 10);
+        corrupt(file.length() - 1);
+        assertFalse(load().hadFooter());
+        assertReads(RECORDS + 10);
+    }
+
+    @Test
+    public void truncatedLastBlock_isDroppedAndOverwritten() throws Exception {
+        write(0, RECORDS);
+        TrackIndex closed = load();
+        int last = closed.getBlockCount() - 1;
+        long kept = closed.getRecordCount() - closed.getRecordCount(last);
+
+        //Cut halfway into the last block
+        setLength(closed.getOffset(last) + (closed.getDataEnd() - closed.getOffset(last)) / 2);
+
+        TrackIndex recovered = load();
+        assertEquals(last, recovered.getBlockCount());
+        assertEquals(kept, recovered.getRecordCount());
+        assertEquals(closed.getOffset(last), recovered.getDataEnd());
+        assertReads(kept);
+
+        //Appending continues where the last intact block ends
+        write(kept, 5);
+        assertTrue(load().hadFooter());
+        assertReads(kept + 5);
+    }
+
+    @Test
+    public void badCrc_stopsRecoveryAtThatBlock() throws Exception {
+        write(0, RECORDS);
+        TrackIndex closed = load();
+        setLength(closed.getDataEnd());
+
+        //Flip a payload byte in the second block
+        corrupt(closed.getOffset(1) + TrackIndex.BLOCK_HEADER_SIZE + 10);
+
+        TrackIndex recovered = load();
+        assertEquals(1, recovered.getBlockCount());
+        assertEquals(closed.getRecordCount(0), recovered.getRecordCount());
+        assertEquals(closed.getOffset(1), recovered.getDataEnd());
+        assertReads(closed.getRecordCount(0));
+    }
+
+    @Test
+    public void flushDelay_keepsPartialBlockInMemory() throws Exception {
+        TrackWriter writer = TrackWriter.open(file);
+        try {
+            writer.setFlushDelay(60000);
+            writer.append(record(0));
+            writer.flush();
+            assertEquals(1, writer.getRecordCount());
+            assertEquals(0, load().getRecordCount());
+
+            writer.sync();
+            assertEquals(1, load().getRecordCount());
+        } finally {
+            writer.close();
+        }
+        assertReads(1);
+    }
+
+    @Test(expected = IOException.class)
+    public void otherFile_isRejected() throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.write("<?xml version=\"1.0\"?><gpx></gpx>".getBytes("US-ASCII"));
+        } finally {
+            raf.close();
+        }
+        TrackWriter.open(file);
+    }
+
+    private void write(long first, int count) throws IOException {
+        TrackWriter writer = TrackWriter.open(file);
+        try {
+            for (long i = first; i < first + count; i++) {
+                writer.append(record(i));
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void assertReads(long count) throws IOException {
+        TrackReader reader = TrackReader.open(file);
+        try {
+            assertEquals(count, reader.getRecordCount());
+            TrackRecord read = new TrackRecord();
+            for (long i = 0; i < count; i++) {
+                assertTrue(reader.next(read));
+                TrackCodecTest.assertSameRecord(record(i), read);
+            }
+            assertFalse(reader.next(read));
+        } finally {
+            reader.close();
+        }
+    }
+
+    private TrackIndex load() throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            return TrackIndex.load(channel);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void setLength(long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void corrupt(long position) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(position);
+            int b = raf.read();
+            raf.seek(position);
+            raf.write(b ^ 0xFF);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static long time(long i) {
+        return 1462110310000L + i * 1000;
+    }
+
+    private static TrackRecord record(long i) {
+        if (i % 97 == 50) {
+            return TrackCodecTest.annotation("note " + i, time(i));
+        }
+        TrackRecord record = new TrackRecord().setPoint(i % 300 < 150 ? "gps" : "network", time(i),
+                51.5 + i * 1e-5, -0.12 - i * 2e-5, i % 500 == 0);
+        if (i % 3 != 0) {
+            record.setAltitude(30 + (i % 40) * 0.25).setAccuracy(3 + i % 7).setSatellites((int) (i % 12));
+        }
+        return record;
+    }
+}